@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Copy of a message found in the archive, as lookups that fall back to MessageSegmentStore
+// return it. Built straight from the record rather than through the public constructor, so
+// it is not registered in messageHashes/messageIDs a second time. Flag changes stay on the
+// copy; the archived record is immutable.
+class ArchivedMessage extends Message {
+    private final MessageCodec.Record record;
+    private final AtomicInteger state;
+
+    ArchivedMessage(MessageCodec.Record record) {
+        this.record = record;
+        this.state = new AtomicInteger(record.lifecycleState());
+    }
+
+    @Override
+    public String getMessageID() {
+        return record.messageID;
+    }
+
+    @Override
+    public String getRecipient() {
+        return record.recipient;
+    }
+
+    @Override
+    public String getMessageText() {
+        return record.messageText;
+    }
+
+    @Override
+    public String getMessageHash() {
+        return record.messageHash;
+    }
+
+    @Override
+    int state() {
+        return state.get();
+    }
+
+    @Override
+    boolean compareAndSetState(int expect, int update) {
+        return state.compareAndSet(expect, update);
+    }
+}
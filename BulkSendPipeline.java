@@ -0,0 +1,434 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bulk send of (recipient, text) records from a CSV or JSON-lines file, as three stages
+// joined by bounded queues:
+//
+//   read (1 thread) -> prepare (N threads) -> insert (M threads)
+//
+// read parses records; prepare generates the message ID, validates the ID, recipient and
+// text, and builds the Message (which hashes it); insert adds it to sentMessages, or to
+// disregardedMessages with the reason attached. Records move in batches so queue handoffs
+// are amortised, and a full queue blocks its producer, so a slow stage throttles the ones
+// before it instead of letting work pile up in memory.
+//
+// Run: java BulkSendPipeline <file.csv|file.jsonl> [--prepare=N] [--insert=N] [--batch=N] [--queue=N]
+//      java BulkSendPipeline --generate=N [...]   (synthetic records, to measure throughput)
+public class BulkSendPipeline {
+
+    // One input record; line is 1-based, for error reporting
+    public static final class Record {
+        final long line;
+        final String recipient;
+        final String text;
+        // Set when the line could not be parsed
+        final String parseError;
+
+        Record(long line, String recipient, String text, String parseError) {
+            this.line = line;
+            this.recipient = recipient;
+            this.text = text;
+            this.parseError = parseError;
+        }
+    }
+
+    // Pulls records for the read stage; null at end of input
+    public interface Source {
+        Record next() throws IOException;
+    }
+
+    // Throughput counters for one stage
+    public static final class StageCounter {
+        final String name;
+        final LongAdder records = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        // Time spent working, excluding time blocked on the queues, summed over the stage's threads
+        final AtomicLong busyNanos = new AtomicLong();
+
+        StageCounter(String name) {
+            this.name = name;
+        }
+
+        public long getRecords() {
+            return records.sum();
+        }
+
+        // Records per second of the stage's own busy time, per thread
+        public double getRecordsPerBusySecond() {
+            long busy = busyNanos.get();
+            return busy == 0 ? 0 : records.sum() * 1e9 / busy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %,12d records %,10d batches %,14.0f rec/busy-s",
+                    name, records.sum(), batches.sum(), getRecordsPerBusySecond());
+        }
+    }
+
+    // Outcome of one run
+    public static final class Stats {
+        final StageCounter read = new StageCounter("read");
+        final StageCounter prepare = new StageCounter("prepare");
+        final StageCounter insert = new StageCounter("insert");
+        final LongAdder sent = new LongAdder();
+        final LongAdder disregarded = new LongAdder();
+        long elapsedNanos;
+
+        public long getSent() {
+            return sent.sum();
+        }
+
+        public long getDisregarded() {
+            return disregarded.sum();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public List<StageCounter> getStages() {
+            return List.of(read, prepare, insert);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (StageCounter stage : getStages()) {
+                sb.append(stage).append('\n');
+            }
+            double seconds = elapsedNanos / 1e9;
+            long total = getSent() + getDisregarded();
+            return sb.append(String.format("sent %,d, disregarded %,d in %.2f s: %,.0f messages/s (%,.0f/min)",
+                    getSent(), getDisregarded(), seconds, total / seconds, total * 60 / seconds)).toString();
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final int prepareThreads;
+    private final int insertThreads;
+    private final int batchSize;
+    private final int queueCapacity;
+
+    public BulkSendPipeline() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 1, 512, 64);
+    }
+
+    // queueCapacity is in batches, so at most (2 * queueCapacity + threads) * batchSize records are in flight
+    public BulkSendPipeline(int prepareThreads, int insertThreads, int batchSize, int queueCapacity) {
+        if (prepareThreads < 1 || insertThreads < 1 || batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Thread counts, batch size and queue capacity must be positive");
+        }
+        this.prepareThreads = prepareThreads;
+        this.insertThreads = insertThreads;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int prepare = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int insert = 1;
+        int batch = 512;
+        int queue = 64;
+        Path file = null;
+        long generate = -1;
+        for (String arg : args) {
+            if (arg.startsWith("--prepare=")) {
+                prepare = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--insert=")) {
+                insert = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--queue=")) {
+                queue = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--generate=")) {
+                generate = Long.parseLong(arg.substring(11));
+            } else {
+                file = Paths.get(arg);
+            }
+        }
+        BulkSendPipeline pipeline = new BulkSendPipeline(prepare, insert, batch, queue);
+        Stats stats;
+        if (generate >= 0) {
+            stats = pipeline.run(generated(generate));
+        } else if (file != null) {
+            stats = pipeline.run(file);
+        } else {
+            System.err.println("Usage: java BulkSendPipeline <file.csv|file.jsonl> | --generate=N [options]");
+            System.exit(1);
+            return;
+        }
+        System.out.println(stats);
+    }
+
+    // Send every record in the file: JSON lines for .jsonl/.ndjson, CSV otherwise
+    public Stats run(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return run(name.endsWith(".jsonl") || name.endsWith(".ndjson") ? jsonLines(reader) : csv(reader));
+        }
+    }
+
+    public Stats run(Source source) throws IOException {
+        Stats stats = new Stats();
+        BlockingQueue<Object> prepared = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> built = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger preparersLeft = new AtomicInteger(prepareThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(1 + prepareThreads + insertThreads, r -> {
+            Thread t = new Thread(r, "bulk-send");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Void> stages = new ExecutorCompletionService<>(pool);
+        long start = System.nanoTime();
+        try {
+            stages.submit(() -> {
+                read(source, prepared, stats.read);
+                return null;
+            });
+            for (int i = 0; i < prepareThreads; i++) {
+                stages.submit(() -> {
+                    prepare(prepared, built, stats);
+                    // The last preparer out tells every inserter to stop
+                    if (preparersLeft.decrementAndGet() == 0) {
+                        for (int k = 0; k < insertThreads; k++) {
+                            built.put(END);
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (int i = 0; i < insertThreads; i++) {
+                stages.submit(() -> {
+                    insert(built, stats);
+                    return null;
+                });
+            }
+            // Wait in completion order, so the first failing stage is seen even while others are blocked
+            for (int i = 0; i < 1 + prepareThreads + insertThreads; i++) {
+                stages.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Bulk send interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Bulk send failed", cause);
+        } finally {
+            // On failure this interrupts the other stages out of their blocking queue calls
+            pool.shutdownNow();
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private void read(Source source, BlockingQueue<Object> out, StageCounter counter) throws IOException, InterruptedException {
+        List<Record> batch = new ArrayList<>(batchSize);
+        long busyStart = System.nanoTime();
+        Record r;
+        while ((r = source.next()) != null) {
+            batch.add(r);
+            if (batch.size() == batchSize) {
+                busyStart = handOff(out, batch, counter, busyStart);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            busyStart = handOff(out, batch, counter, busyStart);
+        }
+        counter.busyNanos.addAndGet(System.nanoTime() - busyStart);
+        for (int i = 0; i < prepareThreads; i++) {
+            out.put(END);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void prepare(BlockingQueue<Object> in, BlockingQueue<Object> out, Stats stats) throws InterruptedException {
+        Object item;
+        while ((item = in.take()) != END) {
+            long busyStart = System.nanoTime();
+            List<Record> records = (List<Record>) item;
+            List<Message> messages = new ArrayList<>(records.size());
+            for (Record r : records) {
+                messages.add(build(r));
+            }
+            handOff(out, messages, stats.prepare, busyStart);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void insert(BlockingQueue<Object> in, Stats stats) throws InterruptedException {
+        Object item;
+        while ((item = in.take()) != END) {
+            long busyStart = System.nanoTime();
+            List<Message> messages = (List<Message>) item;
+            for (Message m : messages) {
+                if (m.getDisregardReason() == null) {
+                    m.markSent(true);
+                    Message.sentMessages.add(m);
+                    stats.sent.increment();
+                } else {
+                    Message.disregardedMessages.add(m);
+                    stats.disregarded.increment();
+                }
+            }
+            stats.insert.records.add(messages.size());
+            stats.insert.batches.increment();
+            stats.insert.busyNanos.addAndGet(System.nanoTime() - busyStart);
+        }
+    }
+
+    // Count a finished batch and queue it for the next stage; returns when the stage resumes work
+    private static long handOff(BlockingQueue<Object> out, List<?> batch, StageCounter counter, long busyStart)
+            throws InterruptedException {
+        counter.records.add(batch.size());
+        counter.batches.increment();
+        counter.busyNanos.addAndGet(System.nanoTime() - busyStart);
+        out.put(batch);
+        return System.nanoTime();
+    }
+
+    // ID generation, validation and hashing for one record; the reason is set if it must be disregarded
+    static Message build(Record r) {
+        String recipient = r.recipient != null ? r.recipient : "";
+        String text = r.text != null ? r.text : "";
+        Message m = new Message(Message.generateMessageID(), recipient, text);
+        if (r.parseError != null) {
+            m.setDisregardReason("Line " + r.line + ": " + r.parseError);
+            return m;
+        }
+        int failures = ValidationEngine.checkMessageID(m.getMessageID()) | ValidationEngine.checkRecipient(recipient);
+        if (failures != 0 || text.isEmpty()) {
+            List<String> reasons = ValidationResult.of(failures).getMessages();
+            if (text.isEmpty()) {
+                reasons.add("Message text is empty");
+            }
+            m.setDisregardReason("Line " + r.line + ": " + String.join("; ", reasons));
+        }
+        return m;
+    }
+
+    // CSV with recipient,text columns. Fields may be quoted ("" escapes a quote, and quoted
+    // fields may span lines). A first line of exactly "recipient,text" is taken as a header.
+    public static Source csv(Reader input) {
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        long[] lineNo = {0};
+        return new Source() {
+            @Override
+            public Record next() throws IOException {
+                while (true) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                    long first = ++lineNo[0];
+                    if (line.isEmpty() || (first == 1 && line.trim().equalsIgnoreCase("recipient,text"))) {
+                        continue;
+                    }
+                    List<String> fields = new ArrayList<>(2);
+                    StringBuilder field = new StringBuilder();
+                    boolean quoted = false;
+                    int i = 0;
+                    while (true) {
+                        if (i == line.length()) {
+                            if (!quoted) {
+                                break;
+                            }
+                            // A quoted field runs on to the next line
+                            line = reader.readLine();
+                            if (line == null) {
+                                return new Record(first, null, null, "unterminated quoted field");
+                            }
+                            lineNo[0]++;
+                            field.append('\n');
+                            i = 0;
+                            continue;
+                        }
+                        char c = line.charAt(i++);
+                        if (quoted) {
+                            if (c != '"') {
+                                field.append(c);
+                            } else if (i < line.length() && line.charAt(i) == '"') {
+                                field.append('"');
+                                i++;
+                            } else {
+                                quoted = false;
+                            }
+                        } else if (c == '"' && field.length() == 0) {
+                            quoted = true;
+                        } else if (c == ',') {
+                            fields.add(field.toString());
+                            field.setLength(0);
+                        } else {
+                            field.append(c);
+                        }
+                    }
+                    fields.add(field.toString());
+                    if (fields.size() != 2) {
+                        return new Record(first, null, line, "expected 2 fields, found " + fields.size());
+                    }
+                    return new Record(first, fields.get(0).trim(), fields.get(1), null);
+                }
+            }
+        };
+    }
+
+    // One {"recipient": "...", "text": "..."} object per line
+    public static Source jsonLines(Reader input) {
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        long[] lineNo = {0};
+        return () -> {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                lineNo[0]++;
+            } while (line.isBlank());
+            try {
+                Map<String, String> fields = Json.parseObject(line);
+                return new Record(lineNo[0], fields.get("recipient"), fields.get("text"), null);
+            } catch (IllegalArgumentException e) {
+                return new Record(lineNo[0], null, line, e.getMessage());
+            }
+        };
+    }
+
+    // count synthetic valid records, for throughput runs without a file
+    static Source generated(long count) {
+        long[] i = {0};
+        return () -> {
+            long n = i[0]++;
+            if (n >= count) {
+                return null;
+            }
+            return new Record(n + 1, "+2782" + String.format("%07d", n % 10_000_000), "Bulk " + n + " hello there", null);
+        };
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class BulkSendPipelineTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        clearStores();
+    }
+
+    @After
+    public void tearDown() {
+        clearStores();
+    }
+
+    @Test
+    public void testCsvWithQuotingAndInvalidRows() throws IOException {
+        Path file = tmp.newFile("send.csv").toPath();
+        Files.writeString(file, "recipient,text\n"
+                + "+27821234567,Did you get the cake?\n"
+                + "+27821234568,\"Hello, \"\"friend\"\"\nsee you\"\n"
+                + "0831234567,Wrong prefix\n"
+                + "+27821234569,\n"
+                + "just one field\n");
+        BulkSendPipeline.Stats stats = new BulkSendPipeline(2, 1, 2, 1).run(file);
+
+        assertEquals(2, stats.getSent());
+        assertEquals(3, stats.getDisregarded());
+        List<Message> sent = Message.sentMessages.findByRecipient("+27821234568", false);
+        assertEquals("Hello, \"friend\"\nsee you", sent.get(0).getMessageText());
+        assertTrue(sent.get(0).isSent());
+
+        Message wrongPrefix = Message.disregardedMessages.findByRecipient("0831234567", false).get(0);
+        assertEquals("Line 5: " + ValidationRule.RECIPIENT_NO_PREFIX.getDescription(), wrongPrefix.getDisregardReason());
+        assertTrue(Message.disregardedMessages.findByRecipient("+27821234569", false).get(0)
+                .getDisregardReason().contains("empty"));
+        assertEquals(5, stats.getStages().get(0).getRecords());
+        assertEquals(5, stats.getStages().get(2).getRecords());
+    }
+
+    @Test
+    public void testJsonLines() throws IOException {
+        BulkSendPipeline.Stats stats = new BulkSendPipeline(1, 1, 8, 2).run(BulkSendPipeline.jsonLines(new StringReader(
+                "{\"recipient\":\"+27821234567\",\"text\":\"One\"}\n\n{\"recipient\":\"+27821234567\",\"text\":\"Two\"}\n{broken\n")));
+        assertEquals(2, stats.getSent());
+        assertEquals(1, stats.getDisregarded());
+        assertTrue(Message.disregardedMessages.snapshot().get(0).getDisregardReason().startsWith("Line 4: Invalid JSON"));
+    }
+
+    @Test
+    public void testBackpressureWithManyRecords() throws IOException {
+        // Tiny queues force every stage to block on its neighbours many times over
+        BulkSendPipeline.Stats stats = new BulkSendPipeline(3, 2, 16, 1).run(BulkSendPipeline.generated(20_000));
+        assertEquals(20_000, stats.getSent());
+        assertEquals(20_000, Message.sentMessages.size());
+    }
+
+    @Test
+    public void testSourceFailureStopsPipeline() {
+        BulkSendPipeline pipeline = new BulkSendPipeline(1, 1, 1, 1);
+        int[] calls = {0};
+        try {
+            pipeline.run(() -> {
+                if (++calls[0] > 100) {
+                    throw new IOException("disk gone");
+                }
+                return new BulkSendPipeline.Record(calls[0], "+27821234567", "Hi " + calls[0], null);
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("disk gone", e.getMessage());
+        }
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,65 @@
+// Message view over one row of a CompactMessageStore. Each field is decoded the first
+// time its getter is called; lifecycle flags are always read from and written to the store.
+class CompactMessage extends Message {
+    private final CompactMessageStore store;
+    private final int handle;
+    private String messageID;
+    private String recipient;
+    private String messageText;
+    private String messageHash;
+
+    CompactMessage(CompactMessageStore store, int handle) {
+        this.store = store;
+        this.handle = handle;
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    CompactMessageStore store() {
+        return store;
+    }
+
+    @Override
+    public String getMessageID() {
+        if (messageID == null) {
+            messageID = store.idOf(handle);
+        }
+        return messageID;
+    }
+
+    @Override
+    public String getRecipient() {
+        if (recipient == null) {
+            recipient = store.recipientOf(handle);
+        }
+        return recipient;
+    }
+
+    @Override
+    public String getMessageText() {
+        if (messageText == null) {
+            messageText = store.textOf(handle);
+        }
+        return messageText;
+    }
+
+    @Override
+    public String getMessageHash() {
+        if (messageHash == null) {
+            messageHash = createMessageHash();
+        }
+        return messageHash;
+    }
+
+    @Override
+    int state() {
+        return store.flagsOf(handle) & CompactMessageStore.STATE_BITS;
+    }
+
+    @Override
+    boolean compareAndSetState(int expect, int update) {
+        return store.compareAndSetState(handle, expect, update);
+    }
+}
@@ -0,0 +1,300 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compact column store for large message volumes. It can be used on its own, for bulk
+// imports, or as the backend of a MessageStore, as Message.useCompactStorage sets up for the
+// shared stores. Instead of one Message object holding four Strings (ID, recipient, text,
+// hash) per message, each message is a row across primitive columns:
+//   recipient -> long (digits, digit count and '+' packed together)
+//   message ID -> int (digits after "MSG" plus digit count)
+//   flags     -> bits in a byte
+//   text      -> UTF-8 bytes in off-heap arena chunks, addressed by a long position
+// Values that don't fit the packed forms go to a small side table instead.
+// Rows are addressed by int handles; view(handle) gives a Message whose getters decode lazily.
+public class CompactMessageStore {
+    // The low bits are the MessageLifecycle state, stored as is
+    static final byte SENT = MessageLifecycle.SENT;
+    static final byte RECEIVED = MessageLifecycle.RECEIVED;
+    static final byte READ = MessageLifecycle.READ;
+    // A flag setter has been called, so getFlag renders instead of returning ""
+    static final byte FLAG_SET = MessageLifecycle.FLAG_SET;
+    static final byte STATE_BITS = SENT | RECEIVED | READ | FLAG_SET;
+    static final byte DELETED = 16;
+
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final String ID_PREFIX = "MSG";
+    private static final int ID_VALUE_BITS = 27;
+    private static final int RECIPIENT_VALUE_BITS = 57;
+    private static final int MAX_RECIPIENT_DIGITS = 17;
+
+    private final Object lock = new Object();
+    private volatile Columns columns = new Columns(1024);
+    private volatile int size;
+    private int deleted;
+
+    // Off-heap text arena
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long arenaBytes;
+
+    // Values that couldn't be packed, referenced by negative codes
+    private final List<String> sideTable = new ArrayList<>();
+
+    private static final class Columns {
+        final long[] recipients;
+        final int[] ids;
+        final byte[] flags;
+        final long[] textPositions;
+        final int[] textLengths;
+
+        Columns(int capacity) {
+            recipients = new long[capacity];
+            ids = new int[capacity];
+            flags = new byte[capacity];
+            textPositions = new long[capacity];
+            textLengths = new int[capacity];
+        }
+
+        Columns(Columns old, int capacity) {
+            recipients = Arrays.copyOf(old.recipients, capacity);
+            ids = Arrays.copyOf(old.ids, capacity);
+            flags = Arrays.copyOf(old.flags, capacity);
+            textPositions = Arrays.copyOf(old.textPositions, capacity);
+            textLengths = Arrays.copyOf(old.textLengths, capacity);
+        }
+    }
+
+    // Copy a message into the store and return its handle
+    public int add(Message m) {
+        synchronized (lock) {
+            int handle = size;
+            Columns c = columns;
+            if (handle == c.ids.length) {
+                c = new Columns(c, c.ids.length * 2);
+                columns = c;
+            }
+            c.recipients[handle] = encodeRecipient(m.getRecipient());
+            c.ids[handle] = encodeID(m.getMessageID());
+            c.flags[handle] = flagsOf(m);
+            byte[] text = m.getMessageText() == null ? null : m.getMessageText().getBytes(StandardCharsets.UTF_8);
+            if (text == null) {
+                c.textLengths[handle] = -1;
+            } else {
+                c.textPositions[handle] = appendText(text);
+                c.textLengths[handle] = text.length;
+            }
+            size = handle + 1;
+            return handle;
+        }
+    }
+
+    // Live view of the row; fields are decoded the first time each getter is called
+    public Message view(int handle) {
+        checkHandle(handle);
+        return new CompactMessage(this, handle);
+    }
+
+    // True if m is a view of one of this store's rows
+    boolean holds(Message m) {
+        return m instanceof CompactMessage && ((CompactMessage) m).store() == this;
+    }
+
+    // Mark a row deleted; its handle stays reserved
+    public boolean remove(int handle) {
+        synchronized (lock) {
+            checkHandle(handle);
+            Columns c = columns;
+            if ((c.flags[handle] & DELETED) != 0) {
+                return false;
+            }
+            c.flags[handle] |= DELETED;
+            deleted++;
+            return true;
+        }
+    }
+
+    public boolean isDeleted(int handle) {
+        checkHandle(handle);
+        return (columns.flags[handle] & DELETED) != 0;
+    }
+
+    // Live rows
+    public int size() {
+        synchronized (lock) {
+            return size - deleted;
+        }
+    }
+
+    // Highest handle handed out so far, plus one
+    public int handleLimit() {
+        return size;
+    }
+
+    // Off-heap bytes reserved for message text
+    public long offHeapBytes() {
+        synchronized (lock) {
+            return (long) chunks.size() * CHUNK_SIZE;
+        }
+    }
+
+    // Off-heap bytes actually holding message text
+    public long textBytes() {
+        synchronized (lock) {
+            return arenaBytes;
+        }
+    }
+
+    String recipientOf(int handle) {
+        return decodeRecipient(columns.recipients[handle]);
+    }
+
+    String idOf(int handle) {
+        return decodeID(columns.ids[handle]);
+    }
+
+    String textOf(int handle) {
+        Columns c = columns;
+        int length = c.textLengths[handle];
+        if (length < 0) {
+            return null;
+        }
+        long position = c.textPositions[handle];
+        ByteBuffer chunk;
+        synchronized (lock) {
+            chunk = chunks.get((int) (position >>> 32)).duplicate();
+        }
+        byte[] bytes = new byte[length];
+        chunk.position((int) position);
+        chunk.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    byte flagsOf(int handle) {
+        return columns.flags[handle];
+    }
+
+    // Swap the lifecycle bits of a row, leaving DELETED alone; false if they were not `expect`
+    boolean compareAndSetState(int handle, int expect, int update) {
+        synchronized (lock) {
+            Columns c = columns;
+            int flags = c.flags[handle];
+            if ((flags & STATE_BITS) != expect) {
+                return false;
+            }
+            c.flags[handle] = (byte) ((flags & ~STATE_BITS) | (update & STATE_BITS));
+            return true;
+        }
+    }
+
+    // Arena position: chunk index in the high 32 bits, offset within the chunk in the low 32
+    private long appendText(byte[] text) {
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < text.length) {
+            chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, text.length));
+            chunks.add(chunk);
+        }
+        long position = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.put(text);
+        arenaBytes += text.length;
+        return position;
+    }
+
+    private static byte flagsOf(Message m) {
+        return (byte) (m.state() & STATE_BITS);
+    }
+
+    // "MSG" + 1-9 digits whose value fits in 27 bits -> digit count in bits 27-30, value below.
+    // Anything else -> -(side table index + 1).
+    private int encodeID(String id) {
+        if (id != null && id.startsWith(ID_PREFIX)) {
+            int digits = id.length() - ID_PREFIX.length();
+            if (digits >= 1 && digits <= 9) {
+                long value = parseDigits(id, ID_PREFIX.length());
+                if (value >= 0 && value < (1L << ID_VALUE_BITS)) {
+                    return (digits << ID_VALUE_BITS) | (int) value;
+                }
+            }
+        }
+        return -(sideTableIndex(id) + 1);
+    }
+
+    private String decodeID(int code) {
+        if (code < 0) {
+            return sideTableValue(-code - 1);
+        }
+        return ID_PREFIX + pad(code & ((1 << ID_VALUE_BITS) - 1), code >>> ID_VALUE_BITS);
+    }
+
+    // Optional '+' then 1-17 digits -> bit 62 = '+', bits 57-61 = digit count, value below.
+    // Anything else -> -(side table index + 1).
+    private long encodeRecipient(String recipient) {
+        if (recipient != null && !recipient.isEmpty()) {
+            boolean plus = recipient.charAt(0) == '+';
+            int start = plus ? 1 : 0;
+            int digits = recipient.length() - start;
+            if (digits >= 1 && digits <= MAX_RECIPIENT_DIGITS) {
+                long value = parseDigits(recipient, start);
+                if (value >= 0) {
+                    return (plus ? 1L << 62 : 0) | ((long) digits << RECIPIENT_VALUE_BITS) | value;
+                }
+            }
+        }
+        return -(sideTableIndex(recipient) + 1);
+    }
+
+    private String decodeRecipient(long code) {
+        if (code < 0) {
+            return sideTableValue((int) (-code - 1));
+        }
+        boolean plus = (code & (1L << 62)) != 0;
+        int digits = (int) ((code >>> RECIPIENT_VALUE_BITS) & 0x1F);
+        String number = pad(code & ((1L << RECIPIENT_VALUE_BITS) - 1), digits);
+        return plus ? "+" + number : number;
+    }
+
+    // ASCII digits from start to the end of the string, or -1 if any other character
+    private static long parseDigits(String s, int start) {
+        long value = 0;
+        for (int i = start; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    // Restore leading zeros
+    private static String pad(long value, int digits) {
+        String s = Long.toString(value);
+        if (s.length() >= digits) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(digits);
+        for (int i = s.length(); i < digits; i++) {
+            sb.append('0');
+        }
+        return sb.append(s).toString();
+    }
+
+    // Caller holds the lock
+    private int sideTableIndex(String value) {
+        sideTable.add(value);
+        return sideTable.size() - 1;
+    }
+
+    private String sideTableValue(int index) {
+        synchronized (lock) {
+            return sideTable.get(index);
+        }
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= size) {
+            throw new IndexOutOfBoundsException("No message with handle " + handle);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompactMessageStoreTest {
+
+    private CompactMessageStore store;
+
+    @Before
+    public void setUp() {
+        store = new CompactMessageStore();
+    }
+
+    @After
+    public void tearDown() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.useCompactStorage(false);
+    }
+
+    @Test
+    public void testRoundTripKeepsEveryField() {
+        Message original = new Message("MSG001", "+27821234567", "Did you get the cake?");
+        original.setSent(true);
+        Message view = store.view(store.add(original));
+
+        assertEquals("MSG001", view.getMessageID());
+        assertEquals("+27821234567", view.getRecipient());
+        assertEquals("Did you get the cake?", view.getMessageText());
+        assertEquals(original.getMessageHash(), view.getMessageHash());
+        assertEquals("Sent", view.getFlag());
+        assertEquals(original.displayFlags(), view.displayFlags());
+        assertTrue(view.checkMessageID());
+        assertTrue(view.checkRecipientCell());
+    }
+
+    @Test
+    public void testValuesThatCannotBePackedUseSideTable() {
+        // Non-numeric recipient, non-MSG ID and non-ASCII text must survive unchanged
+        Message odd = new Message("invalid_id", "0831 234 567", "Café ☕ at 5?");
+        Message view = store.view(store.add(odd));
+        assertEquals("invalid_id", view.getMessageID());
+        assertEquals("0831 234 567", view.getRecipient());
+        assertEquals("Café ☕ at 5?", view.getMessageText());
+        assertEquals("", view.getFlag());
+    }
+
+    @Test
+    public void testFlagsAreStoredAsBits() {
+        Message view = store.view(store.add(new Message("MSG002", "+27711223344", "Hi")));
+        assertEquals("", view.getFlag());
+        view.setSent(true);
+        view.setReceived(true);
+        assertEquals("Sent Received", view.getFlag());
+        // A second view of the same row sees the same bits
+        assertTrue(store.view(0).isReceived());
+        assertFalse(store.view(0).isRead());
+    }
+
+    @Test
+    public void testRemoveAndGrowth() {
+        for (int i = 0; i < 5000; i++) {
+            store.add(new Message("MSG" + i, "+2782" + i, "Message " + i));
+        }
+        assertTrue(store.remove(42));
+        assertFalse(store.remove(42));
+        assertTrue(store.isDeleted(42));
+        assertEquals(4999, store.size());
+        assertEquals("Message 4999", store.view(4999).getMessageText());
+        assertEquals("+27824999", store.view(4999).getRecipient());
+    }
+
+    @Test
+    public void testMessageStoreHoldsViewsWithABackend() {
+        MessageStore backed = new MessageStore(store);
+        List<Message> updates = new ArrayList<>();
+        backed.addListener(new MessageStore.Listener() {
+            @Override
+            public void added(Message m) {
+            }
+
+            @Override
+            public void removed(Message m) {
+            }
+
+            @Override
+            public void updated(Message m) {
+                updates.add(m);
+            }
+        });
+        Message original = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        original.markSent(true);
+        assertTrue(backed.add(original));
+        assertFalse(backed.add(original));
+        assertEquals(1, store.size());
+
+        Message held = backed.findByID("MSG101", false);
+        assertTrue(held instanceof CompactMessage);
+        assertEquals("Did you get the cake?", held.getMessageText());
+        assertTrue(held.isSent());
+        assertTrue(backed.contains(original));
+        assertTrue(backed.contains(held));
+
+        // Flag changes through the added object reach the row, and listeners see the view
+        original.setRead(true);
+        backed.updated(original);
+        assertTrue(held.isRead());
+        assertEquals(List.of(held), updates);
+
+        assertTrue(backed.remove(original));
+        assertFalse(backed.contains(held));
+        assertTrue(store.isDeleted(0));
+        // Removed, so adding it again is a new row
+        assertTrue(backed.add(original));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testBackendOnlyChangesWhileEmpty() {
+        MessageStore backed = new MessageStore();
+        backed.add(new Message("MSG101", "+27821234567", "Hi"));
+        try {
+            backed.setBackend(store);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertNull(backed.backend());
+        }
+    }
+
+    @Test
+    public void testSharedStoresCanUseCompactStorage() {
+        Message.sentMessages.clear();
+        Message.useCompactStorage(true);
+        Message sent = new Message("MSG201", "+27821234567", "It is dinner time!");
+        assertEquals("Message sent", sent.sentMessage());
+        assertTrue(Message.sentMessages.findByID("MSG201", false) instanceof CompactMessage);
+        assertEquals("It is dinner time!", Message.searchMessageByID("MSG201"));
+
+        // Receipts by ID and by the sent object both land on the row
+        Message.applyDeliveryEvents(MessageLifecycle.Event.RECEIVED, List.of("MSG201"));
+        assertEquals(1, Message.applyDeliveryEventsTo(MessageLifecycle.Event.READ, List.of(sent)).applied());
+        assertEquals("Flag: Sent Received Read", Message.sentMessages.findByID("MSG201", false).displayFlags());
+        assertEquals("Message successfully deleted.", Message.deleteMessageByHash(sent.getMessageHash()));
+        assertTrue(Message.sentMessages.isEmpty());
+    }
+}
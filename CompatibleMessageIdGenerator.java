@@ -0,0 +1,38 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Generates IDs in the original MSG### format for as long as it lasts, so the first 900 IDs
+// look exactly as they always have: MSG100-MSG999 in order. After that the IDs keep counting
+// (MSG1000, MSG1001, ...) instead of wrapping, so no ID is ever handed out twice.
+public class CompatibleMessageIdGenerator implements MessageIdGenerator {
+    private static final int FIRST = 100;
+    private static final int PREBUILT = 900;
+    private static final String[] IDS = new String[PREBUILT];
+
+    static {
+        for (int i = 0; i < PREBUILT; i++) {
+            IDS[i] = "MSG" + (FIRST + i);
+        }
+    }
+
+    private final AtomicLong counter = new AtomicLong();
+
+    @Override
+    public long nextValue() {
+        return FIRST + counter.getAndIncrement();
+    }
+
+    // Pre-built strings for the three-digit IDs, so no allocation per call for those
+    @Override
+    public String nextId() {
+        return format(nextValue());
+    }
+
+    @Override
+    public void advancePast(long value) {
+        counter.accumulateAndGet(value + 1 - FIRST, Math::max);
+    }
+
+    static String format(long value) {
+        return value < FIRST + PREBUILT ? IDS[(int) value - FIRST] : "MSG" + value;
+    }
+}
@@ -0,0 +1,175 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Registered users by username, with passwords kept only as salted PBKDF2-HMAC-SHA256 hashes.
+//
+// Hashing is deliberately slow, so it runs on its own small pool with a bounded queue: a
+// burst of logins waits there (or is rejected with RejectedExecutionException once the
+// queue is full) instead of tying up the threads that serve everything else.
+// Hashes and phone numbers are compared in constant time, and an unknown username still
+// costs one hash, so response times don't reveal which usernames exist.
+public class CredentialStore implements AutoCloseable {
+    // OWASP's current recommendation for PBKDF2-HMAC-SHA256
+    public static final int DEFAULT_ITERATIONS = 600_000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    // One user's stored login; the profile carries no password
+    private static final class Credential {
+        final Login profile;
+        final byte[] phoneNumber;
+        final byte[] salt;
+        final byte[] hash;
+        final int iterations;
+
+        Credential(Login profile, String phoneNumber, byte[] salt, byte[] hash, int iterations) {
+            this.profile = profile;
+            this.phoneNumber = bytes(phoneNumber);
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+    }
+
+    private final ConcurrentMap<String, Credential> users = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor hashers;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    // Checked against when the username is unknown, so a miss costs the same as a wrong password
+    private final Credential decoy;
+
+    // Half the cores for hashing (at least one), at the recommended iteration count
+    public CredentialStore() {
+        this(DEFAULT_ITERATIONS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public CredentialStore(int iterations, int hashThreads, int queueCapacity) {
+        if (iterations < 1 || hashThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("iterations, hashThreads and queueCapacity must be positive");
+        }
+        this.iterations = iterations;
+        AtomicInteger count = new AtomicInteger();
+        hashers = new ThreadPoolExecutor(hashThreads, hashThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "quickchat-hasher-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        // Its hash is never matched, so random bytes do; only the work of checking it matters
+        byte[] decoyHash = new byte[HASH_BITS / 8];
+        random.nextBytes(decoyHash);
+        decoy = new Credential(null, "", newSalt(), decoyHash, iterations);
+    }
+
+    // Completes with false if the username is taken. The caller validates the details first.
+    public CompletableFuture<Boolean> register(String firstName, String lastName, String username,
+                                               String password, String phoneNumber) {
+        if (username == null || password == null || users.containsKey(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return onHashers(() -> {
+            byte[] salt = newSalt();
+            Login profile = new Login(firstName, lastName, username, null, phoneNumber);
+            Credential c = new Credential(profile, phoneNumber, salt, hash(password, salt, iterations), iterations);
+            return users.putIfAbsent(username, c) == null;
+        });
+    }
+
+    // Completes with the user's profile if the username, password and phone number all match
+    public CompletableFuture<Optional<Login>> authenticate(String username, String password, String phoneNumber) {
+        Credential stored = username != null ? users.get(username) : null;
+        Credential c = stored != null ? stored : decoy;
+        return onHashers(() -> {
+            byte[] attempt = hash(password != null ? password : "", c.salt, c.iterations);
+            // Both checks always run; & rather than && keeps the phone comparison from short-circuiting
+            boolean match = MessageDigest.isEqual(attempt, c.hash) & MessageDigest.isEqual(bytes(phoneNumber), c.phoneNumber);
+            return match && stored != null && password != null ? Optional.of(c.profile) : Optional.<Login>empty();
+        });
+    }
+
+    // Replace the password if the current credentials match; completes with false otherwise.
+    // The caller validates the new password first.
+    public CompletableFuture<Boolean> changePassword(String username, String oldPassword, String phoneNumber,
+                                                     String newPassword) {
+        Credential stored = username != null ? users.get(username) : null;
+        if (stored == null || oldPassword == null || newPassword == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return onHashers(() -> {
+            boolean match = MessageDigest.isEqual(hash(oldPassword, stored.salt, stored.iterations), stored.hash)
+                    & MessageDigest.isEqual(bytes(phoneNumber), stored.phoneNumber);
+            if (!match) {
+                return false;
+            }
+            byte[] salt = newSalt();
+            Credential updated = new Credential(stored.profile, phoneNumber, salt, hash(newPassword, salt, iterations), iterations);
+            // Loses to a concurrent change of the same password, which then wins outright
+            return users.replace(username, stored, updated);
+        });
+    }
+
+    public boolean contains(String username) {
+        return username != null && users.containsKey(username);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Hashes waiting for a hasher thread
+    public int queuedHashes() {
+        return hashers.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        hashers.shutdown();
+    }
+
+    // A full queue fails the future rather than throwing at the caller
+    private <T> CompletableFuture<T> onHashers(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, hashers);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    // SecretKeyFactory instances are not thread-safe, so each hash gets its own
+    static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+public class CredentialStoreTest {
+
+    private CredentialStore store;
+
+    @Before
+    public void setUp() {
+        // Low iteration count so the tests stay quick; the checks are the same
+        store = new CredentialStore(1_000, 2, 64);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void testRegisterAndAuthenticate() {
+        assertTrue(store.register("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976").join());
+        assertFalse(store.register("Kim", "Smith", "kyl_1", "Other#Pass1", "+27838968977").join());
+
+        Optional<Login> user = store.authenticate("kyl_1", "Ch&&sec@ke99!", "+27838968976").join();
+        assertTrue(user.isPresent());
+        // The profile handed back never holds the password
+        assertFalse(user.get().loginUser("kyl_1", "Ch&&sec@ke99!", "+27838968976"));
+
+        assertFalse(store.authenticate("kyl_1", "Ch&&sec@ke99", "+27838968976").join().isPresent());
+        assertFalse(store.authenticate("kyl_1", "Ch&&sec@ke99!", "+27838968977").join().isPresent());
+        assertFalse(store.authenticate("nobody", "Ch&&sec@ke99!", "+27838968976").join().isPresent());
+        assertFalse(store.authenticate(null, null, null).join().isPresent());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testSamePasswordHashesDifferently() {
+        byte[] salt = new byte[16];
+        byte[] otherSalt = new byte[16];
+        otherSalt[0] = 1;
+        assertArrayEquals(CredentialStore.hash("P@ssword1", salt, 10), CredentialStore.hash("P@ssword1", salt, 10));
+        assertFalse(java.util.Arrays.equals(CredentialStore.hash("P@ssword1", salt, 10),
+                CredentialStore.hash("P@ssword1", otherSalt, 10)));
+    }
+
+    @Test
+    public void testConcurrentRegistrationsOfOneNameHaveOneWinner() {
+        List<CompletableFuture<Boolean>> attempts = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            attempts.add(store.register("User", "" + i, "usr_1", "P@ssword" + i, "+2783123456" + (i % 10)));
+        }
+        int winners = 0;
+        for (CompletableFuture<Boolean> f : attempts) {
+            winners += f.join() ? 1 : 0;
+        }
+        assertEquals(1, winners);
+    }
+
+    @Test
+    public void testFullQueueRejectsInsteadOfBlocking() {
+        CredentialStore tiny = new CredentialStore(200_000, 1, 1);
+        try {
+            List<CompletableFuture<Optional<Login>>> logins = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                logins.add(tiny.authenticate("a_s", "P@ssword1", "+27831234567"));
+            }
+            // One running, one queued, the third turned away
+            try {
+                logins.get(2).join();
+                fail("expected the third login to be rejected");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertFalse(logins.get(0).join().isPresent());
+            assertFalse(logins.get(1).join().isPresent());
+        } finally {
+            tiny.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Throughput and latency of gateway delivery against LocalGateway. Sends count messages as
+// fast as the transport takes them, with up to --inflight outstanding per connection, and
+// times each from send() to the gateway's answer. Then waits for the receipts to settle.
+//
+// Run: java DeliveryHarness [--count=100000] [--inflight=1024] [--connections=1]
+//                           [--latency=ms] [--jitter=ms] [--failure=0.01] [--receipt=ms]
+//                           [--read=0.5] [--inprocess]
+// By default the gateway listens on localhost and is reached through PipelinedGatewayClient;
+// --inprocess skips the socket.
+public class DeliveryHarness {
+
+    public static void main(String[] args) throws Exception {
+        int count = 100_000;
+        int inflight = PipelinedGatewayClient.DEFAULT_MAX_IN_FLIGHT;
+        int connections = 1;
+        long latency = 0;
+        long jitter = 0;
+        double failure = 0;
+        long receipt = 0;
+        double read = 0.5;
+        boolean inProcess = false;
+        for (String arg : args) {
+            if (arg.startsWith("--count=")) {
+                count = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--inflight=")) {
+                inflight = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring(14));
+            } else if (arg.startsWith("--latency=")) {
+                latency = Long.parseLong(arg.substring(10));
+            } else if (arg.startsWith("--jitter=")) {
+                jitter = Long.parseLong(arg.substring(9));
+            } else if (arg.startsWith("--failure=")) {
+                failure = Double.parseDouble(arg.substring(10));
+            } else if (arg.startsWith("--receipt=")) {
+                receipt = Long.parseLong(arg.substring(10));
+            } else if (arg.startsWith("--read=")) {
+                read = Double.parseDouble(arg.substring(7));
+            } else if (arg.equals("--inprocess")) {
+                inProcess = true;
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        try (LocalGateway gateway = new LocalGateway(latency, jitter, failure, receipt, read)) {
+            MessageDelivery[] deliveries = new MessageDelivery[connections];
+            int port = inProcess ? 0 : gateway.listen(0);
+            for (int c = 0; c < connections; c++) {
+                deliveries[c] = new MessageDelivery(inProcess ? gateway.connect()
+                        : new PipelinedGatewayClient("127.0.0.1", port, inflight));
+            }
+            System.out.printf("%,d messages, %s, %d connection(s), %d in flight, latency %d+%d ms, failure %.3f%n",
+                    count, inProcess ? "in-process" : "localhost TCP", connections, inflight, latency, jitter, failure);
+            run(deliveries, inflight, Math.min(count, 10_000), 0);
+            clearStores();
+            run(deliveries, inflight, count, 1);
+            settle(gateway, deliveries, receipt);
+            for (MessageDelivery d : deliveries) {
+                d.transport().close();
+            }
+        }
+    }
+
+    // Send count messages spread over the connections; returns each one's latency in nanoseconds.
+    // The transport fails sends beyond its window rather than waiting, so the harness holds
+    // back itself, with up to inflight outstanding per connection.
+    static long[] run(MessageDelivery[] deliveries, int inflight, int count, int round) throws InterruptedException {
+        long[] samples = new long[count];
+        Semaphore[] windows = new Semaphore[deliveries.length];
+        for (int c = 0; c < windows.length; c++) {
+            windows[c] = new Semaphore(inflight);
+        }
+        CountDownLatch done = new CountDownLatch(count);
+        long[] failed = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int n = i;
+            Message m = new Message(Message.generateMessageID(), String.format("+2782%07d", i % 10_000_000), "Harness " + i);
+            Semaphore window = windows[i % deliveries.length];
+            window.acquire();
+            long sentAt = System.nanoTime();
+            deliveries[i % deliveries.length].send(m).whenComplete((result, e) -> {
+                window.release();
+                samples[n] = System.nanoTime() - sentAt;
+                if (!MessageDelivery.SENT.equals(result)) {
+                    synchronized (failed) {
+                        failed[0]++;
+                    }
+                }
+                done.countDown();
+            });
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Gateway stopped answering");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (round > 0) {
+            Arrays.sort(samples);
+            System.out.printf("sent       %,d (%,d refused)%n", count - failed[0], failed[0]);
+            System.out.printf("throughput %,.0f messages/s%n", count / seconds);
+            System.out.printf("p50        %.3f ms%n", QuickChatLoadGenerator.percentile(samples, 0.50) / 1e6);
+            System.out.printf("p99        %.3f ms%n", QuickChatLoadGenerator.percentile(samples, 0.99) / 1e6);
+            System.out.printf("p999       %.3f ms%n", QuickChatLoadGenerator.percentile(samples, 0.999) / 1e6);
+            System.out.printf("max        %.3f ms%n", count == 0 ? 0 : samples[count - 1] / 1e6);
+        }
+        return samples;
+    }
+
+    // Wait until the gateway has stopped sending receipts and every one has been applied, or 30 s
+    private static void settle(LocalGateway gateway, MessageDelivery[] deliveries, long receiptDelay)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(30);
+        // Read receipts follow received ones by the receipt delay, so wait out both
+        long minimum = start + TimeUnit.MILLISECONDS.toNanos(2 * receiptDelay);
+        long lastSent = -1;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            long sent = gateway.receiptCount();
+            long handled = 0;
+            for (MessageDelivery d : deliveries) {
+                handled += d.receiptsApplied() + d.receiptsIgnored();
+            }
+            if (sent == lastSent && handled == sent && System.nanoTime() >= minimum) {
+                break;
+            }
+            lastSent = sent;
+        }
+        long readCount = Message.sentMessages.snapshot().stream().filter(Message::isRead).count();
+        System.out.printf("receipts   settled %.0f ms after the last answer; %,d of %,d messages read%n",
+                (System.nanoTime() - start) / 1e6, readCount, Message.sentMessages.size());
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Hands messages to an SMS/chat gateway and reports the delivery receipts that come back.
+//
+// send() must not wait for the gateway: it returns at once with a future, so one caller can
+// have many sends outstanding. A transport that bounds them applies backpressure by failing
+// the future at once, not by blocking the caller. Receipts arrive later, on the transport's
+// own thread, grouped into batches where the transport can, so they can go straight to the
+// bulk lifecycle API.
+// LocalGateway is an in-process or localhost stand-in; PipelinedGatewayClient talks to it
+// over TCP.
+public interface DeliveryTransport extends AutoCloseable {
+
+    // Receives receipts for the messages a transport sent. The transport matches each receipt
+    // to the Message it sent, not to its ID, since IDs can repeat.
+    interface ReceiptListener {
+        void receipts(MessageLifecycle.Event event, List<Message> messages);
+    }
+
+    // Completes once the gateway accepts the message, exceptionally if it refuses it or the
+    // transport fails
+    CompletableFuture<Void> send(Message m);
+
+    // Replaces the listener; receipts that arrive with none set are dropped
+    void setReceiptListener(ReceiptListener listener);
+
+    @Override
+    void close();
+
+    // For MessageOutbox, whose Sender waits for each message: blocks until the gateway
+    // accepts, refuses or the timeout passes
+    default MessageOutbox.Sender blockingSender(long timeoutMillis) {
+        return m -> {
+            try {
+                send(m).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        };
+    }
+}
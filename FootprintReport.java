@@ -0,0 +1,109 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bytes-per-message comparison between the regular Message class and CompactMessageStore.
+// Prints a JOL-style shallow layout estimate for Message, then measures retained heap
+// (and off-heap text) for N messages in each representation.
+// Run: java FootprintReport [messageCount]
+public class FootprintReport {
+    // HotSpot defaults on a 64-bit JVM with compressed oops and class pointers
+    private static final int HEADER_BYTES = 12;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ALIGNMENT = 8;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        System.out.println("Message shallow layout (estimate):");
+        long shallow = printLayout(Message.class);
+        System.out.println("  total " + shallow + " bytes, before the Strings it points to (ID, recipient, text, hash)");
+        System.out.println();
+
+        long base = usedHeap();
+        List<Message> objects = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            objects.add(new Message(id(i), recipient(i), text(i)));
+        }
+        long objectBytes = usedHeap() - base;
+        int held = objects.size();
+        objects = null;
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+
+        long beforeCompact = usedHeap();
+        CompactMessageStore compact = new CompactMessageStore();
+        for (int i = 0; i < count; i++) {
+            // Temporary Message per row; only the packed columns are kept
+            compact.add(new Message(id(i), recipient(i), text(i)));
+        }
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+        long compactHeap = usedHeap() - beforeCompact;
+
+        System.out.printf("%,d messages%n", count);
+        System.out.printf("  Message objects (incl. messageHashes/messageIDs entries): %6.1f bytes/message%n",
+                (double) objectBytes / count);
+        System.out.printf("  CompactMessageStore heap columns:                         %6.1f bytes/message%n",
+                (double) compactHeap / count);
+        System.out.printf("  CompactMessageStore off-heap text (used):                 %6.1f bytes/message%n",
+                (double) compact.textBytes() / count);
+        System.out.printf("  CompactMessageStore off-heap text (reserved chunks):      %,d bytes%n", compact.offHeapBytes());
+        // Keep both representations reachable until they have been measured
+        System.out.println("  rows held: " + held + " / " + compact.size());
+    }
+
+    // Print each instance field with its estimated size; returns the aligned total
+    private static long printLayout(Class<?> type) {
+        long size = HEADER_BYTES;
+        System.out.printf("  %-24s %3d%n", "(object header)", HEADER_BYTES);
+        for (Field f : type.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers())) {
+                continue;
+            }
+            int bytes = sizeOf(f.getType());
+            System.out.printf("  %-24s %3d  %s%n", f.getName(), bytes, f.getType().getSimpleName());
+            size += bytes;
+        }
+        long aligned = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        System.out.printf("  %-24s %3d%n", "(alignment padding)", aligned - size);
+        return aligned;
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (!type.isPrimitive()) return REFERENCE_BYTES;
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        return 1;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A few GCs, keeping the lowest reading, to get close to the live set
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    private static String id(int i) {
+        return "MSG" + (100 + i % 900);
+    }
+
+    private static String recipient(int i) {
+        return "+2782" + String.format("%07d", i % 10_000_000);
+    }
+
+    private static String text(int i) {
+        return "Hi there, message number " + i + " is on its way";
+    }
+}
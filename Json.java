@@ -0,0 +1,176 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Just enough JSON for the QuickChat endpoints: flat objects in, escaped strings out.
+// Nested objects and arrays in the input are rejected rather than half-parsed.
+public final class Json {
+    private Json() {
+    }
+
+    // Parse a flat object such as {"recipient":"+27...","text":"Hi"}. Numbers, booleans and
+    // null come back as their literal text (null as a null value).
+    public static Map<String, String> parseObject(CharSequence json) {
+        Parser p = new Parser(json);
+        Map<String, String> fields = new LinkedHashMap<>();
+        p.skipSpace();
+        p.expect('{');
+        p.skipSpace();
+        if (p.peek() == '}') {
+            p.pos++;
+        } else {
+            while (true) {
+                p.skipSpace();
+                String key = p.string();
+                p.skipSpace();
+                p.expect(':');
+                p.skipSpace();
+                fields.put(key, p.value());
+                p.skipSpace();
+                if (p.peek() == ',') {
+                    p.pos++;
+                } else {
+                    p.expect('}');
+                    break;
+                }
+            }
+        }
+        p.skipSpace();
+        if (p.pos != json.length()) {
+            throw p.error("trailing characters");
+        }
+        return fields;
+    }
+
+    // Append value as a quoted JSON string, or null
+    public static StringBuilder quote(StringBuilder out, String value) {
+        if (value == null) {
+            return out.append("null");
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    public static String quote(String value) {
+        return quote(new StringBuilder(), value).toString();
+    }
+
+    // Append a message as an object with its fields and status flags
+    public static StringBuilder message(StringBuilder out, Message m) {
+        out.append("{\"messageID\":");
+        quote(out, m.getMessageID()).append(",\"recipient\":");
+        quote(out, m.getRecipient()).append(",\"messageText\":");
+        quote(out, m.getMessageText()).append(",\"messageHash\":");
+        quote(out, m.getMessageHash()).append(",\"sent\":").append(m.isSent())
+                .append(",\"received\":").append(m.isReceived())
+                .append(",\"read\":").append(m.isRead());
+        return out.append('}');
+    }
+
+    private static final class Parser {
+        final CharSequence s;
+        int pos;
+
+        Parser(CharSequence s) {
+            this.s = s;
+        }
+
+        char peek() {
+            if (pos >= s.length()) {
+                throw error("unexpected end of input");
+            }
+            return s.charAt(pos);
+        }
+
+        void expect(char c) {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        void skipSpace() {
+            while (pos < s.length() && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t'
+                    || s.charAt(pos) == '\n' || s.charAt(pos) == '\r')) {
+                pos++;
+            }
+        }
+
+        String value() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (c == '{' || c == '[') {
+                throw error("nested values are not supported");
+            }
+            int start = pos;
+            while (pos < s.length() && ",}] \t\r\n".indexOf(s.charAt(pos)) < 0) {
+                pos++;
+            }
+            String literal = s.subSequence(start, pos).toString();
+            if (literal.isEmpty()) {
+                throw error("expected a value");
+            }
+            return literal.equals("null") ? null : literal;
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = peek();
+                pos++;
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = peek();
+                pos++;
+                switch (e) {
+                    case '"': case '\\': case '/': sb.append(e); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw error("bad unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.subSequence(pos, pos + 4).toString(), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw error("bad escape '\\" + e + "'");
+                }
+            }
+        }
+
+        IllegalArgumentException error(String what) {
+            return new IllegalArgumentException("Invalid JSON at " + pos + ": " + what);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Thread-safe collection of keys that remembers how many times each one was added,
+// so add, remove and contains are O(1) instead of ArrayList scans
+public class KeyMultiset extends AbstractCollection<String> {
+    private final ConcurrentMap<String, Integer> counts = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Add one occurrence of the key
+    @Override
+    public boolean add(String key) {
+        counts.merge(key, 1, Integer::sum);
+        size.incrementAndGet();
+        return true;
+    }
+
+    // Remove one occurrence of the key, like ArrayList.remove(Object)
+    @Override
+    public boolean remove(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        counts.computeIfPresent((String) key, (k, count) -> {
+            removed[0] = true;
+            return count == 1 ? null : count - 1;
+        });
+        if (removed[0]) {
+            size.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    @Override
+    public boolean contains(Object key) {
+        return key != null && counts.containsKey(key);
+    }
+
+    // Number of times the key is currently held
+    public int count(String key) {
+        return counts.getOrDefault(key, 0);
+    }
+
+    @Override
+    public void clear() {
+        for (String key : counts.keySet()) {
+            Integer count = counts.remove(key);
+            if (count != null) {
+                size.addAndGet(-count);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    // Iterate every occurrence of every key
+    @Override
+    public Iterator<String> iterator() {
+        List<String> all = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            for (int i = 0; i < e.getValue(); i++) {
+                all.add(e.getKey());
+            }
+        }
+        return Collections.unmodifiableList(all).iterator();
+    }
+}
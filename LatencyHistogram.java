@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram in nanoseconds, recorded without locks.
+//
+// Buckets are log-linear, like HdrHistogram's: values below 64 get a bucket each, and every
+// power of two above that is split into 32 equal buckets, so a bucket is never wider than
+// 1/32 of its values (about 3%). Values up to 2^40 ns (about 18 minutes) fit; larger ones
+// land in the last bucket, though max() still reports them exactly. Recording is one atomic
+// increment plus two LongAdder adds. Percentiles are read from a snapshot, which is exact
+// for counts recorded before it and may miss ones racing with it.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int HALF = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40 - SUB_BUCKET_BITS - 1;
+    static final int BUCKETS = (MAX_MAGNITUDE + 2) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // Negative values, from a clock that went backwards, count as 0
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    // Counts at one moment, for percentiles and export
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        // Total of all recorded values, in nanoseconds
+        public long sum() {
+            return sum;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // The value at or below which the given fraction (0..1) of recordings fall, as the top of
+        // its bucket, so it over- rather than under-states; 0 if nothing was recorded
+        public long valueAt(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // The last bucket is open-ended
+                    return i == counts.length - 1 ? max : Math.min(highestInBucket(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    static int bucket(long v) {
+        int magnitude = 64 - Long.numberOfLeadingZeros(v) - (SUB_BUCKET_BITS + 1);
+        if (magnitude <= 0) {
+            return (int) v;
+        }
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        return magnitude * HALF + (int) (v >>> magnitude);
+    }
+
+    static long lowestInBucket(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int magnitude = index / HALF - 1;
+        return (long) (index - magnitude * HALF) << magnitude;
+    }
+
+    static long highestInBucket(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int magnitude = index / HALF - 1;
+        return ((long) (index - magnitude * HALF + 1) << magnitude) - 1;
+    }
+}
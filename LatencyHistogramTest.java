@@ -0,0 +1,92 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        // Each value falls inside its bucket, and buckets are contiguous
+        for (long v = 0; v < 1 << 20; v++) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(LatencyHistogram.lowestInBucket(b) <= v && v <= LatencyHistogram.highestInBucket(b));
+        }
+        for (int b = 1; b < LatencyHistogram.BUCKETS; b++) {
+            assertEquals(LatencyHistogram.highestInBucket(b - 1) + 1, LatencyHistogram.lowestInBucket(b));
+        }
+        // No wider than 1/32 of the values in it
+        for (int b = 64; b < LatencyHistogram.BUCKETS; b++) {
+            long width = LatencyHistogram.highestInBucket(b) - LatencyHistogram.lowestInBucket(b) + 1;
+            assertTrue(width * 32 <= LatencyHistogram.lowestInBucket(b));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket((1L << 40) - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10_000; v++) {
+            h.record(v * 1000);
+        }
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(10_000, s.count());
+        assertEquals(10_000_000L, s.max());
+        assertEquals(5_000_500_000L * 10, s.sum());
+        assertWithin(5_000_000, s.valueAt(0.5));
+        assertWithin(9_900_000, s.valueAt(0.99));
+        assertWithin(9_990_000, s.valueAt(0.999));
+        assertEquals(10_000_000L, s.valueAt(1));
+        assertWithin(1000, s.valueAt(0));
+        assertEquals(5_000_500.0, s.mean(), 0.001);
+    }
+
+    @Test
+    public void testEmptyAndOutOfRange() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.snapshot().valueAt(0.5));
+        assertEquals(0, h.snapshot().mean(), 0);
+        h.record(-5);
+        h.record(Long.MAX_VALUE / 2);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(2, s.count());
+        assertEquals(0, s.valueAt(0.5));
+        assertEquals(Long.MAX_VALUE / 2, s.max());
+        assertEquals(Long.MAX_VALUE / 2, s.valueAt(1));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        h.record(i % 1000);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(400_000, s.count());
+        assertEquals(400_000, h.count());
+        assertEquals(999, s.max());
+        assertWithin(500, s.valueAt(0.5));
+    }
+
+    // Within one bucket's width of the expected value
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 32 + 1);
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Stand-in SMS/chat gateway for working offline, in tests and in the delivery harness.
+//
+// It accepts each message after a configurable latency (plus random jitter), refuses a
+// configurable fraction of them as temporary failures, refuses invalid recipients, and
+// sends a RECEIVED receipt for every accepted message and a READ receipt for a fraction of
+// them, each after the receipt delay. Nothing is delivered anywhere.
+//
+// connect() attaches an in-process transport. listen() also serves PipelinedGatewayClient
+// over TCP on localhost, with one tab-separated line per request and response:
+//
+//   client:  S <tag> <messageID> <recipient> <base64 text>
+//   gateway: A <tag>             accepted
+//            F <tag> <reason>    refused
+//            E <RECEIVED|READ> <tag>
+//
+// Receipts name the request's tag rather than the message ID, which can repeat, so the
+// client can tell which of its messages each one is for.
+public class LocalGateway implements AutoCloseable {
+    public static final String TEMPORARY_FAILURE = "temporary failure";
+    public static final String INVALID_RECIPIENT = "invalid recipient";
+
+    private static final Logger LOG = Logger.getLogger(LocalGateway.class.getName());
+
+    // What the gateway reports to one attached client
+    interface Client {
+        void accepted(long tag);
+
+        void rejected(long tag, String reason);
+
+        void receipt(MessageLifecycle.Event event, long tag);
+    }
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double failureRate;
+    private final long receiptDelayMillis;
+    private final double readRate;
+    private final ScheduledExecutorService timer;
+    private final Set<AutoCloseable> attached = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket server;
+    private volatile boolean closed;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder receipts = new LongAdder();
+
+    // Accepts everything at once and reports every message received and read
+    public LocalGateway() {
+        this(0, 0, 0, 0, 1);
+    }
+
+    // Latency is latencyMillis plus up to jitterMillis; failureRate and readRate are fractions 0..1
+    public LocalGateway(long latencyMillis, long jitterMillis, double failureRate, long receiptDelayMillis,
+                        double readRate) {
+        if (latencyMillis < 0 || jitterMillis < 0 || receiptDelayMillis < 0
+                || failureRate < 0 || failureRate > 1 || readRate < 0 || readRate > 1) {
+            throw new IllegalArgumentException("Delays must not be negative and rates must be between 0 and 1");
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.failureRate = failureRate;
+        this.receiptDelayMillis = receiptDelayMillis;
+        this.readRate = readRate;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "local-gateway");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // A transport that calls the gateway directly, with no socket in between
+    public DeliveryTransport connect() {
+        InProcessTransport transport = new InProcessTransport();
+        attached.add(transport);
+        return transport;
+    }
+
+    // Serve PipelinedGatewayClient on the loopback address; port 0 picks a free one, which is returned
+    public synchronized int listen(int port) throws IOException {
+        if (server != null) {
+            return server.getLocalPort();
+        }
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        Thread acceptor = new Thread(this::acceptLoop, "local-gateway-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    // Messages handed to the gateway, whatever became of them
+    public long submittedCount() {
+        return submitted.sum();
+    }
+
+    public long acceptedCount() {
+        return accepted.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public long receiptCount() {
+        return receipts.sum();
+    }
+
+    // Stop serving; sends still waiting for the gateway never complete here, so transports fail them
+    @Override
+    public void close() {
+        closed = true;
+        ServerSocket s = server;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+        for (AutoCloseable c : attached) {
+            try {
+                c.close();
+            } catch (Exception ignored) {
+                // Closing is best effort
+            }
+        }
+        timer.shutdownNow();
+    }
+
+    // Decide the message's fate now, and report it after the simulated delays
+    void submit(long tag, String recipient, Client client) {
+        submitted.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+        boolean fail = failureRate > 0 && random.nextDouble() < failureRate;
+        boolean read = readRate > 0 && random.nextDouble() < readRate;
+        later(delay, () -> {
+            if (fail || ValidationEngine.checkRecipient(recipient) != 0) {
+                rejected.increment();
+                client.rejected(tag, fail ? TEMPORARY_FAILURE : INVALID_RECIPIENT);
+                return;
+            }
+            accepted.increment();
+            client.accepted(tag);
+            later(receiptDelayMillis, () -> {
+                receipts.increment();
+                client.receipt(MessageLifecycle.Event.RECEIVED, tag);
+                if (read) {
+                    later(receiptDelayMillis, () -> {
+                        receipts.increment();
+                        client.receipt(MessageLifecycle.Event.READ, tag);
+                    });
+                }
+            });
+        });
+    }
+
+    private void later(long delayMillis, Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (delayMillis == 0) {
+                timer.execute(task);
+            } else {
+                timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Closed while scheduling
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Connection c = new Connection(socket);
+                attached.add(c);
+                // Raced with close(), which may have missed it
+                if (closed) {
+                    c.close();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.log(Level.WARNING, "Local gateway accept failed", e);
+                }
+                return;
+            }
+        }
+    }
+
+    // Transport for connect(): futures complete and receipts arrive on the gateway's timer thread.
+    // Receipts that fall due together are handed over as one batch.
+    private final class InProcessTransport implements DeliveryTransport, Client {
+        private final ConcurrentMap<Long, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+        private final PipelinedGatewayClient.SentMessages sent =
+                new PipelinedGatewayClient.SentMessages(PipelinedGatewayClient.DEFAULT_RECEIPT_WINDOW);
+        private final AtomicLong tags = new AtomicLong();
+        private final Queue<Object[]> receiptQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushQueued = new AtomicBoolean();
+        private volatile ReceiptListener listener;
+        private volatile boolean transportClosed;
+
+        @Override
+        public CompletableFuture<Void> send(Message m) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            if (transportClosed || closed) {
+                f.completeExceptionally(new IOException("Gateway connection closed"));
+                return f;
+            }
+            long tag = tags.incrementAndGet();
+            pending.put(tag, f);
+            sent.put(tag, m);
+            submit(tag, m.getRecipient(), this);
+            return f;
+        }
+
+        @Override
+        public void setReceiptListener(ReceiptListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void accepted(long tag) {
+            CompletableFuture<Void> f = pending.remove(tag);
+            if (f != null) {
+                f.complete(null);
+            }
+        }
+
+        @Override
+        public void rejected(long tag, String reason) {
+            sent.remove(tag);
+            CompletableFuture<Void> f = pending.remove(tag);
+            if (f != null) {
+                f.completeExceptionally(new IOException("Gateway refused the message: " + reason));
+            }
+        }
+
+        @Override
+        public void receipt(MessageLifecycle.Event event, long tag) {
+            Message m = sent.receipt(event, tag);
+            if (m == null) {
+                return;
+            }
+            receiptQueue.add(new Object[]{event, m});
+            if (flushQueued.compareAndSet(false, true)) {
+                later(0, this::flushReceipts);
+            }
+        }
+
+        private void flushReceipts() {
+            flushQueued.set(false);
+            List<Message> received = new ArrayList<>();
+            List<Message> read = new ArrayList<>();
+            Object[] r;
+            while ((r = receiptQueue.poll()) != null) {
+                (r[0] == MessageLifecycle.Event.READ ? read : received).add((Message) r[1]);
+            }
+            deliverReceipts(listener, received, read);
+        }
+
+        @Override
+        public void close() {
+            transportClosed = true;
+            attached.remove(this);
+            PipelinedGatewayClient.failAll(pending, new IOException("Gateway connection closed"));
+        }
+    }
+
+    // One TCP client: requests are read on one thread, responses written by another so
+    // everything queued goes out in one flush
+    private final class Connection implements Client, AutoCloseable {
+        private final Socket socket;
+        private final BlockingQueue<String> out = new LinkedBlockingQueue<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            PipelinedGatewayClient.daemon("local-gateway-read", () -> readLoop(in)).start();
+            PipelinedGatewayClient.daemon("local-gateway-write", () -> PipelinedGatewayClient.writeLoop(out, writer, socket)).start();
+        }
+
+        private void readLoop(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 5 || !f[0].equals("S")) {
+                        out.add("F\t0\tbad request");
+                        continue;
+                    }
+                    // The text is decoded only to check it arrived intact; nothing is delivered
+                    Base64.getDecoder().decode(f[4]);
+                    submit(Long.parseLong(f[1]), f[3], this);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // Client went away or sent garbage; drop the connection
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void accepted(long tag) {
+            out.add("A\t" + tag);
+        }
+
+        @Override
+        public void rejected(long tag, String reason) {
+            out.add("F\t" + tag + "\t" + reason);
+        }
+
+        @Override
+        public void receipt(MessageLifecycle.Event event, long tag) {
+            out.add("E\t" + event.name() + "\t" + tag);
+        }
+
+        @Override
+        public void close() {
+            attached.remove(this);
+            out.add(PipelinedGatewayClient.END);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    static void deliverReceipts(DeliveryTransport.ReceiptListener listener, List<Message> received, List<Message> read) {
+        if (listener == null) {
+            return;
+        }
+        // Received first, so a read receipt for the same message finds it already received
+        if (!received.isEmpty()) {
+            listener.receipts(MessageLifecycle.Event.RECEIVED, received);
+        }
+        if (!read.isEmpty()) {
+            listener.receipts(MessageLifecycle.Event.READ, read);
+        }
+    }
+}
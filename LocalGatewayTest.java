@@ -0,0 +1,102 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class LocalGatewayTest {
+
+    private LocalGateway gateway;
+
+    @Before
+    public void setUp() {
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    @After
+    public void tearDown() {
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    @Test
+    public void testAcceptsAndSendsReceipts() throws Exception {
+        gateway = new LocalGateway();
+        DeliveryTransport transport = gateway.connect();
+        List<Message> received = Collections.synchronizedList(new ArrayList<>());
+        List<Message> read = Collections.synchronizedList(new ArrayList<>());
+        transport.setReceiptListener((event, messages) ->
+                (event == MessageLifecycle.Event.READ ? read : received).addAll(messages));
+
+        // Receipts come back as the instances sent, even when they share an ID
+        Message first = new Message("MSG101", "+27821234567", "Hi");
+        Message second = new Message("MSG101", "+27821234568", "Hi");
+        transport.send(first).get(5, TimeUnit.SECONDS);
+        transport.send(second).get(5, TimeUnit.SECONDS);
+        waitFor(() -> read.size() == 2);
+        assertSame(first, received.get(0));
+        assertSame(second, received.get(1));
+        assertEquals(2, received.size());
+        assertEquals(2, gateway.acceptedCount());
+        assertEquals(4, gateway.receiptCount());
+    }
+
+    @Test
+    public void testRefusesInvalidRecipientsAndInjectedFailures() throws Exception {
+        gateway = new LocalGateway(0, 0, 1, 0, 0);
+        DeliveryTransport transport = gateway.connect();
+        assertRefused(transport.send(new Message("MSG101", "+27821234567", "Hi")), LocalGateway.TEMPORARY_FAILURE);
+        gateway.close();
+
+        gateway = new LocalGateway();
+        transport = gateway.connect();
+        assertRefused(transport.send(new Message("MSG101", "0821234567", "Hi")), LocalGateway.INVALID_RECIPIENT);
+        assertEquals(1, gateway.rejectedCount());
+    }
+
+    @Test
+    public void testLatencyIsInjected() throws Exception {
+        gateway = new LocalGateway(50, 0, 0, 0, 0);
+        DeliveryTransport transport = gateway.connect();
+        long start = System.nanoTime();
+        transport.send(new Message("MSG101", "+27821234567", "Hi")).get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+    }
+
+    @Test
+    public void testClosingFailsOutstandingSends() {
+        gateway = new LocalGateway(60_000, 0, 0, 0, 0);
+        DeliveryTransport transport = gateway.connect();
+        CompletableFuture<Void> f = transport.send(new Message("MSG101", "+27821234567", "Hi"));
+        gateway.close();
+        assertTrue(f.isCompletedExceptionally());
+        assertTrue(transport.send(new Message("MSG102", "+27821234567", "Hi")).isCompletedExceptionally());
+    }
+
+    static void assertRefused(CompletableFuture<Void> f, String reason) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Expected the gateway to refuse the message");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().endsWith(reason));
+        }
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -1,6 +1,13 @@
 import javax.swing.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class Login {
 
@@ -11,10 +18,24 @@ public class Login {
     private String password;
     private String phoneNumber;
 
-    // Lists to hold messages by status
-    private static ArrayList<Message> sentMessages = new ArrayList<>();
-    private static ArrayList<Message> storedMessages = new ArrayList<>();
-    private static ArrayList<Message> disregardedMessages = new ArrayList<>();
+    static final String PASSWORD_INVALID = "Password is not correctly formatted. It must contain at least 8 characters, a capital letter, a number, and a special character.";
+
+    // Messages per dialog when showing the sent report
+    private static final int REPORT_PAGE_SIZE = 20;
+    // How many messages "Show recently sent messages" lists
+    private static final int RECENT_MESSAGES = 20;
+    // Sent messages kept in memory; older ones move to the archive segments every minute
+    private static final int ARCHIVE_KEEP_IN_HEAP = 10_000;
+
+    // Call counts and latencies of the public operations. All are sampled: each only computes,
+    // well under a microsecond with nothing to block on, so checking the slow threshold on
+    // sampled calls alone misses nothing that matters.
+    private static final QuickChatMetrics.Operation CHECK_USER_NAME = QuickChatMetrics.operation("Login.checkUserName", true);
+    private static final QuickChatMetrics.Operation CHECK_PASSWORD = QuickChatMetrics.operation("Login.checkPasswordComplexity", true);
+    private static final QuickChatMetrics.Operation CHECK_CELL_PHONE = QuickChatMetrics.operation("Login.checkCellPhoneNumber", true);
+    private static final QuickChatMetrics.Operation VALIDATE_REGISTRATION = QuickChatMetrics.operation("Login.validateRegistration", true);
+    private static final QuickChatMetrics.Operation REGISTER_USER = QuickChatMetrics.operation("Login.registerUser", true);
+    private static final QuickChatMetrics.Operation LOGIN_USER = QuickChatMetrics.operation("Login.loginUser", true);
 
     // Constructor to set user details
     public Login(String firstName, String lastName, String username, String password, String phoneNumber) {
@@ -27,82 +48,139 @@ public class Login {
 
     // Check if username contains underscore and max length 5
     public boolean checkUserName() {
-        return username.contains("_") && username.length() <= 5;
+        long start = CHECK_USER_NAME.start();
+        boolean valid = ValidationEngine.checkUsername(username) == 0;
+        CHECK_USER_NAME.stop(start);
+        return valid;
     }
 
     // Check password complexity rules
     public boolean checkPasswordComplexity() {
-        boolean hasUppercase = !password.equals(password.toLowerCase());
-        boolean hasNumber = password.matches(".*\\d.*");
-        boolean hasSpecialChar = password.matches(".*[!@#$%^&*()_+\\-=\\[\\]{};':\"\\\\|,.<>/?].*");
-        boolean isLongEnough = password.length() >= 8;
-        return hasUppercase && hasNumber && hasSpecialChar && isLongEnough;
+        long start = CHECK_PASSWORD.start();
+        boolean valid = ValidationEngine.checkPassword(password) == 0;
+        CHECK_PASSWORD.stop(start);
+        return valid;
     }
 
     // Validate phone number format +27 followed by 9 digits
     public boolean checkCellPhoneNumber() {
-        String regex = "\\+27\\d{9}";
-        return phoneNumber.matches(regex);
+        long start = CHECK_CELL_PHONE.start();
+        boolean valid = ValidationEngine.checkPhone(phoneNumber) == 0;
+        CHECK_CELL_PHONE.stop(start);
+        return valid;
     }
 
-    // Register user if all validations pass, else return error messages
+    // Every rule the username, password and phone number break, not just the first
+    public ValidationResult validateRegistration() {
+        long start = VALIDATE_REGISTRATION.start();
+        ValidationResult result = ValidationResult.of(ValidationEngine.checkUsername(username)
+                | ValidationEngine.checkPassword(password)
+                | ValidationEngine.checkPhone(phoneNumber));
+        VALIDATE_REGISTRATION.stop(start);
+        return result;
+    }
+
+    // Register user if all validations pass, else return error messages. Validates directly
+    // rather than through the check methods, which count as calls of their own.
     public String registerUser() {
-        if (!checkUserName()) {
-            return "Username is not correctly formatted. It must contain an underscore and be no more than 5 characters.";
-        }
-        if (!checkPasswordComplexity()) {
-            return "Password is not correctly formatted. It must contain at least 8 characters, a capital letter, a number, and a special character.";
-        }
-        if (!checkCellPhoneNumber()) {
-            return "Cell phone number incorrectly formatted. It must start with +27 and have 9 digits after.";
+        long start = REGISTER_USER.start();
+        try {
+            if (ValidationEngine.checkUsername(username) != 0) {
+                return "Username is not correctly formatted. It must contain an underscore and be no more than 5 characters.";
+            }
+            if (ValidationEngine.checkPassword(password) != 0) {
+                return PASSWORD_INVALID;
+            }
+            if (ValidationEngine.checkPhone(phoneNumber) != 0) {
+                return "Cell phone number incorrectly formatted. It must start with +27 and have 9 digits after.";
+            }
+            return "Registration successful.";
+        } finally {
+            REGISTER_USER.stop(start);
         }
-        return "Registration successful.";
     }
 
-    // Check login credentials against stored user data
+    // Check login credentials against stored user data. The password and phone number are
+    // compared in constant time; registered users go through CredentialStore, which never
+    // keeps the password at all.
     public boolean loginUser(String enteredUsername, String enteredPassword, String enteredPhoneNumber) {
-        return this.username.equals(enteredUsername) &&
-                this.password.equals(enteredPassword) &&
-                this.phoneNumber.equals(enteredPhoneNumber);
+        long start = LOGIN_USER.start();
+        boolean passwordMatches = constantTimeEquals(password, enteredPassword);
+        boolean phoneMatches = constantTimeEquals(phoneNumber, enteredPhoneNumber);
+        boolean matches = Objects.equals(username, enteredUsername) && passwordMatches && phoneMatches;
+        LOGIN_USER.stop(start);
+        return matches;
     }
 
-    public static void main(String[] args) {
-        // Register new user with input dialogs
-        Login user = getUserRegistration();
-        if (user == null) {
-            JOptionPane.showMessageDialog(null, "Registration failed or cancelled.");
-            System.exit(0);
-        }
+    public String getUsername() {
+        return username;
+    }
 
-        // Allow max 3 login attempts
-        int loginAttempts = 0;
-        boolean loggedIn = false;
+    public String getFirstName() {
+        return firstName;
+    }
 
-        while (loginAttempts < 3 && !loggedIn) {
-            String loginUsername = JOptionPane.showInputDialog("Login - Enter username:");
-            String loginPassword = JOptionPane.showInputDialog("Login - Enter password:");
-            String loginPhone = JOptionPane.showInputDialog("Login - Enter phone number:");
+    public String getLastName() {
+        return lastName;
+    }
 
-            // Validate login credentials
-            if (user.loginUser(loginUsername, loginPassword, loginPhone)) {
-                JOptionPane.showMessageDialog(null, "Welcome " + user.firstName + " " + user.lastName + "! It is great to see you again.");
-                loggedIn = true;
-            } else {
-                loginAttempts++;
-                if (loginAttempts < 3)
-                    JOptionPane.showMessageDialog(null, "Incorrect credentials. " + (3 - loginAttempts) + " attempt(s) left.");
-            }
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    private static boolean constantTimeEquals(String expected, String entered) {
+        if (expected == null || entered == null) {
+            return false;
         }
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), entered.getBytes(StandardCharsets.UTF_8));
+    }
 
-        // If login fails after 3 attempts, ask to restart registration or quit
-        if (!loggedIn) {
-            int option = JOptionPane.showConfirmDialog(null, "Too many failed attempts. Restart registration?", "Login Failed", JOptionPane.YES_NO_OPTION);
-            if (option == JOptionPane.YES_OPTION) {
-                main(null); // Restart program
-            } else {
+    public static void main(String[] args) {
+        // -Dquickchat.compactStorage=true keeps message text off the heap, for large histories
+        if (Boolean.getBoolean("quickchat.compactStorage")) {
+            Message.useCompactStorage(true);
+        }
+        // Restore messages from previous runs and keep logging changes to disk
+        try {
+            Message.enablePersistence(Paths.get("quickchat.wal"), MessageLog.Durability.BATCHED);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Could not open message log, messages will not be saved: " + e.getMessage());
+        }
+        // Archived history is searched straight from mapped segment files
+        try {
+            MessageSegmentStore archive = new MessageSegmentStore(Paths.get("quickchat-archive"));
+            archive.startCompactor(1, TimeUnit.MINUTES, 0.3);
+            Message.setArchive(archive);
+            Message.startArchiving(1, TimeUnit.MINUTES, ARCHIVE_KEEP_IN_HEAP);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Could not open message archive: " + e.getMessage());
+        }
+
+        // The dialogs below are a thin client: all work goes through the headless service
+        QuickChatService service = new QuickChatService();
+        // Scheduled sends still waiting when the last run stopped go out now
+        service.outbox().recover();
+
+        // Register, then allow max 3 login attempts; on failure log in again, register again
+        // or quit. Failed attempts also count against the username and phone number in the
+        // service's rate limiter, so starting over does not reset a lockout.
+        boolean register = true;
+        while (true) {
+            if (register && !getUserRegistration(service)) {
+                JOptionPane.showMessageDialog(null, "Registration failed or cancelled.");
+                System.exit(0);
+            }
+            if (promptLogin(service)) {
+                break;
+            }
+            Object[] choices = {"Log in again", "Register again", "Quit"};
+            int option = JOptionPane.showOptionDialog(null, "Too many failed attempts.", "Login Failed",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null, choices, choices[0]);
+            if (option != 0 && option != 1) {
                 JOptionPane.showMessageDialog(null, "Exiting. Goodbye!");
                 System.exit(0);
             }
+            register = option == 1;
         }
 
         // Display welcome message after successful login
@@ -138,9 +216,7 @@ public class Login {
                         String messageText = getMessageTextInput();
                         if (messageText == null) break;
 
-                        String messageID = Message.generateMessageID();
-
-                        Message msg = new Message(messageID, recipient, messageText);
+                        Message msg = service.createMessage(recipient, messageText);
 
                         // Validate generated message ID and recipient number
                         if (!msg.checkMessageID()) {
@@ -160,33 +236,38 @@ public class Login {
                         // Handle user choice for sending, storing, or disregarding
                         switch (userChoice) {
                             case "1": // Send message
-                                sentMessages.add(msg);
-                                messagesSentCount++;
-                                JOptionPane.showMessageDialog(null, getMessageDetails(msg));
+                                String result = service.send(msg).join();
+                                if (msg.isSent()) {
+                                    messagesSentCount++;
+                                    JOptionPane.showMessageDialog(null, getMessageDetails(msg));
+                                } else {
+                                    JOptionPane.showMessageDialog(null, result);
+                                }
                                 break;
                             case "2": // Store message
-                                storedMessages.add(msg);
+                                service.store(msg).join();
                                 JOptionPane.showMessageDialog(null, "Message stored for later.");
                                 break;
                             case "3": // Disregard message
-                                disregardedMessages.add(msg);
+                                service.disregard(msg).join();
                                 JOptionPane.showMessageDialog(null, "Message disregarded.");
                                 break;
                             default:
                                 JOptionPane.showMessageDialog(null, "No valid option selected, message disregarded.");
-                                disregardedMessages.add(msg);
+                                service.disregard(msg).join();
                                 break;
                         }
                     }
                     JOptionPane.showMessageDialog(null, "Total messages sent: " + messagesSentCount);
                     break;
 
-                case "2": // Show recently sent messages
-                    if (sentMessages.isEmpty()) {
+                case "2": // Show recently sent messages, the latest RECENT_MESSAGES of them
+                    List<Message> sent = service.recentMessages(RECENT_MESSAGES).join();
+                    if (sent.isEmpty()) {
                         JOptionPane.showMessageDialog(null, "No sent messages to show.");
                     } else {
                         StringBuilder sentList = new StringBuilder("Recently sent messages:\n");
-                        for (Message m : sentMessages) {
+                        for (Message m : sent) {
                             sentList.append("- ").append(m.getMessageText()).append("\n");
                         }
                         JOptionPane.showMessageDialog(null, sentList.toString());
@@ -196,83 +277,53 @@ public class Login {
                 case "3": // Search messages by recipient
                     String searchRecipient = JOptionPane.showInputDialog("Enter recipient to search for:");
                     if (searchRecipient != null) {
-                        List<String> foundMessages = new ArrayList<>();
-                        for (Message m : sentMessages) {
-                            if (m.getRecipient().equals(searchRecipient)) {
-                                foundMessages.add(m.getMessageText());
-                            }
-                        }
-                        if (foundMessages.isEmpty()) {
-                            JOptionPane.showMessageDialog(null, "No messages found for recipient: " + searchRecipient);
-                        } else {
-                            StringBuilder results = new StringBuilder("Messages for " + searchRecipient + ":\n");
-                            for (String msgText : foundMessages) {
-                                results.append("- ").append(msgText).append("\n");
-                            }
-                            JOptionPane.showMessageDialog(null, results.toString());
-                        }
+                        showMessagesForRecipient(searchRecipient, service.searchByRecipient(searchRecipient, false).join());
                     }
                     break;
 
                 case "4": // Delete message by hash
                     String hashToDelete = JOptionPane.showInputDialog("Enter the message hash to delete:");
                     if (hashToDelete != null) {
-                        boolean deleted = false;
-                        for (int i = 0; i < sentMessages.size(); i++) {
-                            if (sentMessages.get(i).getMessageHash().equalsIgnoreCase(hashToDelete)) {
-                                sentMessages.remove(i);
-                                deleted = true;
-                                break;
-                            }
-                        }
+                        boolean deleted = service.deleteByHash(hashToDelete).join();
                         JOptionPane.showMessageDialog(null, deleted ? "Message deleted." : "Message with that hash not found.");
                     }
                     break;
 
-                case "5": // Display sent message report
-                    if (sentMessages.isEmpty()) {
+                case "5": // Display sent message report, a page at a time
+                    if (service.sentMessages().join().isEmpty()) {
                         JOptionPane.showMessageDialog(null, "No sent messages to report.");
-                    } else {
-                        StringBuilder report = new StringBuilder("Sent Message Report:\n");
-                        for (Message m : sentMessages) {
-                            report.append("Recipient: ").append(m.getRecipient()).append("\n")
-                                    .append("Message: ").append(m.getMessageText()).append("\n")
-                                    .append("Hash: ").append(m.getMessageHash()).append("\n")
-                                    .append("Flag: ").append(m.displayFlags()).append("\n\n");
+                        break;
+                    }
+                    MessageReportWriter.Cursor cursor = service.reportStart();
+                    while (cursor != null) {
+                        StringWriter page = new StringWriter();
+                        cursor = service.writeReportPage(page, MessageReportWriter.Format.TEXT, cursor, REPORT_PAGE_SIZE).join();
+                        if (cursor == null) {
+                            JOptionPane.showMessageDialog(null, page.toString());
+                        } else if (JOptionPane.showConfirmDialog(null, page + "Show more?", "Sent Message Report",
+                                JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                            break;
                         }
-                        JOptionPane.showMessageDialog(null, report.toString());
                     }
                     break;
 
                 case "6": // Show longest sent message
-                    if (sentMessages.isEmpty()) {
+                    Optional<Message> longest = service.longestMessage().join();
+                    if (!longest.isPresent()) {
                         JOptionPane.showMessageDialog(null, "No sent messages to analyze.");
                     } else {
-                        // Find message with longest length
-                        Message longest = sentMessages.get(0);
-                        for (Message m : sentMessages) {
-                            if (m.getMessageText().length() > longest.getMessageText().length()) {
-                                longest = m;
-                            }
-                        }
-                        JOptionPane.showMessageDialog(null, "Longest Message Details:\n" + getMessageDetails(longest));
+                        JOptionPane.showMessageDialog(null, "Longest Message Details:\n" + getMessageDetails(longest.get()));
                     }
                     break;
 
                 case "7": // Search message by Message ID
                     String searchID = JOptionPane.showInputDialog("Enter Message ID to search for:");
                     if (searchID != null) {
-                        Message foundMsg = null;
-                        for (Message m : sentMessages) {
-                            if (m.getMessageID().equalsIgnoreCase(searchID)) {
-                                foundMsg = m;
-                                break;
-                            }
-                        }
-                        if (foundMsg == null) {
+                        Optional<Message> foundMsg = service.searchByID(searchID).join();
+                        if (!foundMsg.isPresent()) {
                             JOptionPane.showMessageDialog(null, "No message found with ID: " + searchID);
                         } else {
-                            JOptionPane.showMessageDialog(null, "Message found:\nRecipient: " + foundMsg.getRecipient() + "\nMessage: " + foundMsg.getMessageText());
+                            JOptionPane.showMessageDialog(null, "Message found:\nRecipient: " + foundMsg.get().getRecipient() + "\nMessage: " + foundMsg.get().getMessageText());
                         }
                     }
                     break;
@@ -280,26 +331,14 @@ public class Login {
                 case "8": // Search all messages sent to a recipient
                     String recipientToSearch = JOptionPane.showInputDialog("Enter recipient to search messages for:");
                     if (recipientToSearch != null) {
-                        List<Message> messagesForRecipient = new ArrayList<>();
-                        for (Message m : sentMessages) {
-                            if (m.getRecipient().equalsIgnoreCase(recipientToSearch)) {
-                                messagesForRecipient.add(m);
-                            }
-                        }
-                        if (messagesForRecipient.isEmpty()) {
-                            JOptionPane.showMessageDialog(null, "No messages found for recipient: " + recipientToSearch);
-                        } else {
-                            StringBuilder messagesList = new StringBuilder("Messages for " + recipientToSearch + ":\n");
-                            for (Message m : messagesForRecipient) {
-                                messagesList.append("- ").append(m.getMessageText()).append("\n");
-                            }
-                            JOptionPane.showMessageDialog(null, messagesList.toString());
-                        }
+                        showMessagesForRecipient(recipientToSearch, service.searchByRecipient(recipientToSearch, true).join());
                     }
                     break;
 
                 case "9": // Quit the program
                     JOptionPane.showMessageDialog(null, "Goodbye!");
+                    service.close();
+                    Message.disablePersistence();
                     System.exit(0);
                     break;
 
@@ -309,18 +348,56 @@ public class Login {
         }
     }
 
-    // Helper method to get user registration inputs and validate
-    private static Login getUserRegistration() {
+    // Show the texts of messages found for a recipient
+    private static void showMessagesForRecipient(String recipient, List<Message> found) {
+        if (found.isEmpty()) {
+            JOptionPane.showMessageDialog(null, "No messages found for recipient: " + recipient);
+            return;
+        }
+        StringBuilder results = new StringBuilder("Messages for " + recipient + ":\n");
+        for (Message m : found) {
+            results.append("- ").append(m.getMessageText()).append("\n");
+        }
+        JOptionPane.showMessageDialog(null, results.toString());
+    }
+
+    // Up to 3 login dialogs; true once the credentials match
+    private static boolean promptLogin(QuickChatService service) {
+        for (int loginAttempts = 1; loginAttempts <= 3; loginAttempts++) {
+            String loginUsername = JOptionPane.showInputDialog("Login - Enter username:");
+            String loginPassword = JOptionPane.showInputDialog("Login - Enter password:");
+            String loginPhone = JOptionPane.showInputDialog("Login - Enter phone number:");
+
+            long wait = service.loginRetryAfterMillis(loginUsername, loginPhone);
+            if (wait > 0) {
+                JOptionPane.showMessageDialog(null, "Too many failed logins. Try again in " + ((wait + 999) / 1000) + " second(s).");
+                return false;
+            }
+            // Validate login credentials; the registered profile has the name to greet
+            Optional<Login> user = service.login(loginUsername, loginPassword, loginPhone).join();
+            if (user.isPresent()) {
+                JOptionPane.showMessageDialog(null, "Welcome " + user.get().firstName + " " + user.get().lastName + "! It is great to see you again.");
+                return true;
+            }
+            if (loginAttempts < 3)
+                JOptionPane.showMessageDialog(null, "Incorrect credentials. " + (3 - loginAttempts) + " attempt(s) left.");
+        }
+        return false;
+    }
+
+    // Helper method to get user registration inputs and validate. True once the user is
+    // registered, or was already, so logging in comes next; false if it failed or was cancelled.
+    private static boolean getUserRegistration(QuickChatService service) {
         String firstName = JOptionPane.showInputDialog("Enter your first name:");
-        if (firstName == null) return null;
+        if (firstName == null) return false;
         String lastName = JOptionPane.showInputDialog("Enter your last name:");
-        if (lastName == null) return null;
+        if (lastName == null) return false;
 
         // Loop until valid username entered
         String username;
         while (true) {
             username = JOptionPane.showInputDialog("Enter username (must contain '_' and be <= 5 characters):");
-            if (username == null) return null;
+            if (username == null) return false;
             Login tempUser = new Login(firstName, lastName, username, "", "");
             if (tempUser.checkUserName()) break;
             else JOptionPane.showMessageDialog(null, "Username must contain an underscore and be max 5 characters.");
@@ -330,7 +407,7 @@ public class Login {
         String password;
         while (true) {
             password = JOptionPane.showInputDialog("Enter password (8+ chars, uppercase, number, special char):");
-            if (password == null) return null;
+            if (password == null) return false;
             Login tempUser = new Login(firstName, lastName, username, password, "");
             if (tempUser.checkPasswordComplexity()) break;
             else JOptionPane.showMessageDialog(null, "Password must be at least 8 characters, contain uppercase, number and special character.");
@@ -340,21 +417,19 @@ public class Login {
         String phoneNumber;
         while (true) {
             phoneNumber = JOptionPane.showInputDialog("Enter phone number (e.g. +27838968976):");
-            if (phoneNumber == null) return null;
+            if (phoneNumber == null) return false;
             Login tempUser = new Login(firstName, lastName, username, password, phoneNumber);
             if (tempUser.checkCellPhoneNumber()) break;
             else JOptionPane.showMessageDialog(null, "Phone number must start with +27 and have 9 digits after.");
         }
 
-        Login user = new Login(firstName, lastName, username, password, phoneNumber);
-        String registrationMessage = user.registerUser();
-        JOptionPane.showMessageDialog(null, registrationMessage);
-
-        // Return null if registration failed
-        if (!registrationMessage.equals("Registration successful.")) {
-            return null;
+        String registrationMessage = service.register(firstName, lastName, username, password, phoneNumber).join();
+        if (registrationMessage.equals(QuickChatService.USERNAME_TAKEN)) {
+            JOptionPane.showMessageDialog(null, registrationMessage + " If it is yours, log in with it.");
+            return true;
         }
-        return user;
+        JOptionPane.showMessageDialog(null, registrationMessage);
+        return registrationMessage.equals(QuickChatService.REGISTRATION_SUCCESSFUL);
     }
 
     // Helper method to get positive integer input with validation
@@ -0,0 +1,197 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Failed-login tracking per username and per phone number, shared by every session.
+//
+// Each key has a leaky bucket: a failure adds one, and the count drains continuously at
+// the decay rate. When a key reaches the failure limit it is locked out for the lockout
+// period and its bucket starts empty again. The count and the time it was last updated
+// are packed into one AtomicLong, so updates are single CAS loops and never lock.
+// Checking a key and recording a success are plain reads and CASes as well; idle keys
+// are dropped by prune(), which also runs by itself as new keys accumulate.
+public class LoginRateLimiter {
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final long DEFAULT_LOCKOUT_MILLIS = 5 * 60_000L;
+    // One failure forgiven per minute
+    public static final double DEFAULT_DECAY_PER_SECOND = 1.0 / 60;
+
+    // Counts are kept in thousandths of a failure, in the bits above the timestamp
+    private static final int TIME_BITS = 40;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long SCALE = 1000;
+    // Every this many new keys, prune() runs on the thread that added the last one
+    private static final int PRUNE_EVERY = 1 << 16;
+
+    // One key's bucket and lockout
+    private static final class Bucket {
+        // (failures * SCALE) << TIME_BITS | millis since the limiter started
+        final AtomicLong state = new AtomicLong();
+        // Absolute clock time the lockout ends, 0 if never locked
+        final AtomicLong lockedUntil = new AtomicLong();
+    }
+
+    private final ConcurrentMap<String, Bucket> byUsername = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Bucket> byPhone = new ConcurrentHashMap<>();
+    private final int maxFailures;
+    private final long lockoutMillis;
+    private final double decayPerMilli;
+    private final LongSupplier clock;
+    private final long start;
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder lockouts = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicLong created = new AtomicLong();
+
+    public LoginRateLimiter() {
+        this(DEFAULT_MAX_FAILURES, DEFAULT_LOCKOUT_MILLIS, DEFAULT_DECAY_PER_SECOND, System::currentTimeMillis);
+    }
+
+    // The clock returns milliseconds; tests pass their own
+    public LoginRateLimiter(int maxFailures, long lockoutMillis, double decayPerSecond, LongSupplier clock) {
+        if (maxFailures < 1 || lockoutMillis < 0 || decayPerSecond < 0) {
+            throw new IllegalArgumentException("maxFailures must be positive, lockout and decay not negative");
+        }
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+        this.decayPerMilli = decayPerSecond / 1000;
+        this.clock = clock;
+        this.start = clock.getAsLong();
+    }
+
+    // Milliseconds until the username and phone number may try again, 0 if neither is locked.
+    // Counts a blocked attempt when the answer is not 0.
+    public long retryAfterMillis(String username, String phoneNumber) {
+        long now = clock.getAsLong();
+        long wait = Math.max(remaining(byUsername, username, now), remaining(byPhone, phoneNumber, now));
+        if (wait > 0) {
+            blocked.increment();
+        }
+        return wait;
+    }
+
+    public boolean isLocked(String username, String phoneNumber) {
+        return retryAfterMillis(username, phoneNumber) > 0;
+    }
+
+    // Count a failed login against both keys; true if that locked either of them out
+    public boolean recordFailure(String username, String phoneNumber) {
+        failures.increment();
+        long now = clock.getAsLong();
+        boolean locked = fail(byUsername, username, now);
+        return fail(byPhone, phoneNumber, now) | locked;
+    }
+
+    // A successful login forgets earlier failures; keys that never failed are not touched
+    public void recordSuccess(String username, String phoneNumber) {
+        clear(byUsername, username);
+        clear(byPhone, phoneNumber);
+    }
+
+    // Failures currently counted against the username, after decay
+    public double failures(String username) {
+        Bucket b = username != null ? byUsername.get(username) : null;
+        return b != null ? decayed(b.state.get(), elapsed(clock.getAsLong())) / (double) SCALE : 0;
+    }
+
+    // Drop keys that are not locked and have fully decayed; returns how many were dropped.
+    // A failure recorded at the same moment on a dropped key can be forgotten, which costs
+    // at most that one failure.
+    public int prune() {
+        long now = clock.getAsLong();
+        return prune(byUsername, now) + prune(byPhone, now);
+    }
+
+    public long failureCount() {
+        return failures.sum();
+    }
+
+    public long lockoutCount() {
+        return lockouts.sum();
+    }
+
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    // Keys with a bucket, locked or not
+    public int trackedKeys() {
+        return byUsername.size() + byPhone.size();
+    }
+
+    private long remaining(ConcurrentMap<String, Bucket> buckets, String key, long now) {
+        Bucket b = key != null ? buckets.get(key) : null;
+        return b != null ? Math.max(0, b.lockedUntil.get() - now) : 0;
+    }
+
+    private boolean fail(ConcurrentMap<String, Bucket> buckets, String key, long now) {
+        if (key == null) {
+            return false;
+        }
+        Bucket b = buckets.get(key);
+        if (b == null) {
+            b = buckets.computeIfAbsent(key, k -> new Bucket());
+            // Guessed usernames would otherwise pile up keys forever
+            if (created.incrementAndGet() % PRUNE_EVERY == 0) {
+                prune();
+            }
+        }
+        long elapsed = elapsed(now);
+        while (true) {
+            long current = b.state.get();
+            long count = decayed(current, elapsed) + SCALE;
+            // Partly drained failures still count as whole ones, so a burst of slow attempts
+            // can't stay under the limit by the few milliseconds of decay between them
+            boolean lock = count > (maxFailures - 1) * SCALE;
+            // A lockout starts the next window from empty
+            long next = pack(lock ? 0 : count, elapsed);
+            if (b.state.compareAndSet(current, next)) {
+                if (lock) {
+                    b.lockedUntil.accumulateAndGet(now + lockoutMillis, Math::max);
+                    lockouts.increment();
+                }
+                return lock;
+            }
+        }
+    }
+
+    private static void clear(ConcurrentMap<String, Bucket> buckets, String key) {
+        Bucket b = key != null ? buckets.get(key) : null;
+        if (b != null) {
+            long current = b.state.get();
+            if (current >>> TIME_BITS != 0) {
+                b.state.compareAndSet(current, current & TIME_MASK);
+            }
+        }
+    }
+
+    private int prune(ConcurrentMap<String, Bucket> buckets, long now) {
+        int dropped = 0;
+        long elapsed = elapsed(now);
+        for (Map.Entry<String, Bucket> e : buckets.entrySet()) {
+            Bucket b = e.getValue();
+            if (b.lockedUntil.get() <= now && decayed(b.state.get(), elapsed) == 0 && buckets.remove(e.getKey(), b)) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    // Count left in a packed state at the given time, in thousandths
+    private long decayed(long state, long elapsed) {
+        long count = state >>> TIME_BITS;
+        long since = Math.max(0, elapsed - (state & TIME_MASK));
+        return Math.max(0, count - (long) (since * decayPerMilli * SCALE));
+    }
+
+    private long elapsed(long now) {
+        return Math.max(0, now - start) & TIME_MASK;
+    }
+
+    private static long pack(long count, long elapsed) {
+        return (Math.min(count, (1L << (63 - TIME_BITS)) - 1) << TIME_BITS) | elapsed;
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoginRateLimiterTest {
+
+    private AtomicLong now;
+    private LoginRateLimiter limiter;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong(1_000_000);
+        // 3 failures lock for a minute; one failure drains every 10 seconds
+        limiter = new LoginRateLimiter(3, 60_000, 0.1, now::get);
+    }
+
+    @Test
+    public void testLocksAfterMaxFailuresThenUnlocks() {
+        assertFalse(limiter.recordFailure("kyl_1", "+27838968976"));
+        assertFalse(limiter.recordFailure("kyl_1", "+27838968976"));
+        assertFalse(limiter.isLocked("kyl_1", "+27838968976"));
+        assertTrue(limiter.recordFailure("kyl_1", "+27838968976"));
+        assertEquals(60_000, limiter.retryAfterMillis("kyl_1", "+27838968976"));
+        // Either key alone is enough to block
+        assertTrue(limiter.isLocked("kyl_1", "+27000000000"));
+        assertTrue(limiter.isLocked("other", "+27838968976"));
+        assertFalse(limiter.isLocked("other", "+27000000000"));
+
+        now.addAndGet(60_000);
+        assertFalse(limiter.isLocked("kyl_1", "+27838968976"));
+        // One lockout each for the username and the phone number
+        assertEquals(2, limiter.lockoutCount());
+        assertEquals(3, limiter.failureCount());
+        assertEquals(3, limiter.blockedCount());
+    }
+
+    @Test
+    public void testFailuresDecay() {
+        limiter.recordFailure("kyl_1", null);
+        limiter.recordFailure("kyl_1", null);
+        assertEquals(2.0, limiter.failures("kyl_1"), 1e-9);
+        now.addAndGet(15_000);
+        assertEquals(0.5, limiter.failures("kyl_1"), 1e-9);
+        // 0.5 + 1 stays under the limit, so no lockout
+        assertFalse(limiter.recordFailure("kyl_1", null));
+        now.addAndGet(60_000);
+        assertEquals(0, limiter.failures("kyl_1"), 1e-9);
+        assertEquals(1, limiter.prune());
+        assertEquals(0, limiter.trackedKeys());
+    }
+
+    @Test
+    public void testSuccessForgetsFailures() {
+        limiter.recordFailure("kyl_1", "+27838968976");
+        limiter.recordFailure("kyl_1", "+27838968976");
+        limiter.recordSuccess("kyl_1", "+27838968976");
+        assertEquals(0, limiter.failures("kyl_1"), 1e-9);
+        assertFalse(limiter.recordFailure("kyl_1", "+27838968976"));
+    }
+
+    @Test
+    public void testConcurrentFailuresAreAllCounted() throws Exception {
+        LoginRateLimiter strict = new LoginRateLimiter(8_000, 60_000, 0, now::get);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 900; i++) {
+                    strict.recordFailure("target", "+2782000000" + (i % 10));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(7_200, strict.failures("target"), 1e-9);
+        assertEquals(7_200, strict.failureCount());
+        assertEquals(11, strict.trackedKeys());
+    }
+}
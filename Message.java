@@ -1,165 +1,519 @@
 import javax.swing.*;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Message {
     private String messageID;
     private String recipient;
     private String messageText;
     private String messageHash;
-    private String flag;
 
-    // Flags to track status
-    private boolean isSent;
-    private boolean isReceived;
-    private boolean isRead;
+    // Sent/Received/Read and whether a setter has run, as MessageLifecycle bits
+    private volatile int state;
+    private static final AtomicIntegerFieldUpdater<Message> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "state");
 
-    // Static lists to manage messages
-    public static ArrayList<Message> sentMessages = new ArrayList<>();
-    public static ArrayList<Message> disregardedMessages = new ArrayList<>();
-    public static ArrayList<Message> storedMessages = new ArrayList<>();
-    public static ArrayList<String> messageHashes = new ArrayList<>();
-    public static ArrayList<String> messageIDs = new ArrayList<>();
+    // Why the message ended up in disregardedMessages, if something recorded it
+    private volatile String disregardReason;
+
+    // Microseconds since the epoch when first sent, 0 until then (see MessageConversations)
+    private volatile long timestamp;
+    private static final AtomicLongFieldUpdater<Message> TIMESTAMP =
+            AtomicLongFieldUpdater.newUpdater(Message.class, "timestamp");
+
+    // Shared, thread-safe indexed stores used by every code path
+    public static MessageStore sentMessages = new MessageStore();
+    public static MessageStore disregardedMessages = new MessageStore();
+    public static MessageStore storedMessages = new MessageStore();
+    public static KeyMultiset messageHashes = new KeyMultiset();
+    public static KeyMultiset messageIDs = new KeyMultiset();
+
+    // Counts, longest message and length histogram, kept current as the stores change
+    public static final MessageStatistics statistics = new MessageStatistics();
+
+    // Keyword index over sent message text
+    public static final MessageTextIndex textIndex = new MessageTextIndex();
+
+    // Exact, prefix and range lookups over sent message recipients
+    public static final MessageRecipientIndex recipientIndex = new MessageRecipientIndex();
+
+    // Sent messages per recipient, in time order
+    public static final MessageConversations conversations = new MessageConversations();
+
+    static {
+        conversations.attach(sentMessages);
+        textIndex.attach(sentMessages);
+        recipientIndex.attach(sentMessages);
+        statistics.attach(sentMessages, MessageStatistics.Status.SENT);
+        statistics.attach(storedMessages, MessageStatistics.Status.STORED);
+        statistics.attach(disregardedMessages, MessageStatistics.Status.DISREGARDED);
+    }
+
+    // Durable log of store changes, null until persistence is enabled
+    private static MessageLog messageLog;
+    private static final List<MessageStore.Listener> logListeners = new ArrayList<>();
+    private static boolean shutdownHookAdded;
+
+    // Older sent messages moved out of the heap into mapped segment files, null if unused
+    private static volatile MessageSegmentStore archive;
+    // Runs archiveSentMessages(keepInHeap) in the background, null until startArchiving
+    private static ScheduledExecutorService archiver;
+
+    private static final Logger LOG = Logger.getLogger(Message.class.getName());
+
+    // Pluggable source for generateMessageID, MSG### format by default
+    private static volatile MessageIdGenerator idGenerator = new CompatibleMessageIdGenerator();
+
+    // Call counts and latencies of the public operations. Those that only compute or read
+    // in-memory indexes are sampled; only sampled calls are checked against the slow threshold.
+    private static final QuickChatMetrics.Operation CHECK_MESSAGE_ID = QuickChatMetrics.operation("Message.checkMessageID", true);
+    private static final QuickChatMetrics.Operation CHECK_RECIPIENT_CELL = QuickChatMetrics.operation("Message.checkRecipientCell", true);
+    private static final QuickChatMetrics.Operation CREATE_MESSAGE_HASH = QuickChatMetrics.operation("Message.createMessageHash", true);
+    private static final QuickChatMetrics.Operation DISPLAY_FLAGS = QuickChatMetrics.operation("Message.displayFlags", true);
+    private static final QuickChatMetrics.Operation GENERATE_HASH = QuickChatMetrics.operation("Message.generateHash", true);
+    private static final QuickChatMetrics.Operation GENERATE_MESSAGE_ID = QuickChatMetrics.operation("Message.generateMessageID", true);
+    private static final QuickChatMetrics.Operation GET_LONGEST_MESSAGE = QuickChatMetrics.operation("Message.getLongestMessage", true);
+    private static final QuickChatMetrics.Operation SEARCH_BY_RECIPIENT = QuickChatMetrics.operation("Message.searchMessagesByRecipient", true);
+    private static final QuickChatMetrics.Operation SEARCH_RECENT = QuickChatMetrics.operation("Message.searchRecentMessagesToRecipient", true);
+    private static final QuickChatMetrics.Operation SEARCH_BY_TEXT = QuickChatMetrics.operation("Message.searchMessagesByText", true);
+    // Every call recorded: these walk every message, or can block on the message log (an fsync
+    // per change under SYNC durability) or on archive segment reads, so no slow call is missed
+    private static final QuickChatMetrics.Operation SENT_MESSAGE = QuickChatMetrics.operation("Message.sentMessage");
+    private static final QuickChatMetrics.Operation SEARCH_BY_ID = QuickChatMetrics.operation("Message.searchMessageByID");
+    private static final QuickChatMetrics.Operation APPLY_DELIVERY_EVENTS = QuickChatMetrics.operation("Message.applyDeliveryEvents");
+    private static final QuickChatMetrics.Operation DELETE_BY_HASH = QuickChatMetrics.operation("Message.deleteMessageByHash");
+    private static final QuickChatMetrics.Operation GET_SENT_MESSAGES_LIST = QuickChatMetrics.operation("Message.getSentMessagesList");
+    private static final QuickChatMetrics.Operation REPORT = QuickChatMetrics.operation("Message.displaySentMessageReport");
+    private static final QuickChatMetrics.Operation ARCHIVE = QuickChatMetrics.operation("Message.archiveSentMessages");
+    private static final QuickChatMetrics.Operation ENABLE_PERSISTENCE = QuickChatMetrics.operation("Message.enablePersistence");
+    private static final QuickChatMetrics.Operation DISABLE_PERSISTENCE = QuickChatMetrics.operation("Message.disablePersistence");
 
     // Constructor
     public Message(String messageID, String recipient, String messageText) {
         this.messageID = messageID;
         this.recipient = recipient;
         this.messageText = messageText;
-        this.isSent = false;
-        this.isReceived = false;
-        this.isRead = false;
         this.messageHash = createMessageHash();
-        this.flag = "";
 
         messageHashes.add(this.messageHash);
         messageIDs.add(this.messageID);
     }
 
+    // For views over other storage (see CompactMessageStore); they override the getters
+    // and are not registered in messageHashes/messageIDs
+    protected Message() {
+    }
+
     // Validate message ID format
     public boolean checkMessageID() {
-        return messageID != null && messageID.matches("MSG\\d{3}");
+        long start = CHECK_MESSAGE_ID.start();
+        boolean valid = ValidationEngine.checkMessageID(getMessageID()) == 0;
+        CHECK_MESSAGE_ID.stop(start);
+        return valid;
     }
 
     // Validate recipient number format
     public boolean checkRecipientCell() {
-        return recipient != null && recipient.length() <= 13 && recipient.startsWith("+27");
+        long start = CHECK_RECIPIENT_CELL.start();
+        boolean valid = ValidationEngine.checkRecipient(getRecipient()) == 0;
+        CHECK_RECIPIENT_CELL.stop(start);
+        return valid;
+    }
+
+    // Valid ID and recipient and some text, so the message may be sent. Validates directly
+    // rather than through checkMessageID/checkRecipientCell, which count as calls of their own.
+    boolean canSend() {
+        String messageText = getMessageText();
+        return ValidationEngine.checkMessageID(getMessageID()) == 0 && ValidationEngine.checkRecipient(getRecipient()) == 0
+                && messageText != null && !messageText.isEmpty();
     }
 
     // Send the message and set the flag
     public String sentMessage() {
-        if (checkMessageID() && checkRecipientCell() && messageText != null && !messageText.isEmpty()) {
-            sentMessages.add(this);
-            this.isSent = true;
-            return "Message sent";
-        } else {
-            disregardedMessages.add(this);
-            this.isSent = false;
-            return "Message disregarded due to invalid data";
+        long start = SENT_MESSAGE.start();
+        try {
+            if (canSend()) {
+                markSent(true);
+                sentMessages.add(this);
+                return "Message sent";
+            } else {
+                disregardedMessages.add(this);
+                markSent(false);
+                return "Message disregarded due to invalid data";
+            }
+        } finally {
+            SENT_MESSAGE.stop(start);
         }
     }
 
     // Generate a hash for the message
     public String createMessageHash() {
-        String firstTwo = messageID.length() >= 2 ? messageID.substring(0, 2) : messageID;
-        String[] words = messageText.trim().split("\\s+");
-        String firstWord = words.length > 0 ? words[0] : "";
-        String lastWord = words.length > 1 ? words[words.length - 1] : firstWord;
-        return (firstTwo + ":" + recipient + "." + (firstWord + lastWord)).toUpperCase();
+        long start = CREATE_MESSAGE_HASH.start();
+        String hash = createMessageHash(getMessageID(), getRecipient(), getMessageText());
+        CREATE_MESSAGE_HASH.stop(start);
+        return hash;
+    }
+
+    static String createMessageHash(String messageID, String recipient, String messageText) {
+        return MessageHashEngine.hash(messageID, recipient, messageText);
     }
 
     // Show flag status as "Flag: Sent Received Read"
     public String displayFlags() {
-        StringBuilder flagDisplay = new StringBuilder("Flag: ");
-        if (isSent) flagDisplay.append("Sent ");
-        if (isReceived) flagDisplay.append("Received ");
-        if (isRead) flagDisplay.append("Read ");
-        if (!isSent && !isReceived && !isRead) flagDisplay.append("None");
-        return flagDisplay.toString().trim();
+        long start = DISPLAY_FLAGS.start();
+        String flags = MessageLifecycle.appendFlags(new StringBuilder("Flag: "), state()).toString();
+        DISPLAY_FLAGS.stop(start);
+        return flags;
     }
 
 
     // Return list of sent message texts
     public static List<String> getSentMessagesList() {
+        long start = GET_SENT_MESSAGES_LIST.start();
         List<String> messages = new ArrayList<>();
-        for (Message m : sentMessages) {
-            messages.add(m.messageText);
+        for (Message m : sentMessages.snapshot()) {
+            messages.add(m.getMessageText());
         }
+        GET_SENT_MESSAGES_LIST.stop(start);
         return messages;
     }
 
     // Return the longest sent message
     public static String getLongestMessage() {
-        Message longest = null;
-        for (Message m : sentMessages) {
-            if (longest == null || m.messageText.length() > longest.messageText.length()) {
-                longest = m;
-            }
-        }
-        return longest != null ? longest.messageText : "";
+        long start = GET_LONGEST_MESSAGE.start();
+        Message longest = statistics.getLongestSent();
+        GET_LONGEST_MESSAGE.stop(start);
+        return longest != null ? longest.getMessageText() : "";
     }
 
-    // Search message by ID and return message
+    // Search message by ID and return message, checking the archive if it is not in memory
     public static String searchMessageByID(String id) {
-        for (Message msg : sentMessages) {
-            if (msg.getMessageID().equals(id)) {
-                return msg.getMessageText();
-            }
+        long start = SEARCH_BY_ID.start();
+        try {
+            Message msg = findSentByID(id, false);
+            return msg != null ? msg.getMessageText() : "Message ID not found";
+        } finally {
+            SEARCH_BY_ID.stop(start);
+        }
+    }
+
+    // The oldest sent message with the ID in memory, else a copy of the first one in the
+    // archive; null if neither has it. The archive matches IDs as given or upper-cased, the
+    // form generated IDs take, so ignoreCase finds "msg101" there too.
+    static Message findSentByID(String id, boolean ignoreCase) {
+        Message m = sentMessages.findByID(id, ignoreCase);
+        MessageSegmentStore a = archive;
+        if (m != null || a == null || id == null) {
+            return m;
+        }
+        MessageCodec.Record r = a.findByID(id);
+        if (r == null && ignoreCase) {
+            String upper = id.toUpperCase(Locale.ROOT);
+            r = upper.equals(id) ? null : a.findByID(upper);
         }
-        return "Message ID not found";
+        return r != null ? new ArchivedMessage(r) : null;
     }
 
-    // Search messages sent to a specific recipient
+    // Search messages sent to a specific recipient, or to every number starting with a prefix
+    // when the recipient ends in * (for example "+2782*")
     public static List<String> searchMessagesByRecipient(String recipient) {
+        long start = SEARCH_BY_RECIPIENT.start();
         List<String> results = new ArrayList<>();
-        for (Message m : sentMessages) {
-            if (m.recipient.equalsIgnoreCase(recipient)) {
-                results.add(m.messageText);
+        for (Message m : findSentByRecipient(recipient, true)) {
+            results.add(m.getMessageText());
+        }
+        SEARCH_BY_RECIPIENT.stop(start);
+        return results;
+    }
+
+    // Sent messages for a recipient, or a "+digits*" prefix, oldest first
+    static List<Message> findSentByRecipient(String recipient, boolean ignoreCase) {
+        if (recipient != null && recipient.endsWith("*")) {
+            String prefix = recipient.substring(0, recipient.length() - 1);
+            if (prefix.equals("+") || MessageRecipientIndex.encode(prefix) >= 0) {
+                return recipientIndex.prefix(prefix);
             }
         }
+        // A +digits number has no case, so its conversation is the exact answer either way
+        if (MessageRecipientIndex.encode(recipient) >= 0) {
+            return conversations.all(recipient);
+        }
+        return sentMessages.findByRecipient(recipient, ignoreCase);
+    }
+
+    // The last n messages sent to the recipient, oldest first
+    public static List<String> searchRecentMessagesToRecipient(String recipient, int n) {
+        long start = SEARCH_RECENT.start();
+        List<String> results = new ArrayList<>();
+        for (Message m : conversations.last(recipient, n)) {
+            results.add(m.getMessageText());
+        }
+        SEARCH_RECENT.stop(start);
+        return results;
+    }
+
+    // Search sent message text: words must all match, OR separates alternatives, word* matches a prefix
+    public static List<String> searchMessagesByText(String query) {
+        long start = SEARCH_BY_TEXT.start();
+        List<String> results = new ArrayList<>();
+        for (Message m : textIndex.search(query)) {
+            results.add(m.getMessageText());
+        }
+        SEARCH_BY_TEXT.stop(start);
         return results;
     }
 
+    // Apply a burst of delivery receipts (or read receipts) to sent messages by ID
+    public static MessageLifecycle.Result applyDeliveryEvents(MessageLifecycle.Event event, Collection<String> messageIDs) {
+        long start = APPLY_DELIVERY_EVENTS.start();
+        try {
+            return MessageLifecycle.apply(sentMessages, event, messageIDs);
+        } finally {
+            APPLY_DELIVERY_EVENTS.stop(start);
+        }
+    }
+
+    // Apply a burst of receipts to the sent messages they were matched to by the transport
+    public static MessageLifecycle.Result applyDeliveryEventsTo(MessageLifecycle.Event event, Collection<Message> messages) {
+        long start = APPLY_DELIVERY_EVENTS.start();
+        try {
+            return MessageLifecycle.applyAll(sentMessages, event, messages);
+        } finally {
+            APPLY_DELIVERY_EVENTS.stop(start);
+        }
+    }
+
     // Delete sent message by its hash
     public static String deleteMessageByHash(String hash) {
-        Iterator<Message> it = sentMessages.iterator();
-        while (it.hasNext()) {
-            Message m = it.next();
-            if (m.messageHash.equals(hash)) {
-                it.remove();
-                messageHashes.remove(m.messageHash);
-                messageIDs.remove(m.messageID);
-                return "Message successfully deleted.";
+        long start = DELETE_BY_HASH.start();
+        try {
+            return deleteByHash(hash, false) ? "Message successfully deleted." : "Message with hash not found.";
+        } finally {
+            DELETE_BY_HASH.stop(start);
+        }
+    }
+
+    // Remove a sent message from memory, or tombstone it in the archive; false if neither had it
+    static boolean deleteByHash(String hash, boolean ignoreCase) {
+        Message m = sentMessages.removeByHash(hash, ignoreCase);
+        if (m == null) {
+            return deleteArchivedMessageByHash(hash);
+        }
+        messageHashes.remove(m.getMessageHash());
+        messageIDs.remove(m.getMessageID());
+        return true;
+    }
+
+    private static boolean deleteArchivedMessageByHash(String hash) {
+        if (archive == null) {
+            return false;
+        }
+        try {
+            return archive.deleteByHash(hash) != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Hold the shared stores' messages in CompactMessageStore columns, text off the heap, or
+    // as Message objects again. Only while the stores are empty, so call it before
+    // enablePersistence replays the log.
+    public static synchronized void useCompactStorage(boolean compact) {
+        sentMessages.setBackend(compact ? new CompactMessageStore() : null);
+        storedMessages.setBackend(compact ? new CompactMessageStore() : null);
+        disregardedMessages.setBackend(compact ? new CompactMessageStore() : null);
+    }
+
+    // Use a segment store as the archive tier behind searchMessageByID and deleteMessageByHash
+    public static void setArchive(MessageSegmentStore segmentStore) {
+        archive = segmentStore;
+    }
+
+    // Move every sent message into a new archive segment and drop it from the heap,
+    // then checkpoint the log so startup doesn't replay them. Returns the number of messages archived.
+    public static int archiveSentMessages() throws IOException {
+        return archiveSentMessages(0);
+    }
+
+    // The same for all but the newest keepInHeap sent messages
+    public static synchronized int archiveSentMessages(int keepInHeap) throws IOException {
+        if (archive == null) {
+            throw new IllegalStateException("No archive configured");
+        }
+        if (keepInHeap < 0) {
+            throw new IllegalArgumentException("keepInHeap must not be negative");
+        }
+        long start = ARCHIVE.start();
+        try {
+            List<Message> all = sentMessages.snapshot();
+            if (all.size() <= keepInHeap) {
+                return 0;
             }
+            // Oldest first, so the newest keepInHeap stay
+            List<Message> snapshot = all.subList(0, all.size() - keepInHeap);
+            archive.writeSegment(snapshot);
+            for (Message m : snapshot) {
+                if (sentMessages.remove(m)) {
+                    messageHashes.remove(m.getMessageHash());
+                    messageIDs.remove(m.getMessageID());
+                }
+            }
+            // Archived messages now load from the segments, not from log replay
+            checkpointPersistence();
+            return snapshot.size();
+        } finally {
+            ARCHIVE.stop(start);
+        }
+    }
+
+    // Archive in the background every period once more than keepInHeap sent messages are in
+    // memory, so the heap and the log replayed at startup only hold recent history. The first
+    // run is immediate. Calling it again does nothing until stopArchiving.
+    public static synchronized void startArchiving(long period, TimeUnit unit, int keepInHeap) {
+        if (archive == null) {
+            throw new IllegalStateException("No archive configured");
+        }
+        if (keepInHeap < 0) {
+            throw new IllegalArgumentException("keepInHeap must not be negative");
+        }
+        if (archiver != null) {
+            return;
+        }
+        archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        archiver.scheduleWithFixedDelay(() -> {
+            try {
+                if (sentMessages.size() > keepInHeap) {
+                    archiveSentMessages(keepInHeap);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Logged rather than thrown, which would cancel every later run
+                LOG.log(Level.WARNING, "Archiving sent messages failed", e);
+            }
+        }, 0, period, unit);
+    }
+
+    public static synchronized void stopArchiving() {
+        if (archiver != null) {
+            archiver.shutdownNow();
+            archiver = null;
         }
-        return "Message with hash not found.";
     }
 
     // Generate simple hash for testing
     public static String generateHash(String message) {
-        return Integer.toString(message.hashCode());
+        long start = GENERATE_HASH.start();
+        String hash = Integer.toString(message.hashCode());
+        GENERATE_HASH.stop(start);
+        return hash;
     }
 
-    // Show all sent messages as a report
+    // Show all sent messages as a report; MessageReportWriter streams the same text without building it in memory
     public static String displaySentMessageReport() {
-        StringBuilder report = new StringBuilder("Sent Message Report:\n");
-        for (Message msg : sentMessages) {
-            report.append("Recipient: ").append(msg.getRecipient()).append("\n");
-            report.append("Message: ").append(msg.getMessageText()).append("\n");
-            report.append("Hash: ").append(msg.getMessageHash()).append("\n");
-            report.append(msg.displayFlags()).append("\n");
-
-
-            report.append("\n");
+        long start = REPORT.start();
+        StringWriter report = new StringWriter();
+        try {
+            new MessageReportWriter(sentMessages, MessageReportWriter.Format.TEXT).writeAll(report);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            REPORT.stop(start);
         }
         return report.toString();
     }
 
 
-    // Generate message ID in format MSG###
+    // Generate message ID using the configured generator (MSG### by default)
     public static String generateMessageID() {
-        Random rand = new Random();
-        int number = rand.nextInt(900) + 100; // 100–999
-        return "MSG" + number;
+        long start = GENERATE_MESSAGE_ID.start();
+        String id = idGenerator.nextId();
+        GENERATE_MESSAGE_ID.stop(start);
+        return id;
+    }
+
+    // Swap the ID generator, e.g. for StripedMessageIdGenerator under heavy load
+    public static void setIdGenerator(MessageIdGenerator generator) {
+        idGenerator = Objects.requireNonNull(generator);
+    }
+
+    public static MessageIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    // Rebuild the stores from the log file, then record every later change to it.
+    // Returns the number of records replayed, or 0 if persistence was already on.
+    public static synchronized long enablePersistence(Path file, MessageLog.Durability durability) throws IOException {
+        if (messageLog != null) {
+            return 0;
+        }
+        long start = ENABLE_PERSISTENCE.start();
+        try {
+            long replayed = MessageLog.replayInto(file);
+            openLog(file, durability);
+            if (!shutdownHookAdded) {
+                // System.exit runs shutdown hooks, so queued records still reach the disk
+                Runtime.getRuntime().addShutdownHook(new Thread(Message::disablePersistence));
+                shutdownHookAdded = true;
+            }
+            return replayed;
+        } finally {
+            ENABLE_PERSISTENCE.stop(start);
+        }
+    }
+
+    private static void openLog(Path file, MessageLog.Durability durability) throws IOException {
+        messageLog = new MessageLog(file, durability, 5);
+        logListeners.add(messageLog.attach(sentMessages, MessageCodec.OP_SENT));
+        logListeners.add(messageLog.attach(storedMessages, MessageCodec.OP_STORED));
+        logListeners.add(messageLog.attach(disregardedMessages, MessageCodec.OP_DISREGARDED));
+    }
+
+    // Compact the log, so replay no longer walks history that has since been deleted or
+    // archived. Sends carry on while it runs (see MessageLog.checkpoint).
+    static synchronized void checkpointPersistence() throws IOException {
+        if (messageLog != null) {
+            messageLog.checkpoint();
+        }
+    }
+
+    // Flush and close the log; later changes stay in memory only
+    public static synchronized void disablePersistence() {
+        if (messageLog == null) {
+            return;
+        }
+        long start = DISABLE_PERSISTENCE.start();
+        sentMessages.removeListener(logListeners.get(0));
+        storedMessages.removeListener(logListeners.get(1));
+        disregardedMessages.removeListener(logListeners.get(2));
+        logListeners.clear();
+        try {
+            messageLog.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            messageLog = null;
+            DISABLE_PERSISTENCE.stop(start);
+        }
+    }
+
+    // Send with a specific durability instead of the log's default
+    public String sentMessage(MessageLog.Durability durability) {
+        String[] result = new String[1];
+        MessageLog.withDurability(durability, () -> result[0] = sentMessage());
+        return result[0];
     }
 
     // Getters and Setters
@@ -179,31 +533,110 @@ public class Message {
         return messageHash;
     }
 
+    // 64-bit numeric form of the message hash, for use as an index key
+    public long getMessageHash64() {
+        return MessageHashEngine.hash64(getMessageHash());
+    }
+
+    // "" until a flag setter or lifecycle event has run, then the flag words; rendered on each call
     public String getFlag() {
-        return flag;
+        int s = state();
+        return (s & MessageLifecycle.FLAG_SET) == 0 ? "" : MessageLifecycle.appendFlags(new StringBuilder(), s).toString();
+    }
+
+    public boolean isSent() {
+        return (state() & MessageLifecycle.SENT) != 0;
+    }
+
+    public boolean isReceived() {
+        return (state() & MessageLifecycle.RECEIVED) != 0;
+    }
+
+    public boolean isRead() {
+        return (state() & MessageLifecycle.READ) != 0;
     }
 
     public void setSent(boolean sent) {
-        this.isSent = sent;
-        updateFlag();
+        setBit(MessageLifecycle.SENT, sent, true);
     }
 
     public void setReceived(boolean received) {
-        this.isReceived = received;
-        updateFlag();
+        setBit(MessageLifecycle.RECEIVED, received, true);
     }
 
     public void setRead(boolean read) {
-        this.isRead = read;
-        updateFlag();
+        setBit(MessageLifecycle.READ, read, true);
+    }
+
+    // Microseconds since the epoch when the message was first sent, 0 if it never was
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Keep the first timestamp a message is given; returns the one it has, so threads racing
+    // to stamp it all see the winner's
+    long stampTimestamp(long candidate) {
+        TIMESTAMP.compareAndSet(this, 0, candidate);
+        return timestamp;
+    }
+
+    public String getDisregardReason() {
+        return disregardReason;
+    }
+
+    public void setDisregardReason(String reason) {
+        this.disregardReason = reason;
+    }
+
+    // Set the sent state without making getFlag render, as sentMessage always has
+    void markSent(boolean sent) {
+        setBit(MessageLifecycle.SENT, sent, false);
+    }
+
+    // Replace the lifecycle bits, FLAG_SET included, as a replayed record has them
+    void restoreState(int bits) {
+        while (true) {
+            int s = state();
+            if (s == bits) {
+                return;
+            }
+            if (compareAndSetState(s, bits)) {
+                stateChanged(this);
+                return;
+            }
+        }
+    }
+
+    // Lifecycle bits; views over other storage keep them there instead
+    int state() {
+        return state;
+    }
+
+    boolean compareAndSetState(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    private void setBit(int bit, boolean on, boolean markFlagSet) {
+        while (true) {
+            int s = state();
+            int next = on ? s | bit : s & ~bit;
+            if (markFlagSet) {
+                next |= MessageLifecycle.FLAG_SET;
+            }
+            if (next == s) {
+                return;
+            }
+            if (compareAndSetState(s, next)) {
+                stateChanged(this);
+                return;
+            }
+        }
     }
 
-    // Utility to keep the flag string in sync
-    private void updateFlag() {
-        StringBuilder sb = new StringBuilder();
-        if (isSent) sb.append("Sent ");
-        if (isReceived) sb.append("Received ");
-        if (isRead) sb.append("Read ");
-        this.flag = sb.length() > 0 ? sb.toString().trim() : "None";
+    // Tell the shared stores a message's flags changed, so listeners such as the log see it
+    static void stateChanged(Message m) {
+        sentMessages.updated(m);
+        storedMessages.updated(m);
+        disregardedMessages.updated(m);
     }
 }
@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+// Binary form of a message record shared by the write-ahead log and segment files:
+//   [int bodyLength][byte op][byte flags][str id][str recipient][str text][str hash][int crc32(body)]
+// Strings are [int byteLength][UTF-8 bytes], with -1 for null.
+public final class MessageCodec {
+    public static final byte OP_SENT = 1;
+    public static final byte OP_STORED = 2;
+    public static final byte OP_DISREGARDED = 3;
+    // Removal ops mirror the add ops above, offset by 10
+    public static final byte OP_REMOVED = 10;
+    // Flag changes of a message already in the store, offset by 20
+    public static final byte OP_UPDATED = 20;
+
+    public static final byte FLAG_SENT = 1;
+    public static final byte FLAG_RECEIVED = 2;
+    public static final byte FLAG_READ = 4;
+    // A flag setter has run, so getFlag renders text (MessageLifecycle.FLAG_SET)
+    public static final byte FLAG_SET = 8;
+
+    // Smallest possible record: length + op + flags + four null strings + crc
+    static final int MIN_RECORD = 4 + 2 + 4 * 4 + 4;
+
+    private MessageCodec() {
+    }
+
+    // A decoded record
+    public static final class Record {
+        public final byte op;
+        public final byte flags;
+        public final String messageID;
+        public final String recipient;
+        public final String messageText;
+        public final String messageHash;
+
+        Record(byte op, byte flags, String messageID, String recipient, String messageText, String messageHash) {
+            this.op = op;
+            this.flags = flags;
+            this.messageID = messageID;
+            this.recipient = recipient;
+            this.messageText = messageText;
+            this.messageHash = messageHash;
+        }
+
+        // Whether the message is the one this record was written for: same ID, recipient and
+        // text. The display hash only covers the first and last words, so it can't tell.
+        public boolean describes(Message m) {
+            return Objects.equals(messageID, m.getMessageID()) && Objects.equals(recipient, m.getRecipient())
+                    && Objects.equals(messageText, m.getMessageText());
+        }
+
+        // Copy the record's flags onto the message, exactly: getFlag answers as it did when written
+        public void applyFlags(Message m) {
+            m.restoreState(lifecycleState());
+        }
+
+        // The record's flags as MessageLifecycle state bits
+        int lifecycleState() {
+            int state = 0;
+            if ((flags & FLAG_SENT) != 0) state |= MessageLifecycle.SENT;
+            if ((flags & FLAG_RECEIVED) != 0) state |= MessageLifecycle.RECEIVED;
+            if ((flags & FLAG_READ) != 0) state |= MessageLifecycle.READ;
+            if ((flags & FLAG_SET) != 0) state |= MessageLifecycle.FLAG_SET;
+            return state;
+        }
+
+        // Whether both records were written for the same message, in the sense of describes
+        boolean sameMessage(Record other) {
+            return Objects.equals(messageID, other.messageID) && Objects.equals(recipient, other.recipient)
+                    && Objects.equals(messageText, other.messageText);
+        }
+
+        // The same message under another op and flags
+        Record with(byte op, byte flags) {
+            return new Record(op, flags, messageID, recipient, messageText, messageHash);
+        }
+
+        // Rebuild the message this record describes
+        public Message toMessage() {
+            Message m = new Message(messageID, recipient, messageText);
+            m.restoreState(lifecycleState());
+            return m;
+        }
+    }
+
+    // Encode a message as one length-prefixed record, ready for writing
+    public static ByteBuffer encode(byte op, Message m) {
+        return encode(op, flagsOf(m), m.getMessageID(), m.getRecipient(), m.getMessageText(), m.getMessageHash());
+    }
+
+    public static ByteBuffer encode(Record r) {
+        return encode(r.op, r.flags, r.messageID, r.recipient, r.messageText, r.messageHash);
+    }
+
+    private static ByteBuffer encode(byte op, byte flags, String messageID, String messageRecipient, String messageText,
+                                     String messageHash) {
+        byte[] id = bytes(messageID);
+        byte[] recipient = bytes(messageRecipient);
+        byte[] text = bytes(messageText);
+        byte[] hash = bytes(messageHash);
+        int body = 2 + sizeOf(id) + sizeOf(recipient) + sizeOf(text) + sizeOf(hash);
+        ByteBuffer buf = ByteBuffer.allocate(4 + body + 4);
+        buf.putInt(body);
+        buf.put(op);
+        buf.put(flags);
+        put(buf, id);
+        put(buf, recipient);
+        put(buf, text);
+        put(buf, hash);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, body);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    // Decode the record at the buffer's position and advance past it.
+    // Returns null, leaving the position unchanged, if the record is truncated or corrupt.
+    public static Record decode(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < MIN_RECORD) {
+            return null;
+        }
+        int body = buf.getInt(start);
+        if (body < MIN_RECORD - 8 || body > buf.remaining() - 8) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer bodyView = buf.duplicate();
+        bodyView.position(start + 4).limit(start + 4 + body);
+        crc.update(bodyView);
+        if ((int) crc.getValue() != buf.getInt(start + 4 + body)) {
+            return null;
+        }
+        buf.position(start + 4);
+        byte op = buf.get();
+        byte flags = buf.get();
+        String id = getString(buf);
+        String recipient = getString(buf);
+        String text = getString(buf);
+        String hash = getString(buf);
+        buf.position(start + 4 + body + 4);
+        return new Record(op, flags, id, recipient, text, hash);
+    }
+
+    static byte flagsOf(Message m) {
+        byte flags = 0;
+        if (m.isSent()) flags |= FLAG_SENT;
+        if (m.isReceived()) flags |= FLAG_RECEIVED;
+        if (m.isRead()) flags |= FLAG_READ;
+        if ((m.state() & MessageLifecycle.FLAG_SET) != 0) flags |= FLAG_SET;
+        return flags;
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] b = new byte[len];
+            buf.duplicate().get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void put(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sent messages grouped into one conversation per recipient, each in time order.
+//
+// Every message gets a timestamp the first time it is sent: microseconds since the epoch,
+// strictly increasing across the process, so no two messages share one and sort order is
+// send order even within a millisecond. Each conversation is a skip list keyed by
+// timestamp, so the last N messages to a recipient, or those between two times, cost
+// O(log n + k). A skip list over every conversation serves "recently sent" the same way.
+//
+// Timestamps are not written to the message log, so replayed messages are stamped as they
+// are replayed.
+public class MessageConversations implements MessageStore.Listener {
+    private static final AtomicLong lastTimestamp = new AtomicLong();
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> byRecipient = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Message> all = new ConcurrentSkipListMap<>();
+
+    // Index everything already in the store, then follow its changes
+    public void attach(MessageStore store) {
+        store.addListener(this);
+        for (Message m : store.snapshot()) {
+            added(m);
+        }
+    }
+
+    @Override
+    public void added(Message m) {
+        String recipient = m.getRecipient();
+        if (recipient == null) {
+            return;
+        }
+        long timestamp = m.stampTimestamp(nextTimestamp());
+        // Inside compute, so a conversation emptied at the same moment can't swallow the add
+        byRecipient.compute(recipient, (r, conversation) -> {
+            if (conversation == null) {
+                conversation = new ConcurrentSkipListMap<>();
+            }
+            conversation.put(timestamp, m);
+            return conversation;
+        });
+        all.put(timestamp, m);
+    }
+
+    @Override
+    public void removed(Message m) {
+        String recipient = m.getRecipient();
+        if (recipient == null) {
+            return;
+        }
+        long timestamp = m.getTimestamp();
+        byRecipient.computeIfPresent(recipient, (r, conversation) -> {
+            conversation.remove(timestamp, m);
+            return conversation.isEmpty() ? null : conversation;
+        });
+        all.remove(timestamp, m);
+    }
+
+    // The last n messages sent to the recipient, oldest first
+    public List<Message> last(String recipient, int n) {
+        NavigableMap<Long, Message> conversation = recipient != null ? byRecipient.get(recipient) : null;
+        return conversation != null ? lastOf(conversation, n) : new ArrayList<>();
+    }
+
+    // Messages sent to the recipient with timestamps from..to inclusive (microseconds), oldest first
+    public List<Message> between(String recipient, long fromMicros, long toMicros) {
+        NavigableMap<Long, Message> conversation = recipient != null ? byRecipient.get(recipient) : null;
+        if (conversation == null || fromMicros > toMicros) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(conversation.subMap(fromMicros, true, toMicros, true).values());
+    }
+
+    // Every message sent to the recipient, oldest first
+    public List<Message> all(String recipient) {
+        NavigableMap<Long, Message> conversation = recipient != null ? byRecipient.get(recipient) : null;
+        return conversation != null ? new ArrayList<>(conversation.values()) : new ArrayList<>();
+    }
+
+    // The last n messages sent to anyone, oldest first
+    public List<Message> recent(int n) {
+        return lastOf(all, n);
+    }
+
+    public boolean contains(String recipient) {
+        return recipient != null && byRecipient.containsKey(recipient);
+    }
+
+    // Recipients with at least one sent message
+    public Collection<String> recipients() {
+        return byRecipient.keySet();
+    }
+
+    public int conversationCount() {
+        return byRecipient.size();
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+    // A fresh timestamp: the current time in microseconds, or one past the last one handed out
+    static long nextTimestamp() {
+        long now = System.currentTimeMillis() * 1000;
+        return lastTimestamp.accumulateAndGet(now, (last, t) -> Math.max(last + 1, t));
+    }
+
+    private static List<Message> lastOf(NavigableMap<Long, Message> conversation, int n) {
+        List<Message> result = new ArrayList<>(Math.max(0, Math.min(n, 64)));
+        Iterator<Message> newestFirst = conversation.descendingMap().values().iterator();
+        while (result.size() < n && newestFirst.hasNext()) {
+            result.add(newestFirst.next());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
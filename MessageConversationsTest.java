@@ -0,0 +1,151 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageConversationsTest {
+
+    private MessageStore store;
+    private MessageConversations conversations;
+
+    @Before
+    public void setUp() {
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+        store = new MessageStore();
+        conversations = new MessageConversations();
+        conversations.attach(store);
+    }
+
+    @After
+    public void tearDown() {
+        Message.sentMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    @Test
+    public void testTimestampsAreStrictlyIncreasing() {
+        long previous = 0;
+        for (int i = 0; i < 10_000; i++) {
+            long t = MessageConversations.nextTimestamp();
+            assertTrue(t > previous);
+            previous = t;
+        }
+        // Microseconds, close to the wall clock
+        assertTrue(Math.abs(previous / 1000 - System.currentTimeMillis()) < 60_000);
+    }
+
+    @Test
+    public void testRacingStampsAgreeOnOneTimestamp() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int round = 0; round < 200; round++) {
+            Message m = new Message("MSG101", "+27821234567", "Hi");
+            List<Future<Long>> stamps = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long candidate = t + 1;
+                stamps.add(pool.submit(() -> m.stampTimestamp(candidate)));
+            }
+            long first = stamps.get(0).get();
+            for (Future<Long> f : stamps) {
+                assertEquals(first, (long) f.get());
+            }
+            assertEquals(first, m.getTimestamp());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testLastNPerRecipientInTimeOrder() {
+        List<Message> toKim = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Message m = add("MSG1" + i, "+27821111111");
+            toKim.add(m);
+            add("MSG2" + i, "+27822222222");
+        }
+        assertEquals(toKim.subList(7, 10), conversations.last("+27821111111", 3));
+        assertEquals(toKim, conversations.last("+27821111111", 100));
+        assertTrue(conversations.last("+27829999999", 3).isEmpty());
+        assertEquals(2, conversations.conversationCount());
+        assertEquals("MSG29", conversations.recent(1).get(0).getMessageID());
+        assertTrue(toKim.get(0).getTimestamp() < toKim.get(1).getTimestamp());
+    }
+
+    @Test
+    public void testBetweenIsInclusive() {
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            sent.add(add("MSG10" + i, "+27821111111"));
+        }
+        long from = sent.get(1).getTimestamp();
+        long to = sent.get(3).getTimestamp();
+        assertEquals(sent.subList(1, 4), conversations.between("+27821111111", from, to));
+        assertTrue(conversations.between("+27821111111", to, from).isEmpty());
+    }
+
+    @Test
+    public void testRemovedMessagesLeaveTheirConversation() {
+        Message a = add("MSG101", "+27821111111");
+        Message b = add("MSG102", "+27821111111");
+        long stamped = a.getTimestamp();
+        store.remove(a);
+        assertEquals(List.of(b), conversations.all("+27821111111"));
+        store.remove(b);
+        assertFalse(conversations.contains("+27821111111"));
+        assertEquals(0, conversations.size());
+
+        // Sending it again keeps its first timestamp
+        store.add(a);
+        assertEquals(stamped, a.getTimestamp());
+        assertEquals(List.of(a), conversations.all("+27821111111"));
+    }
+
+    @Test
+    public void testConcurrentSendsAllLand() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    add("MSG" + thread + i, "+2782000000" + (i % 5));
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        assertEquals(4000, conversations.size());
+        int total = 0;
+        for (String r : conversations.recipients()) {
+            List<Message> c = conversations.all(r);
+            for (int i = 1; i < c.size(); i++) {
+                assertTrue(c.get(i - 1).getTimestamp() < c.get(i).getTimestamp());
+            }
+            total += c.size();
+        }
+        assertEquals(4000, total);
+    }
+
+    @Test
+    public void testRecipientSearchesUseConversations() {
+        Message m = new Message("MSG101", "+27821111111", "Hello there");
+        m.sentMessage();
+        Message.sentMessages.remove(m);
+        Message.sentMessages.add(m);
+        assertEquals(List.of("Hello there"), Message.searchMessagesByRecipient("+27821111111"));
+        assertEquals(List.of("Hello there"), Message.searchRecentMessagesToRecipient("+27821111111", 5));
+    }
+
+    private Message add(String id, String recipient) {
+        Message m = new Message(id, recipient, "text " + id);
+        store.add(m);
+        return m;
+    }
+}
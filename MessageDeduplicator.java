@@ -0,0 +1,344 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Catches a message being sent again within a time window.
+//
+// Two sends are the same if they have the same message hash (ID prefix, recipient, first and
+// last word) and the same full text, compared as a 64-bit fingerprint; together that is a
+// 128-bit key. Keys live in an exact set: shards of open-addressed long arrays holding the
+// key and the time it was sent, so recording a send allocates nothing. Entries older than
+// the window are reused in place and dropped when a shard grows.
+//
+// A Bloom filter sits in front of the set. A send the filter has never seen, which is almost
+// every send, goes straight into the first free slot without comparing against the entries
+// in its probe run. The filter has two generations, each covering one window, so it forgets
+// old keys without deletes: a key recorded in the last window is always in one of them.
+// Filter bits for a key are only set under its shard's lock, and re-checked there, so two
+// threads sending the same message at once still see each other.
+//
+// forget() takes back a send that did not go through by marking its entry expired; the
+// filter bits stay set, so the next send of that key compares and reuses the slot.
+public class MessageDeduplicator {
+    public static final long DEFAULT_WINDOW_MILLIS = 10 * 60_000L;
+    public static final int DEFAULT_EXPECTED_PER_WINDOW = 1 << 20;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    private static final int SHARDS = 64;
+    private static final int INITIAL_SHARD_CAPACITY = 256;
+
+    // One lock's worth of the exact set: [k1, k2, sentAt] per slot, linear probing
+    private static final class Shard {
+        long[] slots = new long[INITIAL_SHARD_CAPACITY * 3];
+        // Slots holding a key, live or expired
+        int used;
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private final int bloomBits;
+    private final int bloomHashes;
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+    private volatile long generationStart;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder bloomNegatives = new LongAdder();
+    private final LongAdder bloomFalsePositives = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+
+    public MessageDeduplicator() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_EXPECTED_PER_WINDOW, DEFAULT_FALSE_POSITIVE_RATE, System::currentTimeMillis);
+    }
+
+    // The filter is sized for expectedPerWindow sends per window at the given false positive
+    // rate; more sends only raise the rate. The clock returns milliseconds; tests pass their own.
+    public MessageDeduplicator(long windowMillis, int expectedPerWindow, double falsePositiveRate, LongSupplier clock) {
+        if (windowMillis < 1 || expectedPerWindow < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("window and expected count must be positive, rate between 0 and 1");
+        }
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedPerWindow * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.bloomBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        this.bloomHashes = Math.max(1, (int) Math.round((double) bloomBits / expectedPerWindow * ln2));
+        this.current = new AtomicLongArray((bloomBits + 63) >>> 6);
+        this.previous = new AtomicLongArray((bloomBits + 63) >>> 6);
+        this.generationStart = clock.getAsLong();
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    // Record the send; false if the same message was already sent within the window
+    public boolean firstSend(Message m) {
+        return firstSend(m.getMessageHash64(), fingerprint(m.getMessageText()));
+    }
+
+    // The same, for a message hash (as from Message.getMessageHash64) and text fingerprint
+    public boolean firstSend(long hash64, long textFingerprint) {
+        checks.increment();
+        long now = clock.getAsLong();
+        rotateIfDue(now);
+        long k1 = hash64;
+        long k2 = secondKey(hash64, textFingerprint);
+        long h = keyHash(k1, k2);
+        if (!mightContain(h)) {
+            bloomNegatives.increment();
+        }
+        Shard shard = shards[(int) (h >>> 58) & (SHARDS - 1)];
+        boolean first;
+        synchronized (shard) {
+            // Checked again under the lock: another thread may have just recorded this key
+            boolean seen = mightContain(h);
+            first = record(shard, k1, k2, now, seen);
+            if (first && seen) {
+                bloomFalsePositives.increment();
+            }
+            if (first) {
+                setBits(current, h);
+            }
+        }
+        if (!first) {
+            duplicates.increment();
+        }
+        return first;
+    }
+
+    // Take back a send recorded by firstSend that was never delivered, so sending it again is
+    // not a duplicate; false if no live entry for it was found
+    public boolean forget(Message m) {
+        return forget(m.getMessageHash64(), fingerprint(m.getMessageText()));
+    }
+
+    public boolean forget(long hash64, long textFingerprint) {
+        long now = clock.getAsLong();
+        long k1 = hash64;
+        long k2 = secondKey(hash64, textFingerprint);
+        Shard shard = shards[(int) (keyHash(k1, k2) >>> 58) & (SHARDS - 1)];
+        synchronized (shard) {
+            long[] slots = shard.slots;
+            int mask = slots.length / 3 - 1;
+            for (int i = (int) (k1 ^ (k1 >>> 32) ^ k2) & mask; ; i = (i + 1) & mask) {
+                int at = i * 3;
+                long a = slots[at];
+                long b = slots[at + 1];
+                if (a == 0 && b == 0) {
+                    return false;
+                }
+                if (a == k1 && b == k2 && now - slots[at + 2] < windowMillis) {
+                    // Expired, not emptied: an empty slot would cut later keys off their probe run
+                    slots[at + 2] = now - windowMillis;
+                    return true;
+                }
+            }
+        }
+    }
+
+    // 64-bit fingerprint of the full text, independent of the message hash
+    public static long fingerprint(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long h = 0x84222325cbf29ce4L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h ^ text.length());
+    }
+
+    public long checkCount() {
+        return checks.sum();
+    }
+
+    // Sends caught as duplicates
+    public long duplicateCount() {
+        return duplicates.sum();
+    }
+
+    // Sends the filter had never seen, so no comparisons were needed
+    public long bloomNegativeCount() {
+        return bloomNegatives.sum();
+    }
+
+    // Sends the filter thought it had seen that turned out to be new
+    public long bloomFalsePositiveCount() {
+        return bloomFalsePositives.sum();
+    }
+
+    public long rotationCount() {
+        return rotations.sum();
+    }
+
+    // Keys held in the exact set, including expired ones not yet dropped
+    public int size() {
+        int n = 0;
+        for (Shard s : shards) {
+            synchronized (s) {
+                n += s.used;
+            }
+        }
+        return n;
+    }
+
+    int bloomBits() {
+        return bloomBits;
+    }
+
+    int bloomHashes() {
+        return bloomHashes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("checks=%d duplicates=%d bloomNegatives=%d bloomFalsePositives=%d size=%d",
+                checkCount(), duplicateCount(), bloomNegativeCount(), bloomFalsePositiveCount(), size());
+    }
+
+    // Insert unless a live entry for the key exists; true if inserted. With known false the
+    // key can't be in the set, so the first reusable slot is taken without comparing keys.
+    private boolean record(Shard shard, long k1, long k2, long now, boolean known) {
+        long[] slots = shard.slots;
+        int capacity = slots.length / 3;
+        int mask = capacity - 1;
+        int reusable = -1;
+        for (int i = (int) (k1 ^ (k1 >>> 32) ^ k2) & mask; ; i = (i + 1) & mask) {
+            int at = i * 3;
+            long a = slots[at];
+            long b = slots[at + 1];
+            if (a == 0 && b == 0) {
+                if (reusable < 0) {
+                    reusable = at;
+                    shard.used++;
+                }
+                break;
+            }
+            boolean expired = now - slots[at + 2] >= windowMillis;
+            if (!known) {
+                if (expired) {
+                    reusable = at;
+                    break;
+                }
+                continue;
+            }
+            if (a == k1 && b == k2) {
+                if (!expired) {
+                    return false;
+                }
+                reusable = at;
+                break;
+            }
+            if (expired && reusable < 0) {
+                reusable = at;
+            }
+        }
+        slots[reusable] = k1;
+        slots[reusable + 1] = k2;
+        slots[reusable + 2] = now;
+        if (shard.used * 2 > capacity) {
+            rehash(shard, now);
+        }
+        return true;
+    }
+
+    // Drop expired entries, and double the table if it is still over a quarter full
+    private void rehash(Shard shard, long now) {
+        long[] old = shard.slots;
+        int live = 0;
+        for (int at = 0; at < old.length; at += 3) {
+            if ((old[at] != 0 || old[at + 1] != 0) && now - old[at + 2] < windowMillis) {
+                live++;
+            }
+        }
+        int capacity = old.length / 3;
+        if (live * 4 > capacity) {
+            capacity *= 2;
+        }
+        long[] slots = new long[capacity * 3];
+        int mask = capacity - 1;
+        for (int at = 0; at < old.length; at += 3) {
+            long k1 = old[at];
+            long k2 = old[at + 1];
+            if ((k1 == 0 && k2 == 0) || now - old[at + 2] >= windowMillis) {
+                continue;
+            }
+            int i = (int) (k1 ^ (k1 >>> 32) ^ k2) & mask;
+            while (slots[i * 3] != 0 || slots[i * 3 + 1] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i * 3] = k1;
+            slots[i * 3 + 1] = k2;
+            slots[i * 3 + 2] = old[at + 2];
+        }
+        shard.slots = slots;
+        shard.used = live;
+    }
+
+    private boolean mightContain(long h) {
+        return hasBits(current, h) || hasBits(previous, h);
+    }
+
+    // Start a new filter generation once a window has passed; the oldest is forgotten
+    private void rotateIfDue(long now) {
+        if (now - generationStart < windowMillis) {
+            return;
+        }
+        synchronized (this) {
+            if (now - generationStart < windowMillis) {
+                return;
+            }
+            previous = current;
+            current = new AtomicLongArray(previous.length());
+            generationStart = now;
+            rotations.increment();
+        }
+    }
+
+    // Double hashing: bit i is h1 + i * h2, from the two halves of the mixed key
+    private boolean hasBits(AtomicLongArray bits, long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bloomBits);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBits(AtomicLongArray bits, long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bloomBits);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long w;
+            while (((w = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, w, w | mask)) {
+                // Lost a race with another bit in the same word; retry
+            }
+        }
+    }
+
+    // All zeros marks an empty slot, so that key is stored with a second half of 1
+    private static long secondKey(long k1, long k2) {
+        return k1 == 0 && k2 == 0 ? 1 : k2;
+    }
+
+    private static long keyHash(long k1, long k2) {
+        return mix(k1 ^ Long.rotateLeft(k2, 29) ^ 0x9e3779b97f4a7c15L);
+    }
+
+    // Murmur3's 64-bit finaliser
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
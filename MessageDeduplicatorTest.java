@@ -0,0 +1,170 @@
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageDeduplicatorTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @After
+    public void tearDown() {
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    private MessageDeduplicator deduplicator(long windowMillis, int expected) {
+        return new MessageDeduplicator(windowMillis, expected, 0.01, now::get);
+    }
+
+    @Test
+    public void testRepeatWithinWindowIsDuplicate() {
+        MessageDeduplicator dedup = deduplicator(1000, 1000);
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        assertTrue(dedup.firstSend(m));
+        assertFalse(dedup.firstSend(m));
+        assertFalse(dedup.firstSend(new Message("MSG101", "+27821234567", "Did you get the cake?")));
+        now.addAndGet(999);
+        assertFalse(dedup.firstSend(m));
+        assertEquals(4, dedup.checkCount());
+        assertEquals(3, dedup.duplicateCount());
+        assertEquals(1, dedup.size());
+    }
+
+    @Test
+    public void testForgottenSendIsNew() {
+        MessageDeduplicator dedup = deduplicator(1000, 1000);
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        assertFalse(dedup.forget(m));
+        assertTrue(dedup.firstSend(m));
+        assertTrue(dedup.forget(m));
+        assertFalse(dedup.forget(m));
+        // The slot is reused rather than a second one taken
+        assertTrue(dedup.firstSend(m));
+        assertFalse(dedup.firstSend(m));
+        assertEquals(1, dedup.size());
+    }
+
+    @Test
+    public void testRepeatAfterWindowIsNew() {
+        MessageDeduplicator dedup = deduplicator(1000, 1000);
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        assertTrue(dedup.firstSend(m));
+        now.addAndGet(1000);
+        assertTrue(dedup.firstSend(m));
+        assertFalse(dedup.firstSend(m));
+        // The expired slot was reused
+        assertEquals(1, dedup.size());
+    }
+
+    @Test
+    public void testSameHashDifferentTextIsNew() {
+        MessageDeduplicator dedup = deduplicator(1000, 1000);
+        Message a = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message b = new Message("MSG101", "+27821234567", "Did you get the other cake?");
+        assertEquals(a.getMessageHash64(), b.getMessageHash64());
+        assertTrue(dedup.firstSend(a));
+        assertTrue(dedup.firstSend(b));
+        assertFalse(dedup.firstSend(b));
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(MessageDeduplicator.fingerprint("hello"), MessageDeduplicator.fingerprint(new String("hello")));
+        assertNotEquals(MessageDeduplicator.fingerprint("hello"), MessageDeduplicator.fingerprint("hellp"));
+        assertNotEquals(MessageDeduplicator.fingerprint("ab"), MessageDeduplicator.fingerprint("ba"));
+        assertEquals(0, MessageDeduplicator.fingerprint(null));
+    }
+
+    @Test
+    public void testManyKeysGrowAndExpire() {
+        MessageDeduplicator dedup = deduplicator(1000, 10_000);
+        for (long i = 1; i <= 50_000; i++) {
+            assertTrue(dedup.firstSend(i, i * 31));
+        }
+        for (long i = 1; i <= 50_000; i++) {
+            assertFalse(dedup.firstSend(i, i * 31));
+        }
+        assertEquals(50_000, dedup.duplicateCount());
+        // Past the window, growing a shard drops what expired
+        now.addAndGet(1000);
+        for (long i = 50_001; i <= 100_000; i++) {
+            assertTrue(dedup.firstSend(i, i * 31));
+        }
+        assertTrue(dedup.size() < 100_000);
+        assertTrue(dedup.firstSend(1, 31));
+    }
+
+    @Test
+    public void testBloomFilterSkipsMostChecks() {
+        MessageDeduplicator dedup = deduplicator(60_000, 10_000);
+        for (long i = 1; i <= 10_000; i++) {
+            dedup.firstSend(i, ~i);
+        }
+        // Sized for 10k sends at 1%, so nearly all were filter negatives
+        assertTrue(dedup.bloomNegativeCount() > 9_700);
+        assertEquals(10_000, dedup.bloomNegativeCount() + dedup.bloomFalsePositiveCount());
+        assertEquals(7, dedup.bloomHashes());
+        assertTrue(dedup.bloomBits() > 95_000 && dedup.bloomBits() < 96_000);
+    }
+
+    @Test
+    public void testRotationKeepsLastWindow() {
+        MessageDeduplicator dedup = deduplicator(1000, 1000);
+        assertTrue(dedup.firstSend(1, 1));
+        now.addAndGet(600);
+        assertTrue(dedup.firstSend(2, 2));
+        now.addAndGet(600);
+        // Rotated: key 1 has expired, key 2 is still known from the previous generation
+        assertTrue(dedup.firstSend(3, 3));
+        assertEquals(1, dedup.rotationCount());
+        assertFalse(dedup.firstSend(2, 2));
+        assertTrue(dedup.firstSend(1, 1));
+        now.addAndGet(1000);
+        assertTrue(dedup.firstSend(2, 2));
+        assertEquals(2, dedup.rotationCount());
+    }
+
+    @Test
+    public void testConcurrentIdenticalSendsHaveOneFirst() throws Exception {
+        MessageDeduplicator dedup = deduplicator(60_000, 100_000);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            AtomicInteger firsts = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (long i = 1; i <= 5_000; i++) {
+                        if (dedup.firstSend(i, i)) {
+                            firsts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            assertEquals(5_000, firsts.get());
+            assertEquals(5_000L * (threads - 1), dedup.duplicateCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBadRate() {
+        new MessageDeduplicator(1000, 1000, 1.5, now::get);
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends messages through a DeliveryTransport instead of only recording them, and applies
+// the receipts that come back.
+//
+// A message is marked sent and added to sentMessages as it is handed to the gateway, as
+// sentMessage() does locally, so a receipt can never arrive before the message it is for.
+// If the gateway refuses it, it moves to disregardedMessages with the gateway's reason.
+// Invalid messages never reach the gateway. Receipts come back matched to the messages sent
+// and are applied a batch at a time, setting the received and read flags with one CAS each.
+public class MessageDelivery {
+    public static final String SENT = "Message sent";
+    public static final String FAILED = "Message delivery failed";
+
+    private final DeliveryTransport transport;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder receiptsApplied = new LongAdder();
+    private final LongAdder receiptsIgnored = new LongAdder();
+
+    // Takes over the transport's receipt listener
+    public MessageDelivery(DeliveryTransport transport) {
+        this.transport = transport;
+        transport.setReceiptListener(this::applyReceipts);
+    }
+
+    // Completes with SENT once the gateway accepts, FAILED if it refuses, or sentMessage()'s
+    // disregarded text for invalid data
+    public CompletableFuture<String> send(Message m) {
+        if (!m.canSend()) {
+            return CompletableFuture.completedFuture(m.sentMessage());
+        }
+        m.markSent(true);
+        Message.sentMessages.add(m);
+        return transport.send(m).handle((v, error) -> {
+            if (error == null) {
+                sent.increment();
+                return SENT;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            Message.sentMessages.remove(m);
+            m.markSent(false);
+            m.setDisregardReason(cause.getMessage());
+            Message.disregardedMessages.add(m);
+            failed.increment();
+            return FAILED;
+        });
+    }
+
+    // For MessageOutbox: waits for the gateway and throws if it refuses or times out, leaving
+    // retries and disregarding to the outbox. The message is in sentMessages while the gateway
+    // has it, so its receipts match, and is taken back out if the attempt fails.
+    public MessageOutbox.Sender outboxSender(long timeoutMillis) {
+        MessageOutbox.Sender blocking = transport.blockingSender(timeoutMillis);
+        return m -> {
+            m.markSent(true);
+            Message.sentMessages.add(m);
+            try {
+                blocking.send(m);
+            } catch (Exception e) {
+                Message.sentMessages.remove(m);
+                m.markSent(false);
+                failed.increment();
+                throw e;
+            }
+            sent.increment();
+        };
+    }
+
+    public DeliveryTransport transport() {
+        return transport;
+    }
+
+    public long sentCount() {
+        return sent.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    // Receipts that moved a message forward
+    public long receiptsApplied() {
+        return receiptsApplied.sum();
+    }
+
+    // Repeated receipts, and receipts for messages no longer in sentMessages
+    public long receiptsIgnored() {
+        return receiptsIgnored.sum();
+    }
+
+    private void applyReceipts(MessageLifecycle.Event event, List<Message> messages) {
+        MessageLifecycle.Result r = Message.applyDeliveryEventsTo(event, messages);
+        receiptsApplied.add(r.applied());
+        receiptsIgnored.add(messages.size() - r.applied());
+    }
+}
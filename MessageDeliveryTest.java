@@ -0,0 +1,81 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.concurrent.TimeUnit;
+
+public class MessageDeliveryTest {
+
+    private LocalGateway gateway;
+
+    @Before
+    public void setUp() {
+        clearStores();
+    }
+
+    @After
+    public void tearDown() {
+        if (gateway != null) {
+            gateway.close();
+        }
+        clearStores();
+    }
+
+    @Test
+    public void testReceiptsSetTheFlags() throws Exception {
+        gateway = new LocalGateway(0, 0, 0, 10, 1);
+        MessageDelivery delivery = new MessageDelivery(gateway.connect());
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        assertEquals(MessageDelivery.SENT, delivery.send(m).get(5, TimeUnit.SECONDS));
+        assertTrue(m.isSent());
+        assertTrue(Message.sentMessages.contains(m));
+
+        // The count is added after the flags are set, so wait for it rather than for the flag
+        LocalGatewayTest.waitFor(() -> delivery.receiptsApplied() == 2);
+        assertTrue(m.isReceived() && m.isRead());
+        assertEquals("Flag: Sent Received Read", m.displayFlags());
+    }
+
+    @Test
+    public void testRefusedMessagesAreDisregarded() throws Exception {
+        gateway = new LocalGateway(0, 0, 1, 0, 0);
+        MessageDelivery delivery = new MessageDelivery(gateway.connect());
+        Message m = new Message("MSG101", "+27821234567", "Hi");
+        assertEquals(MessageDelivery.FAILED, delivery.send(m).get(5, TimeUnit.SECONDS));
+        assertFalse(m.isSent());
+        assertFalse(Message.sentMessages.contains(m));
+        assertTrue(Message.disregardedMessages.contains(m));
+        assertTrue(m.getDisregardReason().endsWith(LocalGateway.TEMPORARY_FAILURE));
+    }
+
+    @Test
+    public void testInvalidMessagesNeverReachTheGateway() throws Exception {
+        gateway = new LocalGateway();
+        MessageDelivery delivery = new MessageDelivery(gateway.connect());
+        assertEquals("Message disregarded due to invalid data",
+                delivery.send(new Message("MSG101", "0821234567", "Hi")).get(5, TimeUnit.SECONDS));
+        assertEquals(0, gateway.acceptedCount() + gateway.rejectedCount());
+    }
+
+    @Test
+    public void testServiceSendsThroughTheTransport() throws Exception {
+        gateway = new LocalGateway(0, 0, 0, 0, 0);
+        try (QuickChatService service = new QuickChatService();
+             PipelinedGatewayClient client = new PipelinedGatewayClient("127.0.0.1", gateway.listen(0))) {
+            service.useTransport(client);
+            Message m = service.createMessage("+27821234567", "Over the wire");
+            assertEquals(MessageDelivery.SENT, service.send(m).get(5, TimeUnit.SECONDS));
+            LocalGatewayTest.waitFor(m::isReceived);
+            assertFalse(m.isRead());
+            assertEquals(1, gateway.acceptedCount());
+        }
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Locale;
+
+// Builds the "XX:RECIPIENT.FIRSTLAST" message hash in one pass over the text, without
+// regex, split arrays or intermediate strings. Output matches the original
+//   (id.substring(0, 2) + ":" + recipient + "." + firstWord + lastWord).toUpperCase()
+// with words taken from text.trim().split("\\s+"), character for character.
+public final class MessageHashEngine {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Per-thread scratch buffer, grown as needed and reused across calls
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[128]);
+
+    private MessageHashEngine() {
+    }
+
+    // Display hash, e.g. "00:+27718693002.HITONIGHT"
+    public static String hash(String messageID, String recipient, String messageText) {
+        int len = build(messageID, recipient, messageText);
+        char[] buf = BUFFER.get();
+        if (len < 0) {
+            // Non-ASCII text or a locale with special casing rules: let String do the casing
+            return new String(buf, 0, -len).toUpperCase();
+        }
+        return new String(buf, 0, len);
+    }
+
+    // 64-bit FNV-1a of the display hash, for use as an index key; computed without building the String
+    public static long hash64(String messageID, String recipient, String messageText) {
+        int len = build(messageID, recipient, messageText);
+        char[] buf = BUFFER.get();
+        if (len < 0) {
+            return hash64(new String(buf, 0, -len).toUpperCase());
+        }
+        return fnv(buf, len);
+    }
+
+    // 64-bit FNV-1a of an existing display hash; equals hash64(id, recipient, text) for the same message
+    public static long hash64(String displayHash) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < displayHash.length(); i++) {
+            h = mix(h, displayHash.charAt(i));
+        }
+        return h;
+    }
+
+    // Fill the thread's buffer with the hash. Returns its length, already upper-cased, or
+    // minus its length if it still needs String.toUpperCase.
+    private static int build(String messageID, String recipient, String messageText) {
+        // Same NullPointerException the original threw
+        int idLen = messageID.length();
+        int textLen = messageText.length();
+
+        // String.trim bounds: strip chars <= ' ' from both ends
+        int start = 0, end = textLen;
+        while (start < end && messageText.charAt(start) <= ' ') start++;
+        while (end > start && messageText.charAt(end - 1) <= ' ') end--;
+
+        // First word runs to the first \s; last word starts after the last \s.
+        // A trimmed text never starts or ends with \s, so neither word is empty unless the text is.
+        int firstEnd = start;
+        while (firstEnd < end && !isRegexSpace(messageText.charAt(firstEnd))) firstEnd++;
+        int lastStart = end;
+        while (lastStart > firstEnd && !isRegexSpace(messageText.charAt(lastStart - 1))) lastStart--;
+        boolean singleWord = firstEnd == end;
+
+        String rcpt = String.valueOf(recipient);
+        int prefixLen = Math.min(2, idLen);
+        int firstLen = firstEnd - start;
+        int lastLen = singleWord ? firstLen : end - lastStart;
+        int total = prefixLen + 1 + rcpt.length() + 1 + firstLen + lastLen;
+
+        char[] buf = BUFFER.get();
+        if (buf.length < total) {
+            buf = new char[Math.max(total, buf.length * 2)];
+            BUFFER.set(buf);
+        }
+        int pos = 0;
+        messageID.getChars(0, prefixLen, buf, pos);
+        pos += prefixLen;
+        buf[pos++] = ':';
+        rcpt.getChars(0, rcpt.length(), buf, pos);
+        pos += rcpt.length();
+        buf[pos++] = '.';
+        messageText.getChars(start, firstEnd, buf, pos);
+        pos += firstLen;
+        if (singleWord) {
+            messageText.getChars(start, firstEnd, buf, pos);
+        } else {
+            messageText.getChars(lastStart, end, buf, pos);
+        }
+        pos += lastLen;
+
+        if (!asciiCasingSafe()) {
+            return -pos;
+        }
+        for (int i = 0; i < pos; i++) {
+            char c = buf[i];
+            if (c >= 0x80) {
+                return -pos;
+            }
+            if (c >= 'a' && c <= 'z') {
+                buf[i] = (char) (c - ('a' - 'A'));
+            }
+        }
+        return pos;
+    }
+
+    // The characters \s matches by default: [ \t\n\x0B\f\r]
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    // Turkish, Azeri and Lithuanian upper-case ASCII letters differently (e.g. 'i' -> dotted 'İ')
+    private static boolean asciiCasingSafe() {
+        String lang = Locale.getDefault().getLanguage();
+        return !("tr".equals(lang) || "az".equals(lang) || "lt".equals(lang));
+    }
+
+    private static long fnv(char[] buf, int len) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < len; i++) {
+            h = mix(h, buf[i]);
+        }
+        return h;
+    }
+
+    // Mix both bytes of the char so non-ASCII characters hash distinctly
+    private static long mix(long h, char c) {
+        h = (h ^ (c & 0xFF)) * FNV_PRIME;
+        return (h ^ (c >>> 8)) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageHashEngineTest {
+
+    // The original regex implementation the engine has to match
+    private static String reference(String messageID, String recipient, String messageText) {
+        String firstTwo = messageID.length() >= 2 ? messageID.substring(0, 2) : messageID;
+        String[] words = messageText.trim().split("\\s+");
+        String firstWord = words.length > 0 ? words[0] : "";
+        String lastWord = words.length > 1 ? words[words.length - 1] : firstWord;
+        return (firstTwo + ":" + recipient + "." + (firstWord + lastWord)).toUpperCase();
+    }
+
+    private static final String[] TEXTS = {
+            "Hi Mike, can you join us for dinner tonight",
+            "Hi",
+            "",
+            "   ",
+            "  padded   words  here ",
+            "tab\tseparated\nlines\r\nend",
+            "control\u0001inside word",
+            "\u0001leading control",
+            "vertical\u000Btab and\fform feed",
+            "non breaking space",
+            "Café crème brûlée",
+            "straße ende",
+            "emoji 😀 end"
+    };
+
+    @Test
+    public void testMatchesOriginalImplementation() {
+        String[] ids = {"MSG001", "M", "", "msg123"};
+        String[] recipients = {"+27718693002", "", null};
+        for (String id : ids) {
+            for (String recipient : recipients) {
+                for (String text : TEXTS) {
+                    assertEquals("text [" + text + "]", reference(id, recipient, text),
+                            MessageHashEngine.hash(id, recipient, text));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHash64MatchesDisplayHash() {
+        for (String text : TEXTS) {
+            String display = MessageHashEngine.hash("MSG001", "+27718693002", text);
+            assertEquals(MessageHashEngine.hash64(display), MessageHashEngine.hash64("MSG001", "+27718693002", text));
+        }
+        assertNotEquals(MessageHashEngine.hash64("MSG001", "+27718693002", "Hi there"),
+                MessageHashEngine.hash64("MSG001", "+27718693003", "Hi there"));
+    }
+
+    @Test
+    public void testLongTextGrowsBuffer() {
+        StringBuilder sb = new StringBuilder("start");
+        for (int i = 0; i < 500; i++) {
+            sb.append("middle").append(i);
+        }
+        sb.append(" finish");
+        assertEquals(reference("MSG001", "+27718693002", sb.toString()),
+                MessageHashEngine.hash("MSG001", "+27718693002", sb.toString()));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullTextStillFails() {
+        MessageHashEngine.hash("MSG001", "+27718693002", null);
+    }
+}
@@ -0,0 +1,12 @@
+// Source of message IDs. Implementations must be safe to call from many threads at once.
+public interface MessageIdGenerator {
+
+    // Next ID as a number; must not allocate
+    long nextValue();
+
+    // Next ID in its display form, e.g. "MSG123"
+    String nextId();
+
+    // Make sure every later ID is above value, e.g. past IDs restored from a message log
+    void advancePast(long value);
+}
@@ -0,0 +1,143 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class MessageIdGeneratorTest {
+
+    private static final int IDS_PER_THREAD = 250_000;
+
+    @Test
+    public void testStripedIdsAreUniqueAcrossAllCores() throws InterruptedException {
+        // Every core hammers the same generator at once
+        StripedMessageIdGenerator generator = new StripedMessageIdGenerator(1, 1024);
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long[][] results = new long[threads][IDS_PER_THREAD];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long[] out = results[t];
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = generator.nextValue();
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+
+        // IDs must be monotonic within a thread and unique overall
+        long[] all = new long[threads * IDS_PER_THREAD];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 1; i < IDS_PER_THREAD; i++) {
+                assertTrue(results[t][i] > results[t][i - 1]);
+            }
+            System.arraycopy(results[t], 0, all, t * IDS_PER_THREAD, IDS_PER_THREAD);
+        }
+        Arrays.sort(all);
+        for (int i = 1; i < all.length; i++) {
+            assertNotEquals("Duplicate ID " + all[i], all[i - 1], all[i]);
+        }
+    }
+
+    @Test
+    public void testCompatibleIdsPassCheckMessageID() {
+        // The first 900 MSG### IDs must all be distinct and valid
+        CompatibleMessageIdGenerator generator = new CompatibleMessageIdGenerator();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 900; i++) {
+            String id = generator.nextId();
+            assertTrue(new Message(id, "+27821234567", "Hi").checkMessageID());
+            assertTrue(seen.add(id));
+        }
+    }
+
+    @Test
+    public void testCompatibleIdsNeverRepeat() {
+        CompatibleMessageIdGenerator generator = new CompatibleMessageIdGenerator();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String id = generator.nextId();
+            assertEquals(0, ValidationEngine.checkMessageID(id));
+            assertTrue(id, seen.add(id));
+        }
+        assertTrue(seen.contains("MSG999") && seen.contains("MSG1000"));
+    }
+
+    @Test
+    public void testAdvancePast() {
+        CompatibleMessageIdGenerator compatible = new CompatibleMessageIdGenerator();
+        compatible.advancePast(5000);
+        assertEquals("MSG5001", compatible.nextId());
+        // Never moves backwards
+        compatible.advancePast(100);
+        assertEquals("MSG5002", compatible.nextId());
+
+        StripedMessageIdGenerator striped = new StripedMessageIdGenerator(100, 16);
+        assertEquals(100, striped.nextValue());
+        striped.advancePast(5000);
+        // The lease this thread held (101-111, up to the block boundary) was dropped
+        assertEquals(5001, striped.nextValue());
+    }
+
+    @Test
+    public void testStripedLeasesRunUpToEachBlockBoundary() {
+        // Blocks end on multiples of the block size; one thread sees them back to back
+        StripedMessageIdGenerator generator = new StripedMessageIdGenerator(5, 4);
+        for (long expected = 5; expected < 40; expected++) {
+            assertEquals(expected, generator.nextValue());
+        }
+    }
+
+    @Test
+    public void testStripedIdsAreValid() {
+        StripedMessageIdGenerator generator = new StripedMessageIdGenerator(1, 4);
+        assertEquals("MSG001", generator.nextId());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(0, ValidationEngine.checkMessageID(generator.nextId()));
+        }
+        assertEquals(0, ValidationEngine.checkMessageID(new StripedMessageIdGenerator().nextId()));
+    }
+
+    @Test
+    public void testStripedIdsOnShortLivedThreadsStayDense() throws InterruptedException {
+        // One ID per thread, as with a virtual thread per task, must not burn a block each
+        StripedMessageIdGenerator generator = new StripedMessageIdGenerator(100, 4096);
+        long[] max = new long[1];
+        for (int i = 0; i < 200; i++) {
+            Thread t = new Thread(() -> {
+                long v = generator.nextValue();
+                synchronized (max) {
+                    max[0] = Math.max(max[0], v);
+                }
+            });
+            t.start();
+            t.join();
+        }
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        assertTrue("highest " + max[0], max[0] < 100 + (long) stripes * 4096);
+    }
+
+    @Test
+    public void testGenerateMessageIDUsesConfiguredGenerator() {
+        MessageIdGenerator previous = Message.getIdGenerator();
+        try {
+            Message.setIdGenerator(new StripedMessageIdGenerator(5000, 16));
+            assertEquals("MSG5000", Message.generateMessageID());
+            assertEquals(0, ValidationEngine.checkMessageID(Message.generateMessageID()));
+        } finally {
+            Message.setIdGenerator(previous);
+        }
+    }
+}
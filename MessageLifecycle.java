@@ -0,0 +1,173 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+// Delivery lifecycle of a sent message, kept as bits in one int per message:
+//
+//   new --send--> SENT --receipt--> SENT|RECEIVED --read--> SENT|RECEIVED|READ
+//
+// Events only move a message forward. A read receipt for a message that was never reported
+// received also marks it received, since receipts can overtake each other; events for a
+// message that was never sent are rejected, and repeats are ignored. The plain setters on
+// Message still write any combination, as they always have.
+//
+// FLAG_SET records that a setter has run, which is what makes Message.getFlag render text
+// instead of returning "". Flag text is only built when something displays it.
+public final class MessageLifecycle {
+    public static final int SENT = 1;
+    public static final int RECEIVED = 2;
+    public static final int READ = 4;
+    public static final int FLAG_SET = 8;
+
+    public enum Event {
+        RECEIVED(MessageLifecycle.RECEIVED),
+        READ(MessageLifecycle.RECEIVED | MessageLifecycle.READ);
+
+        // Bits the event sets
+        final int bits;
+
+        Event(int bits) {
+            this.bits = bits;
+        }
+    }
+
+    // What happened to one event
+    public enum Outcome {
+        APPLIED, ALREADY_APPLIED, NOT_SENT
+    }
+
+    // Counts for one bulk call
+    public static final class Result {
+        private int applied;
+        private int alreadyApplied;
+        private int notSent;
+        private int unknown;
+
+        public int applied() {
+            return applied;
+        }
+
+        public int alreadyApplied() {
+            return alreadyApplied;
+        }
+
+        // Messages that were never sent, so the event is illegal for them
+        public int notSent() {
+            return notSent;
+        }
+
+        // IDs with no sent message
+        public int unknown() {
+            return unknown;
+        }
+
+        @Override
+        public String toString() {
+            return "applied=" + applied + " alreadyApplied=" + alreadyApplied + " notSent=" + notSent + " unknown=" + unknown;
+        }
+    }
+
+    private MessageLifecycle() {
+    }
+
+    // The state after the event, or the same state if the event changes nothing or is illegal
+    static int next(int state, Event event) {
+        if ((state & SENT) == 0) {
+            return state;
+        }
+        return state | event.bits | FLAG_SET;
+    }
+
+    // Apply one event to one message
+    public static Outcome apply(Message m, Event event) {
+        while (true) {
+            int state = m.state();
+            if ((state & SENT) == 0) {
+                return Outcome.NOT_SENT;
+            }
+            if ((state & event.bits) == event.bits) {
+                return Outcome.ALREADY_APPLIED;
+            }
+            if (m.compareAndSetState(state, next(state, event))) {
+                Message.stateChanged(m);
+                return Outcome.APPLIED;
+            }
+        }
+    }
+
+    // Apply the event to the sent message with each ID. IDs can repeat across messages, so
+    // each goes to the oldest message with that ID still waiting for this event, the order
+    // receipts normally arrive in.
+    public static Result apply(MessageStore store, Event event, Collection<String> messageIDs) {
+        Result result = new Result();
+        Predicate<Message> waiting = candidate -> (candidate.state() & event.bits) != event.bits;
+        for (String id : messageIDs) {
+            applyOne(store, event, waiting, id, result);
+        }
+        return result;
+    }
+
+    public static Result apply(MessageStore store, Event event, String... messageIDs) {
+        return apply(store, event, Arrays.asList(messageIDs));
+    }
+
+    // Apply the event to each of these messages the store still holds; the others count as unknown.
+    // Transports that know which message a receipt is for use this, so a reused ID cannot
+    // send the receipt to the wrong message.
+    public static Result applyAll(MessageStore store, Event event, Collection<Message> messages) {
+        Result result = new Result();
+        for (Message m : messages) {
+            if (!store.contains(m)) {
+                result.unknown++;
+                continue;
+            }
+            switch (apply(m, event)) {
+                case APPLIED:
+                    result.applied++;
+                    break;
+                case ALREADY_APPLIED:
+                    result.alreadyApplied++;
+                    break;
+                default:
+                    result.notSent++;
+            }
+        }
+        return result;
+    }
+
+    private static void applyOne(MessageStore store, Event event, Predicate<Message> waiting, String id, Result result) {
+        while (true) {
+            Message m = store.findByID(id, false, waiting);
+            if (m == null) {
+                if (store.findByID(id, false) != null) {
+                    result.alreadyApplied++;
+                } else {
+                    result.unknown++;
+                }
+                return;
+            }
+            switch (apply(m, event)) {
+                case APPLIED:
+                    result.applied++;
+                    return;
+                case ALREADY_APPLIED:
+                    // Another call applied it between the lookup and the CAS; this event is for
+                    // the next message still waiting, if there is one
+                    continue;
+                default:
+                    result.notSent++;
+                    return;
+            }
+        }
+    }
+
+    // The flag words for a state, as Message.displayFlags and getFlag show them
+    public static StringBuilder appendFlags(StringBuilder out, int state) {
+        int start = out.length();
+        if ((state & SENT) != 0) out.append("Sent");
+        if ((state & RECEIVED) != 0) out.append(out.length() > start ? " Received" : "Received");
+        if ((state & READ) != 0) out.append(out.length() > start ? " Read" : "Read");
+        if (out.length() == start) out.append("None");
+        return out;
+    }
+}
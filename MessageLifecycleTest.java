@@ -0,0 +1,148 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageLifecycleTest {
+
+    private MessageStore store;
+
+    @Before
+    public void setUp() {
+        store = new MessageStore();
+    }
+
+    @Test
+    public void testEventsOnlyMoveForward() {
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        assertEquals(MessageLifecycle.Outcome.NOT_SENT, MessageLifecycle.apply(m, MessageLifecycle.Event.RECEIVED));
+        assertEquals("", m.getFlag());
+
+        m.markSent(true);
+        // markSent leaves getFlag as "", the way sentMessage always has
+        assertEquals("", m.getFlag());
+        assertEquals(MessageLifecycle.Outcome.APPLIED, MessageLifecycle.apply(m, MessageLifecycle.Event.RECEIVED));
+        assertEquals(MessageLifecycle.Outcome.ALREADY_APPLIED, MessageLifecycle.apply(m, MessageLifecycle.Event.RECEIVED));
+        assertEquals("Sent Received", m.getFlag());
+        assertEquals(MessageLifecycle.Outcome.APPLIED, MessageLifecycle.apply(m, MessageLifecycle.Event.READ));
+        assertEquals("Flag: Sent Received Read", m.displayFlags());
+    }
+
+    @Test
+    public void testReadReceiptImpliesDelivery() {
+        Message m = new Message("MSG101", "+27821234567", "Hi");
+        m.setSent(true);
+        MessageLifecycle.apply(m, MessageLifecycle.Event.READ);
+        assertTrue(m.isReceived());
+        assertTrue(m.isRead());
+    }
+
+    @Test
+    public void testSettersStillWriteAnyCombination() {
+        Message m = new Message("MSG101", "+27821234567", "Hi");
+        m.setRead(true);
+        assertEquals("Read", m.getFlag());
+        m.setRead(false);
+        assertEquals("None", m.getFlag());
+        assertEquals("Flag: None", m.displayFlags());
+    }
+
+    @Test
+    public void testBulkReceiptsByID() {
+        Message first = sent("MSG101");
+        Message second = sent("MSG102");
+        // Same ID as the first: receipts go to the oldest message still waiting
+        Message reused = sent("MSG101");
+        Message notSent = new Message("MSG103", "+27821234567", "never sent");
+        store.add(notSent);
+
+        MessageLifecycle.Result r = MessageLifecycle.apply(store, MessageLifecycle.Event.RECEIVED,
+                Arrays.asList("MSG101", "MSG102", "MSG101", "MSG101", "MSG103", "MSG999"));
+        assertEquals(3, r.applied());
+        assertEquals(1, r.alreadyApplied());
+        assertEquals(1, r.notSent());
+        assertEquals(1, r.unknown());
+        assertTrue(first.isReceived() && second.isReceived() && reused.isReceived());
+        assertFalse(notSent.isReceived());
+
+        r = MessageLifecycle.apply(store, MessageLifecycle.Event.READ, "MSG102");
+        assertEquals(1, r.applied());
+        assertTrue(second.isRead());
+        assertFalse(first.isRead());
+    }
+
+    @Test
+    public void testConcurrentEventsAreAppliedOnce() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            messages.add(sent("ID" + i));
+            ids.add("ID" + i);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<MessageLifecycle.Result>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            MessageLifecycle.Event event = t % 2 == 0 ? MessageLifecycle.Event.RECEIVED : MessageLifecycle.Event.READ;
+            results.add(pool.submit(() -> MessageLifecycle.apply(store, event, ids)));
+        }
+        int applied = 0;
+        for (Future<MessageLifecycle.Result> f : results) {
+            applied += f.get().applied();
+        }
+        pool.shutdown();
+        for (Message m : messages) {
+            assertTrue(m.isRead() && m.isReceived() && m.isSent());
+        }
+        // Each message takes at least the read event, and the receipt only if it came first
+        assertTrue(applied >= 2000 && applied <= 4000);
+    }
+
+    @Test
+    public void testConcurrentReceiptsForARepeatedIDEachFindAMessage() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            messages.add(sent("MSG101"));
+        }
+        // One receipt per message, split across threads that race for the oldest waiting one
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("MSG101");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<MessageLifecycle.Result>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            results.add(pool.submit(() -> MessageLifecycle.apply(store, MessageLifecycle.Event.RECEIVED, ids)));
+        }
+        int applied = 0;
+        for (Future<MessageLifecycle.Result> f : results) {
+            applied += f.get().applied();
+        }
+        pool.shutdown();
+        assertEquals(400, applied);
+        for (Message m : messages) {
+            assertTrue(m.isReceived());
+        }
+    }
+
+    @Test
+    public void testCompactViewsFollowTheSameRules() {
+        CompactMessageStore compact = new CompactMessageStore();
+        Message view = compact.view(compact.add(new Message("MSG101", "+27821234567", "Hi")));
+        assertEquals(MessageLifecycle.Outcome.NOT_SENT, MessageLifecycle.apply(view, MessageLifecycle.Event.READ));
+        view.setSent(true);
+        assertEquals(MessageLifecycle.Outcome.APPLIED, MessageLifecycle.apply(view, MessageLifecycle.Event.READ));
+        assertEquals("Sent Received Read", compact.view(0).getFlag());
+    }
+
+    private Message sent(String id) {
+        Message m = new Message(id, "+27821234567", "text " + id);
+        m.markSent(true);
+        store.add(m);
+        return m;
+    }
+}
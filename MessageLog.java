@@ -0,0 +1,537 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Append-only write-ahead log of message store changes, written through a FileChannel.
+// Callers hand encoded records to a single writer thread, which writes everything queued
+// in one gathering write and fsyncs once per batch (group commit).
+public class MessageLog implements Closeable {
+
+    // How long a caller is willing to wait for its record to be durable
+    public enum Durability {
+        ASYNC,   // written to the OS page cache, never forced by this write
+        BATCHED, // forced to disk by the next group commit, at most batchInterval later; caller doesn't wait
+        SYNC     // caller waits until the record has been forced to disk
+    }
+
+    private static final int MAX_BATCH = 4096;
+
+    // Lets one thread pick the durability of the records it causes, e.g. around a single send
+    private static final ThreadLocal<Durability> OVERRIDE = new ThreadLocal<>();
+
+    private final Path file;
+    // Only the writer thread touches it once running; a checkpoint has the writer swap it
+    private FileChannel channel;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final long batchIntervalNanos;
+    private volatile Durability defaultDurability;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    private static final class Pending {
+        final ByteBuffer record;
+        final Durability durability;
+        final CompletableFuture<Void> done;
+        // Set instead of a record when a checkpoint is ready to replace the file
+        final Swap swap;
+
+        Pending(ByteBuffer record, Durability durability, CompletableFuture<Void> done) {
+            this(record, durability, done, null);
+        }
+
+        Pending(ByteBuffer record, Durability durability, CompletableFuture<Void> done, Swap swap) {
+            this.record = record;
+            this.durability = durability;
+            this.done = done;
+            this.swap = swap;
+        }
+    }
+
+    // A compacted copy of the log covering its first copyFrom bytes, waiting to replace it
+    private static final class Swap {
+        final Path tmp;
+        final FileChannel compacted;
+        final long copyFrom;
+
+        Swap(Path tmp, FileChannel compacted, long copyFrom) {
+            this.tmp = tmp;
+            this.compacted = compacted;
+            this.copyFrom = copyFrom;
+        }
+
+        void abandon() {
+            try {
+                compacted.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                // Only a leftover temporary file; the next checkpoint truncates it
+            }
+        }
+    }
+
+    // Marks the end of the queue when closing
+    private static final Pending POISON = new Pending(ByteBuffer.allocate(0), Durability.ASYNC, null);
+
+    // Open (or create) the log for appending. A torn record at the tail, left by a crash
+    // mid-write, is cut off so new records follow the last complete one.
+    public MessageLog(Path file, Durability defaultDurability, long batchIntervalMillis) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long valid = scan(channel, null);
+        channel.truncate(valid);
+        channel.position(valid);
+        this.defaultDurability = defaultDurability;
+        this.batchIntervalNanos = TimeUnit.MILLISECONDS.toNanos(batchIntervalMillis);
+        this.writer = new Thread(this::writeLoop, "message-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public MessageLog(Path file) throws IOException {
+        this(file, Durability.BATCHED, 5);
+    }
+
+    public void setDefaultDurability(Durability durability) {
+        this.defaultDurability = durability;
+    }
+
+    // Append one record. The future completes once the record is written (ASYNC, BATCHED)
+    // or written and forced to disk (SYNC).
+    public CompletableFuture<Void> append(byte op, Message m, Durability durability) {
+        if (closed) {
+            throw new IllegalStateException("Message log is closed");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Message log failed", failure);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(MessageCodec.encode(op, m), durability, done));
+        return done;
+    }
+
+    // Append using the calling thread's override, or the log's default durability.
+    // SYNC appends block until the record is on disk.
+    public void append(byte op, Message m) {
+        Durability durability = OVERRIDE.get() != null ? OVERRIDE.get() : defaultDurability;
+        CompletableFuture<Void> done = append(op, m, durability);
+        if (durability == Durability.SYNC) {
+            done.join();
+        }
+    }
+
+    // Run an action with every record it appends on this thread using the given durability
+    public static void withDurability(Durability durability, Runnable action) {
+        Durability previous = OVERRIDE.get();
+        OVERRIDE.set(durability);
+        try {
+            action.run();
+        } finally {
+            if (previous == null) {
+                OVERRIDE.remove();
+            } else {
+                OVERRIDE.set(previous);
+            }
+        }
+    }
+
+    // Record every add, remove and flag change on the store under the given add op
+    public MessageStore.Listener attach(MessageStore store, byte addOp) {
+        MessageStore.Listener listener = new MessageStore.Listener() {
+            @Override
+            public void added(Message m) {
+                append(addOp, m);
+            }
+
+            @Override
+            public void removed(Message m) {
+                append((byte) (addOp + MessageCodec.OP_REMOVED), m);
+            }
+
+            @Override
+            public void updated(Message m) {
+                append((byte) (addOp + MessageCodec.OP_UPDATED), m);
+            }
+        };
+        store.addListener(listener);
+        return listener;
+    }
+
+    // Group commit loop: drain everything queued, write it in one call, force once if needed
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        List<ByteBuffer> buffers = new ArrayList<>(MAX_BATCH);
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                Pending first = queue.poll(Math.max(1, batchIntervalNanos), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                boolean needsSync = false;
+                for (Pending p : batch) {
+                    if (p == POISON) {
+                        stopping = true;
+                        continue;
+                    }
+                    if (p.swap != null) {
+                        // Records queued before the checkpoint go to the old file, and are carried over
+                        write(buffers);
+                        buffers.clear();
+                        swap(p);
+                        continue;
+                    }
+                    buffers.add(p.record);
+                    needsSync |= p.durability == Durability.SYNC;
+                    unforced |= p.durability != Durability.ASYNC;
+                }
+                write(buffers);
+                long now = System.nanoTime();
+                if (unforced && (needsSync || stopping || now - lastForce >= batchIntervalNanos)) {
+                    channel.force(false);
+                    lastForce = now;
+                    unforced = false;
+                }
+                for (Pending p : batch) {
+                    if (p.done != null) {
+                        p.done.complete(null);
+                    }
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            } catch (IOException e) {
+                failure = e;
+                for (Pending p : batch) {
+                    if (p.swap != null && !p.done.isDone()) {
+                        p.swap.abandon();
+                    }
+                    if (p.done != null) {
+                        p.done.completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+            buffers.clear();
+        }
+    }
+
+    private void write(List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer b : array) {
+            remaining += b.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+    }
+
+    // Copy what was written since the checkpoint read the log onto the compacted file, then
+    // put it in the log's place. If that fails only the checkpoint fails; the old file stays.
+    private void swap(Pending p) {
+        Swap s = p.swap;
+        try {
+            long size = channel.size();
+            for (long position = s.copyFrom; position < size; ) {
+                position += channel.transferTo(position, size - position, s.compacted);
+            }
+            s.compacted.force(false);
+            Files.move(s.tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            s.abandon();
+            p.done.completeExceptionally(e);
+            return;
+        }
+        FileChannel old = channel;
+        channel = s.compacted;
+        try {
+            old.close();
+        } catch (IOException e) {
+            // Everything in it is already in the new file
+        }
+        p.done.complete(null);
+    }
+
+    // Rewrite the log to hold only what replay ends up with: one add record per message still
+    // in a store, carrying its latest flags. Appends carry on meanwhile. Records written while
+    // the compacted copy is built are carried over by the writer thread just before the copy
+    // replaces the log, so none are lost. Returns once the new file is in place.
+    public synchronized void checkpoint() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Message log is closed");
+        }
+        Compactor compactor = new Compactor();
+        long copyFrom;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            copyFrom = scan(in, compactor);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".checkpoint");
+        Swap swap = new Swap(tmp, FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), copyFrom);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            for (MessageCodec.Record r : compactor.survivors()) {
+                ByteBuffer record = MessageCodec.encode(r);
+                while (record.hasRemaining()) {
+                    swap.compacted.write(record);
+                }
+            }
+            queue.add(new Pending(null, Durability.SYNC, done, swap));
+        } catch (IOException | RuntimeException e) {
+            swap.abandon();
+            throw e;
+        }
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Folds records the way replayInto applies them, keeping one add per message still in a
+    // store, with its latest flags, in the order the adds were written
+    private static final class Compactor implements Consumer<MessageCodec.Record> {
+        private static final class Slot {
+            MessageCodec.Record record;
+
+            Slot(MessageCodec.Record record) {
+                this.record = record;
+            }
+        }
+
+        private final List<Slot> slots = new ArrayList<>();
+        // Slots still holding an add, by add op, then message ID
+        private final Map<Byte, Map<String, List<Slot>>> live = new HashMap<>();
+
+        @Override
+        public void accept(MessageCodec.Record r) {
+            if (isAdd(r.op)) {
+                Slot slot = new Slot(r);
+                slots.add(slot);
+                live.computeIfAbsent(r.op, op -> new HashMap<>()).computeIfAbsent(r.messageID, id -> new ArrayList<>()).add(slot);
+            } else if (isAdd((byte) (r.op - MessageCodec.OP_REMOVED))) {
+                List<Slot> bucket = bucket((byte) (r.op - MessageCodec.OP_REMOVED), r.messageID);
+                Slot slot = find(bucket, r, true);
+                if (slot == null) {
+                    slot = find(bucket, r, false);
+                }
+                if (slot != null) {
+                    bucket.remove(slot);
+                    slot.record = null;
+                }
+            } else if (isAdd((byte) (r.op - MessageCodec.OP_UPDATED))) {
+                Slot slot = find(bucket((byte) (r.op - MessageCodec.OP_UPDATED), r.messageID), r, false);
+                if (slot != null) {
+                    slot.record = slot.record.with(slot.record.op, r.flags);
+                }
+            } else {
+                // Unknown op from a newer version; keep it as it is
+                slots.add(new Slot(r));
+            }
+        }
+
+        List<MessageCodec.Record> survivors() {
+            List<MessageCodec.Record> survivors = new ArrayList<>();
+            for (Slot slot : slots) {
+                if (slot.record != null) {
+                    survivors.add(slot.record);
+                }
+            }
+            return survivors;
+        }
+
+        private static boolean isAdd(byte op) {
+            return op == MessageCodec.OP_SENT || op == MessageCodec.OP_STORED || op == MessageCodec.OP_DISREGARDED;
+        }
+
+        private List<Slot> bucket(byte addOp, String messageID) {
+            Map<String, List<Slot>> byID = live.get(addOp);
+            List<Slot> bucket = byID == null ? null : byID.get(messageID);
+            return bucket == null ? new ArrayList<>() : bucket;
+        }
+
+        private static Slot find(List<Slot> bucket, MessageCodec.Record r, boolean sameFlags) {
+            for (Slot slot : bucket) {
+                if (slot.record.sameMessage(r) && (!sameFlags || slot.record.flags == r.flags)) {
+                    return slot;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Flush and force everything appended so far, then close the file
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(POISON);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything that raced in behind the poison was never written
+        for (Pending p; (p = queue.poll()) != null; ) {
+            if (p.swap != null) {
+                p.swap.abandon();
+            }
+            if (p.done != null) {
+                p.done.completeExceptionally(new IllegalStateException("Message log is closed"));
+            }
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Read every complete record in the file, in order. Returns how many were read.
+    public static long replay(Path file, Consumer<MessageCodec.Record> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long[] count = new long[1];
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(ch, r -> {
+                consumer.accept(r);
+                count[0]++;
+            });
+        }
+        return count[0];
+    }
+
+    // Rebuild the shared stores from a log: adds go back into their store, removes come out
+    // again and flag changes are reapplied, so the end state matches the moment the log was
+    // last written. The ID generator is then moved past every ID read back, so new messages
+    // don't reuse them.
+    public static long replayInto(Path file) throws IOException {
+        long[] highestID = {-1};
+        long count = replay(file, r -> {
+            if (r.op < MessageCodec.OP_REMOVED && ValidationEngine.checkMessageID(r.messageID) == 0) {
+                highestID[0] = Math.max(highestID[0], Long.parseLong(r.messageID.substring(3)));
+            }
+            switch (r.op) {
+                case MessageCodec.OP_SENT:
+                    Message.sentMessages.add(r.toMessage());
+                    break;
+                case MessageCodec.OP_STORED:
+                    Message.storedMessages.add(r.toMessage());
+                    break;
+                case MessageCodec.OP_DISREGARDED:
+                    Message.disregardedMessages.add(r.toMessage());
+                    break;
+                case MessageCodec.OP_SENT + MessageCodec.OP_REMOVED:
+                    Message removed = find(Message.sentMessages, r);
+                    if (removed != null && Message.sentMessages.remove(removed)) {
+                        Message.messageHashes.remove(removed.getMessageHash());
+                        Message.messageIDs.remove(removed.getMessageID());
+                    }
+                    break;
+                case MessageCodec.OP_STORED + MessageCodec.OP_REMOVED:
+                    remove(Message.storedMessages, r);
+                    break;
+                case MessageCodec.OP_DISREGARDED + MessageCodec.OP_REMOVED:
+                    remove(Message.disregardedMessages, r);
+                    break;
+                case MessageCodec.OP_SENT + MessageCodec.OP_UPDATED:
+                    update(Message.sentMessages, r);
+                    break;
+                case MessageCodec.OP_STORED + MessageCodec.OP_UPDATED:
+                    update(Message.storedMessages, r);
+                    break;
+                case MessageCodec.OP_DISREGARDED + MessageCodec.OP_UPDATED:
+                    update(Message.disregardedMessages, r);
+                    break;
+                default:
+                    // Unknown op from a newer version; skip it
+                    break;
+            }
+        });
+        if (highestID[0] >= 0) {
+            Message.getIdGenerator().advancePast(highestID[0]);
+        }
+        return count;
+    }
+
+    // The message a remove or update record was written for. Identical messages can only be
+    // told apart by their flags, so the oldest one whose flags match wins, else the oldest.
+    private static Message find(MessageStore store, MessageCodec.Record r) {
+        Message exact = store.findByID(r.messageID, false, m -> r.describes(m) && MessageCodec.flagsOf(m) == r.flags);
+        return exact != null ? exact : store.findByID(r.messageID, false, r::describes);
+    }
+
+    private static void remove(MessageStore store, MessageCodec.Record r) {
+        Message m = find(store, r);
+        if (m != null) {
+            store.remove(m);
+        }
+    }
+
+    private static void update(MessageStore store, MessageCodec.Record r) {
+        Message m = store.findByID(r.messageID, false, r::describes);
+        if (m != null) {
+            r.applyFlags(m);
+        }
+    }
+
+    // Walk the records from the start of the channel; returns the offset just past the last good one
+    private static long scan(FileChannel ch, Consumer<MessageCodec.Record> consumer) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long offset = 0;
+        long size = ch.size();
+        while (offset < size) {
+            buf.clear();
+            int read = ch.read(buf, offset);
+            if (read <= 0) {
+                break;
+            }
+            buf.flip();
+            int consumed = 0;
+            MessageCodec.Record r;
+            while ((r = MessageCodec.decode(buf)) != null) {
+                if (consumer != null) {
+                    consumer.accept(r);
+                }
+                consumed = buf.position();
+            }
+            if (consumed == 0) {
+                // Either a record bigger than the buffer, or a torn/corrupt tail
+                if (buf.remaining() >= 4) {
+                    int needed = 4 + buf.getInt(0) + 4;
+                    if (needed > buf.capacity() && needed > 0 && offset + needed <= size) {
+                        buf = ByteBuffer.allocate(needed);
+                        continue;
+                    }
+                }
+                break;
+            }
+            offset += consumed;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,233 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageLogTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("quickchat", ".wal");
+        clearStores();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Message.disablePersistence();
+        clearStores();
+        Files.deleteIfExists(file);
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    @Test
+    public void testReplayRebuildsStores() throws Exception {
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        Message sent = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message deleted = new Message("MSG102", "+27821234567", "It is dinner time!");
+        sent.sentMessage();
+        deleted.sentMessage();
+        new Message("bad", "+27821234567", "Never valid").sentMessage();
+        Message.storedMessages.add(new Message("MSG103", "+27711223344", "Later"));
+        Message.deleteMessageByHash(deleted.getMessageHash());
+        Message.disablePersistence();
+
+        // Simulate a restart: memory is gone, only the log is left
+        clearStores();
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+
+        assertEquals(1, Message.sentMessages.size());
+        assertEquals("Did you get the cake?", Message.searchMessageByID("MSG101"));
+        assertEquals("Message ID not found", Message.searchMessageByID("MSG102"));
+        assertEquals("Flag: Sent", Message.sentMessages.iterator().next().displayFlags());
+        assertEquals(1, Message.storedMessages.size());
+        assertEquals(1, Message.disregardedMessages.size());
+    }
+
+    @Test
+    public void testRemoveReplaysAgainstTheRightMessage() throws Exception {
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        Message kept = new Message("MSG101", "+27821234567", "Hello how are you");
+        Message removed = new Message("MSG101", "+27821234567", "Hello you");
+        assertEquals(kept.getMessageHash(), removed.getMessageHash());
+        kept.sentMessage();
+        removed.sentMessage();
+        Message.sentMessages.remove(removed);
+        Message.disablePersistence();
+
+        clearStores();
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        assertEquals(1, Message.sentMessages.size());
+        assertEquals("Hello how are you", Message.sentMessages.iterator().next().getMessageText());
+    }
+
+    @Test
+    public void testFlagChangesAreReplayed() throws Exception {
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        Message read = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message received = new Message("MSG102", "+27821234567", "It is dinner time!");
+        read.sentMessage();
+        received.sentMessage();
+        Message.applyDeliveryEvents(MessageLifecycle.Event.READ, List.of("MSG101"));
+        received.setReceived(true);
+        Message.disablePersistence();
+
+        clearStores();
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        assertEquals("Flag: Sent Received Read", Message.sentMessages.findByID("MSG101", false).displayFlags());
+        assertEquals("Flag: Sent Received", Message.sentMessages.findByID("MSG102", false).displayFlags());
+    }
+
+    @Test
+    public void testGetFlagIsTheSameAfterReplay() throws Exception {
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        Message live = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message flagged = new Message("MSG102", "+27821234567", "It is dinner time!");
+        Message cleared = new Message("MSG103", "+27821234567", "Later");
+        live.sentMessage();
+        flagged.sentMessage();
+        flagged.setReceived(true);
+        cleared.setRead(true);
+        cleared.setRead(false);
+        Message.storedMessages.add(cleared);
+        Message.storedMessages.add(new Message("MSG104", "+27821234567", "Untouched"));
+        Message.disablePersistence();
+
+        clearStores();
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        // Sent without a setter renders nothing, before and after the restart
+        assertEquals("", Message.sentMessages.findByID("MSG101", false).getFlag());
+        assertEquals("Sent Received", Message.sentMessages.findByID("MSG102", false).getFlag());
+        assertEquals("None", Message.storedMessages.findByID("MSG103", false).getFlag());
+        assertEquals("", Message.storedMessages.findByID("MSG104", false).getFlag());
+    }
+
+    @Test
+    public void testReplayMovesIdGeneratorPastReplayedIDs() throws Exception {
+        MessageIdGenerator previous = Message.getIdGenerator();
+        try {
+            Message.enablePersistence(file, MessageLog.Durability.SYNC);
+            new Message("MSG100", "+27821234567", "First").sentMessage();
+            new Message("MSG1500", "+27821234567", "Second").sentMessage();
+            Message.disablePersistence();
+
+            // A restart starts a fresh generator at MSG100
+            clearStores();
+            Message.setIdGenerator(new CompatibleMessageIdGenerator());
+            Message.enablePersistence(file, MessageLog.Durability.SYNC);
+            assertEquals("MSG1501", Message.generateMessageID());
+        } finally {
+            Message.setIdGenerator(previous);
+        }
+    }
+
+    @Test
+    public void testCheckpointFoldsHistory() throws Exception {
+        try (MessageLog log = new MessageLog(file, MessageLog.Durability.SYNC, 5)) {
+            Message kept = new Message("MSG101", "+27821234567", "Hello how are you");
+            Message removed = new Message("MSG101", "+27821234567", "Hello you");
+            log.append(MessageCodec.OP_SENT, kept);
+            log.append(MessageCodec.OP_SENT, removed);
+            kept.setRead(true);
+            log.append((byte) (MessageCodec.OP_SENT + MessageCodec.OP_UPDATED), kept);
+            log.append((byte) (MessageCodec.OP_SENT + MessageCodec.OP_REMOVED), removed);
+            log.append(MessageCodec.OP_STORED, new Message("MSG102", "+27821234567", "Later"));
+            log.checkpoint();
+            // Still appending to the new file
+            log.append(MessageCodec.OP_DISREGARDED, new Message("bad", "+27821234567", "Never valid"));
+        }
+        List<MessageCodec.Record> records = new ArrayList<>();
+        MessageLog.replay(file, records::add);
+        assertEquals(3, records.size());
+        assertEquals("Hello how are you", records.get(0).messageText);
+        assertEquals(MessageCodec.OP_SENT, records.get(0).op);
+        assertEquals(MessageCodec.FLAG_READ, records.get(0).flags & MessageCodec.FLAG_READ);
+        assertEquals(MessageCodec.OP_STORED, records.get(1).op);
+        assertEquals(MessageCodec.OP_DISREGARDED, records.get(2).op);
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".checkpoint")));
+    }
+
+    @Test
+    public void testCheckpointKeepsConcurrentSends() throws Exception {
+        Message.enablePersistence(file, MessageLog.Durability.ASYNC);
+        int threads = 4;
+        int perThread = 2_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        new Message(Message.generateMessageID(), "+2782123456" + thread, "Message " + i).sentMessage();
+                    }
+                }));
+            }
+            // Checkpoint over and over while the sends run
+            while (!futures.stream().allMatch(Future::isDone)) {
+                Message.checkpointPersistence();
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Message.disablePersistence();
+
+        clearStores();
+        Message.enablePersistence(file, MessageLog.Durability.SYNC);
+        assertEquals(threads * perThread, Message.sentMessages.size());
+    }
+
+    @Test
+    public void testTornTailIsIgnoredAndTruncated() throws Exception {
+        try (MessageLog log = new MessageLog(file)) {
+            log.append(MessageCodec.OP_SENT, new Message("MSG101", "+27821234567", "First"),
+                    MessageLog.Durability.SYNC).join();
+        }
+        long goodLength = Files.size(file);
+        // Half-written record left behind by a crash
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 1, 0}));
+        }
+
+        List<MessageCodec.Record> records = new ArrayList<>();
+        MessageLog.replay(file, records::add);
+        assertEquals(1, records.size());
+        assertEquals("First", records.get(0).messageText);
+
+        // Reopening for append cuts the torn record off
+        new MessageLog(file).close();
+        assertEquals(goodLength, Files.size(file));
+    }
+
+    @Test
+    public void testAsyncAppendsAreAllWrittenOnClose() throws Exception {
+        int count = 20_000;
+        try (MessageLog log = new MessageLog(file, MessageLog.Durability.ASYNC, 5)) {
+            for (int i = 0; i < count; i++) {
+                log.append(MessageCodec.OP_SENT, new Message("MSG" + i, "+27821234567", "Text " + i));
+            }
+        }
+        assertEquals(count, MessageLog.replay(file, r -> { }));
+    }
+}
@@ -0,0 +1,399 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Stored messages waiting to be sent at a later time.
+//
+// A scheduled message is kept in Message.storedMessages, so the message log persists it
+// like any other stored message, and in a binary heap ordered by due time. A dispatcher
+// task on a ScheduledExecutorService wakes every tick and takes due messages off the top of
+// the heap in batches: one lock acquisition per batch, and no rescans of the stored list,
+// so millions of deferred messages cost O(log n) each to schedule and to dispatch.
+//
+// Each due message goes to the Sender. On success it moves from storedMessages to
+// sentMessages. A failure is retried after an exponential backoff (base, 2*base, 4*base...
+// up to the cap); after the last attempt, or straight away if the message is invalid, it
+// moves to disregardedMessages with the reason attached. A sender that throws Rejected
+// skips the retries.
+//
+// Due times are not logged. After a restart, recover() schedules every stored message that
+// is not already waiting, due immediately.
+public class MessageOutbox implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 512;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60_000L;
+    public static final long DEFAULT_TICK_MILLIS = 50;
+
+    private static final Logger LOG = Logger.getLogger(MessageOutbox.class.getName());
+
+    // Delivers one message; throwing means this attempt failed and may be retried
+    public interface Sender {
+        void send(Message m) throws Exception;
+    }
+
+    // Thrown by a Sender for a message no retry can deliver; it is disregarded at once, with
+    // the exception's message as the reason
+    public static class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public Rejected(String reason) {
+            super(reason);
+        }
+    }
+
+    // One scheduled delivery; replaced, not mutated, when it is retried
+    private static final class Entry implements Comparable<Entry> {
+        final Message message;
+        final long due;
+        // Ties on due time go out in scheduling order
+        final long seq;
+        final int attempts;
+
+        Entry(Message message, long due, long seq, int attempts) {
+            this.message = message;
+            this.due = due;
+            this.seq = seq;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Long.compare(due, o.due);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    // The live entry for each waiting message; cancelled or superseded entries stay in the
+    // heap until they reach the top and are skipped there, or until they make up half the
+    // heap and it is compacted
+    private final ConcurrentMap<Message, Entry> waiting = new ConcurrentHashMap<>();
+    // Dead entries in the heap; guarded by the queue's lock
+    private int stale;
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Sender sender;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final LongSupplier clock;
+    private ScheduledFuture<?> ticker;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder sendCount = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    private final AtomicLong maxSendNanos = new AtomicLong();
+    private final LongAdder lagMillis = new LongAdder();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    // Delivers by moving the message into sentMessages, on a daemon thread of its own
+    public MessageOutbox() {
+        this(m -> { });
+    }
+
+    // Delivers through the sender, on a daemon thread of its own
+    public MessageOutbox(Sender sender) {
+        this(newScheduler(), true, sender, DEFAULT_BATCH_SIZE, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, System::currentTimeMillis);
+    }
+
+    // Runs on the caller's scheduler, which close() leaves running. The clock returns
+    // milliseconds; tests pass their own and call dispatchDue() instead of start().
+    public MessageOutbox(ScheduledExecutorService scheduler, Sender sender, int batchSize, int maxAttempts,
+                         long backoffMillis, long maxBackoffMillis, LongSupplier clock) {
+        this(scheduler, false, sender, batchSize, maxAttempts, backoffMillis, maxBackoffMillis, clock);
+    }
+
+    private MessageOutbox(ScheduledExecutorService scheduler, boolean ownsScheduler, Sender sender, int batchSize,
+                          int maxAttempts, long backoffMillis, long maxBackoffMillis, LongSupplier clock) {
+        if (batchSize < 1 || maxAttempts < 1 || backoffMillis < 0 || maxBackoffMillis < backoffMillis) {
+            throw new IllegalArgumentException("batchSize and maxAttempts must be positive, backoffs ordered and not negative");
+        }
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.clock = clock;
+    }
+
+    // Start dispatching every tick; calling it again does nothing
+    public synchronized MessageOutbox start(long tickMillis) {
+        if (ticker == null) {
+            ticker = scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    public MessageOutbox start() {
+        return start(DEFAULT_TICK_MILLIS);
+    }
+
+    // Store the message and send it once the due time (clock milliseconds) has passed.
+    // Scheduling a message that is already waiting moves it to the new time.
+    public void schedule(Message m, long dueMillis) {
+        Message.storedMessages.add(m);
+        enqueue(m, dueMillis, 0);
+    }
+
+    public void scheduleAfter(Message m, long delayMillis) {
+        schedule(m, clock.getAsLong() + Math.max(0, delayMillis));
+    }
+
+    // Stop a waiting message from being sent; it stays in storedMessages. False if it was not waiting.
+    // An attempt already in progress cannot be recalled: if it succeeds, the message is sent.
+    public boolean cancel(Message m) {
+        if (waiting.remove(m) == null) {
+            return false;
+        }
+        synchronized (queue) {
+            addStale();
+        }
+        return true;
+    }
+
+    // Schedule every stored message that is not already waiting, due now; returns how many.
+    // Run once at startup, after persistence has replayed storedMessages.
+    public int recover() {
+        long now = clock.getAsLong();
+        int recovered = 0;
+        for (Message m : Message.storedMessages.snapshot()) {
+            if (!waiting.containsKey(m)) {
+                enqueue(m, now, 0);
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    // Send everything due now, a batch at a time; returns how many messages were handled.
+    // The ticker calls this, and tests call it directly with a fake clock.
+    public int dispatchDue() {
+        int handled = 0;
+        while (true) {
+            long now = clock.getAsLong();
+            List<Entry> batch = takeDue(now);
+            if (batch.isEmpty()) {
+                return handled;
+            }
+            batches.increment();
+            List<Entry> retries = new ArrayList<>();
+            for (Entry e : batch) {
+                Entry retry = deliver(e, now);
+                if (retry != null) {
+                    retries.add(retry);
+                }
+            }
+            if (!retries.isEmpty()) {
+                synchronized (queue) {
+                    queue.addAll(retries);
+                }
+            }
+            handled += batch.size();
+        }
+    }
+
+    // Messages waiting to be sent, including ones backing off between attempts
+    public int depth() {
+        return waiting.size();
+    }
+
+    public long sentCount() {
+        return sent.sum();
+    }
+
+    public long retryCount() {
+        return retried.sum();
+    }
+
+    public long deadLetterCount() {
+        return deadLettered.sum();
+    }
+
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    // Mean and worst time spent in Sender.send per attempt
+    public double meanSendMillis() {
+        long n = sendCount.sum();
+        return n == 0 ? 0 : sendNanos.sum() / 1e6 / n;
+    }
+
+    public double maxSendMillis() {
+        return maxSendNanos.get() / 1e6;
+    }
+
+    // Mean and worst delay between a message falling due and its send attempt
+    public double meanLagMillis() {
+        long n = sendCount.sum();
+        return n == 0 ? 0 : (double) lagMillis.sum() / n;
+    }
+
+    public long maxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d sent=%d retried=%d deadLettered=%d batches=%d send=%.3f/%.3fms lag=%.1f/%dms",
+                depth(), sentCount(), retryCount(), deadLetterCount(), batchCount(),
+                meanSendMillis(), maxSendMillis(), meanLagMillis(), maxLagMillis());
+    }
+
+    // Stop ticking; waiting messages stay in storedMessages for recover() to pick up
+    @Override
+    public synchronized void close() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void tick() {
+        // An exception would cancel the fixed-delay task, and with it every later delivery
+        try {
+            dispatchDue();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Outbox dispatch failed", e);
+        }
+    }
+
+    private void enqueue(Message m, long due, int attempts) {
+        Entry e = new Entry(m, due, sequence.incrementAndGet(), attempts);
+        Entry previous = waiting.put(m, e);
+        synchronized (queue) {
+            queue.add(e);
+            if (previous != null) {
+                addStale();
+            }
+        }
+    }
+
+    // Up to one batch of due, still-live entries, taken off the heap
+    private List<Entry> takeDue(long now) {
+        List<Entry> batch = new ArrayList<>(Math.min(batchSize, 64));
+        synchronized (queue) {
+            Entry head;
+            while (batch.size() < batchSize && (head = queue.peek()) != null && head.due <= now) {
+                queue.poll();
+                if (waiting.get(head.message) == head) {
+                    batch.add(head);
+                } else if (stale > 0) {
+                    stale--;
+                }
+            }
+        }
+        return batch;
+    }
+
+    // Called with the queue's lock held
+    private void addStale() {
+        if (++stale > 1024 && stale > queue.size() / 2) {
+            queue.removeIf(e -> waiting.get(e.message) != e);
+            stale = 0;
+        }
+    }
+
+    // One attempt; returns the entry for the next attempt if it should be retried
+    private Entry deliver(Entry e, long now) {
+        Message m = e.message;
+        if (!m.canSend()) {
+            deadLetter(e, "Message disregarded due to invalid data");
+            return null;
+        }
+        long lag = Math.max(0, now - e.due);
+        lagMillis.add(lag);
+        maxLagMillis.accumulateAndGet(lag, Math::max);
+        long start = System.nanoTime();
+        Exception failure = null;
+        try {
+            sender.send(m);
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        long elapsed = System.nanoTime() - start;
+        sendCount.increment();
+        sendNanos.add(elapsed);
+        maxSendNanos.accumulateAndGet(elapsed, Math::max);
+
+        if (failure == null) {
+            // The sender has it, so it is sent even if a cancel or reschedule ran during the
+            // attempt; a rescheduled entry is dropped rather than sending it a second time
+            Entry current = waiting.remove(m);
+            if (current != null && current != e) {
+                synchronized (queue) {
+                    addStale();
+                }
+            }
+            Message.storedMessages.remove(m);
+            m.markSent(true);
+            Message.sentMessages.add(m);
+            sent.increment();
+            return null;
+        }
+        int attempts = e.attempts + 1;
+        if (failure instanceof Rejected) {
+            deadLetter(e, failure.getMessage());
+            return null;
+        }
+        if (attempts >= maxAttempts) {
+            deadLetter(e, "Delivery failed after " + attempts + " attempts: " + failure);
+            return null;
+        }
+        Entry next = new Entry(m, now + backoff(attempts), sequence.incrementAndGet(), attempts);
+        // Lost to a cancel or reschedule that ran during the attempt
+        if (!waiting.replace(m, e, next)) {
+            return null;
+        }
+        retried.increment();
+        return next;
+    }
+
+    private void deadLetter(Entry e, String reason) {
+        Message m = e.message;
+        if (waiting.remove(m, e)) {
+            Message.storedMessages.remove(m);
+            m.setDisregardReason(reason);
+            Message.disregardedMessages.add(m);
+            deadLettered.increment();
+        }
+    }
+
+    // Wait before the next attempt after `attempts` failures: base * 2^(attempts-1), capped
+    long backoff(int attempts) {
+        int shift = Math.min(attempts - 1, 62);
+        long delay = backoffMillis << shift;
+        return delay < 0 || delay >>> shift != backoffMillis ? maxBackoffMillis : Math.min(delay, maxBackoffMillis);
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-outbox");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,232 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageOutboxTest {
+
+    private AtomicLong now;
+    private List<String> delivered;
+    private Set<String> failing;
+    private MessageOutbox outbox;
+
+    @Before
+    public void setUp() {
+        clearStores();
+        now = new AtomicLong(1_000_000);
+        delivered = new ArrayList<>();
+        failing = new HashSet<>();
+        MessageOutbox.Sender sender = m -> {
+            if (failing.contains(m.getMessageID())) {
+                throw new IllegalStateException("gateway down");
+            }
+            delivered.add(m.getMessageID());
+        };
+        // Batches of 2, 3 attempts, backoff 100ms doubling up to 250ms
+        outbox = new MessageOutbox(null, sender, 2, 3, 100, 250, now::get);
+    }
+
+    @After
+    public void tearDown() {
+        clearStores();
+    }
+
+    @Test
+    public void testSendsInDueOrderOnceDue() {
+        Message later = message("MSG103");
+        Message first = message("MSG101");
+        Message second = message("MSG102");
+        outbox.schedule(later, now.get() + 500);
+        outbox.schedule(first, now.get() + 100);
+        outbox.schedule(second, now.get() + 100);
+        assertEquals(3, Message.storedMessages.size());
+
+        assertEquals(0, outbox.dispatchDue());
+        now.addAndGet(100);
+        assertEquals(2, outbox.dispatchDue());
+        assertEquals(List.of("MSG101", "MSG102"), delivered);
+        assertTrue(first.isSent());
+        assertTrue(Message.sentMessages.contains(first));
+        assertFalse(Message.storedMessages.contains(first));
+        assertEquals(1, outbox.depth());
+
+        now.addAndGet(1000);
+        assertEquals(1, outbox.dispatchDue());
+        assertEquals(0, outbox.depth());
+        assertEquals(3, outbox.sentCount());
+        // Due at +500, sent at +1100
+        assertEquals(600, outbox.maxLagMillis());
+    }
+
+    @Test
+    public void testDrainsInBatches() {
+        for (int i = 0; i < 5; i++) {
+            outbox.schedule(message("MSG10" + i), now.get());
+        }
+        assertEquals(5, outbox.dispatchDue());
+        assertEquals(3, outbox.batchCount());
+    }
+
+    @Test
+    public void testRetriesWithBackoffThenDeadLetters() {
+        Message m = message("MSG101");
+        failing.add("MSG101");
+        outbox.schedule(m, now.get());
+        outbox.dispatchDue();
+        assertEquals(1, outbox.retryCount());
+
+        // Second attempt after 100ms, third after 200ms more
+        now.addAndGet(99);
+        assertEquals(0, outbox.dispatchDue());
+        now.addAndGet(1);
+        assertEquals(1, outbox.dispatchDue());
+        now.addAndGet(199);
+        assertEquals(0, outbox.dispatchDue());
+        now.addAndGet(1);
+        assertEquals(1, outbox.dispatchDue());
+
+        assertEquals(1, outbox.deadLetterCount());
+        assertTrue(Message.disregardedMessages.contains(m));
+        assertFalse(Message.storedMessages.contains(m));
+        assertTrue(m.getDisregardReason().startsWith("Delivery failed after 3 attempts"));
+        assertFalse(m.isSent());
+    }
+
+    @Test
+    public void testRecoversAfterATransientFailure() {
+        Message m = message("MSG101");
+        failing.add("MSG101");
+        outbox.schedule(m, now.get());
+        outbox.dispatchDue();
+        failing.clear();
+        now.addAndGet(100);
+        outbox.dispatchDue();
+        assertTrue(Message.sentMessages.contains(m));
+        assertEquals(0, outbox.deadLetterCount());
+    }
+
+    @Test
+    public void testInvalidMessagesAreDeadLetteredWithoutSending() {
+        Message bad = message("MSG101", "0821234567");
+        outbox.schedule(bad, now.get());
+        outbox.dispatchDue();
+        assertTrue(delivered.isEmpty());
+        assertEquals("Message disregarded due to invalid data", bad.getDisregardReason());
+        assertTrue(Message.disregardedMessages.contains(bad));
+    }
+
+    @Test
+    public void testRejectedMessagesAreNotRetried() {
+        MessageOutbox rejecting = new MessageOutbox(null, m -> {
+            throw new MessageOutbox.Rejected("Already sent");
+        }, 2, 3, 100, 250, now::get);
+        Message m = message("MSG101");
+        rejecting.schedule(m, now.get());
+        rejecting.dispatchDue();
+        assertEquals(0, rejecting.retryCount());
+        assertEquals(1, rejecting.deadLetterCount());
+        assertEquals("Already sent", m.getDisregardReason());
+        assertTrue(Message.disregardedMessages.contains(m));
+        assertFalse(Message.storedMessages.contains(m));
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        assertEquals(100, outbox.backoff(1));
+        assertEquals(200, outbox.backoff(2));
+        assertEquals(250, outbox.backoff(3));
+        assertEquals(250, outbox.backoff(80));
+    }
+
+    @Test
+    public void testCancelRescheduleAndRecover() {
+        Message a = message("MSG101");
+        Message b = message("MSG102");
+        outbox.schedule(a, now.get());
+        outbox.schedule(b, now.get());
+        assertTrue(outbox.cancel(a));
+        // Moving b later supersedes the earlier entry
+        outbox.schedule(b, now.get() + 1000);
+        assertEquals(0, outbox.dispatchDue());
+        assertTrue(Message.storedMessages.contains(a));
+
+        // Stored messages not waiting, like those replayed from the log, go out now
+        Message c = message("MSG103");
+        Message.storedMessages.add(c);
+        assertEquals(2, outbox.recover());
+        assertEquals(2, outbox.dispatchDue());
+        assertEquals(List.of("MSG101", "MSG103"), delivered);
+    }
+
+    @Test
+    public void testSuccessfulAttemptIsRecordedDespiteCancelOrReschedule() {
+        Message cancelled = message("MSG101");
+        Message moved = message("MSG102");
+        // The changes land while the sender is still working on each message
+        outbox = new MessageOutbox(null, m -> {
+            if (m == cancelled) {
+                assertTrue(outbox.cancel(m));
+            } else {
+                outbox.schedule(m, now.get() + 1000);
+            }
+            delivered.add(m.getMessageID());
+        }, 2, 3, 100, 250, now::get);
+        outbox.schedule(cancelled, now.get());
+        outbox.schedule(moved, now.get());
+
+        assertEquals(2, outbox.dispatchDue());
+        assertEquals(2, outbox.sentCount());
+        assertTrue(cancelled.isSent() && moved.isSent());
+        assertTrue(Message.sentMessages.contains(cancelled) && Message.sentMessages.contains(moved));
+        assertEquals(0, Message.storedMessages.size());
+        // The rescheduled entry was dropped, so nothing goes out twice
+        assertEquals(0, outbox.depth());
+        now.addAndGet(1000);
+        assertEquals(0, outbox.dispatchDue());
+        assertEquals(List.of("MSG101", "MSG102"), delivered);
+    }
+
+    @Test
+    public void testScheduledDispatch() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (MessageOutbox live = new MessageOutbox(scheduler, m -> { }, 64, 3, 10, 100, System::currentTimeMillis)) {
+            live.start(5);
+            for (int i = 0; i < 200; i++) {
+                live.scheduleAfter(message("MSG" + (100 + i)), i % 20);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (live.sentCount() < 200 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, live.depth());
+            assertEquals(200, live.sentCount());
+            assertEquals(200, Message.sentMessages.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static Message message(String id) {
+        return message(id, "+27821234567");
+    }
+
+    private static Message message(String id, String recipient) {
+        return new Message(id, recipient, "text for " + id);
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Index of messages by recipient number, for exact, prefix ("+2782") and range lookups.
+// Numbers of the form +<digits> (up to 15 digits, as in E.164) are stored as primitive
+// longs: the digit count in the top bits and the digits' value below it, so all numbers
+// of one length that share a prefix sit in one contiguous key range.
+//
+// Entries live in a sorted base segment of parallel long/Message arrays, plus a small
+// skip list of recent adds. Once the skip list grows past a fraction of the base it is
+// merged in, so each add costs O(log n) amortised and lookups are binary searches.
+// Removing a message only forgets its arrival number; merges drop the stale entries.
+//
+// Recipients that are not +<digits> are left out; exact lookups for those go to the store.
+public class MessageRecipientIndex implements MessageStore.Listener {
+    static final int MAX_DIGITS = 15;
+    private static final int LENGTH_SHIFT = 50;
+    private static final int MIN_MERGE = 1024;
+    private static final long VALUE_MASK = (1L << LENGTH_SHIFT) - 1;
+    private static final long[] POWERS = new long[MAX_DIGITS + 1];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i <= MAX_DIGITS; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    // Sorted by key, then arrival; never changed once published
+    private static final class Segment {
+        final long[] keys;
+        final long[] arrivals;
+        final Message[] messages;
+
+        Segment(long[] keys, long[] arrivals, Message[] messages) {
+            this.keys = keys;
+            this.arrivals = arrivals;
+            this.messages = messages;
+        }
+    }
+
+    // Sort key of one recent add in the skip list
+    private static final class Entry {
+        final long key;
+        final long arrival;
+
+        Entry(long key, long arrival) {
+            this.key = key;
+            this.arrival = arrival;
+        }
+    }
+
+    private static final Comparator<Entry> BY_KEY = (a, b) -> a.key != b.key
+            ? Long.compare(a.key, b.key) : Long.compare(a.arrival, b.arrival);
+
+    private volatile Segment base = new Segment(new long[0], new long[0], new Message[0]);
+    private final ConcurrentSkipListMap<Entry, Message> recent = new ConcurrentSkipListMap<>(BY_KEY);
+    private final AtomicInteger recentCount = new AtomicInteger();
+    // Arrival number of every indexed message; an entry is live only while this still matches.
+    // Message does not override equals, so this map works on object identity.
+    private final ConcurrentMap<Message, Long> arrivalOf = new ConcurrentHashMap<>();
+    private final AtomicLong arrivals = new AtomicLong();
+    private final AtomicLong dead = new AtomicLong();
+
+    // Index everything already in the store, then follow its changes
+    public void attach(MessageStore store) {
+        store.addListener(this);
+        for (Message m : store.snapshot()) {
+            added(m);
+        }
+    }
+
+    @Override
+    public void added(Message m) {
+        long key = encode(m.getRecipient());
+        if (key < 0) {
+            return;
+        }
+        long arrival = arrivals.incrementAndGet();
+        if (arrivalOf.putIfAbsent(m, arrival) != null) {
+            return;
+        }
+        recent.put(new Entry(key, arrival), m);
+        if (recentCount.incrementAndGet() > mergeThreshold()) {
+            mergeIfNeeded();
+        }
+    }
+
+    @Override
+    public void removed(Message m) {
+        Long arrival = arrivalOf.remove(m);
+        if (arrival == null) {
+            return;
+        }
+        if (recent.remove(new Entry(encode(m.getRecipient()), arrival)) != null) {
+            recentCount.decrementAndGet();
+        } else if (dead.incrementAndGet() > Math.max(MIN_MERGE, arrivalOf.size())) {
+            mergeIfNeeded();
+        }
+    }
+
+    // Messages sent to exactly this number, oldest first
+    public List<Message> exact(String recipient) {
+        long key = encode(recipient);
+        Hits hits = new Hits();
+        if (key >= 0) {
+            collect(key, key, hits);
+        }
+        return hits.inArrivalOrder();
+    }
+
+    // Messages sent to numbers starting with the prefix, e.g. "+2782", oldest first
+    public List<Message> prefix(String prefix) {
+        Hits hits = new Hits();
+        long p = "+".equals(prefix) ? key(0, 0) : encode(prefix);
+        if (p >= 0) {
+            int length = (int) (p >>> LENGTH_SHIFT);
+            long value = p & VALUE_MASK;
+            for (int digits = Math.max(1, length); digits <= MAX_DIGITS; digits++) {
+                long scale = POWERS[digits - length];
+                collect(key(digits, value * scale), key(digits, value * scale + scale - 1), hits);
+            }
+        }
+        return hits.inArrivalOrder();
+    }
+
+    // Messages sent to numbers from..to inclusive, compared as numbers, oldest first
+    public List<Message> range(String from, String to) {
+        long lo = encode(from), hi = encode(to);
+        if (lo < 0 || hi < 0) {
+            throw new IllegalArgumentException("Range bounds must be +<digits> numbers");
+        }
+        Hits hits = new Hits();
+        for (int digits = 1; digits <= MAX_DIGITS; digits++) {
+            long last = Math.min(hi & VALUE_MASK, POWERS[digits] - 1);
+            if ((lo & VALUE_MASK) <= last) {
+                collect(key(digits, lo & VALUE_MASK), key(digits, last), hits);
+            }
+        }
+        return hits.inArrivalOrder();
+    }
+
+    // Number of messages currently indexed
+    public int size() {
+        return arrivalOf.size();
+    }
+
+    // Fold recent adds into the base and drop removed entries
+    public synchronized void merge() {
+        Segment old = base;
+        List<Map.Entry<Entry, Message>> pending = new ArrayList<>(recent.entrySet());
+        int capacity = old.keys.length + pending.size();
+        long[] keys = new long[capacity];
+        long[] arrivalsOut = new long[capacity];
+        Message[] messages = new Message[capacity];
+        int i = 0, j = 0, n = 0;
+        while (i < old.keys.length || j < pending.size()) {
+            long key, arrival;
+            Message m;
+            Entry e = j < pending.size() ? pending.get(j).getKey() : null;
+            if (e == null || (i < old.keys.length && (old.keys[i] < e.key
+                    || (old.keys[i] == e.key && old.arrivals[i] < e.arrival)))) {
+                key = old.keys[i];
+                arrival = old.arrivals[i];
+                m = old.messages[i++];
+            } else {
+                key = e.key;
+                arrival = e.arrival;
+                m = pending.get(j++).getValue();
+            }
+            if (isLive(m, arrival)) {
+                keys[n] = key;
+                arrivalsOut[n] = arrival;
+                messages[n++] = m;
+            }
+        }
+        base = new Segment(Arrays.copyOf(keys, n), Arrays.copyOf(arrivalsOut, n),
+                Arrays.copyOf(messages, n));
+        // Readers may briefly see an entry in both places; Hits drops the duplicate
+        for (Map.Entry<Entry, Message> e : pending) {
+            if (recent.remove(e.getKey(), e.getValue())) {
+                recentCount.decrementAndGet();
+            }
+        }
+        dead.set(0);
+    }
+
+    // Threads that crossed a threshold together merge once; the rest find nothing left to do
+    private synchronized void mergeIfNeeded() {
+        if (recentCount.get() > mergeThreshold() || dead.get() > Math.max(MIN_MERGE, arrivalOf.size())) {
+            merge();
+        }
+    }
+
+    private int mergeThreshold() {
+        return Math.max(MIN_MERGE, base.keys.length / 8);
+    }
+
+    // +<digits> as (digit count << LENGTH_SHIFT) | value, or -1 if the string is not one
+    static long encode(String number) {
+        if (number == null || number.length() < 2 || number.length() > MAX_DIGITS + 1 || number.charAt(0) != '+') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 1; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return key(number.length() - 1, value);
+    }
+
+    private static long key(int digits, long value) {
+        return ((long) digits << LENGTH_SHIFT) | value;
+    }
+
+    private boolean isLive(Message m, long arrival) {
+        Long current = arrivalOf.get(m);
+        return current != null && current == arrival;
+    }
+
+    // Live entries with keys in [lo, hi]. The recent adds are read before the base: a merge
+    // publishes its new base before clearing the adds it took, so nothing is missed.
+    private void collect(long lo, long hi, Hits hits) {
+        for (Map.Entry<Entry, Message> e : recent.subMap(new Entry(lo, Long.MIN_VALUE), true,
+                new Entry(hi, Long.MAX_VALUE), true).entrySet()) {
+            if (isLive(e.getValue(), e.getKey().arrival)) {
+                hits.add(e.getKey().arrival, e.getValue());
+            }
+        }
+        Segment s = base;
+        for (int i = lowerBound(s.keys, lo); i < s.keys.length && s.keys[i] <= hi; i++) {
+            if (isLive(s.messages[i], s.arrivals[i])) {
+                hits.add(s.arrivals[i], s.messages[i]);
+            }
+        }
+    }
+
+    // Matches gathered from one or more key ranges, returned in arrival order
+    private static final class Hits {
+        private long[] arrivals = new long[16];
+        private Message[] messages = new Message[16];
+        private int size;
+        private boolean sorted = true;
+
+        void add(long arrival, Message m) {
+            if (size == arrivals.length) {
+                arrivals = Arrays.copyOf(arrivals, size * 2);
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            if (size > 0 && arrivals[size - 1] >= arrival) {
+                sorted = false;
+            }
+            arrivals[size] = arrival;
+            messages[size++] = m;
+        }
+
+        // An entry caught mid-merge shows up in both the recent adds and the base; equal
+        // arrivals are the same message, so the duplicate is dropped here
+        List<Message> inArrivalOrder() {
+            List<Message> results = new ArrayList<>(size);
+            if (sorted) {
+                results.addAll(Arrays.asList(messages).subList(0, size));
+                return results;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> arrivals[i]));
+            long previous = Long.MIN_VALUE;
+            for (int i : order) {
+                if (arrivals[i] != previous) {
+                    results.add(messages[i]);
+                    previous = arrivals[i];
+                }
+            }
+            return results;
+        }
+    }
+
+    private static int lowerBound(long[] keys, long key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageRecipientIndexTest {
+
+    private MessageStore store;
+    private MessageRecipientIndex index;
+
+    @Before
+    public void setUp() {
+        store = new MessageStore();
+        index = new MessageRecipientIndex();
+        index.attach(store);
+    }
+
+    @Test
+    public void testExactPrefixAndRange() {
+        Message a = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message b = new Message("MSG102", "+27711223344", "It is dinner time!");
+        Message c = new Message("MSG103", "+27821234567", "Ok");
+        Message d = new Message("MSG104", "+27829999999", "Late");
+        Message e = new Message("MSG105", "0821234567", "Local number");
+        for (Message m : new Message[]{a, b, c, d, e}) {
+            store.add(m);
+        }
+
+        assertEquals(Arrays.asList(a, c), index.exact("+27821234567"));
+        assertEquals(Arrays.asList(a, c, d), index.prefix("+2782"));
+        assertEquals(Arrays.asList(a, b, c, d), index.prefix("+27"));
+        assertEquals(Arrays.asList(a, b, c, d), index.prefix("+"));
+        assertEquals(Arrays.asList(b), index.range("+27700000000", "+27799999999"));
+        assertEquals(Arrays.asList(a, c, d), index.range("+27821234567", "+27829999999"));
+        // Numbers that are not +<digits> stay out of the index
+        assertTrue(index.exact("0821234567").isEmpty());
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testFollowsRemovesAndMerges() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Message m = new Message("MSG" + (100 + i % 900), "+2782" + String.format("%07d", i % 50), "m" + i);
+            messages.add(m);
+            store.add(m);
+        }
+        assertEquals(100, index.exact("+27820000007").size());
+        for (int i = 0; i < 5000; i += 4) {
+            store.remove(messages.get(i));
+        }
+        index.merge();
+        List<Message> left = index.exact("+27820000008");
+        assertEquals(50, left.size());
+        for (int i = 1; i < left.size(); i++) {
+            assertTrue(messages.indexOf(left.get(i - 1)) < messages.indexOf(left.get(i)));
+        }
+        // Re-adding a removed message indexes it again, at the end
+        store.add(messages.get(0));
+        assertSame(messages.get(0), index.exact("+27820000000").get(50));
+        assertEquals(3751, index.prefix("+2782").size());
+    }
+
+    @Test
+    public void testMatchesLinearScanOnRandomNumbers() {
+        Random random = new Random(7);
+        List<Message> all = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String number = "+27" + (random.nextBoolean() ? "82" : "71") + random.nextInt(1000);
+            Message m = new Message("MSG" + (100 + i % 900), number, "t" + i);
+            all.add(m);
+            store.add(m);
+            if (random.nextInt(4) == 0) {
+                Message gone = all.remove(random.nextInt(all.size()));
+                store.remove(gone);
+            }
+        }
+        for (String prefix : new String[]{"+2782", "+27711", "+278255", "+279", "+2771999"}) {
+            List<Message> expected = new ArrayList<>();
+            for (Message m : store) {
+                if (m.getRecipient().startsWith(prefix)) {
+                    expected.add(m);
+                }
+            }
+            assertEquals(prefix, expected, index.prefix(prefix));
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAreAllFound() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 3000; i++) {
+                    store.add(new Message("MSG" + (100 + i % 900), "+2782" + thread + String.format("%06d", i % 10), "x"));
+                    assertFalse(index.prefix("+2782" + thread).isEmpty());
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        assertEquals(12000, index.prefix("+2782").size());
+        assertEquals(300, index.exact("+27822000003").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeNeedsNumbers() {
+        index.range("+2782", "later");
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Streams a message report straight to a Writer or channel, a page of messages at a time,
+// instead of building it in one String. Memory use is one page's worth of formatting
+// scratch, whatever the store size. Pages are addressed by a Cursor, so a client can
+// fetch a large report over many requests and still see one consistent set of messages:
+// the cursor pins the store's watermark, and messages added later are left out.
+public class MessageReportWriter {
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+    public enum Format {
+        // Same layout as Message.displaySentMessageReport
+        TEXT("text/plain; charset=utf-8"),
+        CSV("text/csv; charset=utf-8"),
+        JSON("application/json");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    // Position in a report: messages after sequence `after`, up to and including `upTo`.
+    // The string form "after-upTo" is what clients pass back for the next page.
+    public static final class Cursor {
+        final long after;
+        final long upTo;
+
+        Cursor(long after, long upTo) {
+            this.after = after;
+            this.upTo = upTo;
+        }
+
+        public static Cursor parse(String token) {
+            int dash = token.indexOf('-');
+            try {
+                if (dash > 0) {
+                    Cursor c = new Cursor(Long.parseLong(token.substring(0, dash)), Long.parseLong(token.substring(dash + 1)));
+                    if (c.after >= 0 && c.after <= c.upTo) {
+                        return c;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid report cursor: " + token);
+        }
+
+        @Override
+        public String toString() {
+            return after + "-" + upTo;
+        }
+    }
+
+    private final MessageStore store;
+    private final Format format;
+
+    public MessageReportWriter(MessageStore store, Format format) {
+        this.store = store;
+        this.format = format;
+    }
+
+    // Cursor for the first page of a report over everything in the store right now
+    public Cursor start() {
+        return new Cursor(0, store.watermark());
+    }
+
+    // Write the whole report, pageSize messages per store pass
+    public void writeAll(Writer out) throws IOException {
+        Cursor cursor = start();
+        StringBuilder scratch = new StringBuilder(256);
+        writeHeader(out);
+        boolean first = true;
+        while (true) {
+            long next = writeMessages(out, cursor, DEFAULT_PAGE_SIZE, scratch, first);
+            if (next == cursor.after) {
+                break;
+            }
+            first = false;
+            cursor = new Cursor(next, cursor.upTo);
+        }
+        writeFooter(out, null);
+        out.flush();
+    }
+
+    // Write the whole report as UTF-8 to a channel; the channel is left open
+    public void writeAll(WritableByteChannel channel) throws IOException {
+        Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 64 * 1024));
+        writeAll(out);
+    }
+
+    // Write one page of at most limit messages as a complete document (text report, CSV with
+    // its header row, or a JSON object holding the messages and the next cursor).
+    // Returns the cursor for the next page, or null if this page reached the end.
+    public Cursor writePage(Writer out, Cursor from, int limit) throws IOException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        // Locate the end of the page first, so the JSON trailer and callers know it up front
+        long end = store.forEach(from.after, from.upTo, limit, m -> { });
+        Cursor next = store.forEach(end, from.upTo, 1, m -> { }) != end ? new Cursor(end, from.upTo) : null;
+        writeHeader(out);
+        writeMessages(out, new Cursor(from.after, end), limit, new StringBuilder(256), true);
+        writeFooter(out, next);
+        out.flush();
+        return next;
+    }
+
+    // Returns the sequence of the last message written, or cursor.after if none
+    private long writeMessages(Writer out, Cursor cursor, int limit, StringBuilder scratch, boolean first)
+            throws IOException {
+        boolean[] needComma = {!first};
+        try {
+            return store.forEach(cursor.after, cursor.upTo, limit, m -> {
+                scratch.setLength(0);
+                switch (format) {
+                    case TEXT:
+                        text(scratch, m);
+                        break;
+                    case CSV:
+                        csv(scratch, m);
+                        break;
+                    case JSON:
+                        if (needComma[0]) {
+                            scratch.append(',');
+                        }
+                        needComma[0] = true;
+                        Json.message(scratch, m);
+                        break;
+                }
+                try {
+                    out.append(scratch);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeHeader(Writer out) throws IOException {
+        switch (format) {
+            case TEXT:
+                out.write("Sent Message Report:\n");
+                break;
+            case CSV:
+                out.write("messageID,recipient,messageText,messageHash,flags\r\n");
+                break;
+            case JSON:
+                out.write("{\"messages\":[");
+                break;
+        }
+    }
+
+    private void writeFooter(Writer out, Cursor next) throws IOException {
+        if (format == Format.JSON) {
+            out.write("],\"nextCursor\":");
+            out.write(next == null ? "null" : "\"" + next + "\"");
+            out.write("}");
+        }
+    }
+
+    private static void text(StringBuilder out, Message m) {
+        out.append("Recipient: ").append(m.getRecipient()).append('\n')
+                .append("Message: ").append(m.getMessageText()).append('\n')
+                .append("Hash: ").append(m.getMessageHash()).append('\n')
+                .append("Flag: ");
+        flags(out, m);
+        out.append("\n\n");
+    }
+
+    private static void csv(StringBuilder out, Message m) {
+        csvField(out, m.getMessageID()).append(',');
+        csvField(out, m.getRecipient()).append(',');
+        csvField(out, m.getMessageText()).append(',');
+        csvField(out, m.getMessageHash()).append(',');
+        flags(out, m);
+        out.append("\r\n");
+    }
+
+    // RFC 4180: quote fields holding a comma, quote or line break, doubling inner quotes
+    private static StringBuilder csvField(StringBuilder out, String value) {
+        if (value == null) {
+            return out;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return out.append(value);
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        return out.append('"');
+    }
+
+    // Same words as Message.displayFlags, written without building a String per message
+    private static void flags(StringBuilder out, Message m) {
+        MessageLifecycle.appendFlags(out, m.state());
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class MessageReportWriterTest {
+
+    private MessageStore store;
+    private Message msg1, msg2, msg3;
+
+    @Before
+    public void setUp() {
+        store = new MessageStore();
+        msg1 = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        msg2 = new Message("MSG102", "+27821234567", "Say \"hi\", then leave");
+        msg3 = new Message("MSG103", "+27711223344", "Ok, I am leaving without you.");
+        msg1.setSent(true);
+        msg2.setSent(true);
+        msg2.setReceived(true);
+        store.add(msg1);
+        store.add(msg2);
+        store.add(msg3);
+    }
+
+    @Test
+    public void testTextMatchesOriginalReportLayout() throws IOException {
+        StringBuilder expected = new StringBuilder("Sent Message Report:\n");
+        for (Message m : new Message[]{msg1, msg2, msg3}) {
+            expected.append("Recipient: ").append(m.getRecipient()).append("\n")
+                    .append("Message: ").append(m.getMessageText()).append("\n")
+                    .append("Hash: ").append(m.getMessageHash()).append("\n")
+                    .append(m.displayFlags()).append("\n\n");
+        }
+        StringWriter out = new StringWriter();
+        new MessageReportWriter(store, MessageReportWriter.Format.TEXT).writeAll(out);
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void testCsvQuotesFields() throws IOException {
+        StringWriter out = new StringWriter();
+        new MessageReportWriter(store, MessageReportWriter.Format.CSV).writeAll(out);
+        String[] rows = out.toString().split("\r\n");
+        assertEquals(4, rows.length);
+        assertEquals("messageID,recipient,messageText,messageHash,flags", rows[0]);
+        assertEquals("MSG102,+27821234567,\"Say \"\"hi\"\", then leave\"," + msg2.getMessageHash() + ",Sent Received", rows[2]);
+        assertTrue(rows[3].endsWith(",None"));
+    }
+
+    @Test
+    public void testPagesCoverEveryMessageOnce() throws IOException {
+        MessageReportWriter writer = new MessageReportWriter(store, MessageReportWriter.Format.JSON);
+        StringWriter first = new StringWriter();
+        MessageReportWriter.Cursor next = writer.writePage(first, writer.start(), 2);
+        assertNotNull(next);
+        assertTrue(first.toString().contains("\"messageID\":\"MSG101\""));
+        assertTrue(first.toString().contains("\"messageID\":\"MSG102\""));
+        assertTrue(first.toString().endsWith("],\"nextCursor\":\"" + next + "\"}"));
+
+        // Added after the report started, so it stays out of the remaining pages
+        store.add(new Message("MSG104", "+27711223344", "Late arrival"));
+        StringWriter second = new StringWriter();
+        MessageReportWriter.Cursor end = writer.writePage(second, MessageReportWriter.Cursor.parse(next.toString()), 2);
+        assertNull(end);
+        assertTrue(second.toString().startsWith("{\"messages\":[{\"messageID\":\"MSG103\""));
+        assertFalse(second.toString().contains("MSG104"));
+        assertTrue(second.toString().endsWith("],\"nextCursor\":null}"));
+    }
+
+    @Test
+    public void testLargeStoreStreamsToChannel() throws IOException {
+        MessageStore big = new MessageStore();
+        for (int i = 0; i < 5000; i++) {
+            big.add(new Message("MSG" + (100 + i % 900), "+2782" + i, "w" + i + " text"));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new MessageReportWriter(big, MessageReportWriter.Format.JSON).writeAll(Channels.newChannel(bytes));
+        String json = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue(json.endsWith("],\"nextCursor\":null}"));
+        assertEquals(5000, json.split("\"messageID\"").length - 1);
+        // Spot check one element parses
+        int start = json.indexOf("{\"messageID\"");
+        Map<String, String> first = Json.parseObject(json.substring(start, json.indexOf('}', start) + 1));
+        assertEquals("w0 text", first.get("messageText"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCursorRejected() {
+        MessageReportWriter.Cursor.parse("9-3");
+    }
+}
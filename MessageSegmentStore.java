@@ -0,0 +1,465 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Immutable on-disk segments of sent messages, read through MappedByteBuffer so large
+// histories can be searched without loading them into the heap.
+//
+// Segment file layout:
+//   records     MessageCodec records sorted by message ID
+//   id index    sparse: every Nth record as [str id][long recordOffset]
+//   hash list   every record as [str hash][long recordOffset], sorted by hash
+//   hash index  sparse: every Nth hash entry as [str hash][long entryOffset]
+//   footer      see FOOTER_SIZE
+//
+// Deletes append to a tombstone file instead of touching the segment. The compactor
+// rewrites segments whose dead share is high enough and drops their tombstones.
+public class MessageSegmentStore implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MessageSegmentStore.class.getName());
+    private static final int MAGIC = 0x51435347; // "QCSG"
+    // recordCount, idIndexOffset, idIndexCount, hashListOffset, hashIndexOffset, hashIndexCount, generation, magic
+    private static final int FOOTER_SIZE = 4 + 8 + 4 + 8 + 8 + 4 + 4 + 4;
+    // segmentId, generation, recordOffset
+    private static final int TOMBSTONE_SIZE = 4 + 4 + 8;
+    private static final String TOMBSTONE_FILE = "tombstones.seg";
+
+    private final Path dir;
+    private final int sparseEvery;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private FileChannel tombstoneChannel;
+    private int nextSegmentId;
+    private ScheduledExecutorService compactor;
+
+    // One mapped segment and its sparse indexes
+    private static final class Segment {
+        final int id;
+        final int generation;
+        final Path file;
+        final MappedByteBuffer buf;
+        final int recordCount;
+        final int recordsEnd;
+        final String[] idKeys;
+        final int[] idOffsets;
+        final int hashListOffset;
+        final int hashListEnd;
+        final String[] hashKeys;
+        final int[] hashOffsets;
+        // Record offsets deleted from this generation of the segment
+        final Set<Integer> dead = ConcurrentHashMap.newKeySet();
+
+        Segment(int id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            int footer = buf.capacity() - FOOTER_SIZE;
+            if (footer < 0 || buf.getInt(buf.capacity() - 4) != MAGIC) {
+                throw new IOException("Not a message segment: " + file);
+            }
+            ByteBuffer f = buf.duplicate();
+            f.position(footer);
+            this.recordCount = f.getInt();
+            int idIndexOffset = (int) f.getLong();
+            int idIndexCount = f.getInt();
+            this.hashListOffset = (int) f.getLong();
+            int hashIndexOffset = (int) f.getLong();
+            int hashIndexCount = f.getInt();
+            this.generation = f.getInt();
+            this.recordsEnd = idIndexOffset;
+            this.hashListEnd = hashIndexOffset;
+
+            this.idKeys = new String[idIndexCount];
+            this.idOffsets = new int[idIndexCount];
+            readSparse(idIndexOffset, idKeys, idOffsets);
+            this.hashKeys = new String[hashIndexCount];
+            this.hashOffsets = new int[hashIndexCount];
+            readSparse(hashIndexOffset, hashKeys, hashOffsets);
+        }
+
+        private void readSparse(int offset, String[] keys, int[] offsets) {
+            ByteBuffer in = buf.duplicate();
+            in.position(offset);
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = MessageCodec.getString(in);
+                offsets[i] = (int) in.getLong();
+            }
+        }
+
+        // First live record with the given ID, or null
+        MessageCodec.Record findByID(String id) {
+            int i = lowerIndex(idKeys, id);
+            ByteBuffer in = buf.duplicate();
+            in.position(i < 0 ? 0 : idOffsets[i]).limit(recordsEnd);
+            while (in.hasRemaining()) {
+                int at = in.position();
+                MessageCodec.Record r = MessageCodec.decode(in);
+                if (r == null) {
+                    break;
+                }
+                int c = r.messageID.compareTo(id);
+                if (c > 0) {
+                    break;
+                }
+                if (c == 0 && !dead.contains(at)) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        // Offset of the first live record with the given hash, or -1
+        int findByHash(String hash) {
+            int i = lowerIndex(hashKeys, hash);
+            ByteBuffer in = buf.duplicate();
+            in.position(i < 0 ? hashListOffset : hashOffsets[i]).limit(hashListEnd);
+            while (in.hasRemaining()) {
+                String key = MessageCodec.getString(in);
+                int recordOffset = (int) in.getLong();
+                int c = key.compareTo(hash);
+                if (c > 0) {
+                    break;
+                }
+                if (c == 0 && !dead.contains(recordOffset)) {
+                    return recordOffset;
+                }
+            }
+            return -1;
+        }
+
+        MessageCodec.Record recordAt(int offset) {
+            ByteBuffer in = buf.duplicate();
+            in.position(offset).limit(recordsEnd);
+            return MessageCodec.decode(in);
+        }
+
+        double deadRatio() {
+            return recordCount == 0 ? 0 : (double) dead.size() / recordCount;
+        }
+    }
+
+    // A record ready to be written: its encoded bytes plus the keys to index it by
+    private static final class RawRecord {
+        final String id;
+        final String hash;
+        final ByteBuffer bytes;
+
+        RawRecord(String id, String hash, ByteBuffer bytes) {
+            this.id = id;
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+    }
+
+    // Open every segment in the directory (creating it if needed) and load the tombstones
+    public MessageSegmentStore(Path dir, int sparseEvery) throws IOException {
+        if (sparseEvery <= 0) {
+            throw new IllegalArgumentException("Sparse index interval must be positive");
+        }
+        this.dir = dir;
+        this.sparseEvery = sparseEvery;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.seg")) {
+            for (Path file : files) {
+                int id = segmentIdOf(file);
+                segments.put(id, new Segment(id, file));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+        }
+        Path tombstones = dir.resolve(TOMBSTONE_FILE);
+        tombstoneChannel = FileChannel.open(tombstones, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        loadTombstones();
+    }
+
+    public MessageSegmentStore(Path dir) throws IOException {
+        this(dir, 64);
+    }
+
+    // Write the messages to a new immutable segment; returns its ID
+    public int writeSegment(Collection<Message> messages) throws IOException {
+        List<RawRecord> records = new ArrayList<>(messages.size());
+        for (Message m : messages) {
+            records.add(new RawRecord(m.getMessageID(), m.getMessageHash(), MessageCodec.encode(MessageCodec.OP_SENT, m)));
+        }
+        synchronized (writeLock) {
+            int id = nextSegmentId++;
+            Path file = segmentFile(id);
+            writeSegmentFile(file, records, 0);
+            segments.put(id, new Segment(id, file));
+            return id;
+        }
+    }
+
+    // First live archived message with the ID, oldest segment first; null if none
+    public MessageCodec.Record findByID(String id) {
+        for (Segment s : segments.values()) {
+            MessageCodec.Record r = s.findByID(id);
+            if (r != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    // Tombstone the first live archived message with the hash and return it; null if none
+    public MessageCodec.Record deleteByHash(String hash) throws IOException {
+        synchronized (writeLock) {
+            for (Segment s : segments.values()) {
+                int offset = s.findByHash(hash);
+                if (offset >= 0) {
+                    ByteBuffer entry = ByteBuffer.allocate(TOMBSTONE_SIZE);
+                    entry.putInt(s.id).putInt(s.generation).putLong(offset).flip();
+                    while (entry.hasRemaining()) {
+                        tombstoneChannel.write(entry, tombstoneChannel.size());
+                    }
+                    tombstoneChannel.force(false);
+                    s.dead.add(offset);
+                    return s.recordAt(offset);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Live records across all segments
+    public long size() {
+        long total = 0;
+        for (Segment s : segments.values()) {
+            total += s.recordCount - s.dead.size();
+        }
+        return total;
+    }
+
+    // Rewrite every segment whose deleted share is at least minDeadRatio without its dead
+    // records. Readers keep using the old mapping until they next look the segment up.
+    // Returns the number of segments rewritten.
+    public int compact(double minDeadRatio) throws IOException {
+        int rewritten = 0;
+        for (Integer id : new ArrayList<>(segments.keySet())) {
+            synchronized (writeLock) {
+                Segment old = segments.get(id);
+                if (old == null || old.dead.isEmpty() || old.deadRatio() < minDeadRatio) {
+                    continue;
+                }
+                List<RawRecord> live = new ArrayList<>(old.recordCount - old.dead.size());
+                ByteBuffer in = old.buf.duplicate();
+                in.position(0).limit(old.recordsEnd);
+                while (in.hasRemaining()) {
+                    int at = in.position();
+                    MessageCodec.Record r = MessageCodec.decode(in);
+                    if (r == null) {
+                        break;
+                    }
+                    if (!old.dead.contains(at)) {
+                        ByteBuffer bytes = old.buf.duplicate();
+                        bytes.position(at).limit(in.position());
+                        live.add(new RawRecord(r.messageID, r.messageHash, bytes.slice()));
+                    }
+                }
+                // The new generation makes any tombstones left for the old file inapplicable
+                Path tmp = dir.resolve("segment-" + id + ".compacting");
+                writeSegmentFile(tmp, live, old.generation + 1);
+                Files.move(tmp, old.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                segments.put(id, new Segment(id, old.file));
+                rewriteTombstones();
+                rewritten++;
+            }
+        }
+        return rewritten;
+    }
+
+    // Run compact(minDeadRatio) in the background every period
+    public synchronized void startCompactor(long period, TimeUnit unit, double minDeadRatio) {
+        if (compactor != null) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact(minDeadRatio);
+            } catch (IOException | RuntimeException e) {
+                // Logged rather than thrown, which would cancel every later run
+                LOG.log(Level.WARNING, "Segment compaction failed", e);
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        synchronized (writeLock) {
+            tombstoneChannel.close();
+        }
+    }
+
+    private void writeSegmentFile(Path file, List<RawRecord> records, int generation) throws IOException {
+        records.sort(Comparator.comparing((RawRecord r) -> r.id));
+        int[] recordOffsets = new int[records.size()];
+        try (CountingOutput out = new CountingOutput(file)) {
+            for (int i = 0; i < records.size(); i++) {
+                recordOffsets[i] = (int) out.position();
+                ByteBuffer b = records.get(i).bytes.duplicate();
+                byte[] copy = new byte[b.remaining()];
+                b.get(copy);
+                out.write(copy);
+            }
+
+            long idIndexOffset = out.position();
+            int idIndexCount = 0;
+            for (int i = 0; i < records.size(); i += sparseEvery) {
+                out.writeKey(records.get(i).id, recordOffsets[i]);
+                idIndexCount++;
+            }
+
+            Integer[] byHash = new Integer[records.size()];
+            for (int i = 0; i < byHash.length; i++) {
+                byHash[i] = i;
+            }
+            Arrays.sort(byHash, Comparator.comparing(i -> records.get(i).hash));
+            long hashListOffset = out.position();
+            long[] entryOffsets = new long[byHash.length];
+            for (int i = 0; i < byHash.length; i++) {
+                entryOffsets[i] = out.position();
+                out.writeKey(records.get(byHash[i]).hash, recordOffsets[byHash[i]]);
+            }
+
+            long hashIndexOffset = out.position();
+            int hashIndexCount = 0;
+            for (int i = 0; i < byHash.length; i += sparseEvery) {
+                out.writeKey(records.get(byHash[i]).hash, entryOffsets[i]);
+                hashIndexCount++;
+            }
+
+            out.data.writeInt(records.size());
+            out.data.writeLong(idIndexOffset);
+            out.data.writeInt(idIndexCount);
+            out.data.writeLong(hashListOffset);
+            out.data.writeLong(hashIndexOffset);
+            out.data.writeInt(hashIndexCount);
+            out.data.writeInt(generation);
+            out.data.writeInt(MAGIC);
+            if (out.position() >= Integer.MAX_VALUE) {
+                throw new IOException("Segment larger than 2 GB; write fewer messages per segment");
+            }
+        }
+    }
+
+    private void loadTombstones() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate((int) tombstoneChannel.size());
+        while (in.hasRemaining() && tombstoneChannel.read(in, in.position()) > 0) {
+        }
+        in.flip();
+        while (in.remaining() >= TOMBSTONE_SIZE) {
+            Segment s = segments.get(in.getInt());
+            int generation = in.getInt();
+            long offset = in.getLong();
+            if (s != null && s.generation == generation) {
+                s.dead.add((int) offset);
+            }
+        }
+    }
+
+    // Replace the tombstone file with just the entries that still apply
+    private void rewriteTombstones() throws IOException {
+        Path tmp = dir.resolve(TOMBSTONE_FILE + ".tmp");
+        try (CountingOutput out = new CountingOutput(tmp)) {
+            for (Segment s : segments.values()) {
+                for (int offset : s.dead) {
+                    out.data.writeInt(s.id);
+                    out.data.writeInt(s.generation);
+                    out.data.writeLong(offset);
+                }
+            }
+        }
+        tombstoneChannel.close();
+        Path file = dir.resolve(TOMBSTONE_FILE);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tombstoneChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentFile(int id) {
+        return dir.resolve(String.format("segment-%08d.seg", id));
+    }
+
+    private static int segmentIdOf(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".seg".length()));
+    }
+
+    // Index of the last key strictly less than the wanted key, or -1
+    private static int lowerIndex(String[] keys, String wanted) {
+        int lo = 0, hi = keys.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(wanted) < 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Buffered file output that tracks its byte position and fsyncs on close
+    private static final class CountingOutput implements Closeable {
+        final FileChannel channel;
+        final DataOutputStream data;
+
+        CountingOutput(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        }
+
+        long position() {
+            return data.size() & 0xFFFFFFFFL;
+        }
+
+        void write(byte[] b) throws IOException {
+            data.write(b);
+        }
+
+        void writeKey(String key, long offset) throws IOException {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(k.length);
+            data.write(k);
+            data.writeLong(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.flush();
+            channel.force(true);
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class MessageSegmentStoreTest {
+
+    private Path dir;
+    private MessageSegmentStore store;
+    private List<Message> messages;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("segments");
+        store = new MessageSegmentStore(dir, 16);
+        messages = new ArrayList<>();
+        // Written out of ID order on purpose; the segment sorts them
+        for (int i = 999; i >= 0; i--) {
+            messages.add(new Message(String.format("MSG%04d", i), "+2782" + (i % 7), "Word" + i + " text end" + i));
+        }
+        store.writeSegment(messages);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Message.stopArchiving();
+        store.close();
+        Message.setArchive(null);
+        Message.sentMessages.clear();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testFindByIDAcrossSparseBlocks() {
+        for (int i : new int[]{0, 15, 16, 17, 500, 999}) {
+            MessageCodec.Record r = store.findByID(String.format("MSG%04d", i));
+            assertNotNull(r);
+            assertEquals("Word" + i + " text end" + i, r.messageText);
+        }
+        assertNull(store.findByID("MSG5000"));
+        assertNull(store.findByID("AAA"));
+    }
+
+    @Test
+    public void testDeleteByHashWritesTombstoneThatSurvivesReopen() throws IOException {
+        Message target = messages.get(123);
+        assertNotNull(store.deleteByHash(target.getMessageHash()));
+        assertNull(store.findByID(target.getMessageID()));
+        assertNull(store.deleteByHash(target.getMessageHash()));
+
+        store.close();
+        store = new MessageSegmentStore(dir, 16);
+        assertNull(store.findByID(target.getMessageID()));
+        assertEquals(999, store.size());
+    }
+
+    @Test
+    public void testCompactionReclaimsDeletedRecords() throws IOException {
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(p -> p.getFileName().toString().startsWith("segment-")).findFirst().get();
+        }
+        long before = Files.size(segment);
+        for (int i = 0; i < 500; i++) {
+            store.deleteByHash(messages.get(i).getMessageHash());
+        }
+        assertEquals(1, store.compact(0.25));
+        assertTrue(Files.size(segment) < before);
+        assertEquals(500, store.size());
+        assertNull(store.findByID(messages.get(10).getMessageID()));
+        assertNotNull(store.findByID(messages.get(900).getMessageID()));
+
+        // Reopening must not apply the old generation's tombstones to the new file
+        store.close();
+        store = new MessageSegmentStore(dir, 16);
+        assertEquals(500, store.size());
+    }
+
+    @Test
+    public void testMessageSearchFallsBackToArchive() throws IOException {
+        Message.setArchive(store);
+        Message.sentMessages.clear();
+        Message live = new Message("MSG432", "+27821234567", "Archive me please");
+        live.sentMessage();
+        int ids = Message.messageIDs.count("MSG432");
+        int hashes = Message.messageHashes.count(live.getMessageHash());
+        assertEquals(1, Message.archiveSentMessages());
+        assertTrue(Message.sentMessages.isEmpty());
+        // Only messages held in memory are counted there
+        assertEquals(ids - 1, Message.messageIDs.count("MSG432"));
+        assertEquals(hashes - 1, Message.messageHashes.count(live.getMessageHash()));
+
+        assertEquals("Archive me please", Message.searchMessageByID("MSG432"));
+        assertEquals("Message successfully deleted.", Message.deleteMessageByHash(live.getMessageHash()));
+        assertEquals("Message ID not found", Message.searchMessageByID("MSG432"));
+    }
+
+    @Test
+    public void testArchivingCheckpointsTheLog() throws IOException {
+        Path log = dir.resolve("quickchat.wal");
+        Message.setArchive(store);
+        Message.sentMessages.clear();
+        Message.enablePersistence(log, MessageLog.Durability.SYNC);
+        try {
+            new Message("MSG433", "+27821234567", "Old history").sentMessage();
+            Message.storedMessages.add(new Message("MSG434", "+27821234567", "Still pending"));
+            Message.archiveSentMessages();
+        } finally {
+            Message.disablePersistence();
+            Message.storedMessages.clear();
+        }
+        // Only the stored message is left to replay; the sent one lives in the archive
+        List<MessageCodec.Record> records = new ArrayList<>();
+        MessageLog.replay(log, records::add);
+        assertEquals(1, records.size());
+        assertEquals(MessageCodec.OP_STORED, records.get(0).op);
+        assertEquals("Old history", Message.searchMessageByID("MSG433"));
+    }
+
+    @Test
+    public void testArchivingKeepsTheNewestInMemory() throws IOException {
+        Message.setArchive(store);
+        Message.sentMessages.clear();
+        for (int i = 0; i < 5; i++) {
+            new Message("MSG" + (440 + i), "+27821234567", "History " + i).sentMessage();
+        }
+        assertEquals(3, Message.archiveSentMessages(2));
+        assertEquals(2, Message.sentMessages.size());
+        assertNull(Message.sentMessages.findByID("MSG440", false));
+        assertNotNull(Message.sentMessages.findByID("MSG444", false));
+        assertEquals("History 0", Message.searchMessageByID("MSG440"));
+        assertEquals(0, Message.archiveSentMessages(2));
+    }
+
+    @Test
+    public void testServiceSearchFallsBackToArchive() throws IOException {
+        Message.setArchive(store);
+        Message.sentMessages.clear();
+        new Message("MSG450", "+27821234567", "Find me later").sentMessage();
+        Message.archiveSentMessages();
+        try (QuickChatService service = new QuickChatService()) {
+            Message found = service.searchByID("msg450").join().get();
+            assertEquals("Find me later", found.getMessageText());
+            assertTrue(found.isSent());
+            assertFalse(service.searchByID("MSG451").join().isPresent());
+        }
+    }
+
+    @Test
+    public void testBackgroundArchivingMovesOldMessages() throws Exception {
+        Message.setArchive(store);
+        Message.sentMessages.clear();
+        for (int i = 0; i < 4; i++) {
+            new Message("MSG" + (460 + i), "+27821234567", "Background " + i).sentMessage();
+        }
+        Message.startArchiving(10, TimeUnit.MILLISECONDS, 1);
+        LocalGatewayTest.waitFor(() -> Message.sentMessages.size() == 1);
+        assertNotNull(Message.sentMessages.findByID("MSG463", false));
+        assertEquals("Background 0", Message.searchMessageByID("MSG460"));
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Statistics kept up to date by store listeners, so queries never scan the stores:
+// counts per status (which store a message is in), and for sent messages the longest
+// message, counts per recipient and a histogram of text lengths.
+//
+// The longest message comes from an ordered multiset of (length, arrival) entries, so a
+// delete simply drops its entry and the next longest is found in O(log n).
+public class MessageStatistics {
+    public enum Status {
+        SENT, STORED, DISREGARDED
+    }
+
+    // Lengths are bucketed in steps of this many characters; the last bucket is open-ended
+    public static final int BUCKET_WIDTH = 10;
+    public static final int BUCKETS = 32;
+
+    // Sort key of one sent message in the longest-message ordering
+    private static final class Entry {
+        final int length;
+        final long arrival;
+
+        Entry(int length, long arrival) {
+            this.length = length;
+            this.arrival = arrival;
+        }
+    }
+
+    // Longest first; among equal lengths the earliest sent, as getLongestMessage has always picked
+    private static final Comparator<Entry> LONGEST_FIRST = (a, b) -> a.length != b.length
+            ? Integer.compare(b.length, a.length) : Long.compare(a.arrival, b.arrival);
+
+    private final Map<Status, AtomicLong> counts = new EnumMap<>(Status.class);
+    private final AtomicLong arrivals = new AtomicLong();
+    private final ConcurrentSkipListMap<Entry, Message> byLength = new ConcurrentSkipListMap<>(LONGEST_FIRST);
+    // Message does not override equals, so this map works on object identity
+    private final ConcurrentMap<Message, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> perRecipient = new ConcurrentHashMap<>();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    public MessageStatistics() {
+        for (Status status : Status.values()) {
+            counts.put(status, new AtomicLong());
+        }
+    }
+
+    // Count everything added to or removed from the store under the given status
+    public void attach(MessageStore store, Status status) {
+        AtomicLong count = counts.get(status);
+        store.addListener(new MessageStore.Listener() {
+            @Override
+            public void added(Message m) {
+                count.incrementAndGet();
+                if (status == Status.SENT) {
+                    sentAdded(m);
+                }
+            }
+
+            @Override
+            public void removed(Message m) {
+                count.decrementAndGet();
+                if (status == Status.SENT) {
+                    sentRemoved(m);
+                }
+            }
+        });
+    }
+
+    public long getCount(Status status) {
+        return counts.get(status).get();
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (AtomicLong c : counts.values()) {
+            total += c.get();
+        }
+        return total;
+    }
+
+    // The longest sent message, or null if none
+    public Message getLongestSent() {
+        Map.Entry<Entry, Message> first = byLength.firstEntry();
+        return first != null ? first.getValue() : null;
+    }
+
+    public long getRecipientCount(String recipient) {
+        return recipient != null ? perRecipient.getOrDefault(recipient, 0L) : 0;
+    }
+
+    // Number of distinct recipients with at least one sent message
+    public int getRecipientTotal() {
+        return perRecipient.size();
+    }
+
+    // Sent messages per length bucket: bucket i counts lengths [i * BUCKET_WIDTH, (i + 1) * BUCKET_WIDTH),
+    // and the last bucket everything longer
+    public long[] getLengthHistogram() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = histogram.get(i);
+        }
+        return copy;
+    }
+
+    public static int bucketOf(int length) {
+        return Math.min(length / BUCKET_WIDTH, BUCKETS - 1);
+    }
+
+    private void sentAdded(Message m) {
+        int length = lengthOf(m);
+        Entry e = new Entry(length, arrivals.incrementAndGet());
+        if (entries.putIfAbsent(m, e) != null) {
+            return;
+        }
+        byLength.put(e, m);
+        perRecipient.merge(String.valueOf(m.getRecipient()), 1L, Long::sum);
+        histogram.incrementAndGet(bucketOf(length));
+    }
+
+    private void sentRemoved(Message m) {
+        Entry e = entries.remove(m);
+        if (e == null) {
+            return;
+        }
+        byLength.remove(e);
+        perRecipient.computeIfPresent(String.valueOf(m.getRecipient()), (k, n) -> n == 1 ? null : n - 1);
+        histogram.decrementAndGet(bucketOf(e.length));
+    }
+
+    private static int lengthOf(Message m) {
+        String text = m.getMessageText();
+        return text != null ? text.length() : 0;
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageStatisticsTest {
+
+    private MessageStatistics stats;
+    private MessageStore sent, stored, disregarded;
+
+    @Before
+    public void setUp() {
+        stats = new MessageStatistics();
+        sent = new MessageStore();
+        stored = new MessageStore();
+        disregarded = new MessageStore();
+        stats.attach(sent, MessageStatistics.Status.SENT);
+        stats.attach(stored, MessageStatistics.Status.STORED);
+        stats.attach(disregarded, MessageStatistics.Status.DISREGARDED);
+    }
+
+    @Test
+    public void testLongestSurvivesDeletes() {
+        Message shortMsg = new Message("MSG101", "+27821234567", "Hi");
+        Message longMsg = new Message("MSG102", "+27821234567", "Where are you? You are late!");
+        Message tie = new Message("MSG103", "+27711223344", "Where are you? You are done!");
+        sent.add(shortMsg);
+        sent.add(longMsg);
+        sent.add(tie);
+        // Ties go to the earliest sent
+        assertSame(longMsg, stats.getLongestSent());
+        sent.remove(longMsg);
+        assertSame(tie, stats.getLongestSent());
+        sent.remove(tie);
+        assertSame(shortMsg, stats.getLongestSent());
+        sent.clear();
+        assertNull(stats.getLongestSent());
+    }
+
+    @Test
+    public void testCountsFollowEveryStore() {
+        Message a = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message b = new Message("MSG102", "+27821234567", "It is dinner time!");
+        Message c = new Message("MSG103", "+27711223344", "Ok");
+        sent.add(a);
+        sent.add(b);
+        stored.add(c);
+        disregarded.add(new Message("MSG104", "0831234567", "Bad"));
+
+        assertEquals(2, stats.getCount(MessageStatistics.Status.SENT));
+        assertEquals(1, stats.getCount(MessageStatistics.Status.STORED));
+        assertEquals(1, stats.getCount(MessageStatistics.Status.DISREGARDED));
+        assertEquals(4, stats.getTotal());
+        assertEquals(2, stats.getRecipientCount("+27821234567"));
+        assertEquals(0, stats.getRecipientCount("+27711223344"));
+
+        sent.remove(a);
+        assertEquals(1, stats.getRecipientCount("+27821234567"));
+        sent.remove(b);
+        assertEquals(0, stats.getRecipientCount("+27821234567"));
+        assertEquals(0, stats.getRecipientTotal());
+    }
+
+    @Test
+    public void testLengthHistogram() {
+        sent.add(new Message("MSG101", "+27821234567", "Hi"));
+        sent.add(new Message("MSG102", "+27821234567", "Twelve chars"));
+        Message longOne = new Message("MSG103", "+27821234567", "x".repeat(1000));
+        sent.add(longOne);
+        long[] histogram = stats.getLengthHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[MessageStatistics.BUCKETS - 1]);
+        sent.remove(longOne);
+        assertEquals(0, stats.getLengthHistogram()[MessageStatistics.BUCKETS - 1]);
+    }
+
+    @Test
+    public void testConcurrentAddAndRemoveStayConsistent() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    Message m = new Message("MSG" + (100 + i % 900), "+2782" + thread, "t" + thread + " " + "y".repeat(i % 40));
+                    sent.add(m);
+                    if (i % 2 == 0) {
+                        sent.remove(m);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        assertEquals(4000, stats.getCount(MessageStatistics.Status.SENT));
+        long total = 0;
+        for (long n : stats.getLengthHistogram()) {
+            total += n;
+        }
+        assertEquals(4000, total);
+        assertEquals(1000, stats.getRecipientCount("+27820"));
+        assertEquals(3 + 39, stats.getLongestSent().getMessageText().length());
+    }
+}
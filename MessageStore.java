@@ -0,0 +1,343 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Thread-safe, insertion-ordered collection of messages with hash indexes by ID, hash and recipient.
+// Lookups and deletes touch only the matching index bucket instead of scanning every message.
+// Writers never take a global lock: each message gets a sequence number from an AtomicLong,
+// the ordered view is a skip list, and index buckets are updated with per-bin compute calls.
+//
+// With a CompactMessageStore backend, add copies each message into the column store and
+// holds its CompactMessage view instead, so message text lives off the heap and the added
+// object can be collected once the caller drops it. Lookups return the views. Until then the
+// added object still finds its view for contains, remove and updated, and flag changes made
+// through it are copied into the row; changes made through a view don't show on that object.
+public class MessageStore extends AbstractCollection<Message> {
+    private final AtomicLong sequence = new AtomicLong();
+    // Message does not override equals, so this map works on object identity
+    private final ConcurrentMap<Message, Long> sequenceOf = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Message> ordered = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> byID = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> byHash = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> byRecipient = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Column store the messages are copied into, null to hold the added objects
+    private volatile CompactMessageStore backend;
+    // Added object -> its view, while the caller still holds it; only used with a backend
+    private final Map<Message, Message> copies = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public MessageStore() {
+    }
+
+    public MessageStore(CompactMessageStore backend) {
+        this.backend = backend;
+    }
+
+    // Notified after every successful add or remove, and after a held message's flags
+    // change, on the calling thread
+    public interface Listener {
+        void added(Message m);
+
+        void removed(Message m);
+
+        default void updated(Message m) {
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Hold later messages in the column store, or the added objects again if null. Only
+    // while the store is empty, so every message it holds has the same form.
+    public synchronized void setBackend(CompactMessageStore backend) {
+        if (!isEmpty()) {
+            throw new IllegalStateException("Backend can only change while the store is empty");
+        }
+        this.backend = backend;
+        copies.clear();
+    }
+
+    public CompactMessageStore backend() {
+        return backend;
+    }
+
+    // Add a message and index it; safe to call from many threads at once
+    @Override
+    public boolean add(Message message) {
+        Message m = message;
+        CompactMessageStore b = backend;
+        if (b != null && !b.holds(m)) {
+            synchronized (copies) {
+                Message copy = copies.get(message);
+                if (copy != null && sequenceOf.containsKey(copy)) {
+                    return false;
+                }
+                m = b.view(b.add(message));
+                // Kept on the view, which lives as long as the store holds it
+                m.setDisregardReason(message.getDisregardReason());
+                m.stampTimestamp(message.getTimestamp());
+                copies.put(message, m);
+            }
+        }
+        long seq = sequence.incrementAndGet();
+        if (sequenceOf.putIfAbsent(m, seq) != null) {
+            return false;
+        }
+        ordered.put(seq, m);
+        index(byID, m.getMessageID(), seq, m);
+        index(byHash, m.getMessageHash(), seq, m);
+        index(byRecipient, m.getRecipient(), seq, m);
+        for (Listener l : listeners) {
+            l.added(m);
+        }
+        return true;
+    }
+
+    // Remove a message and drop it from every index
+    @Override
+    public boolean remove(Object o) {
+        Object held = heldFor(o);
+        Long seq = sequenceOf.remove(held);
+        if (seq == null) {
+            return false;
+        }
+        Message m = (Message) held;
+        if (held != o) {
+            copies.remove(o);
+        }
+        CompactMessageStore b = backend;
+        if (b != null && b.holds(m)) {
+            b.remove(((CompactMessage) m).getHandle());
+        }
+        ordered.remove(seq);
+        unindex(byID, m.getMessageID(), seq);
+        unindex(byHash, m.getMessageHash(), seq);
+        unindex(byRecipient, m.getRecipient(), seq);
+        for (Listener l : listeners) {
+            l.removed(m);
+        }
+        return true;
+    }
+
+    // Tell listeners a message changed state; ignored unless this store holds it
+    public void updated(Message m) {
+        Message held = (Message) heldFor(m);
+        if (sequenceOf.containsKey(held)) {
+            if (held != m) {
+                copyState(m, held);
+            }
+            for (Listener l : listeners) {
+                l.updated(held);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return sequenceOf.containsKey(heldFor(o));
+    }
+
+    @Override
+    public void clear() {
+        for (Message m : ordered.values()) {
+            remove(m);
+        }
+    }
+
+    @Override
+    public int size() {
+        return sequenceOf.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return sequenceOf.isEmpty();
+    }
+
+    // Weakly consistent iteration in insertion order; Iterator.remove keeps indexes in sync
+    @Override
+    public Iterator<Message> iterator() {
+        Iterator<Message> it = ordered.values().iterator();
+        return new Iterator<Message>() {
+            private Message current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Message next() {
+                current = it.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                MessageStore.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    // Point-in-time copy for readers such as reports: holds every message whose add
+    // finished before the call and nothing added afterwards
+    public List<Message> snapshot() {
+        return new ArrayList<>(ordered.headMap(sequence.get(), true).values());
+    }
+
+    // Sequence number of the newest add so far; a cursor at this value sees nothing added later
+    public long watermark() {
+        return sequence.get();
+    }
+
+    // Pass up to limit messages with sequence numbers in (after, upTo] to the action, in
+    // insertion order, without copying the store. Returns the sequence of the last message
+    // passed, or after if there were none, so the result is the cursor for the next page.
+    public long forEach(long after, long upTo, int limit, Consumer<? super Message> action) {
+        long last = after;
+        int n = 0;
+        for (Map.Entry<Long, Message> e : ordered.subMap(after, false, upTo, true).entrySet()) {
+            if (n++ == limit) {
+                break;
+            }
+            action.accept(e.getValue());
+            last = e.getKey();
+        }
+        return last;
+    }
+
+    // First message with the given ID, or null
+    public Message findByID(String id, boolean ignoreCase) {
+        return first(byID, Message::getMessageID, id, ignoreCase);
+    }
+
+    // Oldest message with the given ID that passes the filter, or null
+    public Message findByID(String id, boolean ignoreCase, Predicate<? super Message> filter) {
+        ConcurrentSkipListMap<Long, Message> bucket = byID.get(foldCase(id));
+        if (bucket != null) {
+            for (Message m : bucket.values()) {
+                if (matches(m.getMessageID(), id, ignoreCase) && filter.test(m)) {
+                    return m;
+                }
+            }
+        }
+        return null;
+    }
+
+    // First message with the given hash, or null
+    public Message findByHash(String hash, boolean ignoreCase) {
+        return first(byHash, Message::getMessageHash, hash, ignoreCase);
+    }
+
+    // All messages sent to the recipient, in insertion order
+    public List<Message> findByRecipient(String recipient, boolean ignoreCase) {
+        List<Message> results = new ArrayList<>();
+        ConcurrentSkipListMap<Long, Message> bucket = byRecipient.get(foldCase(recipient));
+        if (bucket != null) {
+            for (Message m : bucket.values()) {
+                if (matches(m.getRecipient(), recipient, ignoreCase)) {
+                    results.add(m);
+                }
+            }
+        }
+        return results;
+    }
+
+    // Remove and return the first message with the given hash, or null if none.
+    // If another thread deletes the same message first, the next match is tried.
+    public Message removeByHash(String hash, boolean ignoreCase) {
+        Message m;
+        while ((m = findByHash(hash, ignoreCase)) != null) {
+            if (remove(m)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    // The view an added object was copied to, or the object itself
+    private Object heldFor(Object o) {
+        if (backend == null || !(o instanceof Message)) {
+            return o;
+        }
+        Message copy = copies.get(o);
+        return copy != null ? copy : o;
+    }
+
+    private static void copyState(Message from, Message to) {
+        while (true) {
+            int s = to.state();
+            int update = from.state();
+            if (s == update || to.compareAndSetState(s, update)) {
+                return;
+            }
+        }
+    }
+
+    private static void index(ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> index,
+                              String key, long seq, Message m) {
+        index.compute(foldCase(key), (k, bucket) -> {
+            if (bucket == null) {
+                bucket = new ConcurrentSkipListMap<>();
+            }
+            bucket.put(seq, m);
+            return bucket;
+        });
+    }
+
+    private static void unindex(ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> index,
+                                String key, long seq) {
+        index.computeIfPresent(foldCase(key), (k, bucket) -> {
+            bucket.remove(seq);
+            return bucket.isEmpty() ? null : bucket;
+        });
+    }
+
+    // Buckets are case-folded; exact lookups filter the (small) bucket afterwards
+    private static Message first(ConcurrentMap<String, ConcurrentSkipListMap<Long, Message>> index,
+                                 Function<Message, String> field, String key, boolean ignoreCase) {
+        ConcurrentSkipListMap<Long, Message> bucket = index.get(foldCase(key));
+        if (bucket != null) {
+            for (Message m : bucket.values()) {
+                if (matches(field.apply(m), key, ignoreCase)) {
+                    return m;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String actual, String wanted, boolean ignoreCase) {
+        if (actual == null || wanted == null) {
+            return actual == wanted;
+        }
+        return ignoreCase ? actual.equalsIgnoreCase(wanted) : actual.equals(wanted);
+    }
+
+    // Same folding String.equalsIgnoreCase applies per character
+    static String foldCase(String key) {
+        if (key == null) {
+            return "";
+        }
+        char[] chars = key.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+}
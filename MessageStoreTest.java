@@ -0,0 +1,112 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageStoreTest {
+
+    private MessageStore store;
+    private Message msg1, msg2, msg3;
+
+    @Before
+    public void setUp() {
+        store = new MessageStore();
+        msg1 = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        msg2 = new Message("MSG102", "+27821234567", "It is dinner time!");
+        msg3 = new Message("MSG103", "+27711223344", "Ok, I am leaving without you.");
+        store.addAll(Arrays.asList(msg1, msg2, msg3));
+    }
+
+    @Test
+    public void testFindByID() {
+        assertSame(msg2, store.findByID("MSG102", false));
+        assertNull(store.findByID("msg102", false));
+        assertSame(msg2, store.findByID("msg102", true));
+    }
+
+    @Test
+    public void testFindByRecipientKeepsInsertionOrder() {
+        assertEquals(Arrays.asList(msg1, msg2), store.findByRecipient("+27821234567", false));
+        assertTrue(store.findByRecipient("+27000000000", true).isEmpty());
+    }
+
+    @Test
+    public void testRemoveByHashUpdatesEveryIndex() {
+        // Deleting by hash must also drop the message from the ID and recipient indexes
+        assertSame(msg1, store.removeByHash(msg1.getMessageHash(), false));
+        assertEquals(2, store.size());
+        assertNull(store.findByID("MSG101", false));
+        assertEquals(Arrays.asList(msg2), store.findByRecipient("+27821234567", false));
+        assertNull(store.removeByHash(msg1.getMessageHash(), false));
+    }
+
+    @Test
+    public void testIteratorRemoveUpdatesIndexes() {
+        store.removeIf(m -> m == msg3);
+        assertNull(store.findByHash(msg3.getMessageHash(), true));
+        assertEquals(Arrays.asList(msg1, msg2), Arrays.asList(store.toArray()));
+    }
+
+    @Test
+    public void testKeyMultisetRemovesOneOccurrence() {
+        KeyMultiset keys = new KeyMultiset();
+        keys.add("A");
+        keys.add("A");
+        keys.remove("A");
+        assertTrue(keys.contains("A"));
+        keys.remove("A");
+        assertFalse(keys.contains("A"));
+        assertEquals(0, keys.size());
+    }
+
+    @Test
+    public void testConcurrentSendersAndDeletes() throws Exception {
+        // Many threads add at once while others delete every second message by hash
+        MessageStore shared = new MessageStore();
+        int threads = 8, perThread = 5_000;
+        Message[][] batches = new Message[threads][perThread];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                batches[t][i] = new Message("MSG" + t + "_" + i, "+2782" + t, i + " from thread " + t);
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Message[] batch : batches) {
+            futures.add(pool.submit(() -> {
+                for (Message m : batch) {
+                    shared.add(m);
+                }
+                for (int i = 0; i < batch.length; i += 2) {
+                    assertSame(batch[i], shared.removeByHash(batch[i].getMessageHash(), false));
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        assertEquals(threads * perThread / 2, shared.size());
+        assertEquals(shared.size(), shared.snapshot().size());
+        for (int t = 0; t < threads; t++) {
+            List<Message> forRecipient = shared.findByRecipient("+2782" + t, false);
+            assertEquals(perThread / 2, forRecipient.size());
+            assertSame(batches[t][1], forRecipient.get(0));
+            assertNull(shared.findByID("MSG" + t + "_0", false));
+        }
+    }
+
+    @Test
+    public void testSnapshotIsPointInTime() {
+        List<Message> snapshot = store.snapshot();
+        store.add(new Message("MSG104", "+27711223344", "Late addition"));
+        assertEquals(3, snapshot.size());
+        assertEquals(4, store.snapshot().size());
+    }
+}
@@ -0,0 +1,515 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keyword index over message text. Each message gets an increasing doc number; each word
+// maps to a posting list of the doc numbers containing it, stored as delta-encoded varints
+// (most gaps fit in one byte). Attach it to a store and it follows every add and remove.
+//
+// Queries are words separated by spaces (all must match), groups separated by OR (any may
+// match), and a trailing * for a prefix:  "cake dinner OR late*"
+// Words are runs of letters and digits, matched case-insensitively.
+//
+// Removing a message only clears its doc slot; its postings are dropped from the lists the
+// next time compact() runs, which happens automatically, on a background thread, once half
+// the postings are dead.
+public class MessageTextIndex implements MessageStore.Listener {
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // Runs the automatic compactions, so the remove that crosses the threshold doesn't wait
+    // for them; its one thread exits when idle
+    private static final ThreadPoolExecutor COMPACTOR = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "message-text-index-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        COMPACTOR.allowCoreThreadTimeOut(true);
+    }
+
+    // Append-only list of doc numbers, delta-varint encoded. Appends are serialised by the
+    // postings map's bin lock; readers never lock: they read size, then the array, and the
+    // array is always published before the size that covers it. Compaction replaces the
+    // whole list rather than rewriting it in place.
+    //
+    // Doc numbers are taken before the appends, so concurrent adds can append a little out
+    // of order. A backwards gap is written as a negative number, which takes five varint
+    // bytes and decodes back exactly; a list that ever had one is sorted after decoding, and
+    // compaction writes it out in order again.
+    static final class PostingList {
+        private volatile byte[] data = new byte[8];
+        private volatile int size;
+        private volatile int count;
+        // Written before the size that covers the out-of-order doc, so a reader sees it
+        private volatile boolean unordered;
+        private int last = -1;
+
+        void append(int doc) {
+            if (doc < last) {
+                unordered = true;
+            }
+            int gap = last < 0 ? doc : doc - last;
+            byte[] d = data;
+            int pos = size;
+            if (pos + 5 > d.length) {
+                d = Arrays.copyOf(d, Math.max(d.length * 2, pos + 5));
+                data = d;
+            }
+            while ((gap & ~0x7F) != 0) {
+                d[pos++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            d[pos++] = (byte) gap;
+            last = doc;
+            count++;
+            size = pos;
+        }
+
+        // Decode every doc number appended so far
+        int[] decode() {
+            int end = size;
+            byte[] d = data;
+            int[] docs = new int[count];
+            int n = 0, doc = -1, pos = 0;
+            while (pos < end) {
+                int gap = 0, shift = 0;
+                byte b;
+                do {
+                    b = d[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc = doc < 0 ? gap : doc + gap;
+                if (n == docs.length) {
+                    docs = Arrays.copyOf(docs, n * 2 + 1);
+                }
+                docs[n++] = doc;
+            }
+            if (n != docs.length) {
+                docs = Arrays.copyOf(docs, n);
+            }
+            if (unordered) {
+                Arrays.sort(docs);
+            }
+            return docs;
+        }
+
+        // Copy holding only the docs that are still live
+        PostingList withoutRemoved(MessageTextIndex index) {
+            PostingList live = new PostingList();
+            for (int doc : decode()) {
+                if (index.docAt(doc) != null) {
+                    live.append(doc);
+                }
+            }
+            return live;
+        }
+
+        int bytes() {
+            return size;
+        }
+    }
+
+    private final ConcurrentMap<String, PostingList> postings = new ConcurrentHashMap<>();
+    // Sorted view of the words, for prefix queries
+    private final NavigableSet<String> terms = new ConcurrentSkipListSet<>();
+    // Doc number of every indexed message; Message does not override equals, so this is by identity
+    private final ConcurrentMap<Message, Integer> docOf = new ConcurrentHashMap<>();
+    // Doc number -> message, in fixed-size chunks so growth never copies existing slots
+    private volatile AtomicReferenceArray<AtomicReferenceArray<Message>> chunks = new AtomicReferenceArray<>(16);
+    private final Object chunkLock = new Object();
+    private final AtomicInteger nextDoc = new AtomicInteger();
+    private final AtomicLong livePostings = new AtomicLong();
+    private final AtomicLong deadPostings = new AtomicLong();
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    // Index everything already in the store, then follow its changes
+    public void attach(MessageStore store) {
+        store.addListener(this);
+        for (Message m : store.snapshot()) {
+            added(m);
+        }
+    }
+
+    @Override
+    public void added(Message m) {
+        String text = m.getMessageText();
+        if (text == null) {
+            return;
+        }
+        int doc = nextDoc.getAndIncrement();
+        if (docOf.putIfAbsent(m, doc) != null) {
+            return;
+        }
+        slot(doc, true).set(doc & (CHUNK_SIZE - 1), m);
+        for (String word : distinctWords(text)) {
+            // Append under the map's bin lock, so compact can't drop the list in between
+            postings.compute(word, (w, list) -> {
+                if (list == null) {
+                    terms.add(w);
+                    list = new PostingList();
+                }
+                list.append(doc);
+                return list;
+            });
+            livePostings.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void removed(Message m) {
+        Integer doc = docOf.remove(m);
+        if (doc == null) {
+            return;
+        }
+        slot(doc, false).set(doc & (CHUNK_SIZE - 1), null);
+        int words = distinctWords(m.getMessageText()).size();
+        livePostings.addAndGet(-words);
+        if (deadPostings.addAndGet(words) > Math.max(1024, livePostings.get()) && compactionQueued.compareAndSet(false, true)) {
+            COMPACTOR.execute(() -> {
+                try {
+                    compact();
+                } finally {
+                    compactionQueued.set(false);
+                }
+            });
+        }
+    }
+
+    // Messages matching the query, oldest first
+    public List<Message> search(String query) {
+        int[] docs = evaluate(Query.parse(query));
+        List<Message> results = new ArrayList<>(docs.length);
+        for (int doc : docs) {
+            Message m = docAt(doc);
+            if (m != null) {
+                results.add(m);
+            }
+        }
+        return results;
+    }
+
+    // Messages containing every word
+    public List<Message> all(String... words) {
+        return search(String.join(" ", words));
+    }
+
+    // Messages containing any of the words
+    public List<Message> any(String... words) {
+        return search(String.join(" OR ", words));
+    }
+
+    // Messages containing a word that starts with prefix
+    public List<Message> prefix(String prefix) {
+        return search(prefix + "*");
+    }
+
+    public int size() {
+        return docOf.size();
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    // Encoded size of all posting lists
+    public long postingBytes() {
+        long bytes = 0;
+        for (PostingList list : postings.values()) {
+            bytes += list.bytes();
+        }
+        return bytes;
+    }
+
+    // Drop postings of removed messages, and words no message uses any more
+    public synchronized void compact() {
+        for (String term : terms) {
+            // Swap in a rewritten list under the bin lock that appends take, so none is lost;
+            // readers still decoding the old list see it unchanged
+            postings.computeIfPresent(term, (t, list) -> {
+                PostingList live = list.withoutRemoved(this);
+                deadPostings.addAndGet(-(list.count - live.count));
+                if (live.count == 0) {
+                    terms.remove(t);
+                    return null;
+                }
+                return live;
+            });
+        }
+    }
+
+    // A parsed query: OR of groups, each an AND of words or prefixes
+    static final class Query {
+        final List<List<String>> groups;
+
+        private Query(List<List<String>> groups) {
+            this.groups = groups;
+        }
+
+        static Query parse(String query) {
+            List<List<String>> groups = new ArrayList<>();
+            List<String> group = new ArrayList<>();
+            for (String token : query.trim().split("\\s+")) {
+                if (token.equals("OR")) {
+                    if (!group.isEmpty()) {
+                        groups.add(group);
+                        group = new ArrayList<>();
+                    }
+                } else if (!token.isEmpty()) {
+                    boolean isPrefix = token.endsWith("*");
+                    String word = normalize(isPrefix ? token.substring(0, token.length() - 1) : token);
+                    if (!word.isEmpty()) {
+                        group.add(isPrefix ? word + "*" : word);
+                    }
+                }
+            }
+            if (!group.isEmpty()) {
+                groups.add(group);
+            }
+            return new Query(groups);
+        }
+
+        // Linear evaluation against one text, for scans and for checking the index
+        boolean matches(String text) {
+            List<String> words = distinctWords(text);
+            for (List<String> group : groups) {
+                boolean all = true;
+                for (String term : group) {
+                    boolean found = false;
+                    for (String w : words) {
+                        if (term.endsWith("*") ? w.startsWith(term.substring(0, term.length() - 1)) : w.equals(term)) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    if (!found) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // True if text matches the query; the same answer search gives, by a linear check
+    public static boolean matches(String query, String text) {
+        return text != null && Query.parse(query).matches(text);
+    }
+
+    private int[] evaluate(Query query) {
+        int[] result = new int[0];
+        for (List<String> group : query.groups) {
+            result = union(result, evaluateGroup(group));
+        }
+        return result;
+    }
+
+    // AND of the group's terms. Starts from the rarest exact word; once the candidates are
+    // few compared with a term's postings, checks the candidates' own words instead of
+    // decoding that term's whole list.
+    private int[] evaluateGroup(List<String> group) {
+        List<String> ordered = new ArrayList<>(group);
+        ordered.sort((a, b) -> Long.compare(estimate(a), estimate(b)));
+        int[] docs = null;
+        for (String term : ordered) {
+            boolean isPrefix = term.endsWith("*");
+            String word = isPrefix ? term.substring(0, term.length() - 1) : term;
+            if (docs == null) {
+                docs = isPrefix ? prefixDocs(word) : termDocs(word);
+            } else if (!isPrefix && docs.length * 8L >= estimate(term)) {
+                docs = intersect(docs, termDocs(word));
+            } else {
+                docs = filter(docs, word, isPrefix);
+            }
+            if (docs.length == 0) {
+                break;
+            }
+        }
+        return docs != null ? docs : new int[0];
+    }
+
+    // Postings in an exact word's list; prefixes count as unbounded so they are evaluated last
+    private long estimate(String term) {
+        if (term.endsWith("*")) {
+            return Long.MAX_VALUE;
+        }
+        PostingList list = postings.get(term);
+        return list != null ? list.count : 0;
+    }
+
+    // Keep the docs whose message has the word (or a word starting with it)
+    private int[] filter(int[] docs, String word, boolean isPrefix) {
+        int[] out = new int[docs.length];
+        int n = 0;
+        for (int doc : docs) {
+            Message m = docAt(doc);
+            if (m == null) {
+                continue;
+            }
+            for (String w : distinctWords(m.getMessageText())) {
+                if (isPrefix ? w.startsWith(word) : w.equals(word)) {
+                    out[n++] = doc;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private int[] termDocs(String word) {
+        PostingList list = postings.get(word);
+        return list != null ? list.decode() : new int[0];
+    }
+
+    // Every matching term's postings gathered into one array, then sorted and deduplicated once;
+    // merging list by list would be quadratic when a short prefix matches many words
+    private int[] prefixDocs(String prefix) {
+        int[] docs = new int[16];
+        int n = 0;
+        for (String term : terms.subSet(prefix, true, prefix + Character.MAX_VALUE, false)) {
+            PostingList list = postings.get(term);
+            if (list == null) {
+                continue;
+            }
+            int[] part = list.decode();
+            if (n + part.length > docs.length) {
+                docs = Arrays.copyOf(docs, Math.max(docs.length * 2, n + part.length));
+            }
+            System.arraycopy(part, 0, docs, n, part.length);
+            n += part.length;
+        }
+        Arrays.sort(docs, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || docs[i] != docs[unique - 1]) {
+                docs[unique++] = docs[i];
+            }
+        }
+        return Arrays.copyOf(docs, unique);
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            out[n++] = next;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    Message docAt(int doc) {
+        AtomicReferenceArray<Message> chunk = slot(doc, false);
+        return chunk != null ? chunk.get(doc & (CHUNK_SIZE - 1)) : null;
+    }
+
+    private AtomicReferenceArray<Message> slot(int doc, boolean create) {
+        int c = doc >>> CHUNK_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<Message>> table = chunks;
+        AtomicReferenceArray<Message> chunk = c < table.length() ? table.get(c) : null;
+        return chunk == null && create ? createChunk(c) : chunk;
+    }
+
+    // Chunks are created and the table grown only under this lock, so no chunk is lost to a racing grow
+    private AtomicReferenceArray<Message> createChunk(int c) {
+        synchronized (chunkLock) {
+            AtomicReferenceArray<AtomicReferenceArray<Message>> table = chunks;
+            if (c >= table.length()) {
+                AtomicReferenceArray<AtomicReferenceArray<Message>> bigger =
+                        new AtomicReferenceArray<>(Math.max(table.length() * 2, c + 1));
+                for (int i = 0; i < table.length(); i++) {
+                    bigger.set(i, table.get(i));
+                }
+                chunks = table = bigger;
+            }
+            AtomicReferenceArray<Message> chunk = table.get(c);
+            if (chunk == null) {
+                chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+                table.set(c, chunk);
+            }
+            return chunk;
+        }
+    }
+
+    // Lower-cased runs of letters and digits, each word once
+    static List<String> distinctWords(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        int i = 0, n = text.length();
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) {
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!words.contains(word)) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+
+    private static String normalize(String word) {
+        StringBuilder sb = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
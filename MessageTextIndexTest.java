@@ -0,0 +1,156 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageTextIndexTest {
+
+    private MessageStore store;
+    private MessageTextIndex index;
+    private Message cake, dinner, late, leaving;
+
+    @Before
+    public void setUp() {
+        store = new MessageStore();
+        index = new MessageTextIndex();
+        index.attach(store);
+        cake = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        dinner = new Message("MSG102", "+27821234567", "It is dinner time!");
+        late = new Message("MSG103", "+27711223344", "Where are you? You are late! I asked you to be on time.");
+        leaving = new Message("MSG104", "+27711223344", "Ok, I am leaving without you.");
+        store.addAll(Arrays.asList(cake, dinner, late, leaving));
+    }
+
+    @Test
+    public void testAndOrPrefix() {
+        assertEquals(Arrays.asList(cake, late, leaving), index.search("YOU"));
+        assertEquals(Arrays.asList(late), index.all("you", "time"));
+        assertEquals(Arrays.asList(cake, dinner), index.any("cake", "dinner"));
+        assertEquals(Arrays.asList(dinner, late), index.prefix("tim"));
+        assertEquals(Arrays.asList(cake, late), index.search("cake OR you tim*"));
+        assertTrue(index.search("nothing").isEmpty());
+        assertTrue(index.search("").isEmpty());
+    }
+
+    @Test
+    public void testFollowsRemovesAndCompaction() {
+        store.remove(late);
+        assertEquals(Arrays.asList(dinner), index.prefix("tim"));
+        index.compact();
+        assertEquals(Arrays.asList(dinner), index.search("time"));
+        assertTrue(index.search("asked").isEmpty());
+        store.add(late);
+        assertEquals(Arrays.asList(dinner, late), index.search("time"));
+    }
+
+    @Test
+    public void testMatchesLinearScanOnRandomText() {
+        MessageStore big = new MessageStore();
+        MessageTextIndex bigIndex = new MessageTextIndex();
+        bigIndex.attach(big);
+        String[] vocabulary = {"cake", "cater", "dinner", "din", "late", "time", "tim", "you", "we", "ok"};
+        Random random = new Random(3);
+        List<Message> all = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 1 + random.nextInt(6); w++) {
+                text.append(vocabulary[random.nextInt(vocabulary.length)]).append(random.nextBoolean() ? " " : ", ");
+            }
+            Message m = new Message("MSG" + (100 + i % 900), "+2782" + i, text.toString());
+            big.add(m);
+            all.add(m);
+            if (i % 3 == 0) {
+                big.remove(all.get(random.nextInt(all.size())));
+            }
+        }
+        for (String query : new String[]{"cake", "cake dinner", "ca*", "din* late OR we", "tim* you ok", "time OR tim"}) {
+            List<Message> expected = new ArrayList<>();
+            for (Message m : big) {
+                if (MessageTextIndex.matches(query, m.getMessageText())) {
+                    expected.add(m);
+                }
+            }
+            assertEquals(query, expected, bigIndex.search(query));
+        }
+    }
+
+    @Test
+    public void testOutOfOrderAppendsDecodeSorted() {
+        MessageTextIndex.PostingList list = new MessageTextIndex.PostingList();
+        for (int doc : new int[]{0, 2, 1, 5, 3, 4, 300, 299}) {
+            list.append(doc);
+        }
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 299, 300}, list.decode());
+    }
+
+    @Test
+    public void testConcurrentAddsKeepAndQueriesComplete() throws Exception {
+        MessageStore big = new MessageStore();
+        MessageTextIndex bigIndex = new MessageTextIndex();
+        bigIndex.attach(big);
+        int threads = 8;
+        int perThread = 5_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        big.add(new Message("MSG" + (100 + i % 900), "+2782" + thread, "common w" + thread + "x" + i + " tail"));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(threads * perThread, bigIndex.search("common tail").size());
+        assertEquals(threads * perThread, bigIndex.search("common OR tail").size());
+    }
+
+    @Test
+    public void testRemovesCompactInTheBackground() throws InterruptedException {
+        MessageStore big = new MessageStore();
+        MessageTextIndex bigIndex = new MessageTextIndex();
+        bigIndex.attach(big);
+        List<Message> all = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            Message m = new Message("MSG" + (100 + i % 900), "+2782" + i, "common words here");
+            big.add(m);
+            all.add(m);
+        }
+        long before = bigIndex.postingBytes();
+        for (Message m : all.subList(0, 4_000)) {
+            big.remove(m);
+        }
+        LocalGatewayTest.waitFor(() -> bigIndex.postingBytes() < before / 2);
+        assertEquals(1_000, bigIndex.search("common here").size());
+    }
+
+    @Test
+    public void testPostingListsAreCompact() {
+        MessageStore big = new MessageStore();
+        MessageTextIndex bigIndex = new MessageTextIndex();
+        bigIndex.attach(big);
+        for (int i = 0; i < 50_000; i++) {
+            big.add(new Message("MSG" + (100 + i % 900), "+2782" + i, "common words here"));
+        }
+        // Consecutive docs are 1-byte gaps: 3 lists of 50k postings
+        assertEquals(3 * 50_000, bigIndex.postingBytes());
+        assertEquals(50_000, bigIndex.all("common", "here").size());
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// DeliveryTransport over one TCP connection to a LocalGateway (or anything speaking its
+// line protocol), with many sends in flight at once.
+//
+// send() tags the request, queues it and returns; a writer thread sends everything queued
+// in one flush, and a reader thread matches responses to futures by tag, in whatever order
+// the gateway answers. Receipts carry the tag too and are matched to the Message sent with
+// it; those that arrive back to back are handed to the listener as one batch.
+//
+// At most maxInFlight sends are outstanding. send() never waits for a slot: beyond that it
+// returns a future already failed with WindowFullException, which keeps a fast producer from
+// queueing without bound. MessageDelivery records it as a failed send, and MessageOutbox
+// retries it after its backoff.
+public class PipelinedGatewayClient implements DeliveryTransport {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    // Accepted messages remembered for their receipts
+    public static final int DEFAULT_RECEIPT_WINDOW = 1 << 20;
+
+    private static final Logger LOG = Logger.getLogger(PipelinedGatewayClient.class.getName());
+
+    // A send refused because maxInFlight sends were already waiting for the gateway; nothing
+    // reached the gateway, so it can be tried again once some have been answered
+    public static class WindowFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public WindowFullException(int maxInFlight) {
+            super("Too many sends in flight: " + maxInFlight + " waiting for the gateway");
+        }
+    }
+
+    // Tells a writer thread to stop; compared by identity
+    static final String END = new String("END");
+
+    private final Socket socket;
+    private final BlockingQueue<String> out = new LinkedBlockingQueue<>();
+    private final ConcurrentMap<Long, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final SentMessages sent = new SentMessages(DEFAULT_RECEIPT_WINDOW);
+    private final AtomicLong tags = new AtomicLong();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private volatile ReceiptListener listener;
+    private volatile boolean closed;
+
+    public PipelinedGatewayClient(String host, int port) throws IOException {
+        this(host, port, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public PipelinedGatewayClient(String host, int port, int maxInFlight) throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+        daemon("gateway-client-read", () -> readLoop(in)).start();
+        daemon("gateway-client-write", () -> writeLoop(out, writer, socket)).start();
+    }
+
+    @Override
+    public CompletableFuture<Void> send(Message m) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        if (!inFlight.tryAcquire()) {
+            f.completeExceptionally(new WindowFullException(maxInFlight));
+            return f;
+        }
+        if (closed) {
+            inFlight.release();
+            f.completeExceptionally(new IOException("Gateway connection closed"));
+            return f;
+        }
+        long tag = tags.incrementAndGet();
+        pending.put(tag, f);
+        sent.put(tag, m);
+        String text = m.getMessageText() != null ? m.getMessageText() : "";
+        out.add("S\t" + tag + "\t" + m.getMessageID() + "\t" + m.getRecipient() + "\t"
+                + Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8)));
+        // Closed after the check above, and the reader may already have failed everything
+        if (closed) {
+            failAll(new IOException("Gateway connection closed"));
+        }
+        return f;
+    }
+
+    @Override
+    public void setReceiptListener(ReceiptListener listener) {
+        this.listener = listener;
+    }
+
+    // Sends waiting for the gateway's answer
+    public int inFlight() {
+        return pending.size();
+    }
+
+    // Outstanding sends fail; receipts still on the way are lost
+    @Override
+    public void close() {
+        closed = true;
+        out.add(END);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+        failAll(new IOException("Gateway connection closed"));
+    }
+
+    private void readLoop(BufferedReader in) {
+        List<Message> received = new ArrayList<>();
+        List<Message> read = new ArrayList<>();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", 3);
+                switch (f[0]) {
+                    case "A":
+                        complete(Long.parseLong(f[1]), null);
+                        break;
+                    case "F":
+                        complete(Long.parseLong(f[1]), new IOException("Gateway refused the message: "
+                                + (f.length > 2 ? f[2] : "")));
+                        break;
+                    case "E": {
+                        MessageLifecycle.Event event = MessageLifecycle.Event.valueOf(f[1]);
+                        Message m = sent.receipt(event, Long.parseLong(f[2]));
+                        if (m != null) {
+                            (event == MessageLifecycle.Event.READ ? read : received).add(m);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unexpected gateway response: " + line);
+                }
+                // Hand over receipts once the burst that arrived together has been read
+                if (!in.ready() && !(received.isEmpty() && read.isEmpty())) {
+                    LocalGateway.deliverReceipts(listener, received, read);
+                    received = new ArrayList<>();
+                    read = new ArrayList<>();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                LOG.log(Level.WARNING, "Gateway connection failed", e);
+            }
+        } finally {
+            closed = true;
+            LocalGateway.deliverReceipts(listener, received, read);
+            failAll(new IOException("Connection to gateway lost"));
+            out.add(END);
+        }
+    }
+
+    private void complete(long tag, IOException failure) {
+        if (failure != null) {
+            sent.remove(tag);
+        }
+        CompletableFuture<Void> f = pending.remove(tag);
+        if (f == null) {
+            return;
+        }
+        // Freed before the future completes, so a caller that sends again from its callback
+        // finds the slot
+        inFlight.release();
+        if (failure == null) {
+            f.complete(null);
+        } else {
+            f.completeExceptionally(failure);
+        }
+    }
+
+    // Write lines as they are queued, flushing once the queue is empty so a burst goes out
+    // together; closes the socket on END or a write failure
+    static void writeLoop(BlockingQueue<String> queue, Writer writer, Socket socket) {
+        try {
+            while (true) {
+                String line = queue.take();
+                do {
+                    if (line == END) {
+                        writer.flush();
+                        return;
+                    }
+                    writer.write(line);
+                    writer.write('\n');
+                } while ((line = queue.poll()) != null);
+                writer.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection gone; the reader fails whatever was outstanding
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    // Fail every outstanding send, freeing its slot first
+    private void failAll(IOException failure) {
+        for (Long tag : pending.keySet()) {
+            CompletableFuture<Void> f = pending.remove(tag);
+            if (f != null) {
+                inFlight.release();
+                f.completeExceptionally(failure);
+            }
+        }
+    }
+
+    static void failAll(Map<Long, CompletableFuture<Void>> pending, IOException failure) {
+        for (Long tag : pending.keySet()) {
+            CompletableFuture<Void> f = pending.remove(tag);
+            if (f != null) {
+                f.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // The message sent with each tag, kept for its receipts until the read receipt arrives or
+    // `limit` later sends push it out, since a gateway need not report every message read
+    static final class SentMessages {
+        private final int limit;
+        private final LinkedHashMap<Long, Message> byTag = new LinkedHashMap<>();
+
+        SentMessages(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized void put(long tag, Message m) {
+            byTag.put(tag, m);
+            if (byTag.size() > limit) {
+                byTag.remove(byTag.keySet().iterator().next());
+            }
+        }
+
+        synchronized void remove(long tag) {
+            byTag.remove(tag);
+        }
+
+        // The message a receipt is for, or null if the tag is unknown or was pushed out
+        synchronized Message receipt(MessageLifecycle.Event event, long tag) {
+            return event == MessageLifecycle.Event.READ ? byTag.remove(tag) : byTag.get(tag);
+        }
+    }
+
+    static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
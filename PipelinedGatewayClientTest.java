@@ -0,0 +1,133 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelinedGatewayClientTest {
+
+    private LocalGateway gateway;
+    private PipelinedGatewayClient client;
+
+    @Before
+    public void setUp() {
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    @Test
+    public void testManySendsInFlightOnOneConnection() throws Exception {
+        // 50ms each: one at a time, 200 sends would take 10 seconds
+        gateway = new LocalGateway(50, 20, 0, 0, 0);
+        client = new PipelinedGatewayClient("127.0.0.1", gateway.listen(0), 256);
+        AtomicInteger receipts = new AtomicInteger();
+        client.setReceiptListener((event, messages) -> receipts.addAndGet(messages.size()));
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            sends.add(client.send(new Message("MSG" + (100 + i), "+27821234567", "Line\twith tab and\nnewline " + i)));
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        LocalGatewayTest.waitFor(() -> receipts.get() == 200);
+        assertEquals(0, client.inFlight());
+    }
+
+    @Test
+    public void testReceiptsFollowTheTagNotTheMessageID() throws Exception {
+        Message.sentMessages.clear();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // A scripted gateway: accept both sends, then report only the second one read
+            Thread script = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                    in.readLine();
+                    in.readLine();
+                    OutputStream out = s.getOutputStream();
+                    out.write("A\t1\nA\t2\nE\tREAD\t2\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    in.readLine();
+                } catch (Exception ignored) {
+                    // The test closes the client
+                }
+            });
+            script.setDaemon(true);
+            script.start();
+            client = new PipelinedGatewayClient("127.0.0.1", server.getLocalPort());
+            MessageDelivery delivery = new MessageDelivery(client);
+            Message first = new Message("MSG101", "+27821234567", "First");
+            Message second = new Message("MSG101", "+27821234567", "Second");
+            CompletableFuture<String> firstSent = delivery.send(first);
+            CompletableFuture<String> secondSent = delivery.send(second);
+            assertEquals(MessageDelivery.SENT, firstSent.get(5, TimeUnit.SECONDS));
+            assertEquals(MessageDelivery.SENT, secondSent.get(5, TimeUnit.SECONDS));
+            LocalGatewayTest.waitFor(second::isRead);
+            assertFalse(first.isReceived() || first.isRead());
+        } finally {
+            Message.sentMessages.clear();
+        }
+    }
+
+    @Test
+    public void testRefusalsComeBackPerMessage() throws Exception {
+        gateway = new LocalGateway();
+        client = new PipelinedGatewayClient("127.0.0.1", gateway.listen(0));
+        CompletableFuture<Void> bad = client.send(new Message("MSG101", "0821234567", "Hi"));
+        CompletableFuture<Void> good = client.send(new Message("MSG102", "+27821234567", "Hi"));
+        good.get(5, TimeUnit.SECONDS);
+        LocalGatewayTest.assertRefused(bad, LocalGateway.INVALID_RECIPIENT);
+    }
+
+    @Test
+    public void testLostConnectionFailsOutstandingSends() throws Exception {
+        gateway = new LocalGateway(60_000, 0, 0, 0, 0);
+        client = new PipelinedGatewayClient("127.0.0.1", gateway.listen(0));
+        CompletableFuture<Void> f = client.send(new Message("MSG101", "+27821234567", "Hi"));
+        LocalGatewayTest.waitFor(() -> gateway.submittedCount() == 1);
+        gateway.close();
+        LocalGatewayTest.waitFor(f::isDone);
+        assertTrue(f.isCompletedExceptionally());
+        assertTrue(client.send(new Message("MSG102", "+27821234567", "Hi")).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testFullWindowFailsTheSendWithoutWaiting() throws Exception {
+        // Accepts after a minute, so both slots stay taken
+        gateway = new LocalGateway(60_000, 0, 0, 0, 0);
+        client = new PipelinedGatewayClient("127.0.0.1", gateway.listen(0), 2);
+        client.send(new Message("MSG101", "+27821234567", "One"));
+        client.send(new Message("MSG102", "+27821234567", "Two"));
+        CompletableFuture<Void> third = client.send(new Message("MSG103", "+27821234567", "Three"));
+        assertTrue(third.isCompletedExceptionally());
+        try {
+            third.join();
+            fail("Expected the send to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof PipelinedGatewayClient.WindowFullException);
+        }
+        LocalGatewayTest.waitFor(() -> gateway.submittedCount() == 2);
+        assertEquals(2, client.inFlight());
+    }
+}
@@ -0,0 +1,598 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+// Micro-benchmarks for the Message and Login hot paths.
+// Works like a small JMH: each benchmark gets warmup and measured iterations of a fixed
+// duration, and reports ns/op plus bytes allocated per op (what JMH's gc profiler calls
+// gc.alloc.rate.norm, read here from the thread's allocation counter).
+//
+// Run:  java QuickChatBenchmark [--sizes=1000,10000,100000] [--only=search]
+//                               [--baseline=benchmark-baseline.tsv] [--write-baseline=file]
+// Store sizes go up to 10M (--sizes=...,10000000), which needs a heap of roughly 16 GB.
+public class QuickChatBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 200_000_000L;
+    // Slower than the baseline by more than this fraction counts as a regression
+    private static final double REGRESSION_THRESHOLD = 0.10;
+    // Building the full report string is O(store size); past this it only measures the GC
+    private static final int MAX_REPORT_SIZE = 100_000;
+
+    // One benchmarked operation; the loop index lets ops walk through prepared data
+    interface Op {
+        Object run(int i);
+    }
+
+    // A finished measurement
+    static final class Result {
+        final String name;
+        final int size;
+        final double nsPerOp;
+        final double bytesPerOp;
+
+        Result(String name, int size, double nsPerOp, double bytesPerOp) {
+            this.name = name;
+            this.size = size;
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        String key() {
+            return name + "@" + size;
+        }
+    }
+
+    // Results are folded in here so the JIT can't drop the benchmarked work
+    private static volatile int sink;
+
+    private final List<Result> results = new ArrayList<>();
+    private final String only;
+
+    QuickChatBenchmark(String only) {
+        this.only = only;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+        String only = null;
+        Path baseline = null;
+        Path writeBaseline = null;
+        for (String arg : args) {
+            if (arg.startsWith("--sizes=")) {
+                sizes = Arrays.stream(arg.substring(8).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--only=")) {
+                only = arg.substring(7);
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = Paths.get(arg.substring(11));
+            } else if (arg.startsWith("--write-baseline=")) {
+                writeBaseline = Paths.get(arg.substring(17));
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        QuickChatBenchmark bench = new QuickChatBenchmark(only);
+        System.out.printf("%-40s %10s %14s %14s %10s%n", "Benchmark", "size", "ns/op", "B/op", "vs base");
+        Map<String, Result> base = baseline != null ? readBaseline(baseline) : Collections.emptyMap();
+        bench.runValidationBenchmarks();
+        for (int size : sizes) {
+            bench.runStoreBenchmarks(size);
+        }
+        for (int size : sizes) {
+            bench.runConversationBenchmarks(size);
+            bench.runOutboxBenchmarks(size);
+            bench.runDedupBenchmarks(size);
+        }
+        bench.runHashBenchmarks();
+        bench.runRateLimiterBenchmarks();
+        for (int size : sizes) {
+            bench.runLoginBenchmarks(size);
+        }
+        int regressions = bench.report(base);
+        if (writeBaseline != null) {
+            bench.writeBaseline(writeBaseline, sizes);
+            System.out.println("Baseline written to " + writeBaseline);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than "
+                    + (int) (REGRESSION_THRESHOLD * 100) + "%");
+            System.exit(2);
+        }
+    }
+
+    // Benchmarks that don't depend on the store size
+    void runValidationBenchmarks() {
+        Message msg = new Message("MSG123", "+27718693002", "Hi Mike, can you join us for dinner tonight");
+        Login login = new Login("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976");
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+
+        run("createMessageHash", 0, i -> msg.createMessageHash());
+        run("generateMessageID", 0, i -> Message.generateMessageID());
+        run("checkMessageID", 0, i -> msg.checkMessageID());
+        run("checkRecipientCell", 0, i -> msg.checkRecipientCell());
+        run("Login.checkPasswordComplexity", 0, i -> login.checkPasswordComplexity());
+        run("Login.checkCellPhoneNumber", 0, i -> login.checkCellPhoneNumber());
+    }
+
+    // Search, delete and report against a sent store holding `size` messages
+    void runStoreBenchmarks(int size) {
+        clearStores();
+        Message[] messages = new Message[size];
+        for (int i = 0; i < size; i++) {
+            messages[i] = new Message("MSG" + i, recipient(i, size), "w" + i + " body text end" + i);
+            Message.sentMessages.add(messages[i]);
+        }
+        String[] ids = new String[1024];
+        String[] recipients = new String[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < ids.length; i++) {
+            Message m = messages[random.nextInt(size)];
+            ids[i] = m.getMessageID();
+            recipients[i] = m.getRecipient();
+        }
+
+        run("searchMessageByID", size, i -> Message.searchMessageByID(ids[i & 1023]));
+        run("searchMessageByID.miss", size, i -> Message.searchMessageByID("MSG-missing"));
+        run("searchMessagesByRecipient", size, i -> Message.searchMessagesByRecipient(recipients[i & 1023]));
+        // Prefixes covering 10 recipients (~100 messages), through the index and by scanning
+        String[] prefixes = new String[1024];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = "+2782" + String.format("%06d", random.nextInt(Math.max(1, size / 100)));
+        }
+        run("searchRecipient.prefix", size, i -> Message.recipientIndex.prefix(prefixes[i & 1023]));
+        run("searchRecipient.prefixScan", size, i -> {
+            List<Message> hits = new ArrayList<>();
+            for (Message m : Message.sentMessages) {
+                if (m.getRecipient().startsWith(prefixes[i & 1023])) {
+                    hits.add(m);
+                }
+            }
+            return hits;
+        });
+        // Delete then put back, so the store size stays fixed for the whole measurement
+        run("deleteMessageByHash+reinsert", size, i -> {
+            Message m = messages[(int) ((i * 2654435761L) % size)];
+            String result = Message.deleteMessageByHash(m.getMessageHash());
+            Message.sentMessages.add(m);
+            Message.messageHashes.add(m.getMessageHash());
+            Message.messageIDs.add(m.getMessageID());
+            return result;
+        });
+        run("getLongestMessage", size, i -> Message.getLongestMessage());
+        // A burst of 64 read receipts by ID; clearing the bits again keeps every receipt applying
+        List<String> receiptIDs = new ArrayList<>();
+        List<Message> receiptMessages = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            Message m = messages[random.nextInt(size)];
+            receiptIDs.add(m.getMessageID());
+            receiptMessages.add(m);
+        }
+        for (Message m : messages) {
+            m.markSent(true);
+        }
+        run("applyDeliveryEvents.read64", size, i -> {
+            MessageLifecycle.Result r = Message.applyDeliveryEvents(MessageLifecycle.Event.READ, receiptIDs);
+            for (Message m : receiptMessages) {
+                m.setRead(false);
+                m.setReceived(false);
+            }
+            return r;
+        });
+        // Keyword search: one rare word ANDed with a word every message has, via the index and by scanning
+        String[] queries = new String[1024];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = "body w" + random.nextInt(size);
+        }
+        run("searchText.index", size, i -> Message.textIndex.search(queries[i & 1023]));
+        run("searchText.scan", size, i -> {
+            MessageTextIndex.Query query = MessageTextIndex.Query.parse(queries[i & 1023]);
+            List<Message> hits = new ArrayList<>();
+            for (Message m : Message.sentMessages) {
+                if (query.matches(m.getMessageText())) {
+                    hits.add(m);
+                }
+            }
+            return hits;
+        });
+        run("searchText.prefix", size, i -> Message.textIndex.prefix("end" + (i & 1023)));
+        if (size <= MAX_REPORT_SIZE) {
+            run("displaySentMessageReport", size, i -> Message.displaySentMessageReport());
+        }
+        clearStores();
+    }
+
+    // Last 20 messages to one of 100 recipients, and a window of about 1% of their
+    // conversation, from the conversation skip lists and by filtering the recipient's messages
+    void runConversationBenchmarks(int size) {
+        if (!selected("conversation.last20", "conversation.last20Scan", "conversation.between")) {
+            return;
+        }
+        clearStores();
+        Message[] messages = new Message[size];
+        for (int i = 0; i < size; i++) {
+            messages[i] = new Message("MSG" + i, "+278200000" + String.format("%02d", i % 100), "text " + i);
+            Message.sentMessages.add(messages[i]);
+        }
+        run("conversation.last20", size, i -> Message.conversations.last(messages[i % 100].getRecipient(), 20));
+        run("conversation.last20Scan", size, i -> {
+            List<Message> all = Message.sentMessages.findByRecipient(messages[i % 100].getRecipient(), false);
+            return all.subList(Math.max(0, all.size() - 20), all.size());
+        });
+        int window = Math.max(1, size / 100);
+        run("conversation.between", size, i -> {
+            int start = (int) ((i * 2654435761L) % Math.max(1, size - window));
+            Message from = messages[start];
+            return Message.conversations.between(from.getRecipient(), from.getTimestamp(),
+                    messages[start + window - 1].getTimestamp());
+        });
+        clearStores();
+    }
+
+    // Scheduling and dispatching one message with `size` others deferred far into the future.
+    // The dispatched message is taken back out of sentMessages so the stores stay the same size.
+    void runOutboxBenchmarks(int size) {
+        if (!selected("outbox.schedule+cancel", "outbox.schedule+dispatch")) {
+            return;
+        }
+        clearStores();
+        long[] now = {1_000_000};
+        MessageOutbox outbox = new MessageOutbox(null, m -> { }, MessageOutbox.DEFAULT_BATCH_SIZE,
+                MessageOutbox.DEFAULT_MAX_ATTEMPTS, 1000, 60_000, () -> now[0]);
+        for (int i = 0; i < size; i++) {
+            outbox.schedule(new Message("MSG" + i, recipient(i, size), "deferred " + i), now[0] + 86_400_000L + i);
+        }
+        Message[] ready = new Message[1024];
+        for (int i = 0; i < ready.length; i++) {
+            ready[i] = new Message("MSG" + (size + i), "+27820000000", "due now " + i);
+        }
+        run("outbox.schedule+cancel", size, i -> {
+            Message m = ready[i & 1023];
+            outbox.schedule(m, now[0] + 3_600_000L);
+            Message.storedMessages.remove(m);
+            return outbox.cancel(m);
+        });
+        run("outbox.schedule+dispatch", size, i -> {
+            Message m = ready[i & 1023];
+            outbox.schedule(m, now[0]);
+            int sent = outbox.dispatchDue();
+            Message.sentMessages.remove(m);
+            return sent;
+        });
+        clearStores();
+    }
+
+    // Duplicate checks against `size` sends already recorded in the window: a new key, which
+    // the Bloom filter lets skip comparisons, a repeat, and a repeat of a whole message
+    void runDedupBenchmarks(int size) {
+        if (!selected("dedup.firstSend.new", "dedup.firstSend.duplicate", "dedup.message.duplicate")) {
+            return;
+        }
+        clearStores();
+        MessageDeduplicator dedup = new MessageDeduplicator(MessageDeduplicator.DEFAULT_WINDOW_MILLIS,
+                Math.max(size, 1024) * 2, MessageDeduplicator.DEFAULT_FALSE_POSITIVE_RATE, () -> 1_000_000L);
+        for (long i = 0; i < size; i++) {
+            dedup.firstSend(i * 0x9e3779b97f4a7c15L, i);
+        }
+        Message[] sent = new Message[1024];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new Message("MSG" + i, recipient(i, size), "already sent " + i);
+            dedup.firstSend(sent[i]);
+        }
+        long[] next = {size};
+        run("dedup.firstSend.new", size, i -> dedup.firstSend(next[0] * 0x9e3779b97f4a7c15L, next[0]++));
+        run("dedup.firstSend.duplicate", size, i -> {
+            long k = (i * 7919L) % Math.max(size, 1);
+            return dedup.firstSend(k * 0x9e3779b97f4a7c15L, k);
+        });
+        run("dedup.message.duplicate", size, i -> dedup.firstSend(sent[i & 1023]));
+        clearStores();
+    }
+
+    // Cost of one PBKDF2 hash, which bounds logins per second per hashing thread; scale
+    // linearly to CredentialStore.DEFAULT_ITERATIONS
+    void runHashBenchmarks() {
+        byte[] salt = new byte[16];
+        run("CredentialStore.hash.10000iterations", 0, i -> CredentialStore.hash("Ch&&sec@ke99!", salt, 10_000));
+    }
+
+    // Logins against `size` registered users. Hashing is cut to one iteration so the
+    // measurement shows the lookup, pool hand-off and constant-time checks, and so
+    // registering a million users finishes in seconds.
+    void runLoginBenchmarks(int size) {
+        runSessionBenchmarks(size);
+        if (!selected("login", "login.unknownUser", "login.burst64")) {
+            return;
+        }
+        try (CredentialStore store = new CredentialStore(1, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                CredentialStore.DEFAULT_QUEUE_CAPACITY)) {
+            List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                pending.add(store.register("User", "" + i, "u_" + i, "P@ssword" + i, phone(i)));
+                if (pending.size() == CredentialStore.DEFAULT_QUEUE_CAPACITY / 2) {
+                    pending.forEach(CompletableFuture::join);
+                    pending.clear();
+                }
+            }
+            pending.forEach(CompletableFuture::join);
+            int[] users = new int[1024];
+            Random random = new Random(42);
+            for (int i = 0; i < users.length; i++) {
+                users[i] = random.nextInt(size);
+            }
+            run("login", size, i -> {
+                int u = users[i & 1023];
+                return store.authenticate("u_" + u, "P@ssword" + u, phone(u)).join();
+            });
+            run("login.unknownUser", size, i -> store.authenticate("nobody", "P@ssword1", phone(1)).join());
+            // 64 logins in flight at once, as a burst from many clients would be
+            run("login.burst64", size, i -> {
+                if ((i & 63) != 0) {
+                    return null;
+                }
+                List<CompletableFuture<Optional<Login>>> burst = new ArrayList<>(64);
+                for (int k = 0; k < 64; k++) {
+                    int u = users[(i + k) & 1023];
+                    burst.add(store.authenticate("u_" + u, "P@ssword" + u, phone(u)));
+                }
+                int ok = 0;
+                for (CompletableFuture<Optional<Login>> f : burst) {
+                    ok += f.join().isPresent() ? 1 : 0;
+                }
+                return ok;
+            });
+        }
+    }
+
+    // Token lookups with `size` live sessions: what a request pays instead of a credential check
+    void runSessionBenchmarks(int size) {
+        if (!selected("session.get", "session.get.concurrent", "session.create")) {
+            return;
+        }
+        SessionCache cache = new SessionCache(size, SessionCache.DEFAULT_IDLE_MILLIS, System::currentTimeMillis);
+        Login user = new Login("User", "One", "u_1", null, phone(1));
+        String[] tokens = new String[1024];
+        for (int i = 0; i < size; i++) {
+            String token = cache.create(user);
+            if (i < tokens.length) {
+                tokens[i] = token;
+            }
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] == null) {
+                tokens[i] = tokens[i % Math.max(1, size)];
+            }
+        }
+        run("session.get", size, i -> cache.get(tokens[i & 1023]));
+        runConcurrent("session.get.concurrent", 256, i -> cache.get(tokens[i & 1023]));
+        // At capacity, so every create also evicts
+        run("session.create", size, i -> cache.create(user));
+    }
+
+    // The limiter's success path alone, then thousands of threads failing logins at once
+    // against a few hot accounts (as in a password-spraying burst) mixed with normal logins
+    void runRateLimiterBenchmarks() {
+        LoginRateLimiter limiter = new LoginRateLimiter();
+        run("rateLimiter.check", 0, i -> limiter.isLocked("u_" + (i & 1023), "+27831234567"));
+        // A limit no burst reaches, so every attempt goes through the counting path
+        LoginRateLimiter open = new LoginRateLimiter(Integer.MAX_VALUE, 60_000, 1, System::currentTimeMillis);
+        runConcurrent("rateLimiter.contended.failure", 2000, i -> open.recordFailure("target", "+27830000001"));
+        runConcurrent("rateLimiter.contended.mixed", 2000, i -> {
+            String user = (i & 3) == 0 ? "hot_" + (i & 15) : "u_" + (i & 1023);
+            if (open.isLocked(user, "+27830000001")) {
+                return Boolean.FALSE;
+            }
+            if ((i & 3) == 0) {
+                open.recordFailure(user, "+27830000001");
+            } else {
+                open.recordSuccess(user, "+27830000001");
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    private static String phone(int i) {
+        return "+27" + String.format("%09d", i);
+    }
+
+    // False if --only rules out every one of these benchmarks, so their setup can be skipped
+    private boolean selected(String... names) {
+        for (String name : names) {
+            if (only == null || name.contains(only)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void run(String name, int size, Op op) {
+        if (!selected(name)) {
+            return;
+        }
+        for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+            measure(op);
+        }
+        double[] ns = new double[MEASURE_ITERATIONS];
+        double bytes = 0;
+        for (int m = 0; m < MEASURE_ITERATIONS; m++) {
+            double[] r = measure(op);
+            ns[m] = r[0];
+            bytes += r[1];
+        }
+        Arrays.sort(ns);
+        // Median iteration, to keep one GC pause from skewing the result
+        Result result = new Result(name, size, ns[MEASURE_ITERATIONS / 2], bytes / MEASURE_ITERATIONS);
+        results.add(result);
+        System.out.printf("%-40s %10d %14.1f %14.1f%n", name, size, result.nsPerOp, result.bytesPerOp);
+    }
+
+    // Like run, but with `threads` threads running the op at once. Reports wall-clock ns per
+    // op across all threads (the inverse of throughput) and bytes allocated per op; the size
+    // column holds the thread count.
+    void runConcurrent(String name, int threads, Op op) {
+        if (!selected(name)) {
+            return;
+        }
+        for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+            measureConcurrent(threads, op);
+        }
+        double[] ns = new double[MEASURE_ITERATIONS];
+        double bytes = 0;
+        for (int m = 0; m < MEASURE_ITERATIONS; m++) {
+            double[] r = measureConcurrent(threads, op);
+            ns[m] = r[0];
+            bytes += r[1];
+        }
+        Arrays.sort(ns);
+        Result result = new Result(name, threads, ns[MEASURE_ITERATIONS / 2], bytes / MEASURE_ITERATIONS);
+        results.add(result);
+        System.out.printf("%-40s %10d %14.1f %14.1f%n", name, threads, result.nsPerOp, result.bytesPerOp);
+    }
+
+    private static double[] measureConcurrent(int threads, Op op) {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        LongAdder ops = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        long[] deadline = new long[1];
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 7919;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long before = allocatedBytes();
+                int n = 0;
+                int acc = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    for (int k = 0; k < 16; k++) {
+                        Object r = op.run(offset + n++);
+                        acc += r == null ? 0 : r.hashCode();
+                    }
+                }
+                allocated.add(allocatedBytes() - before);
+                ops.add(n);
+                sink += acc;
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        try {
+            ready.await();
+            long start = System.nanoTime();
+            deadline[0] = start + ITERATION_NANOS;
+            go.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            return new double[]{(double) elapsed / ops.sum(), (double) allocated.sum() / ops.sum()};
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // One timed iteration: returns {ns/op, bytes/op}
+    private static double[] measure(Op op) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        int ops = 0;
+        int acc = 0;
+        long now;
+        do {
+            // Check the clock every 64 ops so timing overhead stays out of the measurement
+            for (int k = 0; k < 64; k++) {
+                Object r = op.run(ops++);
+                acc += r == null ? 0 : r.hashCode();
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += acc;
+        return new double[]{(double) (now - start) / ops, allocatedBefore < 0 ? -1 : (double) allocated / ops};
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    // Print the comparison against the baseline; returns the number of regressions
+    int report(Map<String, Result> baseline) {
+        if (baseline.isEmpty()) {
+            return 0;
+        }
+        int regressions = 0;
+        System.out.println();
+        System.out.println("Compared with baseline:");
+        for (Result r : results) {
+            Result b = baseline.get(r.key());
+            if (b == null) {
+                continue;
+            }
+            double change = (r.nsPerOp - b.nsPerOp) / b.nsPerOp;
+            boolean regressed = change > REGRESSION_THRESHOLD;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-40s %10d %14.1f %14.1f %+9.1f%%%s%n", r.name, r.size, r.nsPerOp, r.bytesPerOp,
+                    change * 100, regressed ? "  REGRESSION" : "");
+        }
+        return regressions;
+    }
+
+    void writeBaseline(Path file, int[] sizes) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("# QuickChatBenchmark baseline: benchmark<TAB>storeSize<TAB>ns/op<TAB>bytes/op");
+            out.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors()
+                    + " cpus, sizes " + Arrays.toString(sizes));
+            for (Result r : results) {
+                out.printf(Locale.ROOT, "%s\t%d\t%.1f\t%.1f%n", r.name, r.size, r.nsPerOp, r.bytesPerOp);
+            }
+        }
+    }
+
+    static Map<String, Result> readBaseline(Path file) throws IOException {
+        Map<String, Result> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split("\t");
+            Result r = new Result(f[0], Integer.parseInt(f[1]), Double.parseDouble(f[2]), Double.parseDouble(f[3]));
+            baseline.put(r.key(), r);
+        }
+        return baseline;
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    // Spread messages over size/10 recipients so recipient searches return ~10 hits
+    private static String recipient(int i, int size) {
+        return "+2782" + String.format("%07d", i % Math.max(1, size / 10));
+    }
+}
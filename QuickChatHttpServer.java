@@ -0,0 +1,453 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Embedded HTTP/JSON front end for QuickChatService, on the JDK's com.sun.net.httpserver.
+//
+//   POST   /register              {"firstName","lastName","username","password","phoneNumber"}
+//   POST   /login                 {"username","password","phoneNumber"}  returns a session token;
+//                                  429 + Retry-After when locked out
+//   GET    /session               the user behind "Authorization: Bearer <token>"; POST logs out
+//   POST   /password              {"oldPassword","newPassword"}  for the session's user; ends all sessions
+//   POST   /messages              {"recipient","text"}  send a new message; 409 if it repeats a recent one
+//   POST   /messages/store        {"recipient","text"}  store a new message for later;
+//                                  with "sendAfterMillis" it is sent once that delay has passed
+//   GET    /messages?id=MSG101    one sent message
+//   GET    /messages?recipient=+27...[&ignoreCase=true]   (+2782* for a prefix)
+//   GET    /messages?recipient=+27...&last=20             latest messages to the recipient
+//   GET    /messages?recipient=+27...&since=t1&until=t2   sent between epoch microseconds
+//   GET    /messages?last=20                              latest messages to anyone
+//   GET    /messages?recipientFrom=+27...&recipientTo=+27...  inclusive number range
+//   GET    /messages?q=cake+dinner     keyword search (see MessageTextIndex)
+//   DELETE /messages?hash=...
+//   GET    /report                the sent report, streamed (?format=text|csv|json, ?limit=&cursor= to page)
+//   GET    /metrics               operation counts and latencies in the Prometheus text format
+//
+// Everything but /register, /login and /metrics needs the bearer token from /login, and gets
+// 401 without a live one. The token is checked against the session cache, so these requests
+// never repeat the password check.
+//
+// Run: java QuickChatHttpServer [port [bindAddress]]   (default 8080 on the loopback address, as
+// /metrics is open to anyone who can connect); with -Dquickchat.metrics.file=<path> the metrics
+// are also written to that file every 15 seconds.
+public class QuickChatHttpServer implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(QuickChatHttpServer.class.getName());
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    static {
+        // Responses go out as a header write then a body write; with Nagle on, the body waits
+        // for a delayed ACK (~40 ms per request). Read once, when the JDK server first loads.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final QuickChatService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Bind to the address; requests are handled on a virtual thread each where the JVM supports it
+    public QuickChatHttpServer(QuickChatService service, InetSocketAddress address) throws IOException {
+        this.service = service;
+        this.executor = QuickChatService.defaultExecutor();
+        this.server = HttpServer.create(address, 1024);
+        server.setExecutor(executor);
+        server.createContext("/register", json(this::register));
+        server.createContext("/login", json(this::login));
+        server.createContext("/session", json(this::session));
+        server.createContext("/password", json(this::password));
+        server.createContext("/messages", json(this::messages));
+        server.createContext("/report", this::report);
+        server.createContext("/metrics", this::metrics);
+        QuickChatMetrics.exportDeduplicator(service::deduplicator);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        InetAddress bind = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        QuickChatHttpServer server = new QuickChatHttpServer(new QuickChatService(), new InetSocketAddress(bind, port));
+        server.start();
+        String metricsFile = System.getProperty("quickchat.metrics.file");
+        if (metricsFile != null) {
+            QuickChatMetrics.exportTo(Paths.get(metricsFile), 15_000);
+        }
+        System.out.println("QuickChat listening on http://" + bind.getHostAddress() + ":" + server.getPort());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // Port actually bound, useful when constructed with port 0
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    // A handler that produces a status code and a JSON body
+    interface JsonHandler {
+        Response handle(HttpExchange exchange) throws IOException;
+    }
+
+    static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response register(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        Map<String, String> body = readBody(exchange);
+        String result = service.register(body.get("firstName"), body.get("lastName"), body.get("username"),
+                body.get("password"), body.get("phoneNumber")).join();
+        boolean ok = QuickChatService.REGISTRATION_SUCCESSFUL.equals(result);
+        return new Response(ok ? 201 : 400, "{\"registered\":" + ok + ",\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response login(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        Map<String, String> body = readBody(exchange);
+        long wait = service.loginRetryAfterMillis(body.get("username"), body.get("phoneNumber"));
+        if (wait > 0) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf((wait + 999) / 1000));
+            return error(429, "Too many failed logins");
+        }
+        Optional<String> token = service.startSession(body.get("username"), body.get("password"), body.get("phoneNumber")).join();
+        return token.isPresent() ? new Response(200, "{\"loggedIn\":true,\"token\":" + Json.quote(token.get()) + "}")
+                : new Response(401, "{\"loggedIn\":false}");
+    }
+
+    // GET shows the user behind the bearer token, POST ends the session
+    private Response session(HttpExchange exchange) throws IOException {
+        String token = bearerToken(exchange);
+        if (exchange.getRequestMethod().equals("POST")) {
+            return service.logout(token) ? new Response(200, "{\"loggedOut\":true}") : error(401, Unauthorized.MESSAGE);
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new MethodNotAllowed("GET, POST");
+        }
+        Optional<Login> user = service.session(token);
+        if (!user.isPresent()) {
+            return error(401, Unauthorized.MESSAGE);
+        }
+        StringBuilder sb = new StringBuilder("{\"username\":");
+        Json.quote(sb, user.get().getUsername());
+        sb.append(",\"firstName\":");
+        Json.quote(sb, user.get().getFirstName());
+        sb.append(",\"lastName\":");
+        Json.quote(sb, user.get().getLastName());
+        return new Response(200, sb.append('}').toString());
+    }
+
+    // The old password is still checked: a session alone is not enough to take over the account
+    private Response password(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        Login user = requireSession(exchange);
+        Map<String, String> body = readBody(exchange);
+        String result = service.changePassword(user.getUsername(), body.get("oldPassword"), user.getPhoneNumber(),
+                body.get("newPassword")).join();
+        boolean ok = QuickChatService.PASSWORD_CHANGED.equals(result);
+        return new Response(ok ? 200 : 400, "{\"changed\":" + ok + ",\"result\":" + Json.quote(result) + "}");
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && header.startsWith("Bearer ") ? header.substring(7).trim() : null;
+    }
+
+    // The user behind the request's bearer token; throws Unauthorized without a live session
+    private Login requireSession(HttpExchange exchange) {
+        return service.session(bearerToken(exchange)).orElseThrow(Unauthorized::new);
+    }
+
+    private Response messages(HttpExchange exchange) throws IOException {
+        requireSession(exchange);
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.equals("/messages/store")) {
+            requireMethod(exchange, "POST");
+            Map<String, String> body = readBody(exchange);
+            Message message = newMessage(body);
+            String delay = body.get("sendAfterMillis");
+            String result = delay != null ? service.scheduleSend(message, Long.parseLong(delay)).join()
+                    : service.store(message).join();
+            return new Response(201, messageResult(result, message));
+        }
+        if (!path.equals("/messages")) {
+            return error(404, "No such endpoint");
+        }
+        switch (method) {
+            case "POST": {
+                Message message = newMessage(readBody(exchange));
+                String result = service.send(message).join();
+                int status = message.isSent() ? 201 : QuickChatService.DUPLICATE.equals(result) ? 409 : 400;
+                return new Response(status, messageResult(result, message));
+            }
+            case "GET": {
+                Map<String, String> query = query(exchange);
+                if (query.containsKey("id")) {
+                    Optional<Message> found = service.searchByID(query.get("id")).join();
+                    return found.isPresent() ? new Response(200, Json.message(new StringBuilder(), found.get()).toString())
+                            : error(404, "Message ID not found");
+                }
+                if (query.containsKey("q")) {
+                    return new Response(200, jsonArray(service.searchText(query.get("q")).join()));
+                }
+                String recipient = query.get("recipient");
+                if (recipient != null && query.containsKey("last")) {
+                    return new Response(200, jsonArray(service.conversation(recipient, Integer.parseInt(query.get("last"))).join()));
+                }
+                if (recipient != null && (query.containsKey("since") || query.containsKey("until"))) {
+                    long since = query.containsKey("since") ? Long.parseLong(query.get("since")) : 0;
+                    long until = query.containsKey("until") ? Long.parseLong(query.get("until")) : Long.MAX_VALUE;
+                    return new Response(200, jsonArray(service.conversationBetween(recipient, since, until).join()));
+                }
+                if (query.containsKey("last")) {
+                    return new Response(200, jsonArray(service.recentMessages(Integer.parseInt(query.get("last"))).join()));
+                }
+                if (query.containsKey("recipient")) {
+                    boolean ignoreCase = Boolean.parseBoolean(query.get("ignoreCase"));
+                    return new Response(200, jsonArray(service.searchByRecipient(query.get("recipient"), ignoreCase).join()));
+                }
+                if (query.containsKey("recipientFrom") && query.containsKey("recipientTo")) {
+                    return new Response(200, jsonArray(
+                            service.searchByRecipientRange(query.get("recipientFrom"), query.get("recipientTo")).join()));
+                }
+                return error(400, "Pass id, recipient, recipientFrom and recipientTo, last, or q");
+            }
+            case "DELETE": {
+                String hash = query(exchange).get("hash");
+                if (hash == null) {
+                    return error(400, "Pass hash");
+                }
+                boolean deleted = service.deleteByHash(hash).join();
+                return new Response(deleted ? 200 : 404, "{\"deleted\":" + deleted + "}");
+            }
+            default:
+                throw new MethodNotAllowed("GET, POST, DELETE");
+        }
+    }
+
+    // GET /report[?format=text|csv|json][&limit=N[&cursor=...]]
+    // Streams with chunked encoding, so the report is never held in memory. With limit,
+    // returns one page; the next page's cursor comes back in X-Next-Cursor (and, for JSON,
+    // in the body). The report is not JSON by default, so it bypasses the JSON wrapper.
+    private void report(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                send(exchange, 405, "text/plain", "Method not allowed");
+                return;
+            }
+            if (!service.session(bearerToken(exchange)).isPresent()) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                send(exchange, 401, "application/json", error(401, Unauthorized.MESSAGE).body);
+                return;
+            }
+            Map<String, String> query = query(exchange);
+            MessageReportWriter.Format format;
+            MessageReportWriter.Cursor cursor;
+            int limit;
+            try {
+                format = MessageReportWriter.Format.valueOf(query.getOrDefault("format", "text").toUpperCase(Locale.ROOT));
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 0;
+                cursor = query.containsKey("cursor") ? MessageReportWriter.Cursor.parse(query.get("cursor")) : null;
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, "application/json", error(400, e.getMessage()).body);
+                return;
+            }
+            MessageReportWriter writer = new MessageReportWriter(Message.sentMessages, format);
+            exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+            if (limit <= 0) {
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer out = responseWriter(exchange)) {
+                    writer.writeAll(out);
+                }
+                return;
+            }
+            // Paged: render into memory first (one page is small) so the cursor header can lead
+            StringWriter page = new StringWriter();
+            MessageReportWriter.Cursor next = writer.writePage(page, cursor != null ? cursor : writer.start(), limit);
+            if (next != null) {
+                exchange.getResponseHeaders().set("X-Next-Cursor", next.toString());
+            }
+            send(exchange, 200, format.getContentType(), page.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                send(exchange, 405, "text/plain", "Method not allowed");
+                return;
+            }
+            send(exchange, 200, QuickChatMetrics.CONTENT_TYPE, QuickChatMetrics.prometheusText());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Writer responseWriter(HttpExchange exchange) {
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private Message newMessage(Map<String, String> body) {
+        String recipient = body.get("recipient");
+        String text = body.get("text");
+        if (recipient == null || text == null) {
+            throw new IllegalArgumentException("recipient and text are required");
+        }
+        return service.createMessage(recipient, text);
+    }
+
+    private static String jsonArray(List<Message> messages) {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; i < messages.size(); i++) {
+            Json.message(i == 0 ? out : out.append(','), messages.get(i));
+        }
+        return out.append(']').toString();
+    }
+
+    private static String messageResult(String result, Message message) {
+        StringBuilder out = new StringBuilder("{\"result\":");
+        Json.quote(out, result).append(",\"message\":");
+        return Json.message(out, message).append('}').toString();
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, "{\"error\":" + Json.quote(message) + "}");
+    }
+
+    // Wrap a JsonHandler: maps bad input to 400, a missing session to 401, wrong method to 405
+    // and anything else to 500. Unexpected failures are logged; the client only sees a generic message.
+    private static HttpHandler json(JsonHandler handler) {
+        return exchange -> {
+            try {
+                Response response;
+                try {
+                    response = handler.handle(exchange);
+                } catch (Unauthorized e) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    response = error(401, Unauthorized.MESSAGE);
+                } catch (MethodNotAllowed e) {
+                    exchange.getResponseHeaders().set("Allow", e.getMessage());
+                    response = error(405, "Method not allowed");
+                } catch (IllegalArgumentException e) {
+                    response = error(400, e.getMessage());
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof IllegalArgumentException) {
+                        response = error(400, e.getCause().getMessage());
+                    } else if (e.getCause() instanceof RejectedExecutionException) {
+                        response = error(503, "Busy, try again later");
+                    } else {
+                        response = internalError(exchange, e.getCause());
+                    }
+                } catch (RuntimeException e) {
+                    response = internalError(exchange, e);
+                }
+                send(exchange, response.status, "application/json", response.body);
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static Response internalError(HttpExchange exchange, Throwable cause) {
+        LOG.log(Level.WARNING, exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " failed", cause);
+        return error(500, "Internal server error");
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (bytes.length > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body too large");
+            }
+            return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!method.equals(exchange.getRequestMethod())) {
+            throw new MethodNotAllowed(method);
+        }
+    }
+
+    // Thrown by handlers when the request has no live session
+    private static final class Unauthorized extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final String MESSAGE = "Unknown or expired session";
+
+        Unauthorized() {
+            super(MESSAGE, null, false, false);
+        }
+    }
+
+    // Thrown by handlers for an unsupported method; the message is the Allow header
+    private static final class MethodNotAllowed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MethodNotAllowed(String allowed) {
+            super(allowed, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+public class QuickChatHttpServerTest {
+
+    private QuickChatService service;
+    private QuickChatHttpServer server;
+    private HttpClient http;
+    private String base;
+    // Session of a user registered up front, sent with every request by post() and get()
+    private String token;
+
+    @Before
+    public void setUp() throws IOException {
+        clearStores();
+        service = new QuickChatService();
+        server = new QuickChatHttpServer(service, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        base = "http://127.0.0.1:" + server.getPort();
+        http = HttpClient.newHttpClient();
+        service.register("Ann", "Lee", "ann_1", "Ch&&sec@ke99!", "+27821234567").join();
+        token = service.startSession("ann_1", "Ch&&sec@ke99!", "+27821234567").join().get();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        service.close();
+        clearStores();
+        QuickChatMetrics.exportDeduplicator(null);
+    }
+
+    @Test
+    public void testRegisterAndLogin() throws Exception {
+        HttpResponse<String> r = post("/register", "{\"firstName\":\"Kyle\",\"lastName\":\"Smith\",\"username\":\"kyl_1\","
+                + "\"password\":\"Ch&&sec@ke99!\",\"phoneNumber\":\"+27838968976\"}");
+        assertEquals(201, r.statusCode());
+        assertEquals("true", Json.parseObject(r.body()).get("registered"));
+
+        r = post("/login", "{\"username\":\"kyl_1\",\"password\":\"Ch&&sec@ke99!\",\"phoneNumber\":\"+27838968976\"}");
+        assertEquals(200, r.statusCode());
+        String token = Json.parseObject(r.body()).get("token");
+        HttpRequest.Builder session = HttpRequest.newBuilder(URI.create(base + "/session")).header("Authorization", "Bearer " + token);
+        r = http.send(session.GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("kyl_1", Json.parseObject(r.body()).get("username"));
+        r = http.send(session.POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, r.statusCode());
+        assertEquals(401, http.send(session.GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        r = post("/login", "{\"username\":\"kyl_1\",\"password\":\"nope\",\"phoneNumber\":\"+27838968976\"}");
+        assertEquals(401, r.statusCode());
+        for (int i = 0; i < 2; i++) {
+            post("/login", "{\"username\":\"kyl_1\",\"password\":\"nope\",\"phoneNumber\":\"+27838968976\"}");
+        }
+        // Locked out now, even with the right password
+        r = post("/login", "{\"username\":\"kyl_1\",\"password\":\"Ch&&sec@ke99!\",\"phoneNumber\":\"+27838968976\"}");
+        assertEquals(429, r.statusCode());
+        assertTrue(r.headers().firstValue("Retry-After").isPresent());
+    }
+
+    @Test
+    public void testSendSearchDeleteAndReport() throws Exception {
+        HttpResponse<String> r = post("/messages", "{\"recipient\":\"+27718693002\",\"text\":\"Say \\\"hi\\\" tonight\"}");
+        assertEquals(201, r.statusCode());
+        Message sent = Message.sentMessages.snapshot().get(0);
+        assertEquals("Say \"hi\" tonight", sent.getMessageText());
+
+        r = get("/messages?id=" + sent.getMessageID());
+        assertEquals(200, r.statusCode());
+        assertTrue(r.body().contains("\"messageText\":\"Say \\\"hi\\\" tonight\""));
+
+        r = get("/messages?recipient=%2B27718693002");
+        assertTrue(r.body().startsWith("[{") && r.body().contains(sent.getMessageHash()));
+        assertTrue(get("/messages?recipient=%2B2771*").body().contains(sent.getMessageHash()));
+        assertEquals("[]", get("/messages?recipient=%2B2782*").body());
+        r = get("/messages?recipientFrom=%2B27718000000&recipientTo=%2B27719000000");
+        assertTrue(r.body().contains(sent.getMessageHash()));
+        assertEquals(400, get("/messages?recipientFrom=%2B2771&recipientTo=soon").statusCode());
+        assertTrue(get("/messages?recipient=%2B27718693002&last=5").body().contains(sent.getMessageHash()));
+        assertTrue(get("/messages?last=1").body().contains(sent.getMessageHash()));
+        assertEquals("[]", get("/messages?recipient=%2B27718693002&until=1").body());
+
+        assertTrue(get("/report").body().contains("Say \"hi\" tonight"));
+
+        String uri = base + "/messages?hash=" + java.net.URLEncoder.encode(sent.getMessageHash(), "UTF-8");
+        r = http.send(HttpRequest.newBuilder(URI.create(uri)).header("Authorization", "Bearer " + token).DELETE().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, r.statusCode());
+        assertEquals(404, get("/messages?id=" + sent.getMessageID()).statusCode());
+    }
+
+    @Test
+    public void testMessagesNeedSession() throws Exception {
+        String session = token;
+        token = null;
+        HttpResponse<String> r = post("/messages", "{\"recipient\":\"+27718693002\",\"text\":\"Hi\"}");
+        assertEquals(401, r.statusCode());
+        assertEquals("Bearer", r.headers().firstValue("WWW-Authenticate").orElse(null));
+        assertEquals(401, post("/messages/store", "{\"recipient\":\"+27718693002\",\"text\":\"Hi\"}").statusCode());
+        assertEquals(401, get("/messages?last=5").statusCode());
+        assertEquals(401, get("/report").statusCode());
+        assertEquals(401, post("/password", "{\"oldPassword\":\"Ch&&sec@ke99!\",\"newPassword\":\"N3w&&pass!word\"}").statusCode());
+        token = "not-a-session";
+        assertEquals(401, get("/messages?last=5").statusCode());
+        assertEquals(0, Message.sentMessages.size() + Message.storedMessages.size());
+
+        token = session;
+        assertEquals(200, get("/messages?last=5").statusCode());
+        // Changing the password ends the session it was made with
+        r = post("/password", "{\"oldPassword\":\"Ch&&sec@ke99!\",\"newPassword\":\"N3w&&pass!word\"}");
+        assertEquals(200, r.statusCode());
+        assertEquals(401, get("/messages?last=5").statusCode());
+        assertTrue(service.startSession("ann_1", "N3w&&pass!word", "+27821234567").join().isPresent());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        assertEquals(201, post("/register", "{\"firstName\":\"Kyle\",\"lastName\":\"Smith\",\"username\":\"kyl_1\","
+                + "\"password\":\"Ch&&sec@ke99!\",\"phoneNumber\":\"+27838968976\"}").statusCode());
+        HttpResponse<String> r = get("/metrics");
+        assertEquals(200, r.statusCode());
+        assertTrue(r.headers().firstValue("Content-Type").get().startsWith("text/plain; version=0.0.4"));
+        assertTrue(r.body().contains("# TYPE quickchat_operation_calls_total counter"));
+        assertTrue(r.body().contains("quickchat_operation_duration_seconds_count{operation=\"Login.registerUser\"}"));
+        // The service's duplicate checks are exported alongside
+        assertTrue(r.body().contains("# TYPE quickchat_dedup_total counter"));
+        assertTrue(r.body().contains("quickchat_dedup_total{outcome=\"duplicate\"} 0\n"));
+        assertEquals(405, post("/metrics", "{}").statusCode());
+    }
+
+    @Test
+    public void testReportPaging() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(201, post("/messages", "{\"recipient\":\"+2771869300" + i + "\",\"text\":\"Hi " + i + "\"}").statusCode());
+        }
+        HttpResponse<String> page = get("/report?format=csv&limit=2");
+        String cursor = page.headers().firstValue("X-Next-Cursor").orElse(null);
+        assertNotNull(cursor);
+        assertEquals(3, page.body().split("\r\n").length);
+        page = get("/report?format=csv&limit=2&cursor=" + cursor);
+        assertFalse(page.headers().firstValue("X-Next-Cursor").isPresent());
+        assertTrue(page.body().contains("Hi 2"));
+        assertTrue(get("/report?format=json").body().endsWith("\"nextCursor\":null}"));
+        assertEquals(400, get("/report?cursor=bogus&limit=1").statusCode());
+    }
+
+    @Test
+    public void testBadInput() throws Exception {
+        assertEquals(400, post("/messages", "{\"recipient\":").statusCode());
+        assertEquals(400, post("/messages", "{\"text\":\"no recipient\"}").statusCode());
+        HttpResponse<String> r = post("/messages", "{\"recipient\":\"0831234567\",\"text\":\"Hi\"}");
+        assertEquals(400, r.statusCode());
+        Map<String, String> body = Json.parseObject(r.body().substring(0, r.body().indexOf(",\"message\"")) + "}");
+        assertEquals("Message disregarded due to invalid data", body.get("result"));
+        assertEquals(405, get("/login").statusCode());
+    }
+
+    private HttpResponse<String> post(String path, String json) throws Exception {
+        return http.send(request(path).POST(HttpRequest.BodyPublishers.ofString(json)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        return http.send(request(path).GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(base + path));
+        return token == null ? builder : builder.header("Authorization", "Bearer " + token);
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Closed-loop load generator for QuickChatHttpServer: each client thread sends a request,
+// waits for the response, and sends the next one. Reports throughput and p50/p99/p999 latency.
+//
+// Run: java QuickChatLoadGenerator [--url=http://host:port] [--clients=64] [--seconds=10]
+//                                  [--warmup=3] [--mix=send|search|mixed]
+// Without --url an embedded server is started on a free port, so one box measures itself.
+// Every client shares one session of a load-test user, registered on first use.
+public class QuickChatLoadGenerator {
+    static final String USERNAME = "lod_1";
+    static final String PASSWORD = "Ch&&sec@ke99!";
+    static final String PHONE = "+27830000000";
+
+    // Latencies of one client thread, in nanoseconds
+    static final class Recorder {
+        long[] samples = new long[1 << 16];
+        int count;
+        int errors;
+        // 409s: sends the server took for a repeat of a recent message
+        int duplicates;
+
+        void record(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int clients = 64;
+        int seconds = 10;
+        int warmup = 3;
+        String mix = "send";
+        for (String arg : args) {
+            if (arg.startsWith("--url=")) {
+                url = arg.substring(6);
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--mix=")) {
+                mix = arg.substring(6);
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        QuickChatHttpServer embedded = null;
+        if (url == null) {
+            embedded = new QuickChatHttpServer(new QuickChatService(), new InetSocketAddress("127.0.0.1", 0));
+            embedded.start();
+            url = "http://127.0.0.1:" + embedded.getPort();
+        }
+        try {
+            System.out.printf("Target %s, %d clients, mix=%s%n", url, clients, mix);
+            String token = login(url);
+            if (warmup > 0) {
+                run(url, token, clients, warmup, mix);
+            }
+            List<Recorder> recorders = run(url, token, clients, seconds, mix);
+            report(recorders, seconds);
+        } finally {
+            if (embedded != null) {
+                embedded.close();
+            }
+        }
+    }
+
+    // Register the load-test user (a repeat registration is refused, which is fine) and log in
+    static String login(String baseUrl) throws Exception {
+        HttpClient http = HttpClient.newHttpClient();
+        http.send(HttpRequest.newBuilder(URI.create(baseUrl + "/register"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"firstName\":\"Load\",\"lastName\":\"Test\",\"username\":\""
+                        + USERNAME + "\",\"password\":\"" + PASSWORD + "\",\"phoneNumber\":\"" + PHONE + "\"}"))
+                .build(), HttpResponse.BodyHandlers.discarding());
+        HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(baseUrl + "/login"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + USERNAME + "\",\"password\":\"" + PASSWORD
+                        + "\",\"phoneNumber\":\"" + PHONE + "\"}"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        String token = response.statusCode() == 200 ? Json.parseObject(response.body()).get("token") : null;
+        if (token == null) {
+            throw new IllegalStateException("Could not log in as " + USERNAME + ": HTTP " + response.statusCode());
+        }
+        return token;
+    }
+
+    static List<Recorder> run(String baseUrl, String token, int clients, int seconds, String mix) throws Exception {
+        // Part of every message text, so no run repeats a message an earlier one sent, which
+        // the server would refuse as a duplicate
+        String nonce = Long.toString(System.nanoTime(), 36);
+        HttpClient http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Recorder>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            futures.add(pool.submit(() -> {
+                Recorder recorder = new Recorder();
+                int i = 0;
+                while (System.nanoTime() < deadline) {
+                    HttpRequest request = nextRequest(baseUrl, token, mix, nonce, client, i++);
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() >= 500 || response.statusCode() == 401) {
+                            recorder.errors++;
+                        } else if (response.statusCode() == 409) {
+                            recorder.duplicates++;
+                        }
+                    } catch (IOException e) {
+                        recorder.errors++;
+                    }
+                    recorder.record(System.nanoTime() - start);
+                }
+                return recorder;
+            }));
+        }
+        List<Recorder> recorders = new ArrayList<>();
+        for (Future<Recorder> f : futures) {
+            recorders.add(f.get());
+        }
+        pool.shutdown();
+        return recorders;
+    }
+
+    private static HttpRequest nextRequest(String baseUrl, String token, String mix, String nonce, int client, int i) {
+        boolean send = mix.equals("send") || (mix.equals("mixed") && i % 2 == 0);
+        // Spread recipients so searches return a handful of hits each
+        String recipient = String.format("+2782%03d%04d", client % 1000, i % 100);
+        if (send) {
+            String body = "{\"recipient\":\"" + recipient + "\",\"text\":\"Load " + nonce + " " + client + " message " + i + "\"}";
+            return HttpRequest.newBuilder(URI.create(baseUrl + "/messages"))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + token)
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+        }
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/messages?recipient=%2B" + recipient.substring(1)))
+                .header("Authorization", "Bearer " + token).GET().build();
+    }
+
+    static void report(List<Recorder> recorders, int seconds) {
+        int total = 0;
+        int errors = 0;
+        int duplicates = 0;
+        for (Recorder r : recorders) {
+            total += r.count;
+            errors += r.errors;
+            duplicates += r.duplicates;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (Recorder r : recorders) {
+            System.arraycopy(r.samples, 0, all, pos, r.count);
+            pos += r.count;
+        }
+        Arrays.sort(all);
+        System.out.printf("requests   %,d (%d errors, %d duplicates)%n", total, errors, duplicates);
+        System.out.printf("throughput %,.0f req/s%n", (double) total / seconds);
+        System.out.printf("p50        %.3f ms%n", percentile(all, 0.50) / 1e6);
+        System.out.printf("p99        %.3f ms%n", percentile(all, 0.99) / 1e6);
+        System.out.printf("p999       %.3f ms%n", percentile(all, 0.999) / 1e6);
+        System.out.printf("max        %.3f ms%n", total == 0 ? 0 : all[total - 1] / 1e6);
+    }
+
+    // Nearest-rank percentile of sorted samples
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
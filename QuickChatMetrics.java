@@ -0,0 +1,300 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Call counts and latency histograms for every public Login and Message operation.
+//
+// Each operation is a static Operation next to the code it measures; a call does
+//   long start = OP.start();  ...  OP.stop(start);
+// Counting and timing a call takes atomic adds and two clock reads, tens to hundreds of
+// nanoseconds, which is more than most operations cost. So sampled operations record one
+// call in SAMPLE_EVERY, picked with ThreadLocalRandom, and count it as SAMPLE_EVERY calls; an
+// unsampled call costs one random number. Their call counts are estimates, good to a few
+// percent once there are thousands of calls. Operations that walk every message are cheap
+// to measure by comparison and record every call exactly.
+//
+// A recorded call over the slow threshold also counts as slow and, while a JFR recording is
+// on, commits a quickchat.SlowOperation event with its stack trace. Calls that are not
+// recorded are not timed either, so anything that can block (on disk, a lock or the
+// network) must not be sampled, or most of its slow calls go unseen.
+//
+// writePrometheus renders everything in the Prometheus text format; QuickChatHttpServer serves
+// it on GET /metrics, and exportTo rewrites a file periodically for the node_exporter textfile
+// collector. Run with -Dquickchat.metrics=false to compile the instrumentation away, and
+// -Dquickchat.metrics.slowMillis=N to change the slow threshold (100 ms by default).
+public final class QuickChatMetrics {
+    public static final boolean ENABLED = !"false".equals(System.getProperty("quickchat.metrics"));
+    public static final int SAMPLE_EVERY = 64;
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+    private static final Logger LOG = Logger.getLogger(QuickChatMetrics.class.getName());
+
+    private static final ConcurrentSkipListMap<String, Operation> operations = new ConcurrentSkipListMap<>();
+    // Source of the duplicate-send counters, see exportDeduplicator
+    private static volatile Supplier<MessageDeduplicator> deduplicator = () -> null;
+    private static volatile long slowThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("quickchat.metrics.slowMillis", 100));
+
+    private QuickChatMetrics() {
+    }
+
+    // The operation with this name, created on first use; sampled ones record 1 call in SAMPLE_EVERY
+    public static Operation operation(String name, boolean sampled) {
+        return operations.computeIfAbsent(name, n -> new Operation(n, sampled ? SAMPLE_EVERY - 1 : 0));
+    }
+
+    public static Operation operation(String name) {
+        return operation(name, false);
+    }
+
+    // Registered operations, by name
+    public static Collection<Operation> operations() {
+        return operations.values();
+    }
+
+    public static long getSlowThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos);
+    }
+
+    public static void setSlowThresholdMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Slow threshold must not be negative");
+        }
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // One measured operation
+    public static final class Operation {
+        private final String name;
+        private final int sampleMask;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Operation(String name, int sampleMask) {
+            this.name = name;
+            this.sampleMask = sampleMask;
+        }
+
+        // The start time if this call is recorded, otherwise 0
+        public long start() {
+            if (!ENABLED || (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0)) {
+                return 0;
+            }
+            calls.add(sampleMask + 1);
+            return System.nanoTime();
+        }
+
+        // End a call begun with start()
+        public void stop(long start) {
+            if (start == 0) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            latency.record(nanos);
+            if (nanos >= slowThresholdNanos) {
+                slow(nanos);
+            }
+        }
+
+        private void slow(long nanos) {
+            slow.increment();
+            SlowOperationEvent event = new SlowOperationEvent();
+            if (event.shouldCommit()) {
+                event.operation = name;
+                event.elapsed = nanos;
+                event.commit();
+            }
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public boolean isSampled() {
+            return sampleMask != 0;
+        }
+
+        // Exact, or for a sampled operation an estimate
+        public long calls() {
+            return calls.sum();
+        }
+
+        // Recorded calls over the slow threshold
+        public long slowCalls() {
+            return slow.sum();
+        }
+
+        // Timings of the recorded calls
+        public LatencyHistogram.Snapshot latency() {
+            return latency.snapshot();
+        }
+    }
+
+    @Name("quickchat.SlowOperation")
+    @Label("Slow QuickChat Operation")
+    @Category("QuickChat")
+    @Description("A Login or Message operation that took longer than the slow threshold")
+    @StackTrace(true)
+    public static class SlowOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        // Events carry a duration of their own, but it can only be measured from begin(); this
+        // one is only created once the call has already turned out to be slow
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    // Every operation, the message store sizes and the exported deduplicator's counters, in the
+    // Prometheus text exposition format
+    public static void writePrometheus(Appendable out) throws IOException {
+        Operation[] ops = operations.values().toArray(new Operation[0]);
+        header(out, "quickchat_operation_calls_total", "counter", "Calls to each Login and Message operation, estimated for sampled ones.");
+        for (Operation op : ops) {
+            sample(out, "quickchat_operation_calls_total", op.name, null, op.calls());
+        }
+        header(out, "quickchat_operation_slow_total", "counter", "Recorded calls over the slow threshold.");
+        for (Operation op : ops) {
+            sample(out, "quickchat_operation_slow_total", op.name, null, op.slowCalls());
+        }
+        // One snapshot per operation, so its summary and max agree
+        LatencyHistogram.Snapshot[] latency = new LatencyHistogram.Snapshot[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            latency[i] = ops[i].latency();
+        }
+        header(out, "quickchat_operation_duration_seconds", "summary",
+                "Latency of recorded calls; sampled operations record 1 call in " + SAMPLE_EVERY + ".");
+        for (int i = 0; i < ops.length; i++) {
+            for (String q : QUANTILES) {
+                double fraction = Double.parseDouble(q);
+                sample(out, "quickchat_operation_duration_seconds", ops[i].name, q, seconds(latency[i].valueAt(fraction)));
+            }
+            sample(out, "quickchat_operation_duration_seconds_sum", ops[i].name, null, seconds(latency[i].sum()));
+            sample(out, "quickchat_operation_duration_seconds_count", ops[i].name, null, latency[i].count());
+        }
+        header(out, "quickchat_operation_duration_max_seconds", "gauge", "Longest recorded call.");
+        for (int i = 0; i < ops.length; i++) {
+            sample(out, "quickchat_operation_duration_max_seconds", ops[i].name, null, seconds(latency[i].max()));
+        }
+        header(out, "quickchat_messages", "gauge", "Messages held in each store.");
+        out.append("quickchat_messages{store=\"sent\"} ").append(Integer.toString(Message.sentMessages.size())).append('\n');
+        out.append("quickchat_messages{store=\"stored\"} ").append(Integer.toString(Message.storedMessages.size())).append('\n');
+        out.append("quickchat_messages{store=\"disregarded\"} ").append(Integer.toString(Message.disregardedMessages.size())).append('\n');
+        MessageDeduplicator dedup = deduplicator.get();
+        if (dedup != null) {
+            header(out, "quickchat_dedup_total", "counter",
+                    "Duplicate checks on sends: checked, duplicates caught, passed by the Bloom filter, Bloom filter false positives.");
+            dedupSample(out, "checked", dedup.checkCount());
+            dedupSample(out, "duplicate", dedup.duplicateCount());
+            dedupSample(out, "bloom_negative", dedup.bloomNegativeCount());
+            dedupSample(out, "bloom_false_positive", dedup.bloomFalsePositiveCount());
+        }
+    }
+
+    // Report the counters of whichever deduplicator the source returns at each scrape, so a
+    // replaced one is picked up; null stops reporting them. QuickChatHttpServer points it at
+    // its service.
+    public static void exportDeduplicator(Supplier<MessageDeduplicator> source) {
+        deduplicator = source != null ? source : () -> null;
+    }
+
+    public static String prometheusText() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        try {
+            writePrometheus(sb);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    // Rewrite the file with a fresh snapshot now and every periodMillis until closed, which waits
+    // for a write in progress. Each snapshot goes to a temporary file that is then renamed over
+    // it, so readers never see half.
+    public static AutoCloseable exportTo(Path file, long periodMillis) {
+        if (periodMillis < 1) {
+            throw new IllegalArgumentException("Export period must be positive");
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "quickchat-metrics-export");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                writeFile(file);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Metrics export to " + file + " failed", e);
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+        return () -> {
+            scheduler.shutdown();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        };
+    }
+
+    static void writeFile(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writePrometheus(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void dedupSample(Appendable out, String outcome, long value) throws IOException {
+        out.append("quickchat_dedup_total{outcome=\"").append(outcome).append("\"} ").append(Long.toString(value)).append('\n');
+    }
+
+    private static void header(Appendable out, String metric, String type, String help) throws IOException {
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String metric, String operation, String quantile, double value) throws IOException {
+        out.append(metric).append("{operation=\"").append(operation).append('"');
+        if (quantile != null) {
+            out.append(",quantile=\"").append(quantile).append('"');
+        }
+        out.append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,180 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class QuickChatMetricsTest {
+
+    @After
+    public void tearDown() {
+        QuickChatMetrics.setSlowThresholdMillis(100);
+        QuickChatMetrics.exportDeduplicator(null);
+        Message.sentMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+
+    @Test
+    public void testExactOperationsCountEveryCall() {
+        QuickChatMetrics.Operation report = QuickChatMetrics.operation("Message.displaySentMessageReport");
+        QuickChatMetrics.Operation list = QuickChatMetrics.operation("Message.getSentMessagesList");
+        long reports = report.calls();
+        long reportTimings = report.latency().count();
+        long lists = list.calls();
+
+        new Message("MSG101", "+27821234567", "Did you get the cake?").sentMessage();
+        Message.displaySentMessageReport();
+        Message.displaySentMessageReport();
+        Message.getSentMessagesList();
+
+        assertFalse(report.isSampled());
+        assertEquals(reports + 2, report.calls());
+        assertEquals(reportTimings + 2, report.latency().count());
+        assertEquals(lists + 1, list.calls());
+        assertSame(report, QuickChatMetrics.operation("Message.displaySentMessageReport", true));
+    }
+
+    @Test
+    public void testSampledOperationsEstimateCalls() {
+        QuickChatMetrics.Operation checkPassword = QuickChatMetrics.operation("Login.checkPasswordComplexity");
+        QuickChatMetrics.Operation register = QuickChatMetrics.operation("Login.registerUser");
+        long passwordChecks = checkPassword.calls();
+        long passwordTimings = checkPassword.latency().count();
+        long registers = register.calls();
+
+        Login login = new Login("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976");
+        for (int i = 0; i < 64_000; i++) {
+            login.checkPasswordComplexity();
+        }
+        assertTrue(checkPassword.isSampled());
+        // About 1000 of the calls are recorded, each standing for SAMPLE_EVERY calls
+        long estimated = checkPassword.calls() - passwordChecks;
+        long recorded = checkPassword.latency().count() - passwordTimings;
+        assertEquals(recorded * QuickChatMetrics.SAMPLE_EVERY, estimated);
+        assertTrue("estimated " + estimated, estimated > 64_000 * 0.8 && estimated < 64_000 * 1.2);
+        // registerUser validates without going through the check methods
+        assertEquals("Registration successful.", login.registerUser());
+        assertEquals(passwordChecks + estimated, checkPassword.calls());
+        assertTrue(register.calls() - registers == 0 || register.calls() - registers == QuickChatMetrics.SAMPLE_EVERY);
+    }
+
+    @Test
+    public void testEveryPublicOperationIsRegistered() {
+        new Login("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976").checkUserName();
+        Message.getSentMessagesList();
+        String names = QuickChatMetrics.operations().stream().map(QuickChatMetrics.Operation::name).toList().toString();
+        for (String name : new String[]{"Login.checkUserName", "Login.checkCellPhoneNumber", "Login.validateRegistration",
+                "Login.loginUser", "Message.createMessageHash", "Message.searchMessageByID",
+                "Message.searchMessagesByRecipient", "Message.searchMessagesByText", "Message.displaySentMessageReport",
+                "Message.deleteMessageByHash", "Message.generateMessageID", "Message.applyDeliveryEvents"}) {
+            assertTrue(name, names.contains(name));
+        }
+    }
+
+    @Test
+    public void testPrometheusText() throws Exception {
+        Message.displaySentMessageReport();
+        String text = QuickChatMetrics.prometheusText();
+        assertTrue(text.contains("# TYPE quickchat_operation_calls_total counter\n"));
+        assertTrue(text.contains("# TYPE quickchat_operation_duration_seconds summary\n"));
+        assertTrue(text.contains("quickchat_operation_duration_seconds{operation=\"Message.displaySentMessageReport\",quantile=\"0.99\"} "));
+        assertTrue(text.contains("quickchat_messages{store=\"sent\"} 0\n"));
+        // Every sample line is "name{labels} number", and each family's samples follow its TYPE line
+        String family = null;
+        for (String line : text.split("\n")) {
+            if (line.startsWith("# TYPE ")) {
+                family = line.split(" ")[2];
+                continue;
+            }
+            if (line.startsWith("#")) {
+                continue;
+            }
+            assertTrue(line, line.matches("[a-z_]+\\{[^}]*\\} [0-9.E-]+"));
+            assertTrue(line, line.startsWith(family));
+        }
+    }
+
+    @Test
+    public void testDeduplicatorCountersAreExported() {
+        assertFalse(QuickChatMetrics.prometheusText().contains("quickchat_dedup_total"));
+        MessageDeduplicator dedup = new MessageDeduplicator();
+        QuickChatMetrics.exportDeduplicator(() -> dedup);
+        Message m = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        dedup.firstSend(m);
+        dedup.firstSend(m);
+        String text = QuickChatMetrics.prometheusText();
+        assertTrue(text.contains("quickchat_dedup_total{outcome=\"checked\"} 2\n"));
+        assertTrue(text.contains("quickchat_dedup_total{outcome=\"duplicate\"} 1\n"));
+        assertTrue(text.contains("quickchat_dedup_total{outcome=\"bloom_negative\"} 1\n"));
+        assertTrue(text.contains("quickchat_dedup_total{outcome=\"bloom_false_positive\"} 0\n"));
+    }
+
+    @Test
+    public void testFileExport() throws Exception {
+        Path dir = Files.createTempDirectory("metrics");
+        Path file = dir.resolve("quickchat.prom");
+        AutoCloseable export = QuickChatMetrics.exportTo(file, 10);
+        try {
+            LocalGatewayTest.waitFor(() -> Files.exists(file));
+        } finally {
+            export.close();
+        }
+        assertTrue(Files.readString(file, StandardCharsets.UTF_8).contains("quickchat_operation_calls_total"));
+        try (var files = Files.list(dir)) {
+            // Temporary files were renamed over the target or removed
+            assertEquals(1, files.count());
+        }
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testSlowOperationsCommitJfrEvents() throws Exception {
+        QuickChatMetrics.Operation report = QuickChatMetrics.operation("Message.displaySentMessageReport");
+        long slow = report.slowCalls();
+        Path dump = Files.createTempFile("quickchat", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("quickchat.SlowOperation");
+            recording.start();
+            QuickChatMetrics.setSlowThresholdMillis(0);
+            Message.displaySentMessageReport();
+            QuickChatMetrics.setSlowThresholdMillis(100);
+        QuickChatMetrics.exportDeduplicator(null);
+            recording.stop();
+            recording.dump(dump);
+        }
+        assertEquals(slow + 1, report.slowCalls());
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        Files.delete(dump);
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("quickchat.SlowOperation")
+                && e.getString("operation").equals("Message.displaySentMessageReport")
+                && e.getLong("elapsed") >= 0));
+    }
+
+    @Test
+    public void testBlockingOperationsCheckEveryCallForSlowness() {
+        QuickChatMetrics.Operation send = QuickChatMetrics.operation("Message.sentMessage");
+        assertFalse(send.isSampled());
+        assertFalse(QuickChatMetrics.operation("Message.deleteMessageByHash").isSampled());
+        long slow = send.slowCalls();
+        QuickChatMetrics.setSlowThresholdMillis(0);
+        for (int i = 0; i < 10; i++) {
+            new Message("MSG1" + i, "+27821234567", "Did you get the cake?").sentMessage();
+        }
+        QuickChatMetrics.setSlowThresholdMillis(100);
+        QuickChatMetrics.exportDeduplicator(null);
+        assertEquals(slow + 10, send.slowCalls());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeThreshold() {
+        QuickChatMetrics.setSlowThresholdMillis(-1);
+    }
+}
@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Headless QuickChat API: registration, login, sending and the search/delete/report
+// operations, with no dialogs. Every call runs on the service's executor and returns a
+// CompletableFuture, so callers can drive it concurrently, batch it, or embed it.
+// Messages live in the shared Message stores, so the Message statics see the same data.
+public class QuickChatService implements AutoCloseable {
+    public static final String REGISTRATION_SUCCESSFUL = "Registration successful.";
+    public static final String USERNAME_TAKEN = "Username is already taken.";
+    public static final String PASSWORD_CHANGED = "Password changed.";
+    public static final String PASSWORD_NOT_CHANGED = "Current credentials do not match.";
+    public static final String DUPLICATE = "Message disregarded as a duplicate of one already sent";
+    // How long a scheduled send waits for the gateway before the attempt counts as failed
+    public static final long SCHEDULED_SEND_TIMEOUT_MILLIS = 30_000;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    // Registered users, with hashed passwords; hashing runs on the store's own bounded pool
+    private final CredentialStore credentials;
+    private final boolean ownsCredentials;
+    // Failed logins per username and phone number, across every caller of this service
+    private final LoginRateLimiter rateLimiter = new LoginRateLimiter();
+    // Tokens for logged-in users, so later calls skip the password hash
+    private final SessionCache sessions = new SessionCache();
+    // Scheduled sends; created on first use, so services that never schedule start no thread
+    private MessageOutbox outbox;
+    // Gateway delivery for send(), null to only record sent messages locally
+    private volatile MessageDelivery delivery;
+    // Catches the same message sent again within its window; null turns the check off
+    private volatile MessageDeduplicator deduplicator = new MessageDeduplicator();
+
+    // Runs on a virtual thread per task where the JVM has them, else on a cached daemon pool
+    public QuickChatService() {
+        this(defaultExecutor(), true, new CredentialStore(), true);
+    }
+
+    // Runs on the caller's executor, which close() leaves running
+    public QuickChatService(ExecutorService executor) {
+        this(executor, false, new CredentialStore(), true);
+    }
+
+    // Runs on the caller's executor and credential store, which close() leaves open
+    public QuickChatService(ExecutorService executor, CredentialStore credentials) {
+        this(executor, false, credentials, false);
+    }
+
+    private QuickChatService(ExecutorService executor, boolean ownsExecutor,
+                             CredentialStore credentials, boolean ownsCredentials) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.credentials = credentials;
+        this.ownsCredentials = ownsCredentials;
+    }
+
+    // Validate and register a user; completes with the same text Login.registerUser returns,
+    // or USERNAME_TAKEN if the username is already registered
+    public CompletableFuture<String> register(String firstName, String lastName, String username,
+                                              String password, String phoneNumber) {
+        return async(() -> new Login(firstName, lastName, username, password, phoneNumber).registerUser())
+                .thenCompose(result -> !REGISTRATION_SUCCESSFUL.equals(result) ? CompletableFuture.completedFuture(result)
+                        : credentials.register(firstName, lastName, username, password, phoneNumber)
+                                .thenApply(added -> added ? result : USERNAME_TAKEN));
+    }
+
+    // Completes with the registered user's profile (which holds no password) if all three
+    // credentials match. While the username or phone number is locked out it completes
+    // empty without checking the password. Fails with RejectedExecutionException when the
+    // hashing queue is full.
+    public CompletableFuture<Optional<Login>> login(String username, String password, String phoneNumber) {
+        if (rateLimiter.isLocked(username, phoneNumber)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return credentials.authenticate(username, password, phoneNumber).thenApply(user -> {
+            if (user.isPresent()) {
+                rateLimiter.recordSuccess(username, phoneNumber);
+            } else {
+                rateLimiter.recordFailure(username, phoneNumber);
+            }
+            return user;
+        });
+    }
+
+    // Log in and start a session; completes with its token if the credentials match
+    public CompletableFuture<Optional<String>> startSession(String username, String password, String phoneNumber) {
+        return login(username, password, phoneNumber).thenApply(user -> user.map(sessions::create));
+    }
+
+    // The user behind a session token, if it is live; no credential check
+    public Optional<Login> session(String token) {
+        return sessions.get(token);
+    }
+
+    // End one session; true if the token was live
+    public boolean logout(String token) {
+        return sessions.invalidate(token);
+    }
+
+    // Check the current credentials, set the new password and end every session the user
+    // has open; completes with PASSWORD_CHANGED, PASSWORD_NOT_CHANGED or the reason the new
+    // password was rejected
+    public CompletableFuture<String> changePassword(String username, String oldPassword, String phoneNumber,
+                                                    String newPassword) {
+        if (!new Login(null, null, username, newPassword, phoneNumber).checkPasswordComplexity()) {
+            return CompletableFuture.completedFuture(Login.PASSWORD_INVALID);
+        }
+        if (rateLimiter.isLocked(username, phoneNumber)) {
+            return CompletableFuture.completedFuture(PASSWORD_NOT_CHANGED);
+        }
+        return credentials.changePassword(username, oldPassword, phoneNumber, newPassword).thenApply(changed -> {
+            if (!changed) {
+                rateLimiter.recordFailure(username, phoneNumber);
+                return PASSWORD_NOT_CHANGED;
+            }
+            sessions.invalidateUser(username);
+            return PASSWORD_CHANGED;
+        });
+    }
+
+    public SessionCache sessions() {
+        return sessions;
+    }
+
+    // Milliseconds until this username and phone number may try to log in again, 0 if now
+    public long loginRetryAfterMillis(String username, String phoneNumber) {
+        return rateLimiter.retryAfterMillis(username, phoneNumber);
+    }
+
+    public LoginRateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    // Build a message with the next generated ID; nothing is stored until it is sent, stored or disregarded
+    public Message createMessage(String recipient, String messageText) {
+        return new Message(Message.generateMessageID(), recipient, messageText);
+    }
+
+    // Send a message; completes with the Message.sentMessage result, or with the
+    // MessageDelivery result once the gateway answers if a transport is in use. A repeat of a
+    // message sent within the deduplicator's window is disregarded with DUPLICATE instead;
+    // a send that fails is forgotten, so retrying it is not a duplicate.
+    public CompletableFuture<String> send(Message message) {
+        MessageDelivery d = delivery;
+        MessageDeduplicator dedup = deduplicator;
+        return async(() -> {
+            // Only messages that would be sent are checked, so invalid ones keep their usual result
+            boolean checked = dedup != null && message.canSend();
+            if (checked && !dedup.firstSend(message)) {
+                message.setDisregardReason(DUPLICATE);
+                Message.disregardedMessages.add(message);
+                return CompletableFuture.completedFuture(DUPLICATE);
+            }
+            CompletableFuture<String> result;
+            try {
+                result = d != null ? d.send(message) : CompletableFuture.completedFuture(message.sentMessage());
+            } catch (RuntimeException e) {
+                if (checked) {
+                    dedup.forget(message);
+                }
+                throw e;
+            }
+            if (!checked) {
+                return result;
+            }
+            // Completes after the forget, so a caller retrying on failure is not a duplicate
+            return result.whenComplete((outcome, error) -> {
+                if (error != null || MessageDelivery.FAILED.equals(outcome)) {
+                    dedup.forget(message);
+                }
+            });
+        }).thenCompose(f -> f);
+    }
+
+    public MessageDeduplicator deduplicator() {
+        return deduplicator;
+    }
+
+    // Replace the duplicate check, e.g. with another window; null turns it off
+    public void setDeduplicator(MessageDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    // Deliver later sends through the transport, whose receipts then set the received and
+    // read flags; null goes back to local sends. close() leaves the transport open.
+    public void useTransport(DeliveryTransport transport) {
+        delivery = transport != null ? new MessageDelivery(transport) : null;
+    }
+
+    // Keep a message for later
+    public CompletableFuture<String> store(Message message) {
+        return async(() -> {
+            Message.storedMessages.add(message);
+            return "Message stored";
+        });
+    }
+
+    // Store a message and send it once the delay has passed, retrying failed attempts
+    public CompletableFuture<String> scheduleSend(Message message, long delayMillis) {
+        return async(() -> {
+            outbox().scheduleAfter(message, delayMillis);
+            return "Message scheduled";
+        });
+    }
+
+    // Scheduled sends go out the way send() does: through the transport in use at the time,
+    // checked against the deduplicator
+    public synchronized MessageOutbox outbox() {
+        if (outbox == null) {
+            outbox = new MessageOutbox(this::sendScheduled).start();
+        }
+        return outbox;
+    }
+
+    // The outbox's Sender. A duplicate is rejected rather than retried; a failed attempt is
+    // forgotten, so the outbox's retry is not taken for a duplicate.
+    private void sendScheduled(Message message) throws Exception {
+        MessageDelivery d = delivery;
+        MessageDeduplicator dedup = deduplicator;
+        if (dedup != null && !dedup.firstSend(message)) {
+            throw new MessageOutbox.Rejected(DUPLICATE);
+        }
+        try {
+            if (d != null) {
+                d.outboxSender(SCHEDULED_SEND_TIMEOUT_MILLIS).send(message);
+            }
+        } catch (Exception e) {
+            if (dedup != null) {
+                dedup.forget(message);
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<String> disregard(Message message) {
+        return async(() -> {
+            Message.disregardedMessages.add(message);
+            return "Message disregarded";
+        });
+    }
+
+    // Sent messages, oldest first
+    public CompletableFuture<List<Message>> sentMessages() {
+        return async(Message.sentMessages::snapshot);
+    }
+
+    // The last n messages sent to anyone, oldest first
+    public CompletableFuture<List<Message>> recentMessages(int n) {
+        return async(() -> Message.conversations.recent(n));
+    }
+
+    // The last n messages sent to the recipient, oldest first
+    public CompletableFuture<List<Message>> conversation(String recipient, int n) {
+        return async(() -> Message.conversations.last(recipient, n));
+    }
+
+    // Messages sent to the recipient between two timestamps (epoch microseconds, inclusive)
+    public CompletableFuture<List<Message>> conversationBetween(String recipient, long fromMicros, long toMicros) {
+        return async(() -> Message.conversations.between(recipient, fromMicros, toMicros));
+    }
+
+    // Falls back to the archive for messages no longer in memory, as searchMessageByID does
+    public CompletableFuture<Optional<Message>> searchByID(String messageID) {
+        return async(() -> Optional.ofNullable(Message.findSentByID(messageID, true)));
+    }
+
+    // A trailing * searches by prefix, e.g. "+2782*"
+    public CompletableFuture<List<Message>> searchByRecipient(String recipient, boolean ignoreCase) {
+        return async(() -> Message.findSentByRecipient(recipient, ignoreCase));
+    }
+
+    // Sent messages to numbers from..to inclusive; fails with IllegalArgumentException unless both are +<digits>
+    public CompletableFuture<List<Message>> searchByRecipientRange(String from, String to) {
+        return async(() -> Message.recipientIndex.range(from, to));
+    }
+
+    // Keyword search over sent message text; see MessageTextIndex for the query syntax
+    public CompletableFuture<List<Message>> searchText(String query) {
+        return async(() -> Message.textIndex.search(query));
+    }
+
+    // Apply a burst of delivery or read receipts to sent messages by ID
+    public CompletableFuture<MessageLifecycle.Result> applyDeliveryEvents(MessageLifecycle.Event event,
+                                                                          Collection<String> messageIDs) {
+        return async(() -> Message.applyDeliveryEvents(event, messageIDs));
+    }
+
+    // Completes with true if a sent or archived message with this hash was deleted
+    public CompletableFuture<Boolean> deleteByHash(String messageHash) {
+        return async(() -> Message.deleteByHash(messageHash, true));
+    }
+
+    // The first of the longest sent messages, if any were sent
+    public CompletableFuture<Optional<Message>> longestMessage() {
+        return async(() -> Optional.ofNullable(Message.statistics.getLongestSent()));
+    }
+
+    public CompletableFuture<String> report() {
+        return async(Message::displaySentMessageReport);
+    }
+
+    // Cursor for the first page of a report over the messages sent so far
+    public MessageReportWriter.Cursor reportStart() {
+        return new MessageReportWriter(Message.sentMessages, MessageReportWriter.Format.TEXT).start();
+    }
+
+    // Stream one page of the sent report to out; completes with the next page's cursor, or null at the end
+    public CompletableFuture<MessageReportWriter.Cursor> writeReportPage(Writer out, MessageReportWriter.Format format,
+                                                                         MessageReportWriter.Cursor from, int limit) {
+        return async(() -> {
+            try {
+                return new MessageReportWriter(Message.sentMessages, format).writePage(out, from, limit);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Stream the whole sent report to out
+    public CompletableFuture<Void> writeReport(Writer out, MessageReportWriter.Format format) {
+        return async(() -> {
+            try {
+                new MessageReportWriter(Message.sentMessages, format).writeAll(out);
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Stop the default executor and credential store once queued work finishes; caller-supplied ones are left alone
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (outbox != null) {
+                outbox.close();
+            }
+        }
+        if (ownsCredentials) {
+            credentials.close();
+        }
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() on Java 21+, looked up reflectively so this
+    // still compiles and runs on 17
+    static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread t = new Thread(r, "quickchat-service-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+}
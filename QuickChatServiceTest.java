@@ -0,0 +1,172 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+public class QuickChatServiceTest {
+
+    private QuickChatService service;
+
+    @Before
+    public void setUp() {
+        clearStores();
+        service = new QuickChatService();
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+        clearStores();
+    }
+
+    @Test
+    public void testRegisterAndLogin() {
+        assertEquals(QuickChatService.REGISTRATION_SUCCESSFUL,
+                service.register("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976").join());
+        assertEquals(QuickChatService.USERNAME_TAKEN,
+                service.register("Kim", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968977").join());
+        assertTrue(service.register("Bob", "Jones", "bob", "P@ssword1", "+27831234567").join().startsWith("Username is not"));
+
+        assertTrue(service.login("kyl_1", "Ch&&sec@ke99!", "+27838968976").join().isPresent());
+        assertFalse(service.login("kyl_1", "wrong", "+27838968976").join().isPresent());
+        assertFalse(service.login("bob", "P@ssword1", "+27831234567").join().isPresent());
+        assertFalse(service.login(null, null, null).join().isPresent());
+    }
+
+    @Test
+    public void testSessionsEndOnPasswordChange() {
+        service.register("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976").join();
+        String token = service.startSession("kyl_1", "Ch&&sec@ke99!", "+27838968976").join().get();
+        assertEquals("kyl_1", service.session(token).get().getUsername());
+
+        assertEquals(Login.PASSWORD_INVALID, service.changePassword("kyl_1", "Ch&&sec@ke99!", "+27838968976", "weak").join());
+        assertEquals(QuickChatService.PASSWORD_CHANGED,
+                service.changePassword("kyl_1", "Ch&&sec@ke99!", "+27838968976", "N3w&Better!").join());
+        assertFalse(service.session(token).isPresent());
+        assertTrue(service.login("kyl_1", "N3w&Better!", "+27838968976").join().isPresent());
+        assertFalse(service.login("kyl_1", "Ch&&sec@ke99!", "+27838968976").join().isPresent());
+    }
+
+    @Test
+    public void testSendStoreDisregardAndSearch() {
+        Message sent = new Message("MSG101", "+27821234567", "Did you get the cake?");
+        Message kept = new Message("MSG102", "+27821234567", "Call me later");
+        Message dropped = new Message("MSG103", "+27821234567", "Never mind");
+        assertEquals("Message sent", service.send(sent).join());
+        service.store(kept).join();
+        service.disregard(dropped).join();
+
+        assertTrue(sent.isSent());
+        assertTrue(Message.storedMessages.contains(kept));
+        assertTrue(Message.disregardedMessages.contains(dropped));
+        assertEquals(Optional.of(sent), service.searchByID("msg101").join());
+        assertEquals(List.of(sent), service.searchByRecipient("+27821234567", false).join());
+        assertEquals(Optional.of(sent), service.longestMessage().join());
+        assertTrue(service.report().join().contains("Did you get the cake?"));
+
+        assertTrue(service.deleteByHash(sent.getMessageHash().toLowerCase()).join());
+        assertFalse(service.deleteByHash(sent.getMessageHash()).join());
+        assertTrue(service.sentMessages().join().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentSendsAllLand() {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(service.send(new Message("MSG" + (100 + i % 900), "+2782" + i, "w" + i + " hello")));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(500, service.sentMessages().join().size());
+    }
+
+    @Test
+    public void testFailedSendCanBeRetried() throws Exception {
+        try (LocalGateway refusing = new LocalGateway(0, 0, 1, 0, 0)) {
+            service.useTransport(refusing.connect());
+            Message m = new Message("MSG201", "+27821234567", "Running late");
+            assertEquals(MessageDelivery.FAILED, service.send(m).join());
+            // The refused send was forgotten, so the retry goes to the gateway again
+            assertEquals(MessageDelivery.FAILED, service.send(m).join());
+            assertEquals(2, refusing.rejectedCount());
+        }
+        try (LocalGateway accepting = new LocalGateway()) {
+            service.useTransport(accepting.connect());
+            Message m = new Message("MSG201", "+27821234567", "Running late");
+            assertEquals(MessageDelivery.SENT, service.send(m).join());
+            assertEquals(QuickChatService.DUPLICATE, service.send(new Message("MSG201", "+27821234567", "Running late")).join());
+        }
+        assertEquals(1, service.deduplicator().duplicateCount());
+    }
+
+    @Test
+    public void testRepeatedSendIsDisregarded() {
+        assertEquals("Message sent", service.send(new Message("MSG201", "+27821234567", "Running late")).join());
+        Message again = new Message("MSG201", "+27821234567", "Running late");
+        assertEquals(QuickChatService.DUPLICATE, service.send(again).join());
+        assertFalse(again.isSent());
+        assertTrue(Message.disregardedMessages.contains(again));
+        assertEquals(QuickChatService.DUPLICATE, again.getDisregardReason());
+        // Different text under the same hash is a different message
+        assertEquals("Message sent", service.send(new Message("MSG201", "+27821234567", "Running very late")).join());
+        assertEquals(1, service.deduplicator().duplicateCount());
+
+        service.setDeduplicator(null);
+        assertEquals("Message sent", service.send(new Message("MSG201", "+27821234567", "Running late")).join());
+        assertEquals(3, service.sentMessages().join().size());
+    }
+
+    @Test
+    public void testScheduledSendsGoThroughTransportAndDeduplicator() throws Exception {
+        try (LocalGateway gateway = new LocalGateway()) {
+            service.useTransport(gateway.connect());
+            Message first = new Message("MSG301", "+27821234567", "See you at eight");
+            Message repeat = new Message("MSG301", "+27821234567", "See you at eight");
+            service.scheduleSend(first, 0).join();
+            LocalGatewayTest.waitFor(() -> Message.sentMessages.contains(first));
+            service.scheduleSend(repeat, 0).join();
+            LocalGatewayTest.waitFor(() -> Message.disregardedMessages.contains(repeat));
+
+            assertEquals(1, gateway.acceptedCount());
+            assertEquals(QuickChatService.DUPLICATE, repeat.getDisregardReason());
+            assertEquals(0, service.outbox().retryCount());
+            // Receipts for the scheduled send are matched like any other
+            LocalGatewayTest.waitFor(first::isRead);
+        }
+    }
+
+    @Test
+    public void testRefusedScheduledSendIsRetriedNotDuplicated() throws Exception {
+        try (LocalGateway refusing = new LocalGateway(0, 0, 1, 0, 0)) {
+            service.useTransport(refusing.connect());
+            Message m = new Message("MSG302", "+27821234567", "Running late");
+            service.scheduleSend(m, 0).join();
+            LocalGatewayTest.waitFor(() -> refusing.rejectedCount() == 1);
+            LocalGatewayTest.waitFor(() -> service.outbox().retryCount() == 1);
+            assertFalse(Message.sentMessages.contains(m));
+            assertTrue(Message.storedMessages.contains(m));
+            // The refused attempt was forgotten, so the retry is not a duplicate
+            assertEquals(0, service.deduplicator().duplicateCount());
+        }
+    }
+
+    @Test
+    public void testRecoverSchedulesStoredMessages() throws Exception {
+        Message pending = new Message("MSG303", "+27821234567", "Left over from last run");
+        Message.storedMessages.add(pending);
+        assertEquals(1, service.outbox().recover());
+        LocalGatewayTest.waitFor(() -> Message.sentMessages.contains(pending));
+        assertFalse(Message.storedMessages.contains(pending));
+    }
+
+    private static void clearStores() {
+        Message.sentMessages.clear();
+        Message.storedMessages.clear();
+        Message.disregardedMessages.clear();
+        Message.messageHashes.clear();
+        Message.messageIDs.clear();
+    }
+}
@@ -0,0 +1,189 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Session tokens for users who have already logged in, so later requests present a token
+// instead of paying for a full credential check.
+//
+// Sessions expire after the idle timeout, and every use pushes the expiry back. Size is
+// bounded with CLOCK eviction, the usual lock-free stand-in for LRU: sessions sit in a ring
+// of slots, a use sets the session's referenced bit, and a new session takes the first slot
+// the clock hand finds empty, expired or unreferenced, clearing referenced bits as it
+// passes. Lookups are a map read plus at most two volatile writes; nothing locks.
+public class SessionCache {
+    public static final int DEFAULT_CAPACITY = 100_000;
+    public static final long DEFAULT_IDLE_MILLIS = 30 * 60_000L;
+    private static final int TOKEN_BYTES = 32;
+    // Last-use times closer together than this are not rewritten, to keep hits read-mostly
+    private static final long TOUCH_GRANULARITY_MILLIS = 1000;
+
+    // One logged-in user's session
+    private static final class Session {
+        final String token;
+        final Login user;
+        final String username;
+        volatile long lastUsed;
+        volatile boolean referenced;
+        volatile boolean valid = true;
+
+        Session(String token, Login user, String username, long now) {
+            this.token = token;
+            this.user = user;
+            this.username = username;
+            this.lastUsed = now;
+        }
+    }
+
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Session> ring;
+    private final AtomicInteger hand = new AtomicInteger();
+    private final long idleMillis;
+    private final LongSupplier clock;
+    private final SecureRandom random = new SecureRandom();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public SessionCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_IDLE_MILLIS, System::currentTimeMillis);
+    }
+
+    // The clock returns milliseconds; tests pass their own
+    public SessionCache(int capacity, long idleMillis, LongSupplier clock) {
+        if (capacity < 1 || idleMillis < 1) {
+            throw new IllegalArgumentException("capacity and idleMillis must be positive");
+        }
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.idleMillis = idleMillis;
+        this.clock = clock;
+    }
+
+    // Start a session for a user who has just logged in; returns its token
+    public String create(Login user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session s = new Session(token, user, user.getUsername(), clock.getAsLong());
+        sessions.put(token, s);
+        place(s);
+        return token;
+    }
+
+    // The session's user if the token is known and not idle too long; a hit extends the session
+    public Optional<Login> get(String token) {
+        Session s = token != null ? sessions.get(token) : null;
+        if (s == null || !s.valid) {
+            misses.increment();
+            return Optional.empty();
+        }
+        long now = clock.getAsLong();
+        if (now - s.lastUsed > idleMillis) {
+            if (drop(s)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return Optional.empty();
+        }
+        if (now - s.lastUsed >= TOUCH_GRANULARITY_MILLIS) {
+            s.lastUsed = now;
+        }
+        if (!s.referenced) {
+            s.referenced = true;
+        }
+        hits.increment();
+        return Optional.of(s.user);
+    }
+
+    // Logout: true if the token was a live session
+    public boolean invalidate(String token) {
+        Session s = token != null ? sessions.get(token) : null;
+        return s != null && drop(s);
+    }
+
+    // End every session of the user, e.g. after a password change; returns how many ended.
+    // Walks all sessions, which is fine for an operation this rare.
+    public int invalidateUser(String username) {
+        int ended = 0;
+        for (Session s : sessions.values()) {
+            if (s.username != null && s.username.equals(username) && drop(s)) {
+                ended++;
+            }
+        }
+        return ended;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public int capacity() {
+        return ring.length();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    // Hits over lookups so far, 0 before the first lookup
+    public double hitRatio() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    // Sessions pushed out to make room for newer ones
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Sessions found idle past the timeout, on lookup or when their slot was reused
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    // Advance the clock hand until a slot can take the session. A full sweep clears every
+    // referenced bit, so the search ends within two turns of the ring.
+    private void place(Session s) {
+        int n = ring.length();
+        while (true) {
+            int i = Math.floorMod(hand.getAndIncrement(), n);
+            Session current = ring.get(i);
+            if (current != null && current.valid) {
+                if (current.referenced) {
+                    current.referenced = false;
+                    continue;
+                }
+                boolean expired = clock.getAsLong() - current.lastUsed > idleMillis;
+                if (!ring.compareAndSet(i, current, s)) {
+                    continue;
+                }
+                if (drop(current)) {
+                    (expired ? expirations : evictions).increment();
+                }
+                return;
+            }
+            if (ring.compareAndSet(i, current, s)) {
+                return;
+            }
+        }
+    }
+
+    // Mark the session dead and forget its token; true for the one caller that ended it
+    private boolean drop(Session s) {
+        if (!s.valid) {
+            return false;
+        }
+        s.valid = false;
+        return sessions.remove(s.token, s);
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionCacheTest {
+
+    private AtomicLong now;
+    private SessionCache cache;
+    private Login kyle;
+
+    @Before
+    public void setUp() {
+        now = new AtomicLong(1_000_000);
+        cache = new SessionCache(4, 60_000, now::get);
+        kyle = new Login("Kyle", "Smith", "kyl_1", null, "+27838968976");
+    }
+
+    @Test
+    public void testTokensResolveToTheirUser() {
+        String a = cache.create(kyle);
+        String b = cache.create(new Login("Kim", "Smith", "kim_1", null, "+27838968977"));
+        assertNotEquals(a, b);
+        assertSame(kyle, cache.get(a).get());
+        assertEquals("kim_1", cache.get(b).get().getUsername());
+        assertEquals(Optional.empty(), cache.get("made-up"));
+        assertEquals(Optional.empty(), cache.get(null));
+        assertEquals(2.0 / 4, cache.hitRatio(), 1e-9);
+    }
+
+    @Test
+    public void testSlidingExpiry() {
+        String token = cache.create(kyle);
+        now.addAndGet(50_000);
+        assertTrue(cache.get(token).isPresent());
+        // Used 50s ago, so 50s more is still inside the minute
+        now.addAndGet(50_000);
+        assertTrue(cache.get(token).isPresent());
+        now.addAndGet(60_001);
+        assertFalse(cache.get(token).isPresent());
+        assertEquals(1, cache.expirations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLogoutAndUserInvalidation() {
+        String first = cache.create(kyle);
+        String second = cache.create(kyle);
+        String other = cache.create(new Login("Kim", "Smith", "kim_1", null, "+27838968977"));
+        assertTrue(cache.invalidate(first));
+        assertFalse(cache.invalidate(first));
+        assertFalse(cache.get(first).isPresent());
+
+        cache.create(kyle);
+        assertEquals(2, cache.invalidateUser("kyl_1"));
+        assertFalse(cache.get(second).isPresent());
+        assertTrue(cache.get(other).isPresent());
+    }
+
+    @Test
+    public void testEvictionKeepsRecentlyUsedSessions() {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tokens.add(cache.create(kyle));
+        }
+        // Touch all but the second, which becomes the one to go
+        cache.get(tokens.get(0));
+        cache.get(tokens.get(2));
+        cache.get(tokens.get(3));
+        String fifth = cache.create(kyle);
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.evictions());
+        assertFalse(cache.get(tokens.get(1)).isPresent());
+        assertTrue(cache.get(tokens.get(0)).isPresent());
+        assertTrue(cache.get(fifth).isPresent());
+
+        for (int i = 0; i < 100; i++) {
+            cache.create(kyle);
+        }
+        assertTrue(cache.size() <= cache.capacity());
+    }
+}
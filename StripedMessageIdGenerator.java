@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Low-contention, lock-free ID generator. IDs are leased in blocks from a shared counter and
+// handed out from a fixed set of stripes, one per thread ID hash, so threads rarely touch the
+// same stripe and never collide. A thread always uses the same stripe, so its IDs are
+// monotonic. Stripes rather than thread-locals, because the service runs each task on a
+// fresh virtual thread: a per-thread lease would be thrown away after one ID.
+//
+// Each stripe is one long: the next value its lease hands out, or NO_LEASE. Blocks end on a
+// multiple of the block size, so the limit is implied by the value and taking an ID is a
+// single CAS. Only a refill goes back to the shared counter, with a CAS of its own.
+public class StripedMessageIdGenerator implements MessageIdGenerator {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    // Values below this are zero-padded to three digits, as checkMessageID requires
+    private static final long PAD_BELOW = 100;
+    private static final long NO_LEASE = -1;
+    // Longs between stripes, so two stripes never share a cache line (or its prefetched neighbour)
+    private static final int STRIDE = 16;
+
+    private final AtomicLong nextBlock;
+    private final int blockSize;
+    private final int stripeMask;
+    private final AtomicLongArray stripes;
+
+    public StripedMessageIdGenerator() {
+        this(PAD_BELOW, DEFAULT_BLOCK_SIZE);
+    }
+
+    public StripedMessageIdGenerator(long firstValue, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if (firstValue < 0) {
+            throw new IllegalArgumentException("First value must not be negative");
+        }
+        this.nextBlock = new AtomicLong(firstValue);
+        this.blockSize = blockSize;
+        // A power of two at least four times the core count
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int count = Integer.highestOneBit(cores * 4 - 1) << 1;
+        this.stripeMask = count - 1;
+        this.stripes = new AtomicLongArray(count * STRIDE);
+        for (int i = 0; i < count; i++) {
+            stripes.set(i * STRIDE, NO_LEASE);
+        }
+    }
+
+    @Override
+    public long nextValue() {
+        long thread = Thread.currentThread().getId();
+        int h = (int) (thread ^ (thread >>> 32)) * 0x9E3779B9;
+        int at = ((h >>> 16) & stripeMask) * STRIDE;
+        while (true) {
+            long next = stripes.get(at);
+            if (next == NO_LEASE) {
+                return refill(at);
+            }
+            if (stripes.compareAndSet(at, next, afterTaking(next))) {
+                return next;
+            }
+        }
+    }
+
+    // Lease the next block and keep its first value for this call. If other threads refilled
+    // the stripe meanwhile, the stripe keeps whichever lease is newest and the rest are
+    // dropped: IDs stay unique, just not dense, and a thread that handed out the start of a
+    // newer block never goes back to an older one.
+    private long refill(int at) {
+        long start;
+        long end;
+        do {
+            start = nextBlock.get();
+            end = (start / blockSize + 1) * blockSize;
+        } while (!nextBlock.compareAndSet(start, end));
+        long rest = afterTaking(start);
+        while (true) {
+            long next = stripes.get(at);
+            if (next > start || stripes.compareAndSet(at, next, rest)) {
+                return start;
+            }
+        }
+    }
+
+    // The stripe's value once `taken` has been handed out
+    private long afterTaking(long taken) {
+        long next = taken + 1;
+        return next % blockSize == 0 ? NO_LEASE : next;
+    }
+
+    // Later blocks start past the value, and leases that could still hand out values at or
+    // below it are dropped
+    @Override
+    public void advancePast(long value) {
+        nextBlock.accumulateAndGet(value + 1, Math::max);
+        for (int at = 0; at < stripes.length(); at += STRIDE) {
+            long next;
+            while ((next = stripes.get(at)) != NO_LEASE && next <= value) {
+                if (stripes.compareAndSet(at, next, NO_LEASE)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String nextId() {
+        long value = nextValue();
+        return value < 10 ? "MSG00" + value : value < PAD_BELOW ? "MSG0" + value : "MSG" + value;
+    }
+}
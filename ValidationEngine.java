@@ -0,0 +1,189 @@
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+// Single-pass, regex-free validators for registration and message input.
+// Each check walks the input once with plain character tests and returns a mask of every
+// ValidationRule that failed (0 means valid), without allocating. Wrap the mask with
+// ValidationResult.of when a readable result is needed.
+public final class ValidationEngine {
+    private static final int USERNAME_MISSING = ValidationRule.USERNAME_MISSING.bit();
+    private static final int USERNAME_NO_UNDERSCORE = ValidationRule.USERNAME_NO_UNDERSCORE.bit();
+    private static final int USERNAME_TOO_LONG = ValidationRule.USERNAME_TOO_LONG.bit();
+    private static final int PASSWORD_MISSING = ValidationRule.PASSWORD_MISSING.bit();
+    private static final int PASSWORD_TOO_SHORT = ValidationRule.PASSWORD_TOO_SHORT.bit();
+    private static final int PASSWORD_NO_UPPERCASE = ValidationRule.PASSWORD_NO_UPPERCASE.bit();
+    private static final int PASSWORD_NO_DIGIT = ValidationRule.PASSWORD_NO_DIGIT.bit();
+    private static final int PASSWORD_NO_SPECIAL = ValidationRule.PASSWORD_NO_SPECIAL.bit();
+    private static final int PASSWORD_LINE_BREAK = ValidationRule.PASSWORD_LINE_BREAK.bit();
+    private static final int PHONE_MISSING = ValidationRule.PHONE_MISSING.bit();
+    private static final int PHONE_NO_PREFIX = ValidationRule.PHONE_NO_PREFIX.bit();
+    private static final int PHONE_WRONG_LENGTH = ValidationRule.PHONE_WRONG_LENGTH.bit();
+    private static final int PHONE_NOT_DIGITS = ValidationRule.PHONE_NOT_DIGITS.bit();
+    private static final int RECIPIENT_MISSING = ValidationRule.RECIPIENT_MISSING.bit();
+    private static final int RECIPIENT_NO_PREFIX = ValidationRule.RECIPIENT_NO_PREFIX.bit();
+    private static final int RECIPIENT_TOO_LONG = ValidationRule.RECIPIENT_TOO_LONG.bit();
+    private static final int MESSAGE_ID_MISSING = ValidationRule.MESSAGE_ID_MISSING.bit();
+    private static final int MESSAGE_ID_NO_PREFIX = ValidationRule.MESSAGE_ID_NO_PREFIX.bit();
+    private static final int MESSAGE_ID_WRONG_LENGTH = ValidationRule.MESSAGE_ID_WRONG_LENGTH.bit();
+    private static final int MESSAGE_ID_NOT_DIGITS = ValidationRule.MESSAGE_ID_NOT_DIGITS.bit();
+
+    private static final int PHONE_LENGTH = 12;          // +27 and 9 digits
+    private static final int MAX_RECIPIENT_LENGTH = 13;
+    private static final int MAX_USERNAME_LENGTH = 5;
+    private static final int MIN_PASSWORD_LENGTH = 8;
+    private static final int MIN_MESSAGE_ID_DIGITS = 3;  // MSG100 and the original MSG### IDs
+    private static final int MAX_MESSAGE_ID_DIGITS = 18; // any value a generator's long can reach
+
+    // Lookup table for the special characters the password rule accepts
+    private static final boolean[] SPECIAL = new boolean[128];
+
+    static {
+        for (char c : "!@#$%^&*()_+-=[]{};':\"\\|,.<>/?".toCharArray()) {
+            SPECIAL[c] = true;
+        }
+    }
+
+    private ValidationEngine() {
+    }
+
+    // Must contain an underscore and be no more than 5 characters
+    public static int checkUsername(CharSequence username) {
+        if (username == null) {
+            return USERNAME_MISSING;
+        }
+        int failures = username.length() > MAX_USERNAME_LENGTH ? USERNAME_TOO_LONG : 0;
+        for (int i = 0; i < username.length(); i++) {
+            if (username.charAt(i) == '_') {
+                return failures;
+            }
+        }
+        return failures | USERNAME_NO_UNDERSCORE;
+    }
+
+    // At least 8 characters with a capital letter, an ASCII digit and a special character.
+    // Line breaks fail the check, as they did with the original ".*\\d.*" patterns.
+    public static int checkPassword(CharSequence password) {
+        if (password == null) {
+            return PASSWORD_MISSING;
+        }
+        boolean upper = false, digit = false, special = false, lineBreak = false;
+        int length = password.length();
+        for (int i = 0; i < length; i++) {
+            char c = password.charAt(i);
+            if (c < 128) {
+                if (c >= '0' && c <= '9') {
+                    digit = true;
+                } else if (c >= 'A' && c <= 'Z') {
+                    upper = true;
+                } else if (c == '\n' || c == '\r') {
+                    lineBreak = true;
+                } else if (SPECIAL[c]) {
+                    special = true;
+                }
+            } else if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                lineBreak = true;
+            } else {
+                // Any character lower-casing would change counts, as in !s.equals(s.toLowerCase())
+                int cp = Character.codePointAt(password, i);
+                if (Character.toLowerCase(cp) != cp) {
+                    upper = true;
+                }
+                if (Character.isSupplementaryCodePoint(cp)) {
+                    i++;
+                }
+            }
+        }
+        int failures = 0;
+        if (length < MIN_PASSWORD_LENGTH) failures |= PASSWORD_TOO_SHORT;
+        if (!upper) failures |= PASSWORD_NO_UPPERCASE;
+        if (!digit) failures |= PASSWORD_NO_DIGIT;
+        if (!special) failures |= PASSWORD_NO_SPECIAL;
+        if (lineBreak) failures |= PASSWORD_LINE_BREAK;
+        return failures;
+    }
+
+    // Exactly +27 followed by 9 ASCII digits
+    public static int checkPhone(CharSequence phone) {
+        if (phone == null) {
+            return PHONE_MISSING;
+        }
+        int length = phone.length();
+        int failures = 0;
+        if (!startsWithSouthAfricanPrefix(phone)) {
+            failures |= PHONE_NO_PREFIX;
+        }
+        if (length != PHONE_LENGTH) {
+            failures |= PHONE_WRONG_LENGTH;
+        }
+        for (int i = Math.min(3, length); i < length; i++) {
+            char c = phone.charAt(i);
+            if (c < '0' || c > '9') {
+                failures |= PHONE_NOT_DIGITS;
+                break;
+            }
+        }
+        return failures;
+    }
+
+    // Starts with +27 and is no more than 13 characters
+    public static int checkRecipient(CharSequence recipient) {
+        if (recipient == null) {
+            return RECIPIENT_MISSING;
+        }
+        int failures = startsWithSouthAfricanPrefix(recipient) ? 0 : RECIPIENT_NO_PREFIX;
+        if (recipient.length() > MAX_RECIPIENT_LENGTH) {
+            failures |= RECIPIENT_TOO_LONG;
+        }
+        return failures;
+    }
+
+    // MSG followed by 3 to 18 ASCII digits
+    public static int checkMessageID(CharSequence messageID) {
+        if (messageID == null) {
+            return MESSAGE_ID_MISSING;
+        }
+        int length = messageID.length();
+        int failures = 0;
+        if (length < 3 || messageID.charAt(0) != 'M' || messageID.charAt(1) != 'S' || messageID.charAt(2) != 'G') {
+            failures |= MESSAGE_ID_NO_PREFIX;
+        }
+        if (length < 3 + MIN_MESSAGE_ID_DIGITS || length > 3 + MAX_MESSAGE_ID_DIGITS) {
+            failures |= MESSAGE_ID_WRONG_LENGTH;
+        }
+        for (int i = Math.min(3, length); i < length; i++) {
+            char c = messageID.charAt(i);
+            if (c < '0' || c > '9') {
+                failures |= MESSAGE_ID_NOT_DIGITS;
+                break;
+            }
+        }
+        return failures;
+    }
+
+    // Validate every candidate in parallel across all cores; result[i] is candidates[i]'s failure mask
+    public static int[] validateAll(CharSequence[] candidates, ToIntFunction<CharSequence> validator) {
+        int[] results = new int[candidates.length];
+        IntStream.range(0, candidates.length).parallel().forEach(i -> results[i] = validator.applyAsInt(candidates[i]));
+        return results;
+    }
+
+    public static int[] validateUsernames(CharSequence[] candidates) {
+        return validateAll(candidates, ValidationEngine::checkUsername);
+    }
+
+    public static int[] validatePasswords(CharSequence[] candidates) {
+        return validateAll(candidates, ValidationEngine::checkPassword);
+    }
+
+    public static int[] validatePhones(CharSequence[] candidates) {
+        return validateAll(candidates, ValidationEngine::checkPhone);
+    }
+
+    public static int[] validateMessageIDs(CharSequence[] candidates) {
+        return validateAll(candidates, ValidationEngine::checkMessageID);
+    }
+
+    private static boolean startsWithSouthAfricanPrefix(CharSequence s) {
+        return s.length() >= 3 && s.charAt(0) == '+' && s.charAt(1) == '2' && s.charAt(2) == '7';
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.Test;
+import java.util.EnumSet;
+import java.util.Random;
+import static org.junit.Assert.*;
+
+public class ValidationEngineTest {
+
+    @Test
+    public void testValidInputsPass() {
+        assertEquals(0, ValidationEngine.checkUsername("kyl_1"));
+        assertEquals(0, ValidationEngine.checkPassword("Ch&&sec@ke99!"));
+        assertEquals(0, ValidationEngine.checkPhone("+27838968976"));
+        assertEquals(0, ValidationEngine.checkRecipient("+27718693002"));
+        assertEquals(0, ValidationEngine.checkMessageID("MSG123"));
+    }
+
+    @Test
+    public void testEveryFailedPasswordRuleIsReported() {
+        ValidationResult result = ValidationResult.of(ValidationEngine.checkPassword("pass"));
+        assertFalse(result.isValid());
+        assertEquals(EnumSet.of(ValidationRule.PASSWORD_TOO_SHORT, ValidationRule.PASSWORD_NO_UPPERCASE,
+                ValidationRule.PASSWORD_NO_DIGIT, ValidationRule.PASSWORD_NO_SPECIAL), result.getFailedRules());
+        assertEquals(4, result.getMessages().size());
+    }
+
+    @Test
+    public void testRegistrationCombinesAllFields() {
+        Login login = new Login("Kyle", "Smith", "kyle!!!!!!!", "password", "08966553");
+        ValidationResult result = login.validateRegistration();
+        assertTrue(result.failed(ValidationRule.USERNAME_NO_UNDERSCORE));
+        assertTrue(result.failed(ValidationRule.USERNAME_TOO_LONG));
+        assertTrue(result.failed(ValidationRule.PASSWORD_NO_DIGIT));
+        assertTrue(result.failed(ValidationRule.PHONE_NO_PREFIX));
+        assertTrue(result.failed(ValidationRule.PHONE_WRONG_LENGTH));
+        assertFalse(result.failed(ValidationRule.PHONE_NOT_DIGITS));
+        assertTrue(new Login("Kyle", "Smith", "kyl_1", "Ch&&sec@ke99!", "+27838968976").validateRegistration().isValid());
+    }
+
+    @Test
+    public void testNullsAreReportedNotThrown() {
+        assertTrue(ValidationResult.of(ValidationEngine.checkPhone(null)).failed(ValidationRule.PHONE_MISSING));
+        assertTrue(ValidationResult.of(ValidationEngine.checkMessageID(null)).failed(ValidationRule.MESSAGE_ID_MISSING));
+        assertTrue(ValidationResult.of(ValidationEngine.checkRecipient(null)).failed(ValidationRule.RECIPIENT_MISSING));
+    }
+
+    @Test
+    public void testMatchesOriginalRegexesOnRandomInput() {
+        Random random = new Random(7);
+        String alphabet = "+27MSGaZ_09!\\\n٣É ";
+        for (int n = 0; n < 20_000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(15);
+            if (random.nextBoolean()) sb.append(random.nextBoolean() ? "+27" : "MSG");
+            for (int i = 0; i < len; i++) {
+                sb.append(random.nextInt(3) == 0 ? (char) ('0' + random.nextInt(10)) : alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String s = sb.toString();
+            assertEquals(s, s.matches("\\+27\\d{9}"), ValidationEngine.checkPhone(s) == 0);
+            assertEquals(s, s.matches("MSG\\d{3,18}"), ValidationEngine.checkMessageID(s) == 0);
+            assertEquals(s, s.length() <= 13 && s.startsWith("+27"), ValidationEngine.checkRecipient(s) == 0);
+            assertEquals(s, s.contains("_") && s.length() <= 5, ValidationEngine.checkUsername(s) == 0);
+            boolean password = !s.equals(s.toLowerCase()) && s.matches(".*\\d.*")
+                    && s.matches(".*[!@#$%^&*()_+\\-=\\[\\]{};':\"\\\\|,.<>/?].*") && s.length() >= 8;
+            assertEquals(s, password, ValidationEngine.checkPassword(s) == 0);
+        }
+    }
+
+    @Test
+    public void testBatchValidationKeepsOrder() {
+        String[] phones = new String[10_000];
+        for (int i = 0; i < phones.length; i++) {
+            phones[i] = i % 3 == 0 ? "0831234567" : "+2783" + String.format("%07d", i);
+        }
+        int[] results = ValidationEngine.validatePhones(phones);
+        for (int i = 0; i < phones.length; i++) {
+            assertEquals(i % 3 == 0, results[i] != 0);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+// Structured outcome of a validation: which rules failed, not just whether one did
+public final class ValidationResult {
+    private static final ValidationRule[] RULES = ValidationRule.values();
+    private static final ValidationResult VALID = new ValidationResult(0);
+
+    private final int failures;
+
+    private ValidationResult(int failures) {
+        this.failures = failures;
+    }
+
+    // Wrap a failure mask returned by ValidationEngine
+    public static ValidationResult of(int failures) {
+        return failures == 0 ? VALID : new ValidationResult(failures);
+    }
+
+    public boolean isValid() {
+        return failures == 0;
+    }
+
+    public int getFailureMask() {
+        return failures;
+    }
+
+    public boolean failed(ValidationRule rule) {
+        return (failures & rule.bit()) != 0;
+    }
+
+    public EnumSet<ValidationRule> getFailedRules() {
+        EnumSet<ValidationRule> failed = EnumSet.noneOf(ValidationRule.class);
+        for (ValidationRule rule : RULES) {
+            if (failed(rule)) {
+                failed.add(rule);
+            }
+        }
+        return failed;
+    }
+
+    // One description per failed rule, in rule order
+    public List<String> getMessages() {
+        List<String> messages = new ArrayList<>();
+        for (ValidationRule rule : getFailedRules()) {
+            messages.add(rule.getDescription());
+        }
+        return messages;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "Valid" : getFailedRules().toString();
+    }
+}
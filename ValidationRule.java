@@ -0,0 +1,42 @@
+// Every rule the validation engine can report. Validators return a bit mask with
+// bit (1 << ordinal) set for each rule that failed, so no objects are created per check.
+public enum ValidationRule {
+    USERNAME_MISSING("Username is missing."),
+    USERNAME_NO_UNDERSCORE("Username must contain an underscore."),
+    USERNAME_TOO_LONG("Username must be no more than 5 characters."),
+
+    PASSWORD_MISSING("Password is missing."),
+    PASSWORD_TOO_SHORT("Password must contain at least 8 characters."),
+    PASSWORD_NO_UPPERCASE("Password must contain a capital letter."),
+    PASSWORD_NO_DIGIT("Password must contain a number."),
+    PASSWORD_NO_SPECIAL("Password must contain a special character."),
+    PASSWORD_LINE_BREAK("Password must not contain line breaks."),
+
+    PHONE_MISSING("Cell phone number is missing."),
+    PHONE_NO_PREFIX("Cell phone number must start with +27."),
+    PHONE_WRONG_LENGTH("Cell phone number must have 9 digits after +27."),
+    PHONE_NOT_DIGITS("Cell phone number must only contain digits after +27."),
+
+    RECIPIENT_MISSING("Recipient cell number is missing."),
+    RECIPIENT_NO_PREFIX("Recipient cell number must start with +27."),
+    RECIPIENT_TOO_LONG("Recipient cell number must be no more than 13 characters."),
+
+    MESSAGE_ID_MISSING("Message ID is missing."),
+    MESSAGE_ID_NO_PREFIX("Message ID must start with MSG."),
+    MESSAGE_ID_WRONG_LENGTH("Message ID must have 3 to 18 digits after MSG."),
+    MESSAGE_ID_NOT_DIGITS("Message ID must only contain digits after MSG.");
+
+    private final String description;
+
+    ValidationRule(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+}